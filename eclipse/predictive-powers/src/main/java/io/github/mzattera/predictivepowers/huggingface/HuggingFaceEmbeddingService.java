@@ -18,7 +18,8 @@ package io.github.mzattera.predictivepowers.huggingface;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.github.mzattera.hfinferenceapi.client.model.EmbeddingData;
 import io.github.mzattera.hfinferenceapi.client.model.EmbeddingsRequest;
@@ -28,6 +29,7 @@ import io.github.mzattera.predictivepowers.services.AbstractEmbeddingService;
 import io.github.mzattera.predictivepowers.services.EmbeddedText;
 import io.github.mzattera.predictivepowers.services.ModelService;
 import io.github.mzattera.predictivepowers.services.ModelService.Tokenizer;
+import io.github.mzattera.predictivepowers.services.messages.JsonSchema;
 import io.github.mzattera.predictivepowers.util.ChunkUtil;
 import lombok.Getter;
 import lombok.NonNull;
@@ -76,6 +78,18 @@ public class HuggingFaceEmbeddingService extends AbstractEmbeddingService {
 		defaultRequest.setModel(model);
 	}
 
+	/**
+	 * @return Parameters in {@link #getDefaultRequest()}, except model and input,
+	 *         as JSON; any of them might affect the returned embeddings.
+	 */
+	@Override
+	public String getEmbeddingSettings() {
+		ObjectNode json = JsonSchema.JSON_MAPPER.valueToTree(defaultRequest);
+		json.remove("model");
+		json.remove("input");
+		return json.toString();
+	}
+
 	protected HuggingFaceEmbeddingService(HuggingFaceEndpoint ep) {
 		this(ep, DEFAULT_MODEL);
 	}
@@ -109,24 +123,12 @@ public class HuggingFaceEmbeddingService extends AbstractEmbeddingService {
 				chunks = tmp;
 			}
 
-			// Embed as many pieces you can in a single call
-			List<String> input = new ArrayList<>();
-			List<EmbeddedText> result = new ArrayList<>();
-			while (chunks.size() > 0) {
-				input.add(chunks.remove(0));
-				if (input.size() == MAX_INPUTS_PER_CALL) {
-					// too many tokens, embed what you have
-					result.addAll(embed(input));
-					input.clear();
-				}
-			}
+			// Put as many pieces as you can in a single call
+			List<List<String>> batches = new ArrayList<>();
+			for (int i = 0; i < chunks.size(); i += MAX_INPUTS_PER_CALL)
+				batches.add(chunks.subList(i, Math.min(chunks.size(), i + MAX_INPUTS_PER_CALL)));
 
-			// last bit
-			if (input.size() > 0) {
-				result.addAll(embed(input));
-			}
-
-			return result;
+			return embedBatches(batches, this::embed);
 		} catch (Exception e) {
 			throw HuggingFaceUtil.toEndpointException(e);
 		}
@@ -138,15 +140,17 @@ public class HuggingFaceEmbeddingService extends AbstractEmbeddingService {
 		try {
 			List<EmbeddedText> result = new ArrayList<>();
 
+			// Batches can be embedded concurrently, so each needs its own request
 			String[] parts = HuggingFaceUtil.parseModel(model);
-			defaultRequest.setInput(input);
-			defaultRequest.setModel(parts[0]);
+			EmbeddingsRequest req = JsonSchema.JSON_MAPPER.convertValue(defaultRequest, EmbeddingsRequest.class);
+			req.setInput(input);
+			req.setModel(parts[0]);
 
-			for (EmbeddingData e : endpoint.getClient().featureExtraction(parts[1], defaultRequest).getData()) {
+			for (EmbeddingData e : endpoint.getClient().featureExtraction(parts[1], req).getData()) {
 				int index = e.getIndex();
 				EmbeddedText et = EmbeddedText.builder() //
 						.text(input.get(index)) //
-						.embedding(e.getEmbedding().stream().map(f -> f.doubleValue()).collect(Collectors.toList())) //
+						.vector(EmbeddedText.toVector(e.getEmbedding())) //
 						.model(model).build();
 				result.add(et);
 			}
@@ -154,9 +158,6 @@ public class HuggingFaceEmbeddingService extends AbstractEmbeddingService {
 			return result;
 		} catch (Exception e) {
 			throw HuggingFaceUtil.toEndpointException(e);
-		} finally {
-			// Restore model value
-			defaultRequest.setModel(model);
 		}
 	}
 }
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Reads and writes knowledge bases in a binary format that can be memory
+ * mapped, so that knowledge bases can be searched without de-serializing them.
+ * 
+ * The file starts with a header containing a magic number, the format version
+ * and the position of the domain directory, which is written at the end of the
+ * file. Each domain is stored as:
+ * 
+ * <ol>
+ * <li>a block with all embeddings, stored contiguously as
+ * <code>float</code>s;</li>
+ * <li>a block with the text of each embedding;</li>
+ * <li>a block with serialized properties of each embedding (if any);</li>
+ * <li>a table, with one fixed-size row for each embedding, pointing to the
+ * above blocks;</li>
+ * <li>a table with the norm of each embedding;</li>
+ * <li>a table of (text hash code, row) pairs, sorted by hash code, used to
+ * look up embeddings by their text.</li>
+ * </ol>
+ * 
+ * All numbers are little endian. As a single memory mapped buffer cannot exceed
+ * 2GB, the file is mapped in windows of 1GB; the writer makes sure no record
+ * crosses the boundary between two windows.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+final class BinaryFormat {
+
+	/** "PPKB" */
+	static final int MAGIC = 0x424B5050;
+
+	static final int VERSION = 1;
+
+	static final int WINDOW_BITS = 30;
+
+	static final long WINDOW_SIZE = 1L << WINDOW_BITS;
+
+	/**
+	 * Size of a row in the domain table: offset of embedding, text and properties
+	 * (long), embedding size and model index (int).
+	 */
+	static final int ROW_SIZE = 32;
+
+	private BinaryFormat() {
+	}
+
+	/**
+	 * @return Position where a record of given size starting at pos should be
+	 *         stored, so that it does not cross windows.
+	 */
+	private static long place(long pos, int size) {
+		if (size > WINDOW_SIZE)
+			throw new IllegalArgumentException("Record too big: " + size);
+		if ((pos >>> WINDOW_BITS) != ((pos + size - 1) >>> WINDOW_BITS))
+			return ((pos >>> WINDOW_BITS) + 1) << WINDOW_BITS;
+		return pos;
+	}
+
+	/**
+	 * Writes snapshots of given domains to a file. The file is first written under a
+	 * temporary name, then moved in place; this allows overwriting a file which is
+	 * currently mapped.
+	 */
+	static void write(Map<String, DomainSnapshot> domains, File file) throws IOException {
+		Path target = file.toPath().toAbsolutePath();
+		Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (Writer w = new Writer(FileChannel.open(tmp, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING))) {
+
+				w.putInt(MAGIC);
+				w.putInt(VERSION);
+				w.putLong(0); // Directory position, written at the end
+
+				Map<String, DomainInfo> infos = new LinkedHashMap<>();
+				for (Map.Entry<String, DomainSnapshot> e : domains.entrySet())
+					infos.put(e.getKey(), writeDomain(w, e.getValue()));
+
+				// Directory is written as a single record
+				ByteBuffer dir = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+				dir = put(dir, infos.size());
+				for (Map.Entry<String, DomainInfo> e : infos.entrySet()) {
+					DomainInfo info = e.getValue();
+					dir = put(dir, e.getKey());
+					dir = put(dir, info.size);
+					dir = put(dir, info.models.size());
+					for (String m : info.models)
+						dir = put(dir, m);
+					dir = put(dir, info.tableOffset);
+					dir = put(dir, info.normsOffset);
+					dir = put(dir, info.hashOffset);
+				}
+				long directory = w.putBytes(Arrays.copyOf(dir.array(), dir.position()));
+				w.flush();
+
+				ByteBuffer b = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				b.putLong(0, directory);
+				w.channel.write(b, 8);
+				w.channel.force(false);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			try {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static DomainInfo writeDomain(Writer w, DomainSnapshot d) throws IOException {
+		int size = d.getSize();
+		Rows rows = new Rows(w, size);
+
+		// Embeddings are read only once, as reading mapped ones is costly
+		MappedSegment base = d.getBase();
+		if (base != null) {
+			float[] v = new float[0];
+			for (int row = 0; row < base.size(); ++row) {
+				if (d.isDeleted(row))
+					continue;
+				if (v.length != base.dimensions(row))
+					v = new float[base.dimensions(row)];
+				base.vector(row, v);
+				rows.add(v, base.model(row), base.norm(row), base.text(row), base.properties(row));
+			}
+		}
+		d.forEachEntry((e, ref) -> rows.add(e.getVector(), e.getModel(), e.getNorm(), e.getText(), serialize(e)));
+
+		// Text
+		long[] texts = new long[size];
+		for (int i = 0; i < size; ++i) {
+			texts[i] = w.putBytes(rows.texts[i]);
+			rows.texts[i] = null;
+		}
+
+		// Properties
+		long[] properties = new long[size];
+		for (int i = 0; i < size; ++i) {
+			properties[i] = (rows.properties[i] == null) ? -1 : w.putBytes(rows.properties[i]);
+			rows.properties[i] = null;
+		}
+
+		// Table
+		w.align(ROW_SIZE);
+		long tableOffset = w.position();
+		for (int i = 0; i < size; ++i) {
+			w.putLong(rows.vectors[i]);
+			w.putLong(texts[i]);
+			w.putLong(properties[i]);
+			w.putInt(rows.dimensions[i]);
+			w.putInt(rows.modelIndexes[i]);
+		}
+
+		// Norms
+		long normsOffset = w.position();
+		for (int i = 0; i < size; ++i)
+			w.putDouble(rows.norms[i]);
+
+		// Hash index
+		Arrays.sort(rows.hashes);
+		long hashOffset = w.position();
+		for (int i = 0; i < size; ++i)
+			w.putLong(rows.hashes[i]);
+
+		return new DomainInfo(size, new ArrayList<>(rows.models.keySet()), tableOffset, normsOffset, hashOffset);
+	}
+
+	/**
+	 * @return Properties of given embedding, serialized, or null if it has none.
+	 */
+	private static byte[] serialize(EmbeddedText e) {
+		if (e.getProperties().isEmpty())
+			return null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+			oos.writeObject(new HashMap<>(e.getProperties()));
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Cannot serialize properties for: " + e, ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Opens a file written with {@link #write(Map, File)}.
+	 * 
+	 * @return A map from domain names into their (memory mapped) content.
+	 */
+	static Map<String, MappedSegment> open(File file) throws IOException {
+		MappedFile mf = new MappedFile(file);
+
+		if (mf.getInt(0) != MAGIC)
+			throw new IOException("Not a knowledge base file: " + file.getCanonicalPath());
+		int version = mf.getInt(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported knowledge base file version: " + version);
+
+		Map<String, MappedSegment> result = new LinkedHashMap<>();
+		ByteBuffer dir = ByteBuffer.wrap(mf.getBytes(mf.getLong(8))).order(ByteOrder.LITTLE_ENDIAN);
+		int domains = dir.getInt();
+		for (int i = 0; i < domains; ++i) {
+			String name = getString(dir);
+			int size = dir.getInt();
+			String[] models = new String[dir.getInt()];
+			for (int j = 0; j < models.length; ++j)
+				models[j] = getString(dir);
+			long tableOffset = dir.getLong();
+			long normsOffset = dir.getLong();
+			long hashOffset = dir.getLong();
+			result.put(name, new MappedSegment(mf, size, models, tableOffset, normsOffset, hashOffset));
+		}
+
+		return result;
+	}
+
+	private static ByteBuffer put(ByteBuffer b, int v) {
+		b = ensure(b, Integer.BYTES);
+		b.putInt(v);
+		return b;
+	}
+
+	private static ByteBuffer put(ByteBuffer b, long v) {
+		b = ensure(b, Long.BYTES);
+		b.putLong(v);
+		return b;
+	}
+
+	private static ByteBuffer put(ByteBuffer b, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		b = put(b, bytes.length);
+		b = ensure(b, bytes.length);
+		b.put(bytes);
+		return b;
+	}
+
+	/**
+	 * @return Given buffer, or a bigger copy of it if it has less than n bytes
+	 *         remaining.
+	 */
+	private static ByteBuffer ensure(ByteBuffer b, int n) {
+		if (b.remaining() >= n)
+			return b;
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(b.capacity() * 2, b.position() + n))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		b.flip();
+		bigger.put(b);
+		return bigger;
+	}
+
+	private static String getString(ByteBuffer b) {
+		byte[] bytes = new byte[b.getInt()];
+		b.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Rows of a domain being written. Vectors are written as rows are added, while
+	 * text and serialized properties are kept until all vectors are written, so
+	 * that vectors are stored contiguously.
+	 */
+	private static final class Rows {
+
+		private final Writer w;
+
+		private int size = 0;
+
+		private final long[] vectors;
+
+		private final int[] dimensions;
+
+		private final int[] modelIndexes;
+
+		private final double[] norms;
+
+		private final long[] hashes;
+
+		private final Map<String, Integer> models = new LinkedHashMap<>();
+
+		/** UTF-8 text of each row */
+		private final byte[][] texts;
+
+		/** Serialized properties of each row, null if it has none */
+		private final byte[][] properties;
+
+		private Rows(Writer w, int size) {
+			this.w = w;
+			vectors = new long[size];
+			dimensions = new int[size];
+			modelIndexes = new int[size];
+			norms = new double[size];
+			hashes = new long[size];
+			texts = new byte[size][];
+			properties = new byte[size][];
+		}
+
+		private void add(float[] v, String model, double norm, String text, byte[] serializedProperties) {
+			vectors[size] = w.reserve(Float.BYTES * v.length);
+			for (float f : v)
+				w.putFloatUnchecked(f);
+			dimensions[size] = v.length;
+			modelIndexes[size] = models.computeIfAbsent(model, k -> models.size());
+			norms[size] = norm;
+			hashes[size] = (((long) text.hashCode()) << 32) | size;
+			texts[size] = text.getBytes(StandardCharsets.UTF_8);
+			properties[size] = serializedProperties;
+			++size;
+		}
+	}
+
+	private static final class DomainInfo {
+		private final int size;
+		private final List<String> models;
+		private final long tableOffset;
+		private final long normsOffset;
+		private final long hashOffset;
+
+		private DomainInfo(int size, List<String> models, long tableOffset, long normsOffset, long hashOffset) {
+			this.size = size;
+			this.models = models;
+			this.tableOffset = tableOffset;
+			this.normsOffset = normsOffset;
+			this.hashOffset = hashOffset;
+		}
+	}
+
+	/**
+	 * Buffered writer that keeps track of current position in file and makes sure
+	 * records do not cross window boundaries.
+	 */
+	private static final class Writer implements AutoCloseable {
+
+		private final FileChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+		private long position = 0;
+
+		private Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		long position() {
+			return position;
+		}
+
+		/**
+		 * Moves to a position where a record of given size can be written.
+		 * 
+		 * @return The position where the record starts.
+		 */
+		long reserve(int size) {
+			pad(place(position, size) - position);
+			return position;
+		}
+
+		void align(int alignment) {
+			long rem = position % alignment;
+			if (rem != 0)
+				pad(alignment - rem);
+		}
+
+		void putInt(int v) {
+			reserve(Integer.BYTES);
+			ensure(Integer.BYTES);
+			buffer.putInt(v);
+			position += Integer.BYTES;
+		}
+
+		void putLong(long v) {
+			reserve(Long.BYTES);
+			ensure(Long.BYTES);
+			buffer.putLong(v);
+			position += Long.BYTES;
+		}
+
+		void putDouble(double v) {
+			reserve(Double.BYTES);
+			ensure(Double.BYTES);
+			buffer.putDouble(v);
+			position += Double.BYTES;
+		}
+
+		/**
+		 * Writes a float without checking it crosses windows; caller must have
+		 * reserved space.
+		 */
+		void putFloatUnchecked(float v) {
+			ensure(Float.BYTES);
+			buffer.putFloat(v);
+			position += Float.BYTES;
+		}
+
+		/**
+		 * Writes given bytes, preceded by their length.
+		 * 
+		 * @return Position where the length was written.
+		 */
+		long putBytes(byte[] b) {
+			long start = reserve(Integer.BYTES + b.length);
+			ensure(Integer.BYTES);
+			buffer.putInt(b.length);
+			position += Integer.BYTES;
+			int off = 0;
+			while (off < b.length) {
+				ensure(1);
+				int len = Math.min(buffer.remaining(), b.length - off);
+				buffer.put(b, off, len);
+				off += len;
+				position += len;
+			}
+			return start;
+		}
+
+		/**
+		 * Writes given string, as UTF-8 bytes preceded by their length.
+		 * 
+		 * @return Position where the length was written.
+		 */
+		long putString(String s) {
+			return putBytes(s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		private void pad(long n) {
+			for (long i = 0; i < n; ++i) {
+				ensure(1);
+				buffer.put((byte) 0);
+			}
+			position += n;
+		}
+
+		private void ensure(int n) {
+			if (buffer.remaining() < n)
+				flush();
+		}
+
+		void flush() {
+			buffer.flip();
+			try {
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.util.VectorUtil;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A {@link VectorIndex} that stores a binary quantized (1 bit per dimension)
+ * copy of each embedding, which is used to quickly scan the domain for
+ * candidates; the best candidates are then re-scored using the full-precision
+ * embeddings.
+ * 
+ * Each dimension is encoded by its sign, and the distance between two codes is
+ * the number of bits in which they differ (Hamming distance), which is
+ * computed 64 dimensions at a time with XOR and {@link Long#bitCount(long)}.
+ * This reduces the memory scanned at each search by a factor of 32 compared
+ * with <code>float</code> embeddings. As Hamming distances are small integers,
+ * candidates are selected in linear time by counting how many codes are at
+ * each distance, without sorting them.
+ * 
+ * The number of candidates that are re-scored grows with the number of
+ * requested results, not with the size of the domain: by default it is the
+ * largest of {@link #DEFAULT_CANDIDATES} and {@link #DEFAULT_OVERSAMPLING}
+ * times the requested results. On synthetic 768-dimensional embeddings, which
+ * are much harder to tell apart than real ones, this gives a recall@10,
+ * against an exhaustive search, of about 0.99 with 3,000 embeddings, 0.80 with
+ * 20,000 and 0.54 with 100,000 (see BinaryQuantizedIndexBenchmark). Recall can
+ * be improved by increasing the oversampling or, when it must not degrade as
+ * the domain grows, by also re-scoring a share of the embeddings searched (see
+ * {@link #setCandidateFraction(double)}); the latter makes the number of
+ * embeddings re-scored at full precision grow linearly with the domain.
+ * 
+ * Besides the codes, the index keeps only a reference to each embedding, as
+ * stored in the domain, and a hash table of their rows, about 16 bytes per
+ * embedding; a 768-dimensional embedding then takes 112 bytes in the index,
+ * instead of the 3,072 bytes of its vector.
+ * 
+ * Binary codes work best with embeddings having many dimensions; the number
+ * of candidates that are re-scored should be increased for smaller ones.
+ * 
+ * As similarity is defined only between embeddings created with same model
+ * and with same size, the index keeps a separate block of codes for each of
+ * them.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public class BinaryQuantizedIndex implements VectorIndex {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Default minimum number of candidates re-scored at full precision. */
+	public static final int DEFAULT_CANDIDATES = 100;
+
+	/** Default number of candidates re-scored for each requested result. */
+	public static final int DEFAULT_OVERSAMPLING = 50;
+
+	/**
+	 * Minimum number of candidates re-scored at full precision; if more results
+	 * are requested, the number of requested results is used instead.
+	 */
+	@Getter
+	private int candidates;
+
+	/** Number of candidates re-scored for each requested result. */
+	@Getter
+	private int oversampling;
+
+	/**
+	 * Share of the embeddings searched (that is, created with the same model and
+	 * with same size as the query) that is re-scored; 0 by default.
+	 */
+	@Getter
+	private double candidateFraction;
+
+	/** One block of codes for each (model, embedding size) pair. */
+	private final Map<String, Block> blocks = new HashMap<>();
+
+	public BinaryQuantizedIndex() {
+		this(DEFAULT_CANDIDATES, DEFAULT_OVERSAMPLING, 0.0);
+	}
+
+	/**
+	 * Creates an index that always re-scores given number of candidates (or the
+	 * number of requested results, if bigger).
+	 */
+	public BinaryQuantizedIndex(int candidates) {
+		this(candidates, 1, 0.0);
+	}
+
+	/**
+	 * Creates an index that re-scores the largest of given number of
+	 * candidates, oversampling times the number of requested results, and given
+	 * share of the embeddings searched.
+	 */
+	public BinaryQuantizedIndex(int candidates, int oversampling, double candidateFraction) {
+		setCandidates(candidates);
+		setOversampling(oversampling);
+		setCandidateFraction(candidateFraction);
+	}
+
+	public void setCandidates(int candidates) {
+		if (candidates < 1)
+			throw new IllegalArgumentException("Number of candidates must be positive: " + candidates);
+		this.candidates = candidates;
+	}
+
+	public void setOversampling(int oversampling) {
+		if (oversampling < 1)
+			throw new IllegalArgumentException("Oversampling must be positive: " + oversampling);
+		this.oversampling = oversampling;
+	}
+
+	public void setCandidateFraction(double candidateFraction) {
+		if (!(candidateFraction >= 0.0) || (candidateFraction > 1.0))
+			throw new IllegalArgumentException("Candidate fraction must be in [0, 1]: " + candidateFraction);
+		this.candidateFraction = candidateFraction;
+	}
+
+	/**
+	 * @return Number of candidates re-scored when searching for given number of
+	 *         results among given number of embeddings.
+	 */
+	int candidates(int limit, int size) {
+		long n = Math.max(Math.max(candidates, limit), (long) limit * oversampling);
+		n = Math.max(n, (long) Math.ceil(candidateFraction * size));
+		return (int) Math.min(n, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void add(@NonNull EmbeddedText e) {
+		blocks.computeIfAbsent(key(e), k -> new Block(DomainSnapshot.dimensions(e))).add(e);
+	}
+
+	@Override
+	public void remove(@NonNull EmbeddedText e) {
+		// e might be just a placeholder with the text to delete; look in all blocks
+		Iterator<Block> it = blocks.values().iterator();
+		while (it.hasNext()) {
+			Block b = it.next();
+			if (b.remove(e) && (b.size == 0))
+				it.remove();
+		}
+	}
+
+	@Override
+	public void clear() {
+		blocks.clear();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Block b : blocks.values())
+			size += b.size;
+		return size;
+	}
+
+	@Override
+	public List<Pair<EmbeddedText, Double>> search(@NonNull EmbeddedText query, int limit,
+			EmbeddedTextMatcher filter) {
+		Block b = blocks.get(key(query));
+		if ((b == null) || (limit < 1))
+			return new ArrayList<>();
+
+		// Hamming distance of each code from the query, and number of codes at each
+		// distance; filtered out codes are at an impossible distance
+		float[] v = query.getVector();
+		long[] q = encode(v);
+		int[] distances = new int[b.size];
+		int[] counts = new int[b.dimensions + 1];
+		int matching = 0;
+		for (int row = 0; row < b.size; ++row) {
+			if ((filter != null) && !filter.match(b.items[row])) {
+				distances[row] = Integer.MAX_VALUE;
+			} else {
+				int d = b.distance(row, q);
+				distances[row] = d;
+				++counts[d];
+				++matching;
+			}
+		}
+
+		// Find the distance within which the closest candidates lie
+		int n = Math.min(candidates(limit, b.size), matching);
+		int cutoff = 0, closer = 0;
+		while ((cutoff < counts.length) && (closer + counts[cutoff] < n))
+			closer += counts[cutoff++];
+		int atCutoff = n - closer; // Candidates taken among codes at cutoff distance
+
+		// Re-score candidates at full precision
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>(n);
+		float[] buffer = null;
+		for (int row = 0; (row < b.size) && (result.size() < n); ++row) {
+			int d = distances[row];
+			if ((d < cutoff) || ((d == cutoff) && (atCutoff-- > 0))) {
+				EmbeddedText e = b.items[row];
+				float[] w = (e instanceof OffHeapEmbeddedText) ? (buffer = ((OffHeapEmbeddedText) e).vector(buffer))
+						: e.getVector();
+				double s = VectorUtil.cosine(VectorUtil.dot(w, v), e.getNorm(), query.getNorm());
+				result.add(new ImmutablePair<>(e, s));
+			}
+		}
+		result.sort((p1, p2) -> Double.compare(p2.getRight(), p1.getRight()));
+
+		return (result.size() > limit) ? new ArrayList<>(result.subList(0, limit)) : result;
+	}
+
+	private static String key(EmbeddedText e) {
+		return e.getModel() + "/" + DomainSnapshot.dimensions(e);
+	}
+
+	/**
+	 * @return Binary code for given vector; bit i is set if v[i] is positive.
+	 */
+	private static long[] encode(float[] v) {
+		long[] code = new long[words(v.length)];
+		for (int i = 0; i < v.length; ++i) {
+			if (v[i] > 0f)
+				code[i >>> 6] |= 1L << (i & 63);
+		}
+		return code;
+	}
+
+	/**
+	 * @return Number of 64-bit words needed to encode given number of dimensions.
+	 */
+	private static int words(int dimensions) {
+		return (dimensions + 63) >>> 6;
+	}
+
+	/**
+	 * Binary codes of embeddings, all of same size, stored contiguously. Deleting
+	 * an embedding moves the last one in its place.
+	 */
+	private static final class Block implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int dimensions;
+
+		/** Number of words in each code */
+		private final int words;
+
+		private int size = 0;
+
+		/** Codes for each embedding, one row after the other */
+		private long[] codes = new long[0];
+
+		private EmbeddedText[] items = new EmbeddedText[0];
+
+		/**
+		 * Hash table, with linear probing, of the rows of embeddings by their text;
+		 * each slot contains a row plus one, or 0 if it is empty. This takes much
+		 * less memory than a map of boxed rows.
+		 */
+		private int[] table = new int[16];
+
+		private Block(int dimensions) {
+			this.dimensions = dimensions;
+			this.words = words(dimensions);
+		}
+
+		private void add(EmbeddedText e) {
+			int slot = find(e.getText());
+			if (slot >= 0)
+				return;
+
+			if (size == items.length) {
+				int capacity = Math.max(16, items.length + (items.length >> 1));
+				codes = Arrays.copyOf(codes, capacity * words);
+				items = Arrays.copyOf(items, capacity);
+			}
+			if (2 * (size + 1) > table.length) {
+				rehash(2 * table.length);
+				slot = find(e.getText());
+			}
+
+			System.arraycopy(encode(e.getVector()), 0, codes, size * words, words);
+			items[size] = e;
+			table[-slot - 1] = ++size;
+		}
+
+		private boolean remove(EmbeddedText e) {
+			int slot = find(e.getText());
+			if (slot < 0)
+				return false;
+			int row = table[slot] - 1;
+			clear(slot);
+
+			int last = size - 1;
+			if (row != last) {
+				System.arraycopy(codes, last * words, codes, row * words, words);
+				items[row] = items[last];
+				table[find(items[row].getText())] = row + 1;
+			}
+			items[last] = null;
+			--size;
+
+			return true;
+		}
+
+		/**
+		 * @return The slot containing the row of the embedding with given text, or
+		 *         (-slot - 1) where slot is the empty slot where it should be
+		 *         inserted.
+		 */
+		private int find(String text) {
+			int mask = table.length - 1;
+			for (int i = hash(text) & mask;; i = (i + 1) & mask) {
+				int row = table[i];
+				if (row == 0)
+					return -i - 1;
+				if (items[row - 1].getText().equals(text))
+					return i;
+			}
+		}
+
+		/**
+		 * Empties given slot, moving back entries that follow it in their probe
+		 * sequence, so they can still be found.
+		 */
+		private void clear(int slot) {
+			int mask = table.length - 1;
+			for (int i = (slot + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+				int home = hash(items[table[i] - 1].getText()) & mask;
+				boolean reachable = (slot <= i) ? ((slot < home) && (home <= i)) : ((slot < home) || (home <= i));
+				if (!reachable) {
+					table[slot] = table[i];
+					slot = i;
+				}
+			}
+			table[slot] = 0;
+		}
+
+		private void rehash(int capacity) {
+			table = new int[capacity];
+			for (int row = 0; row < size; ++row)
+				table[-find(items[row].getText()) - 1] = row + 1;
+		}
+
+		private static int hash(String text) {
+			int h = text.hashCode() * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * @return Hamming distance between the code in given row and q.
+		 */
+		private int distance(int row, long[] q) {
+			int base = row * words;
+			int d = 0;
+			for (int i = 0; i < words; ++i)
+				d += Long.bitCount(codes[base + i] ^ q[i]);
+			return d;
+		}
+	}
+}
@@ -0,0 +1,638 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.ObjDoubleConsumer;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+/**
+ * A domain in a {@link KnowledgeBase}; it contains embedded text and,
+ * optionally, a {@link VectorIndex} to speed up searches and a
+ * {@link TextIndex} for lexical searches.
+ * 
+ * The content of the domain is published as an immutable
+ * {@link DomainSnapshot}, replaced after each change; exhaustive searches run
+ * on the current snapshot, without locking the domain.
+ * 
+ * Domains read from a file in {@link BinaryFormat} have a read-only, memory
+ * mapped, base segment; embeddings inserted afterwards are kept in memory,
+ * while embeddings deleted from the base segment are marked as deleted.
+ * 
+ * In off-heap domains, vectors of embeddings kept in memory are stored in a
+ * {@link VectorArena}, which is compacted when too many vectors were removed
+ * and freed when the domain is released; searches on off-heap domains must
+ * therefore hold the domain lock while they read vectors, and return copies of
+ * embeddings they find (see {@link #detach(EmbeddedText)}). Off-heap domains
+ * are serialized as normal domains.
+ * 
+ * Apart from {@link #getSnapshot()}, this class is not thread safe;
+ * {@link KnowledgeBase} takes care of synchronization, using the lock provided
+ * by {@link #getLock()}.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+class Domain implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Domains are serialized as a map from text into embeddings, plus their
+	 * indexes.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = { //
+			new ObjectStreamField("entries", Map.class), //
+			new ObjectStreamField("index", VectorIndex.class), //
+			new ObjectStreamField("propertyIndexes", Map.class), //
+			new ObjectStreamField("textIndex", TextIndex.class), //
+			new ObjectStreamField("nearDuplicateIndex", NearDuplicateIndex.class) //
+	};
+
+	/** Current content of the domain */
+	@Getter
+	private transient volatile DomainSnapshot snapshot;
+
+	/**
+	 * References in {@link #snapshot} to embeddings in memory, by their text (see
+	 * {@link DomainSnapshot#get(long)}).
+	 */
+	private transient Map<String, Long> slots;
+
+	@Getter
+	private transient volatile VectorIndex index;
+
+	/** Property indexes, by property name */
+	private transient Map<String, PropertyIndex> propertyIndexes;
+
+	/** Inverted index for lexical searches, if any */
+	private transient volatile TextIndex textIndex;
+
+	/** Index used to detect near-duplicates on insertion, if any */
+	private transient NearDuplicateIndex nearDuplicateIndex;
+
+	/** For off-heap domains, where vectors are stored */
+	private transient VectorArena arena;
+
+	/** Lock used by {@link KnowledgeBase} to guard this domain */
+	@Getter
+	private transient StampedLock lock;
+
+	/**
+	 * Set when the domain is removed from its knowledge base; writers check this
+	 * after locking the domain.
+	 */
+	@Getter
+	@Setter
+	private transient boolean dropped;
+
+	Domain() {
+		this(null, null);
+	}
+
+	/**
+	 * Creates a domain with given content (used when reading knowledge bases
+	 * saved in older formats).
+	 */
+	Domain(@NonNull Set<EmbeddedText> entries) {
+		this();
+		insert(entries);
+	}
+
+	/**
+	 * Creates a domain with given memory mapped content.
+	 */
+	Domain(MappedSegment base) {
+		this(base, null);
+	}
+
+	/**
+	 * Creates a domain with given memory mapped content.
+	 * 
+	 * @param arena If not null, vectors of embeddings inserted in the domain are
+	 *              stored here, outside of the heap.
+	 */
+	Domain(MappedSegment base, VectorArena arena) {
+		this.arena = arena;
+		this.snapshot = new DomainSnapshot(base);
+		this.slots = new HashMap<>();
+		this.propertyIndexes = new ConcurrentHashMap<>();
+		this.lock = new StampedLock();
+	}
+
+	int size() {
+		return snapshot.getSize();
+	}
+
+	/**
+	 * Frees off-heap memory used by the domain, if any; after this, the domain
+	 * cannot be used.
+	 */
+	void release() {
+		if (arena != null)
+			arena.release();
+	}
+
+	/**
+	 * Sets the index for this domain; the index is cleared and filled with
+	 * current domain content.
+	 * 
+	 * Notice indexes keep a reference to embeddings they contain; therefore,
+	 * indexing a memory mapped domain causes its embeddings to be loaded in
+	 * memory.
+	 * 
+	 * @param index The index to use, or null to always use exhaustive search.
+	 */
+	void setIndex(VectorIndex index) {
+		if (index != null) {
+			index.clear();
+			forEach(index::add);
+		}
+		this.index = index;
+	}
+
+	/**
+	 * Creates an index on given property, replacing any existing one. As for
+	 * {@link #setIndex(VectorIndex)}, indexing a memory mapped domain causes its
+	 * embeddings to be loaded in memory.
+	 * 
+	 * @param sorted If true, the index supports range and prefix lookups.
+	 */
+	void createPropertyIndex(@NonNull String key, boolean sorted) {
+		PropertyIndex idx = new PropertyIndex(key, sorted);
+		forEach(idx::add);
+		propertyIndexes.put(key, idx);
+	}
+
+	void dropPropertyIndex(@NonNull String key) {
+		propertyIndexes.remove(key);
+	}
+
+	/**
+	 * Creates an inverted index over the text of embeddings in this domain,
+	 * replacing any existing one. As for {@link #setIndex(VectorIndex)}, indexing
+	 * a memory mapped domain causes its embeddings to be loaded in memory.
+	 */
+	void createTextIndex(@NonNull TermTokenizer tokenizer) {
+		TextIndex idx = new TextIndex(tokenizer);
+		forEach(idx::add);
+		textIndex = idx;
+	}
+
+	void dropTextIndex() {
+		textIndex = null;
+	}
+
+	boolean hasTextIndex() {
+		return (textIndex != null);
+	}
+
+	/**
+	 * Creates an index to detect near-duplicates of embeddings being inserted,
+	 * replacing any existing one. The index is filled with current domain content,
+	 * near-duplicates already in the domain are not removed.
+	 * 
+	 * @param threshold Minimum similarity for two texts to be near-duplicates.
+	 * @param policy    What to do when a near-duplicate is inserted.
+	 */
+	void createNearDuplicateIndex(double threshold, @NonNull NearDuplicatePolicy policy) {
+		NearDuplicateIndex idx = new NearDuplicateIndex(threshold, policy);
+		forEach(idx::add);
+		nearDuplicateIndex = idx;
+	}
+
+	void dropNearDuplicateIndex() {
+		nearDuplicateIndex = null;
+	}
+
+	/**
+	 * Performs given action on each embedding in the domain.
+	 */
+	void forEach(Consumer<EmbeddedText> action) {
+		snapshot.forEach(action);
+	}
+
+	/**
+	 * Receives changes made to a domain by
+	 * {@link Domain#insert(Collection, Listener)}, in the order they are made and
+	 * only after each of them has been applied; changes that fail are never
+	 * notified.
+	 */
+	interface Listener {
+
+		void inserted(EmbeddedText e);
+
+		void deleted(EmbeddedText e);
+	}
+
+	void insert(@NonNull EmbeddedText e) {
+		insert(List.of(e), null);
+	}
+
+	void insert(@NonNull Collection<? extends EmbeddedText> c) {
+		insert(c, null);
+	}
+
+	/**
+	 * Inserts given embeddings, publishing a single new snapshot. Embeddings
+	 * whose text is already in the domain are ignored; if the domain has a near
+	 * duplicate index, near-duplicates are handled according to its policy.
+	 * 
+	 * @param listener If not null, it is notified of embeddings actually inserted
+	 *                 and of those deleted as they were replaced by
+	 *                 near-duplicates.
+	 */
+	void insert(@NonNull Collection<? extends EmbeddedText> c, Listener listener) {
+		DomainSnapshot.Builder b = snapshot.builder();
+		try {
+			for (EmbeddedText e : c) {
+				if (slots.containsKey(e.getText()) || (find(e.getText(), b) >= 0))
+					continue;
+
+				if (nearDuplicateIndex != null) {
+					EmbeddedText duplicate = nearDuplicateIndex.find(e);
+					if (duplicate != null) {
+						if (nearDuplicateIndex.getPolicy() == NearDuplicatePolicy.REJECT)
+							continue;
+						remove(b, duplicate);
+						if (listener != null)
+							listener.deleted(duplicate);
+					}
+				}
+
+				add(b, e);
+				if (listener != null)
+					listener.inserted(e);
+			}
+		} finally { // Changes already made to indexes must be visible
+			publish(b);
+		}
+	}
+
+	/**
+	 * Replaces embeddings in the domain with given ones, which have the same text,
+	 * publishing a single new snapshot. An embedding is replaced only if it is
+	 * still in the domain and it was created with given model and has given
+	 * vector length; near-duplicates are not checked.
+	 * 
+	 * @param listener If not null, it is notified of each replaced embedding,
+	 *                 first as deleted then as inserted.
+	 * @return Number of embeddings replaced.
+	 */
+	int replace(@NonNull Collection<? extends EmbeddedText> c, @NonNull String model, int dimensions,
+			Listener listener) {
+		DomainSnapshot.Builder b = snapshot.builder();
+		int n = 0;
+		try {
+			for (EmbeddedText e : c) {
+				EmbeddedText stored = get(e.getText(), b);
+				if ((stored == null) || !stored.getModel().equals(model)
+						|| (DomainSnapshot.dimensions(stored) != dimensions))
+					continue;
+
+				remove(b, stored);
+				if (listener != null)
+					listener.deleted(stored);
+				add(b, e);
+				if (listener != null)
+					listener.inserted(e);
+				++n;
+			}
+		} finally {
+			publish(b);
+		}
+		return n;
+	}
+
+	/**
+	 * @return Copies of the embeddings in the domain created with given model and
+	 *         having given vector length; the copies are on the heap, even if the
+	 *         domain is off-heap.
+	 */
+	List<EmbeddedText> partition(@NonNull String model, int dimensions) {
+		List<EmbeddedText> result = new ArrayList<>();
+		snapshot.forEach(model, dimensions, e -> result.add(detach(e)));
+		return result;
+	}
+
+	/**
+	 * @return Given embedding or, if its vector is stored off-heap, a copy of it
+	 *         that can be used after the domain lock is released.
+	 */
+	static EmbeddedText detach(EmbeddedText e) {
+		return (e instanceof OffHeapEmbeddedText) ? ((OffHeapEmbeddedText) e).onHeap() : e;
+	}
+
+	/**
+	 * Adds given embedding, which must not be in the domain, to the domain and its
+	 * indexes.
+	 */
+	private void add(DomainSnapshot.Builder b, EmbeddedText e) {
+		if (arena != null)
+			e = arena.store(e);
+		slots.put(e.getText(), b.add(e));
+		if (index != null)
+			index.add(e);
+		for (PropertyIndex idx : propertyIndexes.values())
+			idx.add(e);
+		if (textIndex != null)
+			textIndex.add(e);
+		if (nearDuplicateIndex != null)
+			nearDuplicateIndex.add(e);
+	}
+
+	void delete(@NonNull EmbeddedText e) {
+		delete(List.of(e));
+	}
+
+	void delete(@NonNull EmbeddedTextMatcher m) {
+		Collection<EmbeddedText> candidates = lookup(m);
+		delete((candidates == null) ? query(m) : new ArrayList<>(candidates));
+	}
+
+	/**
+	 * Deletes given embeddings, publishing a single new snapshot.
+	 */
+	private void delete(Collection<EmbeddedText> c) {
+		DomainSnapshot s = snapshot;
+		DomainSnapshot.Builder b = s.builder();
+		try {
+			for (EmbeddedText e : c) {
+				Long ref = slots.get(e.getText());
+				if (ref != null) {
+					remove(b, s.get(ref));
+				} else {
+					int row = find(e.getText(), b);
+					if (row >= 0)
+						remove(b, s.getBase().get(row));
+				}
+			}
+		} finally { // Changes already made to indexes must be visible
+			publish(b);
+		}
+	}
+
+	/**
+	 * Removes given embedding, which must be in the domain, from the domain and
+	 * its indexes.
+	 * 
+	 * @param stored The embedding, as stored in the domain.
+	 */
+	private void remove(DomainSnapshot.Builder b, EmbeddedText stored) {
+		Long ref = slots.remove(stored.getText());
+		if (ref != null)
+			b.remove(ref);
+		else
+			b.delete(find(stored.getText(), b));
+
+		if (index != null)
+			index.remove(stored);
+		for (PropertyIndex idx : propertyIndexes.values())
+			idx.remove(stored);
+		if (textIndex != null)
+			textIndex.remove(stored);
+		if (nearDuplicateIndex != null)
+			nearDuplicateIndex.remove(stored);
+		if (stored instanceof OffHeapEmbeddedText)
+			arena.remove((OffHeapEmbeddedText) stored);
+	}
+
+	/**
+	 * Publishes a new snapshot; when too many slots are empty, embeddings in
+	 * memory are compacted. Similarly, the off-heap arena, if any, is compacted
+	 * when most of its space is used by removed vectors.
+	 */
+	private void publish(DomainSnapshot.Builder b) {
+		DomainSnapshot s = b.build();
+		if ((s.garbage() > DomainSnapshot.CHUNK_SIZE) && (s.garbage() > s.getSlots() / 2)) {
+			s = s.compact();
+			slots.clear();
+			s.forEachEntry((e, ref) -> slots.put(e.getText(), ref));
+		}
+		snapshot = s;
+
+		if ((arena != null) && arena.needsCompaction()) {
+			List<OffHeapEmbeddedText> live = new ArrayList<>(slots.size());
+			s.forEachEntry((e, ref) -> live.add((OffHeapEmbeddedText) e));
+			arena.compact(live);
+		}
+	}
+
+	List<EmbeddedText> query(@NonNull EmbeddedTextMatcher m) {
+		Collection<EmbeddedText> candidates = lookup(m);
+		if (candidates != null)
+			return new ArrayList<>(candidates);
+
+		List<EmbeddedText> result = new ArrayList<>();
+		forEach(e -> {
+			if (m.match(e))
+				result.add(e);
+		});
+		return result;
+	}
+
+	/**
+	 * Uses property indexes to find embeddings matching given matcher.
+	 * 
+	 * @return The embeddings matching given matcher, or null if the matcher
+	 *         cannot be resolved using an index.
+	 */
+	private Collection<EmbeddedText> lookup(EmbeddedTextMatcher m) {
+		if (!(m instanceof PropertyMatcher))
+			return null;
+		PropertyMatcher pm = (PropertyMatcher) m;
+		PropertyIndex idx = propertyIndexes.get(pm.getKey());
+		return (idx == null) ? null : pm.lookup(idx);
+	}
+
+	/**
+	 * @return The embedding in the domain with given text, considering changes
+	 *         made by given builder, or null if there is none.
+	 */
+	private EmbeddedText get(String text, DomainSnapshot.Builder b) {
+		Long ref = slots.get(text);
+		if (ref != null)
+			return b.get(ref);
+		int row = find(text, b);
+		return (row < 0) ? null : snapshot.getBase().get(row);
+	}
+
+	/**
+	 * @return The row of the base segment containing given text, if the text is
+	 *         there and was not deleted by given builder, -1 otherwise.
+	 */
+	private int find(String text, DomainSnapshot.Builder b) {
+		DomainSnapshot s = snapshot;
+		if (s.getBase() == null)
+			return -1;
+		int row = s.getBase().find(text);
+		return ((row < 0) || b.isDeleted(row)) ? -1 : row;
+	}
+
+	/**
+	 * A search with given parameters can run on {@link #getSnapshot()} without
+	 * locking the domain, unless it uses the vector index or a property index,
+	 * which are not thread safe, or the domain is off-heap.
+	 * 
+	 * This method can be called without locking the domain.
+	 * 
+	 * @return True if the search needs a read lock on the domain.
+	 */
+	boolean needsLock(EmbeddedTextMatcher filter, boolean exact) {
+		if (isOffHeap() || (!exact && (index != null)))
+			return true;
+		return (filter instanceof PropertyMatcher)
+				&& propertyIndexes.containsKey(((PropertyMatcher) filter).getKey());
+	}
+
+	/**
+	 * @return Given results, where embeddings stored off-heap are replaced with
+	 *         copies of them.
+	 */
+	private static List<Pair<EmbeddedText, Double>> detach(List<Pair<EmbeddedText, Double>> results) {
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>(results.size());
+		for (Pair<EmbeddedText, Double> p : results)
+			result.add((p.getLeft() instanceof OffHeapEmbeddedText)
+					? new ImmutablePair<>(detach(p.getLeft()), p.getRight())
+					: p);
+		return result;
+	}
+
+	/**
+	 * @return True if vectors in this domain are stored off-heap; results of
+	 *         searches must then be detached before the domain lock is released
+	 *         (see {@link #detach(EmbeddedText)}).
+	 */
+	boolean isOffHeap() {
+		return (arena != null);
+	}
+
+	/**
+	 * Searches this domain using its index, which must be set, for each of given
+	 * queries.
+	 * 
+	 * @param filter If not null, only embeddings matching this are returned.
+	 * @param result Results for each query are added here.
+	 */
+	void indexSearch(@NonNull EmbeddedText[] queries, EmbeddedTextMatcher filter, TopK[] result) {
+		for (int i = 0; i < queries.length; ++i)
+			result[i].offer(detach(index.search(queries[i], result[i].limit(), filter)));
+	}
+
+	/**
+	 * Lexical search, using the text index of this domain, which must exist (see
+	 * {@link TextIndex#search(String, EmbeddedTextMatcher, int)}).
+	 */
+	List<Pair<EmbeddedText, Double>> textSearch(@NonNull String query, EmbeddedTextMatcher filter, int limit) {
+		return detach(textIndex.search(query, filter, limit));
+	}
+
+	/**
+	 * Exhaustive search, returning the embeddings most similar to each of given
+	 * queries (see
+	 * {@link DomainSnapshot#search(EmbeddedText[], EmbeddedTextMatcher, int, int)}).
+	 * If the filter can be resolved using a property index, only embeddings
+	 * matching the filter are searched.
+	 * 
+	 * Unless the domain is off-heap, the returned task does not access the
+	 * domain, so it can run after the domain lock has been released.
+	 * 
+	 * @param filter If not null, only embeddings matching this are returned.
+	 * @return A task that performs the search, returning results for each query.
+	 */
+	RecursiveTask<TopK[]> exactSearch(@NonNull EmbeddedText[] queries, EmbeddedTextMatcher filter, int limit,
+			int threshold) {
+		Collection<EmbeddedText> candidates = (filter == null) ? null : lookup(filter);
+		if (candidates != null) // Only search embeddings matching the filter
+			return DomainSnapshot.searchCandidates(queries, candidates, limit, threshold);
+		return snapshot.search(queries, filter, limit, threshold);
+	}
+
+	/**
+	 * Finds all embeddings whose similarity with given query is at least given
+	 * threshold (see
+	 * {@link DomainSnapshot#searchAbove(EmbeddedText, EmbeddedTextMatcher, double, ObjDoubleConsumer)}).
+	 * If the filter can be resolved using a property index, only embeddings
+	 * matching the filter are searched.
+	 * 
+	 * @param filter If not null, only embeddings matching this are returned.
+	 */
+	void searchAbove(@NonNull EmbeddedText query, EmbeddedTextMatcher filter, double threshold,
+			ObjDoubleConsumer<EmbeddedText> action) {
+		Collection<EmbeddedText> candidates = (filter == null) ? null : lookup(filter);
+		if (candidates != null) // Only search embeddings matching the filter
+			DomainSnapshot.searchAbove(query, candidates, threshold, action);
+		else
+			snapshot.searchAbove(query, filter, threshold, action);
+	}
+
+	/**
+	 * Memory mapped content cannot be serialized; domains with a base segment are
+	 * serialized as if all of their content was in memory.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		Map<String, EmbeddedText> entries = new HashMap<>();
+		forEach(e -> entries.put(e.getText(), e));
+
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("entries", entries);
+		fields.put("index", index);
+		fields.put("propertyIndexes", new HashMap<>(propertyIndexes));
+		fields.put("textIndex", textIndex);
+		fields.put("nearDuplicateIndex", nearDuplicateIndex);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		snapshot = new DomainSnapshot(null);
+		slots = new HashMap<>();
+		propertyIndexes = new ConcurrentHashMap<>((Map<String, PropertyIndex>) fields.get("propertyIndexes", null));
+		lock = new StampedLock();
+
+		// Indexes are already populated
+		DomainSnapshot.Builder b = snapshot.builder();
+		for (EmbeddedText e : ((Map<String, EmbeddedText>) fields.get("entries", null)).values())
+			slots.put(e.getText(), b.add(e));
+		publish(b);
+		index = (VectorIndex) fields.get("index", null);
+		textIndex = (TextIndex) fields.get("textIndex", null);
+		nearDuplicateIndex = (NearDuplicateIndex) fields.get("nearDuplicateIndex", null);
+	}
+}
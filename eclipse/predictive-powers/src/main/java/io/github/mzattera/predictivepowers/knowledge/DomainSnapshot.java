@@ -0,0 +1,828 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjLongConsumer;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.util.VectorUtil;
+import lombok.Getter;
+
+/**
+ * Immutable view of the content of a {@link Domain}.
+ * 
+ * Each change to a domain publishes a new snapshot; searches run on the
+ * snapshot that was current when they started, without locking the domain, so
+ * they never wait for writers and writers never wait for them.
+ * 
+ * Embeddings are split in partitions, one for each combination of model and
+ * vector length; searches only scan partitions compatible with the query,
+ * without checking each embedding.
+ * 
+ * Snapshots share most of their data. Embeddings in memory are stored in
+ * chunks of {@link #CHUNK_SIZE} slots; new embeddings are appended after the
+ * last used slot of their partition, which older snapshots ignore, while
+ * removing an embedding copies only the chunk containing it. Rows deleted from
+ * the memory mapped base segment are tracked in a bit set, which is copied at
+ * most once per change.
+ * 
+ * In off-heap domains, embeddings in memory are {@link OffHeapEmbeddedText}s,
+ * whose vectors are read into reusable arrays while searching.
+ * 
+ * Embeddings in memory are identified by a reference, which contains their
+ * partition in the high 32 bits and their slot in the low 32 bits.
+ * 
+ * This class is thread safe.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+final class DomainSnapshot {
+
+	/** Number of slots in each chunk */
+	static final int CHUNK_SIZE = 1024;
+
+	/** Memory mapped content, if any */
+	@Getter
+	private final MappedSegment base;
+
+	/** Rows deleted from the base segment; never changed once published */
+	private final BitSet deleted;
+
+	private final Partition[] partitions;
+
+	/** Number of embeddings in the snapshot */
+	@Getter
+	private final int size;
+
+	/**
+	 * Embeddings created with the same model and having same vector length.
+	 * Partitions are immutable.
+	 */
+	private static final class Partition {
+
+		private final String model;
+
+		private final int dimensions;
+
+		/** Embeddings in memory; slots of removed embeddings are null */
+		private final EmbeddedText[][] chunks;
+
+		/** Number of used slots in chunks */
+		private final int slots;
+
+		/** Number of embeddings in memory */
+		private final int entries;
+
+		/** Rows of the base segment in this partition, deleted ones included */
+		private final int[] rows;
+
+		/** Number of rows in the base segment that were not deleted */
+		private final int mapped;
+
+		private Partition(String model, int dimensions, EmbeddedText[][] chunks, int slots, int entries,
+				int[] rows, int mapped) {
+			this.model = model;
+			this.dimensions = dimensions;
+			this.chunks = chunks;
+			this.slots = slots;
+			this.entries = entries;
+			this.rows = rows;
+			this.mapped = mapped;
+		}
+
+		private Partition(String model, int dimensions) {
+			this(model, dimensions, new EmbeddedText[0][], 0, 0, new int[0], 0);
+		}
+
+		int size() {
+			return entries + mapped;
+		}
+
+		EmbeddedText get(int slot) {
+			return chunks[slot / CHUNK_SIZE][slot % CHUNK_SIZE];
+		}
+
+		boolean matches(String model, int dimensions) {
+			return (this.dimensions == dimensions) && this.model.equals(model);
+		}
+	}
+
+	DomainSnapshot(MappedSegment base) {
+		this(base, (base == null) ? null : new BitSet(base.size()), partition(base));
+	}
+
+	private DomainSnapshot(MappedSegment base, BitSet deleted, Partition[] partitions) {
+		this.base = base;
+		this.deleted = deleted;
+		this.partitions = partitions;
+		int n = 0;
+		for (Partition p : partitions)
+			n += p.size();
+		this.size = n;
+	}
+
+	/**
+	 * @return Partitions for rows in given base segment.
+	 */
+	private static Partition[] partition(MappedSegment base) {
+		if (base == null)
+			return new Partition[0];
+
+		// Find partition of each row
+		Map<String, Integer> keys = new LinkedHashMap<>();
+		List<String> models = new ArrayList<>();
+		List<Integer> dimensions = new ArrayList<>();
+		int[] partition = new int[base.size()];
+		for (int row = 0; row < base.size(); ++row) {
+			String model = base.model(row);
+			int d = base.dimensions(row);
+			partition[row] = keys.computeIfAbsent(model + "/" + d, k -> {
+				models.add(model);
+				dimensions.add(d);
+				return keys.size();
+			});
+		}
+
+		int[] count = new int[keys.size()];
+		for (int p : partition)
+			++count[p];
+		int[][] rows = new int[keys.size()][];
+		for (int i = 0; i < rows.length; ++i)
+			rows[i] = new int[count[i]];
+		Arrays.fill(count, 0);
+		for (int row = 0; row < partition.length; ++row)
+			rows[partition[row]][count[partition[row]]++] = row;
+
+		Partition[] result = new Partition[keys.size()];
+		for (int i = 0; i < result.length; ++i)
+			result[i] = new Partition(models.get(i), dimensions.get(i), new EmbeddedText[0][], 0, 0, rows[i],
+					rows[i].length);
+		return result;
+	}
+
+	/**
+	 * @return The embedding in memory with given reference, or null if it was
+	 *         removed.
+	 */
+	EmbeddedText get(long ref) {
+		return partitions[(int) (ref >>> 32)].get((int) ref);
+	}
+
+	/**
+	 * @return True if given row of the base segment was deleted.
+	 */
+	boolean isDeleted(int row) {
+		return deleted.get(row);
+	}
+
+	/**
+	 * @return Number of used slots in memory, in all partitions.
+	 */
+	int getSlots() {
+		int n = 0;
+		for (Partition p : partitions)
+			n += p.slots;
+		return n;
+	}
+
+	/**
+	 * @return Number of empty slots, left by removed embeddings.
+	 */
+	int garbage() {
+		int n = 0;
+		for (Partition p : partitions)
+			n += p.slots - p.entries;
+		return n;
+	}
+
+	/**
+	 * Performs given action on each embedding in the snapshot.
+	 */
+	void forEach(Consumer<EmbeddedText> action) {
+		if (base != null) {
+			for (int row = 0; row < base.size(); ++row)
+				if (!deleted.get(row))
+					action.accept(base.get(row));
+		}
+		forEachEntry((e, ref) -> action.accept(e));
+	}
+
+	/**
+	 * Performs given action on each embedding in memory, passing its reference.
+	 */
+	void forEachEntry(ObjLongConsumer<EmbeddedText> action) {
+		for (int i = 0; i < partitions.length; ++i) {
+			Partition p = partitions[i];
+			for (int slot = 0; slot < p.slots; ++slot) {
+				EmbeddedText e = p.get(slot);
+				if (e != null)
+					action.accept(e, (((long) i) << 32) | slot);
+			}
+		}
+	}
+
+	/**
+	 * Performs given action on each embedding created with given model and having
+	 * given vector length.
+	 */
+	void forEach(String model, int dimensions, Consumer<EmbeddedText> action) {
+		for (Partition p : partitions) {
+			if (!p.matches(model, dimensions))
+				continue;
+			for (int row : p.rows)
+				if (!deleted.get(row))
+					action.accept(base.get(row));
+			for (int slot = 0; slot < p.slots; ++slot) {
+				EmbeddedText e = p.get(slot);
+				if (e != null)
+					action.accept(e);
+			}
+		}
+	}
+
+	/**
+	 * @return Statistics about each non-empty partition.
+	 */
+	List<PartitionInfo> partitions() {
+		List<PartitionInfo> result = new ArrayList<>(partitions.length);
+		for (Partition p : partitions) {
+			if (p.size() > 0)
+				result.add(new PartitionInfo(p.model, p.dimensions, p.size(), p.mapped));
+		}
+		return result;
+	}
+
+	/**
+	 * @return A copy of this snapshot, where embeddings in memory are moved to
+	 *         fill empty slots and empty partitions are removed.
+	 */
+	DomainSnapshot compact() {
+		List<Partition> result = new ArrayList<>(partitions.length);
+		for (Partition p : partitions) {
+			if (p.size() == 0)
+				continue;
+
+			EmbeddedText[][] c = new EmbeddedText[(p.entries + CHUNK_SIZE - 1) / CHUNK_SIZE][CHUNK_SIZE];
+			int n = 0;
+			for (int slot = 0; slot < p.slots; ++slot) {
+				EmbeddedText e = p.get(slot);
+				if (e != null) {
+					c[n / CHUNK_SIZE][n % CHUNK_SIZE] = e;
+					++n;
+				}
+			}
+			result.add(new Partition(p.model, p.dimensions, c, n, n, p.rows, p.mapped));
+		}
+		return new DomainSnapshot(base, deleted, result.toArray(new Partition[result.size()]));
+	}
+
+	/**
+	 * Builds a new snapshot by applying changes to an existing one; this must be
+	 * used by one thread at a time.
+	 */
+	static final class Builder {
+
+		private final DomainSnapshot from;
+
+		private BitSet deleted;
+
+		private Partition[] partitions;
+
+		/** Builders for partitions that were changed */
+		private PartitionBuilder[] builders;
+
+		private Builder(DomainSnapshot from) {
+			this.from = from;
+			this.deleted = from.deleted;
+			this.partitions = from.partitions;
+			this.builders = new PartitionBuilder[partitions.length];
+		}
+
+		/**
+		 * Adds an embedding.
+		 * 
+		 * @return The reference to the embedding.
+		 */
+		long add(EmbeddedText e) {
+			int length = dimensions(e);
+			int i = find(e.getModel(), length);
+			if (i < 0) {
+				i = partitions.length;
+				partitions = Arrays.copyOf(partitions, i + 1);
+				partitions[i] = new Partition(e.getModel(), length);
+				builders = Arrays.copyOf(builders, i + 1);
+			}
+			return (((long) i) << 32) | builder(i).add(e);
+		}
+
+		/**
+		 * @return The embedding in memory with given reference, or null if it was
+		 *         removed.
+		 */
+		EmbeddedText get(long ref) {
+			int i = (int) (ref >>> 32);
+			return (builders[i] == null) ? partitions[i].get((int) ref) : builders[i].get((int) ref);
+		}
+
+		/**
+		 * Removes the embedding in memory with given reference.
+		 */
+		void remove(long ref) {
+			builder((int) (ref >>> 32)).remove((int) ref);
+		}
+
+		/**
+		 * Marks given row of the base segment as deleted.
+		 */
+		void delete(int row) {
+			if (deleted == from.deleted)
+				deleted = (BitSet) deleted.clone();
+			deleted.set(row);
+			--builder(find(from.base.model(row), from.base.dimensions(row))).mapped;
+		}
+
+		/**
+		 * @return True if given row of the base segment is marked as deleted.
+		 */
+		boolean isDeleted(int row) {
+			return deleted.get(row);
+		}
+
+		private int find(String model, int dimensions) {
+			for (int i = 0; i < partitions.length; ++i)
+				if (partitions[i].matches(model, dimensions))
+					return i;
+			return -1;
+		}
+
+		private PartitionBuilder builder(int i) {
+			if (builders[i] == null)
+				builders[i] = new PartitionBuilder(partitions[i]);
+			return builders[i];
+		}
+
+		DomainSnapshot build() {
+			Partition[] result = new Partition[partitions.length];
+			for (int i = 0; i < result.length; ++i)
+				result[i] = (builders[i] == null) ? partitions[i] : builders[i].build();
+			return new DomainSnapshot(from.base, deleted, result);
+		}
+	}
+
+	/**
+	 * Builds a new partition by applying changes to an existing one.
+	 */
+	private static final class PartitionBuilder {
+
+		private final Partition from;
+
+		private EmbeddedText[][] chunks;
+
+		/** Chunks which were already copied and can be modified */
+		private final BitSet copied = new BitSet();
+
+		private int slots;
+
+		private int entries;
+
+		private int mapped;
+
+		private PartitionBuilder(Partition from) {
+			this.from = from;
+			this.chunks = from.chunks;
+			this.slots = from.slots;
+			this.entries = from.entries;
+			this.mapped = from.mapped;
+		}
+
+		/**
+		 * @return The slot where the embedding was stored.
+		 */
+		int add(EmbeddedText e) {
+			int chunk = slots / CHUNK_SIZE;
+			if (chunk == chunks.length) {
+				chunks = Arrays.copyOf(chunks, Math.max(4, 2 * chunks.length));
+				chunk = slots / CHUNK_SIZE;
+			}
+			if (chunks[chunk] == null) {
+				chunks[chunk] = new EmbeddedText[CHUNK_SIZE];
+				copied.set(chunk);
+			}
+
+			// Slots after the last used one are not visible in published snapshots, so
+			// there is no need to copy the chunk
+			chunks[chunk][slots % CHUNK_SIZE] = e;
+			++entries;
+			return slots++;
+		}
+
+		EmbeddedText get(int slot) {
+			return chunks[slot / CHUNK_SIZE][slot % CHUNK_SIZE];
+		}
+
+		void remove(int slot) {
+			int chunk = slot / CHUNK_SIZE;
+			if (!copied.get(chunk)) {
+				if (chunks == from.chunks)
+					chunks = chunks.clone();
+				chunks[chunk] = chunks[chunk].clone();
+				copied.set(chunk);
+			}
+			chunks[chunk][slot % CHUNK_SIZE] = null;
+			--entries;
+		}
+
+		Partition build() {
+			return new Partition(from.model, from.dimensions, chunks, slots, entries, from.rows, mapped);
+		}
+	}
+
+	/**
+	 * @return A builder to create a new snapshot by changing this one.
+	 */
+	Builder builder() {
+		return new Builder(this);
+	}
+
+	/**
+	 * @return Length of the vector of given embedding, without copying off-heap
+	 *         vectors.
+	 */
+	static int dimensions(EmbeddedText e) {
+		return (e instanceof OffHeapEmbeddedText) ? ((OffHeapEmbeddedText) e).dimensions() : e.getVector().length;
+	}
+
+	/**
+	 * @return Indexes of given queries that were created with given model and
+	 *         have given vector length, or null if there are none.
+	 */
+	private static int[] compatible(EmbeddedText[] queries, String model, int dimensions) {
+		int[] result = new int[queries.length];
+		int n = 0;
+		for (int i = 0; i < queries.length; ++i) {
+			if ((queries[i].getVector().length == dimensions) && queries[i].getModel().equals(model))
+				result[n++] = i;
+		}
+		return (n == 0) ? null : Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Exhaustive search, returning the embeddings in this snapshot most similar to
+	 * each of given queries. Only partitions compatible with at least one query
+	 * are searched; each embedding is read only once and compared with all of the
+	 * compatible queries; this makes searching for many queries at once much
+	 * faster than searching for each of them separately.
+	 * 
+	 * When run inside a {@link ForkJoinPool}, the snapshot is split in segments
+	 * with no more than threshold embeddings each, which are searched in
+	 * parallel; otherwise, the whole snapshot is searched in the calling thread.
+	 * 
+	 * @param filter If not null, only embeddings matching this are returned.
+	 * @return A task that performs the search, returning results for each query.
+	 */
+	RecursiveTask<TopK[]> search(EmbeddedText[] queries, EmbeddedTextMatcher filter, int limit, int threshold) {
+		List<RecursiveTask<TopK[]>> tasks = new ArrayList<>();
+		for (Partition p : partitions) {
+			int[] compatible = compatible(queries, p.model, p.dimensions);
+			if ((compatible == null) || (p.size() == 0))
+				continue;
+			if (p.entries > 0)
+				tasks.add(new EntriesSearch(queries, compatible, filter, limit, threshold, p.chunks, CHUNK_SIZE, 0,
+						p.slots));
+			if (p.mapped > 0)
+				tasks.add(new BaseSearch(queries, compatible, filter, limit, threshold, p.rows, 0, p.rows.length));
+		}
+		return TopK.merge(tasks, queries.length, limit);
+	}
+
+	/**
+	 * Exhaustive search of given embeddings, as in
+	 * {@link #search(EmbeddedText[], EmbeddedTextMatcher, int, int)}.
+	 */
+	static RecursiveTask<TopK[]> searchCandidates(EmbeddedText[] queries, Collection<EmbeddedText> candidates,
+			int limit, int threshold) {
+
+		// Split candidates by model and vector length
+		Map<String, List<EmbeddedText>> groups = new HashMap<>();
+		for (EmbeddedText e : candidates)
+			groups.computeIfAbsent(e.getModel() + "/" + dimensions(e), k -> new ArrayList<>()).add(e);
+
+		List<RecursiveTask<TopK[]>> tasks = new ArrayList<>();
+		for (List<EmbeddedText> g : groups.values()) {
+			int[] compatible = compatible(queries, g.get(0).getModel(), dimensions(g.get(0)));
+			if (compatible == null)
+				continue;
+			EmbeddedText[][] c = { g.toArray(new EmbeddedText[g.size()]) };
+			tasks.add(new EntriesSearch(queries, compatible, null, limit, threshold, c, c[0].length, 0,
+					c[0].length));
+		}
+		return TopK.merge(tasks, queries.length, limit);
+	}
+
+	/**
+	 * Receives similarity scores computed by
+	 * {@link DomainSnapshot#score(EmbeddedText, EmbeddedTextMatcher, ScoreConsumer)}.
+	 */
+	@FunctionalInterface
+	interface ScoreConsumer {
+
+		/**
+		 * @param ref   Reference to the scored embedding, see
+		 *              {@link DomainSnapshot#resolve(long)}.
+		 * @param score Similarity of the embedding with the query.
+		 */
+		void accept(long ref, double score);
+	}
+
+	/**
+	 * Computes similarity of given query with each embedding in the partition
+	 * compatible with the query, if any. Embeddings are passed to the consumer as
+	 * references, so that {@link EmbeddedText} instances are not created for
+	 * embeddings in the base segment, unless a filter is used.
+	 * 
+	 * @param filter If not null, only embeddings matching this are scored.
+	 */
+	void score(EmbeddedText query, EmbeddedTextMatcher filter, ScoreConsumer action) {
+		float[] q = query.getVector();
+		for (int i = 0; i < partitions.length; ++i) {
+			Partition p = partitions[i];
+			if (!p.matches(query.getModel(), q.length))
+				continue;
+
+			float[] v = new float[q.length];
+			for (int row : p.rows) {
+				if (deleted.get(row) || ((filter != null) && !filter.match(base.get(row))))
+					continue;
+				base.vector(row, v);
+				action.accept(-row - 1, VectorUtil.cosine(VectorUtil.dot(v, q), base.norm(row), query.getNorm()));
+			}
+
+			for (int slot = 0; slot < p.slots; ++slot) {
+				EmbeddedText e = p.get(slot);
+				if ((e == null) || ((filter != null) && !filter.match(e)))
+					continue;
+				float[] w = (e instanceof OffHeapEmbeddedText) ? ((OffHeapEmbeddedText) e).vector(v) : e.getVector();
+				action.accept((((long) i) << 32) | slot,
+						VectorUtil.cosine(VectorUtil.dot(w, q), e.getNorm(), query.getNorm()));
+			}
+		}
+	}
+
+	/**
+	 * Finds all embeddings in the partition compatible with given query, if any,
+	 * whose similarity with the query is at least given threshold; matches are
+	 * passed to the consumer as they are found, in no particular order.
+	 * 
+	 * Dot products are computed with
+	 * {@link VectorUtil#boundedDot(float[], double, float[], double[], double)},
+	 * so that embeddings are abandoned as soon as they cannot reach the threshold.
+	 * 
+	 * @param filter If not null, only embeddings matching this are returned.
+	 */
+	void searchAbove(EmbeddedText query, EmbeddedTextMatcher filter, double threshold,
+			ObjDoubleConsumer<EmbeddedText> action) {
+		float[] q = query.getVector();
+		double[] tails = VectorUtil.tailNorms(q);
+		for (Partition p : partitions) {
+			if (!p.matches(query.getModel(), q.length))
+				continue;
+
+			float[] v = new float[q.length];
+			for (int row : p.rows) {
+				if (deleted.get(row))
+					continue;
+				base.vector(row, v);
+				double s = similarityAbove(v, base.norm(row), query, tails, threshold);
+				if (s >= threshold) {
+					// Embeddings are created only for matches
+					EmbeddedText e = base.get(row);
+					if ((filter == null) || filter.match(e))
+						action.accept(e, s);
+				}
+			}
+
+			for (int slot = 0; slot < p.slots; ++slot) {
+				EmbeddedText e = p.get(slot);
+				if ((e == null) || ((filter != null) && !filter.match(e)))
+					continue;
+				float[] w = (e instanceof OffHeapEmbeddedText) ? ((OffHeapEmbeddedText) e).vector(v) : e.getVector();
+				double s = similarityAbove(w, e.getNorm(), query, tails, threshold);
+				if (s >= threshold)
+					action.accept(e, s);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #searchAbove(EmbeddedText, EmbeddedTextMatcher, double, ObjDoubleConsumer)},
+	 * but searching given embeddings.
+	 */
+	static void searchAbove(EmbeddedText query, Collection<EmbeddedText> candidates, double threshold,
+			ObjDoubleConsumer<EmbeddedText> action) {
+		float[] q = query.getVector();
+		double[] tails = VectorUtil.tailNorms(q);
+		float[] v = new float[q.length];
+		for (EmbeddedText e : candidates) {
+			if ((dimensions(e) != q.length) || !e.getModel().equals(query.getModel()))
+				continue;
+			float[] w = (e instanceof OffHeapEmbeddedText) ? ((OffHeapEmbeddedText) e).vector(v) : e.getVector();
+			double s = similarityAbove(w, e.getNorm(), query, tails, threshold);
+			if (s >= threshold)
+				action.accept(e, s);
+		}
+	}
+
+	/**
+	 * @param tails Norms of the tails of the query vector (see
+	 *              {@link VectorUtil#tailNorms(float[])}).
+	 * @return Similarity between given vector and the query, or NaN if it is
+	 *         certainly below threshold.
+	 */
+	private static double similarityAbove(float[] v, double norm, EmbeddedText query, double[] tails,
+			double threshold) {
+		double dot = VectorUtil.boundedDot(v, norm, query.getVector(), tails, threshold * norm * query.getNorm());
+		return Double.isNaN(dot) ? dot : VectorUtil.cosine(dot, norm, query.getNorm());
+	}
+
+	/**
+	 * @param ref A reference returned by
+	 *            {@link #score(EmbeddedText, EmbeddedTextMatcher, ScoreConsumer)}.
+	 * @return The referenced embedding.
+	 */
+	EmbeddedText resolve(long ref) {
+		return (ref < 0) ? base.get((int) (-ref - 1)) : get(ref);
+	}
+
+	/**
+	 * Exhaustive search of a range of slots of the in-memory embeddings in a
+	 * partition.
+	 */
+	private static final class EntriesSearch extends RecursiveTask<TopK[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final EmbeddedText[] queries;
+		private final int[] compatible;
+		private final EmbeddedTextMatcher filter;
+		private final int limit;
+		private final int threshold;
+		private final EmbeddedText[][] chunks;
+		private final int chunkSize;
+		private final int from, to;
+
+		private EntriesSearch(EmbeddedText[] queries, int[] compatible, EmbeddedTextMatcher filter, int limit,
+				int threshold, EmbeddedText[][] chunks, int chunkSize, int from, int to) {
+			this.queries = queries;
+			this.compatible = compatible;
+			this.filter = filter;
+			this.limit = limit;
+			this.threshold = threshold;
+			this.chunks = chunks;
+			this.chunkSize = chunkSize;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected TopK[] compute() {
+			if (inForkJoinPool() && ((to - from) > threshold)) {
+				int mid = (from + to) >>> 1;
+				EntriesSearch left = new EntriesSearch(queries, compatible, filter, limit, threshold, chunks,
+						chunkSize, from, mid);
+				left.fork();
+				return TopK.merge(new EntriesSearch(queries, compatible, filter, limit, threshold, chunks, chunkSize,
+						mid, to).compute(), left.join());
+			}
+
+			TopK[] result = TopK.create(queries.length, limit);
+			float[][] vectors = vectors(queries);
+			double[] dots = new double[compatible.length];
+			float[] scratch = null;
+			for (int slot = from; slot < to; ++slot) {
+				EmbeddedText e = chunks[slot / chunkSize][slot % chunkSize];
+				if ((e == null) || ((filter != null) && !filter.match(e)))
+					continue;
+
+				float[] v = (e instanceof OffHeapEmbeddedText) ? (scratch = ((OffHeapEmbeddedText) e).vector(scratch))
+						: e.getVector();
+				VectorUtil.dot(v, vectors, compatible, compatible.length, dots);
+				for (int i = 0; i < compatible.length; ++i) {
+					EmbeddedText q = queries[compatible[i]];
+					result[compatible[i]].offer(e, VectorUtil.cosine(dots[i], e.getNorm(), q.getNorm()));
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Exhaustive search of a range of rows in the base segment belonging to a
+	 * partition, computing similarity on mapped data; {@link EmbeddedText}
+	 * instances are created only for rows with a similarity high enough to be
+	 * returned.
+	 */
+	private final class BaseSearch extends RecursiveTask<TopK[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final EmbeddedText[] queries;
+		private final int[] compatible;
+		private final EmbeddedTextMatcher filter;
+		private final int limit;
+		private final int threshold;
+		private final int[] rows;
+		private final int from, to;
+
+		private BaseSearch(EmbeddedText[] queries, int[] compatible, EmbeddedTextMatcher filter, int limit,
+				int threshold, int[] rows, int from, int to) {
+			this.queries = queries;
+			this.compatible = compatible;
+			this.filter = filter;
+			this.limit = limit;
+			this.threshold = threshold;
+			this.rows = rows;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected TopK[] compute() {
+			if (inForkJoinPool() && ((to - from) > threshold)) {
+				int mid = (from + to) >>> 1;
+				BaseSearch left = new BaseSearch(queries, compatible, filter, limit, threshold, rows, from, mid);
+				left.fork();
+				return TopK.merge(
+						new BaseSearch(queries, compatible, filter, limit, threshold, rows, mid, to).compute(),
+						left.join());
+			}
+
+			TopK[] result = TopK.create(queries.length, limit);
+			if (limit < 1)
+				return result;
+
+			float[][] vectors = vectors(queries);
+			double[] dots = new double[compatible.length];
+			float[] v = new float[vectors[compatible[0]].length];
+			for (int k = from; k < to; ++k) {
+				int row = rows[k];
+				if (deleted.get(row))
+					continue;
+
+				base.vector(row, v);
+				VectorUtil.dot(v, vectors, compatible, compatible.length, dots);
+
+				EmbeddedText e = null;
+				boolean match = true;
+				for (int i = 0; i < compatible.length; ++i) {
+					double similarity = VectorUtil.cosine(dots[i], base.norm(row), queries[compatible[i]].getNorm());
+					if (!result[compatible[i]].accepts(similarity))
+						continue;
+
+					// Embeddings are created only when they might end up in results
+					if (e == null) {
+						e = base.get(row);
+						match = (filter == null) || filter.match(e);
+					}
+					if (match)
+						result[compatible[i]].offer(e, similarity);
+				}
+			}
+
+			return result;
+		}
+	}
+
+	private static float[][] vectors(EmbeddedText[] queries) {
+		float[][] result = new float[queries.length][];
+		for (int i = 0; i < queries.length; ++i)
+			result[i] = queries[i].getVector();
+		return result;
+	}
+}
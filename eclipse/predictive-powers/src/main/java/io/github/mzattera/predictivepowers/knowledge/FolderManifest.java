@@ -0,0 +1,205 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.github.mzattera.predictivepowers.services.messages.JsonSchema;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Describes the files that were ingested into a {@link KnowledgeBase} domain by
+ * an {@link IngestionPipeline}, so that later ingestions of the same folder can
+ * skip files that did not change (see
+ * {@link IngestionPipeline#ingest(File, File)}).
+ *
+ * The manifest is saved as a JSON file. This class is thread safe.
+ *
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public final class FolderManifest {
+
+	/**
+	 * Describes one ingested file.
+	 */
+	@Getter
+	@Setter
+	@NoArgsConstructor
+	@AllArgsConstructor
+	@ToString
+	public static final class Entry {
+
+		/** File size, in bytes */
+		private long size;
+
+		/** Last modification time of the file */
+		private long lastModified;
+
+		/** SHA-256 hash of file content */
+		private String hash;
+
+		/**
+		 * Number of chunks created from the file; the knowledge base stores chunks
+		 * with the same text only once, so some of them might be tagged with another
+		 * file.
+		 */
+		private int chunks;
+
+		/**
+		 * Hashes of the text of each chunk created from the file (see
+		 * {@link FolderManifest#hash(String)}), used to tell whether a chunk is still
+		 * needed when another file is removed.
+		 */
+		private List<String> chunkHashes = new ArrayList<>();
+	}
+
+	/** Ingested files, by path */
+	@JsonProperty("files")
+	private Map<String, Entry> files = new HashMap<>();
+
+	/**
+	 * Creates an empty manifest.
+	 */
+	public FolderManifest() {
+	}
+
+	/**
+	 * @return The entry for file with given path, or null if the file is not in
+	 *         the manifest.
+	 */
+	public synchronized Entry get(@NonNull String path) {
+		return files.get(path);
+	}
+
+	/**
+	 * Adds or replaces the entry for file with given path.
+	 */
+	public synchronized void put(@NonNull String path, @NonNull Entry entry) {
+		files.put(path, entry);
+	}
+
+	/**
+	 * Removes the entry for file with given path, if any.
+	 */
+	public synchronized Entry remove(@NonNull String path) {
+		return files.remove(path);
+	}
+
+	/**
+	 * @return Paths of files in the manifest.
+	 */
+	public synchronized Set<String> paths() {
+		return new HashSet<>(files.keySet());
+	}
+
+	/**
+	 * @return Number of files in the manifest.
+	 */
+	public synchronized int size() {
+		return files.size();
+	}
+
+	/**
+	 * Reads a manifest from given file.
+	 *
+	 * @return The manifest, or an empty one if the file does not exist.
+	 */
+	public static FolderManifest load(@NonNull File file) throws IOException {
+		if (!file.exists())
+			return new FolderManifest();
+		return JsonSchema.JSON_MAPPER.readValue(file, FolderManifest.class);
+	}
+
+	/**
+	 * Saves this manifest in given file. The manifest is written to a temporary
+	 * file first, which then replaces the given one, so that the existing
+	 * manifest is not lost if writing fails.
+	 */
+	public synchronized void save(@NonNull File file) throws IOException {
+		Path target = file.getAbsoluteFile().toPath();
+		Path tmp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+		try {
+			JsonSchema.JSON_MAPPER.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), this);
+			try {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * @return SHA-256 hash of given file content, as an hexadecimal string.
+	 */
+	public static String hash(@NonNull File file) throws IOException {
+		MessageDigest md = digest();
+		try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), md)) {
+			byte[] buffer = new byte[64 * 1024];
+			while (in.read(buffer) >= 0)
+				;
+		}
+		return hex(md.digest());
+	}
+
+	/**
+	 * @return SHA-256 hash of given text, encoded as UTF-8, as an hexadecimal
+	 *         string.
+	 */
+	public static String hash(@NonNull String text) {
+		return hex(digest().digest(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) { // Never happens, every JVM supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] hash) {
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (byte b : hash)
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.util.VectorUtil;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A {@link VectorIndex} implementing Hierarchical Navigable Small World graphs
+ * (see Malkov &amp; Yashunin, "Efficient and robust approximate nearest
+ * neighbor search using Hierarchical Navigable Small World graphs").
+ * 
+ * Searches are approximated; their recall is controlled by the below
+ * parameters:
+ * 
+ * <ul>
+ * <li><b>M</b> - the number of links created for each node in the graph (twice
+ * as many are allowed in the bottom layer). Higher values improve recall on
+ * high-dimensional data, at the expense of memory.</li>
+ * <li><b>efConstruction</b> - size of the candidate list used when inserting
+ * nodes. Higher values create a better graph, at the expense of insertion
+ * time.</li>
+ * <li><b>efSearch</b> - size of the candidate list used when searching. Higher
+ * values improve recall, at the expense of search time. This can be changed at
+ * any time.</li>
+ * </ul>
+ * 
+ * Deleted embeddings are marked as such and skipped in results, but their node
+ * is still used to navigate the graph; the graph is re-built when deleted nodes
+ * outnumber live ones.
+ * 
+ * Similarly, filtered searches use all nodes to navigate the graph, but return
+ * only those matching the filter; the more selective the filter, the more of
+ * the graph is visited.
+ * 
+ * As similarity is defined only between embeddings created with same model
+ * and with same size, the index keeps a separate graph for each of them.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public class HnswIndex implements VectorIndex {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_M = 16;
+	public static final int DEFAULT_EF_CONSTRUCTION = 200;
+	public static final int DEFAULT_EF_SEARCH = 64;
+
+	private static final int[] NO_LINKS = new int[0];
+
+	private static final Comparator<Candidate> ASCENDING = Comparator.comparingDouble(c -> c.similarity);
+	private static final Comparator<Candidate> DESCENDING = ASCENDING.reversed();
+
+	/** Number of links for each node (in layers above the bottom one). */
+	@Getter
+	private final int m;
+
+	/** Size of candidate list when inserting nodes. */
+	@Getter
+	private final int efConstruction;
+
+	/** Size of candidate list when searching. */
+	@Getter
+	private int efSearch;
+
+	private final double levelMultiplier;
+
+	private final Random random = new Random();
+
+	/** One graph for each (model, embedding size) pair. */
+	private final Map<String, Graph> graphs = new HashMap<>();
+
+	public HnswIndex() {
+		this(DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+	}
+
+	public HnswIndex(int m, int efConstruction, int efSearch) {
+		if (m < 2)
+			throw new IllegalArgumentException("M must be at least 2: " + m);
+		if (efConstruction < 1)
+			throw new IllegalArgumentException("efConstruction must be positive: " + efConstruction);
+
+		this.m = m;
+		this.efConstruction = efConstruction;
+		this.levelMultiplier = 1.0d / Math.log(m);
+		setEfSearch(efSearch);
+	}
+
+	public void setEfSearch(int efSearch) {
+		if (efSearch < 1)
+			throw new IllegalArgumentException("efSearch must be positive: " + efSearch);
+		this.efSearch = efSearch;
+	}
+
+	@Override
+	public void add(@NonNull EmbeddedText e) {
+		insert(graphs.computeIfAbsent(key(e), k -> new Graph()), e);
+	}
+
+	@Override
+	public void remove(@NonNull EmbeddedText e) {
+		// e might be just a placeholder with the text to delete; look in all graphs
+		Iterator<Graph> it = graphs.values().iterator();
+		while (it.hasNext()) {
+			Graph g = it.next();
+			if (delete(g, e) && g.ids.isEmpty())
+				it.remove();
+		}
+	}
+
+	@Override
+	public void clear() {
+		graphs.clear();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Graph g : graphs.values())
+			size += g.ids.size();
+		return size;
+	}
+
+	@Override
+	public List<Pair<EmbeddedText, Double>> search(@NonNull EmbeddedText query, int limit,
+			EmbeddedTextMatcher filter) {
+		Graph g = graphs.get(key(query));
+		if ((g == null) || (limit < 1))
+			return new ArrayList<>();
+
+		float[] q = query.getVector();
+		double qNorm = query.getNorm();
+
+		int ep = g.entryPoint;
+		for (int lc = g.maxLevel; lc > 0; --lc)
+			ep = greedySearch(g, q, qNorm, ep, lc);
+
+		List<Candidate> entryPoints = new ArrayList<>(1);
+		entryPoints.add(new Candidate(ep, similarity(g.nodes.get(ep), q, qNorm)));
+		List<Candidate> w = sort(searchLayer(g, q, qNorm, entryPoints, Math.max(efSearch, limit), 0,
+				n -> !n.deleted && ((filter == null) || filter.match(n.item))));
+
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>(Math.min(limit, w.size()));
+		for (int i = 0; (i < w.size()) && (i < limit); ++i) {
+			Candidate c = w.get(i);
+			result.add(new ImmutablePair<>(g.nodes.get(c.id).item, c.similarity));
+		}
+		return result;
+	}
+
+	private void insert(Graph g, EmbeddedText e) {
+		if (g.ids.containsKey(e))
+			return;
+
+		int level = (int) (-Math.log(1.0d - random.nextDouble()) * levelMultiplier);
+		int id = g.nodes.size();
+		Node node = new Node(e, level);
+		g.nodes.add(node);
+		g.ids.put(e, id);
+
+		if (g.entryPoint < 0) { // First node
+			g.entryPoint = id;
+			g.maxLevel = level;
+			return;
+		}
+
+		float[] q = e.getVector();
+		double qNorm = e.getNorm();
+
+		int ep = g.entryPoint;
+		for (int lc = g.maxLevel; lc > level; --lc)
+			ep = greedySearch(g, q, qNorm, ep, lc);
+
+		List<Candidate> entryPoints = new ArrayList<>();
+		entryPoints.add(new Candidate(ep, similarity(g.nodes.get(ep), q, qNorm)));
+		for (int lc = Math.min(level, g.maxLevel); lc >= 0; --lc) {
+			List<Candidate> w = sort(searchLayer(g, q, qNorm, entryPoints, efConstruction, lc, null));
+			int[] neighbours = selectNeighbours(g, w, m);
+			node.links[lc] = neighbours;
+
+			int maxLinks = (lc == 0) ? 2 * m : m;
+			for (int n : neighbours)
+				link(g, n, id, lc, maxLinks);
+
+			entryPoints = w;
+		}
+
+		if (level > g.maxLevel) {
+			g.maxLevel = level;
+			g.entryPoint = id;
+		}
+	}
+
+	private boolean delete(Graph g, EmbeddedText e) {
+		Integer id = g.ids.remove(e);
+		if (id == null)
+			return false;
+
+		g.nodes.get(id).deleted = true;
+		++g.deleted;
+		if (!g.ids.isEmpty() && (g.deleted > g.ids.size()))
+			rebuild(g);
+
+		return true;
+	}
+
+	/**
+	 * Re-builds the graph from scratch, dropping deleted nodes.
+	 */
+	private void rebuild(Graph g) {
+		List<EmbeddedText> live = new ArrayList<>(g.ids.size());
+		for (Node n : g.nodes)
+			if (!n.deleted)
+				live.add(n.item);
+
+		g.nodes.clear();
+		g.ids.clear();
+		g.entryPoint = -1;
+		g.maxLevel = -1;
+		g.deleted = 0;
+
+		for (EmbeddedText e : live)
+			insert(g, e);
+	}
+
+	/**
+	 * Adds a link from node n to node id in given layer, pruning links of n if
+	 * they become too many.
+	 */
+	private void link(Graph g, int n, int id, int lc, int maxLinks) {
+		Node node = g.nodes.get(n);
+		int[] links = node.links[lc];
+		if (links.length < maxLinks) {
+			links = Arrays.copyOf(links, links.length + 1);
+			links[links.length - 1] = id;
+			node.links[lc] = links;
+			return;
+		}
+
+		float[] v = node.item.getVector();
+		double norm = node.item.getNorm();
+		List<Candidate> candidates = new ArrayList<>(links.length + 1);
+		for (int l : links)
+			candidates.add(new Candidate(l, similarity(g.nodes.get(l), v, norm)));
+		candidates.add(new Candidate(id, similarity(g.nodes.get(id), v, norm)));
+		candidates.sort(DESCENDING);
+		node.links[lc] = selectNeighbours(g, candidates, maxLinks);
+	}
+
+	/**
+	 * Selects neighbours for a node, using the heuristic that favours candidates
+	 * which are closer to the node than to any other already selected neighbour.
+	 * 
+	 * @param candidates Candidate neighbours, sorted by decreasing similarity to
+	 *                   the node.
+	 */
+	private static int[] selectNeighbours(Graph g, List<Candidate> candidates, int max) {
+		int[] selected = new int[Math.min(max, candidates.size())];
+		int size = 0;
+		for (Candidate c : candidates) {
+			if (size >= selected.length)
+				break;
+
+			boolean good = true;
+			if (size > 0) {
+				EmbeddedText e = g.nodes.get(c.id).item;
+				float[] v = e.getVector();
+				for (int i = 0; good && (i < size); ++i)
+					good = similarity(g.nodes.get(selected[i]), v, e.getNorm()) <= c.similarity;
+			}
+			if (good)
+				selected[size++] = c.id;
+		}
+
+		return (size == selected.length) ? selected : Arrays.copyOf(selected, size);
+	}
+
+	/**
+	 * Greedy search of a single nearest node in given layer.
+	 */
+	private static int greedySearch(Graph g, float[] q, double qNorm, int ep, int lc) {
+		double best = similarity(g.nodes.get(ep), q, qNorm);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int n : g.nodes.get(ep).links[lc]) {
+				double s = similarity(g.nodes.get(n), q, qNorm);
+				if (s > best) {
+					best = s;
+					ep = n;
+					changed = true;
+				}
+			}
+		}
+		return ep;
+	}
+
+	/**
+	 * Searches nodes most similar to q in given layer.
+	 * 
+	 * @param accept If not null, only nodes accepted by this are returned; other
+	 *               nodes (e.g. deleted ones or those not matching a search
+	 *               filter) are still used to navigate the graph.
+	 * @return At most ef candidates, in a queue with the least similar on top.
+	 */
+	private static PriorityQueue<Candidate> searchLayer(Graph g, float[] q, double qNorm,
+			Collection<Candidate> entryPoints, int ef, int lc, Predicate<Node> accept) {
+
+		BitSet visited = new BitSet();
+		PriorityQueue<Candidate> candidates = new PriorityQueue<>(DESCENDING);
+		PriorityQueue<Candidate> results = new PriorityQueue<>(ASCENDING);
+
+		for (Candidate c : entryPoints) {
+			visited.set(c.id);
+			candidates.add(c);
+			if ((accept == null) || accept.test(g.nodes.get(c.id))) {
+				results.add(c);
+				if (results.size() > ef)
+					results.poll();
+			}
+		}
+
+		while (!candidates.isEmpty()) {
+			Candidate c = candidates.poll();
+			if ((results.size() >= ef) && (c.similarity < results.peek().similarity))
+				break;
+
+			for (int n : g.nodes.get(c.id).links[lc]) {
+				if (visited.get(n))
+					continue;
+				visited.set(n);
+
+				Node node = g.nodes.get(n);
+				double s = similarity(node, q, qNorm);
+				if ((results.size() < ef) || (s > results.peek().similarity)) {
+					Candidate nc = new Candidate(n, s);
+					candidates.add(nc);
+					if ((accept == null) || accept.test(node)) {
+						results.add(nc);
+						if (results.size() > ef)
+							results.poll();
+					}
+				}
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * @return Content of the queue, sorted by decreasing similarity.
+	 */
+	private static List<Candidate> sort(PriorityQueue<Candidate> q) {
+		List<Candidate> result = new ArrayList<>(q);
+		result.sort(DESCENDING);
+		return result;
+	}
+
+	/**
+	 * @return Similarity between the embedding in given node and given vector;
+	 *         vectors stored off-heap are not copied.
+	 */
+	private static double similarity(Node a, float[] b, double bNorm) {
+		EmbeddedText e = a.item;
+		double dot = (e instanceof OffHeapEmbeddedText) ? ((OffHeapEmbeddedText) e).dot(b)
+				: VectorUtil.dot(e.getVector(), b);
+		return VectorUtil.cosine(dot, e.getNorm(), bNorm);
+	}
+
+	private static String key(EmbeddedText e) {
+		return e.getModel() + "/" + DomainSnapshot.dimensions(e);
+	}
+
+	/**
+	 * A graph containing embeddings all created with same model.
+	 */
+	private static final class Graph implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Node> nodes = new ArrayList<>();
+
+		/** Maps each (live) embedding into the ID of its node */
+		private final Map<EmbeddedText, Integer> ids = new HashMap<>();
+
+		private int entryPoint = -1;
+
+		private int maxLevel = -1;
+
+		/** Number of deleted nodes */
+		private int deleted = 0;
+	}
+
+	private static final class Node implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final EmbeddedText item;
+
+		/** Links to other nodes, for each layer this node belongs to */
+		private final int[][] links;
+
+		private boolean deleted = false;
+
+		private Node(EmbeddedText item, int level) {
+			this.item = item;
+			this.links = new int[level + 1][];
+			Arrays.fill(links, NO_LINKS);
+		}
+	}
+
+	private static final class Candidate {
+
+		private final int id;
+
+		private final double similarity;
+
+		private Candidate(int id, double similarity) {
+			this.id = id;
+			this.similarity = similarity;
+		}
+	}
+}
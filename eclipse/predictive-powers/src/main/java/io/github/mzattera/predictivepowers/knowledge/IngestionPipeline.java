@@ -0,0 +1,851 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.mzattera.predictivepowers.EndpointException;
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.services.EmbeddingService;
+import io.github.mzattera.predictivepowers.services.ModelService;
+import io.github.mzattera.predictivepowers.services.ModelService.Tokenizer;
+import io.github.mzattera.predictivepowers.util.ChunkUtil;
+import io.github.mzattera.predictivepowers.util.ExtractionUtil;
+import io.github.mzattera.predictivepowers.util.SimpleTokenizer;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Embeds the content of all files in a folder, including its sub-folders, and
+ * stores resulting embeddings in a {@link KnowledgeBase} domain.
+ *
+ * Unlike {@link EmbeddingService#embedFolder(File)}, which processes one file
+ * at a time and returns all embeddings at the end, files are processed by a
+ * pipeline of stages running concurrently, each with its own threads: text is
+ * extracted from files, then chunked, then chunks are embedded in batches and
+ * inserted in the knowledge base as soon as each batch is ready. Stages are
+ * connected by bounded queues, so that faster stages wait for slower ones and
+ * memory usage does not depend on the size of the folder.
+ *
+ * Each embedding has a {@link #FILE_PROPERTY} property with the path of the
+ * file it comes from. As the knowledge base stores each text only once, a chunk
+ * found in several files is stored once, tagged with one of them. Files whose
+ * text cannot be extracted are skipped; any other error stops the ingestion.
+ *
+ * Ingestion can be incremental, using a {@link FolderManifest} to skip files
+ * that did not change since last ingestion (see {@link #ingest(File, File)}).
+ *
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class IngestionPipeline {
+
+	private final static Logger LOG = LoggerFactory.getLogger(IngestionPipeline.class);
+
+	/**
+	 * Tokenizer used to chunk text when the model service of the embedding service
+	 * does not provide one.
+	 */
+	public static final Tokenizer FALLBACK_TOKENIZER = new SimpleTokenizer(2.5);
+
+	/** Property storing the path of the file each embedding comes from */
+	public static final String FILE_PROPERTY = "file";
+
+	/** Marks the end of the files to process */
+	private static final File END_OF_FILES = new File("");
+
+	/** A file being ingested */
+	private static final class Source {
+
+		private final File file;
+
+		/** Manifest entry for the file, or null if no manifest is used */
+		private final FolderManifest.Entry entry;
+
+		/** Chunks of the file not yet inserted in the knowledge base */
+		private final AtomicInteger pending = new AtomicInteger();
+
+		/** Hashes of the text of embeddings created so far, if a manifest is used */
+		private final List<String> chunkHashes = Collections.synchronizedList(new ArrayList<>());
+
+		private Source(File file, FolderManifest.Entry entry) {
+			this.file = file;
+			this.entry = entry;
+		}
+	}
+
+	/** A piece of text from a file */
+	private static final class Text {
+
+		private final Source source;
+
+		private final String text;
+
+		private Text(Source source, String text) {
+			this.source = source;
+			this.text = text;
+		}
+	}
+
+	/** Marks the end of the text to process */
+	private static final Text END_OF_TEXT = new Text(new Source(END_OF_FILES, null), "");
+
+	/**
+	 * Statistics about one stage of the pipeline.
+	 */
+	public static final class StageStatistics {
+
+		private final Statistics owner;
+
+		private final AtomicLong items = new AtomicLong();
+
+		private final AtomicLong failures = new AtomicLong();
+
+		private final AtomicLong busyNanos = new AtomicLong();
+
+		private StageStatistics(Statistics owner) {
+			this.owner = owner;
+		}
+
+		/**
+		 * @return Number of items produced by the stage so far.
+		 */
+		public long getItems() {
+			return items.get();
+		}
+
+		/**
+		 * @return Number of items the stage failed to process so far.
+		 */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/**
+		 * @return Time spent by the threads of this stage processing items,
+		 *         excluding time spent waiting on queues.
+		 */
+		public long getBusyMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(busyNanos.get());
+		}
+
+		/**
+		 * @return Number of items produced per second, since the ingestion started.
+		 */
+		public double getThroughput() {
+			long millis = owner.getElapsedMillis();
+			return (millis == 0) ? 0.0 : items.get() * 1000.0 / millis;
+		}
+
+		private void add(long n, long startNanos) {
+			items.addAndGet(n);
+			busyNanos.addAndGet(System.nanoTime() - startNanos);
+		}
+
+		@Override
+		public String toString() {
+			return "[items=" + getItems() + ", failures=" + getFailures() + ", busyMillis=" + getBusyMillis()
+					+ ", throughput=" + String.format("%.1f", getThroughput()) + "/s]";
+		}
+	}
+
+	/**
+	 * Statistics about an ingestion; they are updated while the ingestion runs.
+	 */
+	public static final class Statistics {
+
+		private final long startNanos = System.nanoTime();
+
+		private volatile long endNanos = -1;
+
+		/** Files whose text was extracted; failures are files that were skipped */
+		@Getter
+		private final StageStatistics extraction = new StageStatistics(this);
+
+		/** Chunks created from extracted text */
+		@Getter
+		private final StageStatistics chunking = new StageStatistics(this);
+
+		/** Embeddings created from chunks */
+		@Getter
+		private final StageStatistics embedding = new StageStatistics(this);
+
+		/** Embeddings inserted in the knowledge base */
+		@Getter
+		private final StageStatistics insertion = new StageStatistics(this);
+
+		private final AtomicLong unchangedFiles = new AtomicLong();
+
+		private final AtomicLong removedFiles = new AtomicLong();
+
+		private Statistics() {
+		}
+
+		/**
+		 * @return Time since the ingestion started, or its duration, if it is
+		 *         finished.
+		 */
+		public long getElapsedMillis() {
+			long end = endNanos;
+			return TimeUnit.NANOSECONDS.toMillis(((end < 0) ? System.nanoTime() : end) - startNanos);
+		}
+
+		/**
+		 * @return Number of files skipped because they did not change since last
+		 *         ingestion (see {@link IngestionPipeline#ingest(File, File)}).
+		 */
+		public long getUnchangedFiles() {
+			return unchangedFiles.get();
+		}
+
+		/**
+		 * @return Number of files whose embeddings were deleted because the files
+		 *         were removed since last ingestion (see
+		 *         {@link IngestionPipeline#ingest(File, File)}).
+		 */
+		public long getRemovedFiles() {
+			return removedFiles.get();
+		}
+
+		/**
+		 * @return True if the ingestion is finished.
+		 */
+		public boolean isFinished() {
+			return endNanos >= 0;
+		}
+
+		@Override
+		public String toString() {
+			return "Statistics [elapsedMillis=" + getElapsedMillis() + ", extraction=" + extraction + ", chunking="
+					+ chunking + ", embedding=" + embedding + ", insertion=" + insertion + ", unchangedFiles="
+					+ getUnchangedFiles() + ", removedFiles=" + getRemovedFiles() + "]";
+		}
+	}
+
+	@Getter
+	private final EmbeddingService service;
+
+	@Getter
+	private final KnowledgeBase knowledgeBase;
+
+	/** Domain where embeddings are inserted; it must exist already */
+	@Getter
+	private final String domain;
+
+	/** Number of threads extracting text from files */
+	@Getter
+	private int extractionThreads = Runtime.getRuntime().availableProcessors();
+
+	/** Number of threads chunking text */
+	@Getter
+	private int chunkingThreads = Runtime.getRuntime().availableProcessors();
+
+	/** Number of threads embedding chunks and inserting them in the knowledge base */
+	@Getter
+	private int embeddingThreads = 4;
+
+	/** Maximum number of chunks embedded with a single call to the service */
+	@Getter
+	private int batchSize = 256;
+
+	/** Capacity of each queue connecting two stages */
+	@Getter
+	private int queueCapacity = 1024;
+
+	/** Chunking parameters, see {@link EmbeddingService#embed(String, int, int, int)} */
+	@Getter
+	private int chunkSize, windowSize = 1, stride = 1;
+
+	/** Statistics for the last ingestion started */
+	@Getter
+	private volatile Statistics statistics;
+
+	/**
+	 * @param service       Service used to embed text; chunk size defaults to the
+	 *                      service default.
+	 * @param knowledgeBase Knowledge base where embeddings are inserted.
+	 * @param domain        Domain where embeddings are inserted; it must exist
+	 *                      already.
+	 */
+	public IngestionPipeline(@NonNull EmbeddingService service, @NonNull KnowledgeBase knowledgeBase,
+			@NonNull String domain) {
+		this.service = service;
+		this.knowledgeBase = knowledgeBase;
+		this.domain = domain;
+		this.chunkSize = service.getDefaultChunkTokens();
+	}
+
+	public void setExtractionThreads(int extractionThreads) {
+		this.extractionThreads = positive("Number of extraction threads", extractionThreads);
+	}
+
+	public void setChunkingThreads(int chunkingThreads) {
+		this.chunkingThreads = positive("Number of chunking threads", chunkingThreads);
+	}
+
+	public void setEmbeddingThreads(int embeddingThreads) {
+		this.embeddingThreads = positive("Number of embedding threads", embeddingThreads);
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = positive("Batch size", batchSize);
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = positive("Queue capacity", queueCapacity);
+	}
+
+	/**
+	 * Sets chunking parameters, see
+	 * {@link EmbeddingService#embed(String, int, int, int)}.
+	 */
+	public void setChunking(int chunkSize, int windowSize, int stride) {
+		// Fails on invalid parameters
+		ChunkUtil.split("", chunkSize, windowSize, stride, FALLBACK_TOKENIZER);
+		this.chunkSize = chunkSize;
+		this.windowSize = windowSize;
+		this.stride = stride;
+	}
+
+	private static int positive(String what, int value) {
+		if (value < 1)
+			throw new IllegalArgumentException(what + " must be positive: " + value);
+		return value;
+	}
+
+	/**
+	 * Embeds the content of all files in given folder, including its sub-folders,
+	 * and stores embeddings in the knowledge base. This returns once all files
+	 * have been processed; statistics can be monitored while the ingestion runs
+	 * with {@link #getStatistics()}.
+	 *
+	 * @return Statistics for this ingestion.
+	 * @throws EndpointException If an error happens while embedding text or the
+	 *                           folder cannot be read. Embeddings inserted before
+	 *                           the error remain in the knowledge base.
+	 */
+	public Statistics ingest(@NonNull File folder) throws EndpointException {
+		return ingest(folder, (FolderManifest) null);
+	}
+
+	/**
+	 * Incrementally ingests given folder, as done by {@link #ingest(File)}, using
+	 * given manifest file to remember which files were ingested.
+	 * 
+	 * Files whose size and modification time did not change since the manifest
+	 * was saved are skipped; so are files whose content hash did not change.
+	 * Files that changed are embedded again. Once all files are processed,
+	 * embeddings of previous versions of changed files, and of files that were
+	 * removed from the folder, are deleted; embeddings whose text is still a chunk
+	 * of some file in the manifest are kept instead, and tagged with that file.
+	 * Embeddings are found through their {@link #FILE_PROPERTY} property; creating
+	 * a property index on it (see
+	 * {@link KnowledgeBase#createPropertyIndex(String, String, boolean)}) makes
+	 * deletions faster.
+	 * 
+	 * The manifest must always be used with the same domain and the folder must
+	 * always be referred by the same path. The manifest is saved at the end of
+	 * the ingestion, even if it fails; in that case, files that were not fully
+	 * ingested will be embedded again next time, and any error saving the
+	 * manifest is added as suppressed to the exception that stopped ingestion.
+	 *
+	 * @param manifest File storing the manifest; it is created if it does not
+	 *                 exist.
+	 * @return Statistics for this ingestion.
+	 * @throws EndpointException If an error happens while embedding text, or the
+	 *                           folder or the manifest cannot be read or written.
+	 */
+	public Statistics ingest(@NonNull File folder, @NonNull File manifest) throws EndpointException {
+		FolderManifest m;
+		try {
+			m = FolderManifest.load(manifest);
+		} catch (IOException e) {
+			throw EndpointException.fromException(e, "Cannot read manifest " + manifest);
+		}
+
+		Statistics stats;
+		try {
+			stats = ingest(folder, m);
+		} catch (RuntimeException | Error e) {
+			// Save what was ingested, without hiding the error that stopped ingestion;
+			// errors created without suppression enabled ignore addSuppressed()
+			try {
+				m.save(manifest);
+			} catch (IOException x) {
+				LOG.error("Cannot save manifest " + manifest, x);
+				e.addSuppressed(x);
+			}
+			throw e;
+		}
+
+		try {
+			m.save(manifest);
+		} catch (IOException e) {
+			throw EndpointException.fromException(e, "Cannot save manifest " + manifest);
+		}
+		return stats;
+	}
+
+	private Statistics ingest(File folder, FolderManifest manifest) throws EndpointException {
+		try {
+			if (!folder.isDirectory() || !folder.canRead())
+				throw new IOException("Cannot read folder: " + folder.getCanonicalPath());
+		} catch (IOException e) {
+			throw EndpointException.fromException(e, null);
+		}
+
+		Statistics stats = new Statistics();
+		statistics = stats;
+		try {
+			new Run(folder, manifest, stats).execute();
+		} finally {
+			stats.endNanos = System.nanoTime();
+		}
+		return stats;
+	}
+
+	/**
+	 * State of a single ingestion.
+	 */
+	private final class Run {
+
+		private final File folder;
+
+		/** Manifest updated by the ingestion, or null if it is not incremental */
+		private final FolderManifest manifest;
+
+		private final Statistics stats;
+
+		private final Tokenizer tokenizer;
+
+		private final BlockingQueue<File> files = new ArrayBlockingQueue<>(queueCapacity);
+
+		private final BlockingQueue<Text> texts = new ArrayBlockingQueue<>(queueCapacity);
+
+		private final BlockingQueue<Text> chunks = new ArrayBlockingQueue<>(queueCapacity);
+
+		private final List<ExecutorService> pools = new ArrayList<>();
+
+		/** First error that stopped the ingestion */
+		private final AtomicReference<Exception> error = new AtomicReference<>();
+
+		/** Paths of files found in the folder */
+		private final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+		/** Files whose text was extracted, but are not yet in the knowledge base */
+		private final Set<Source> inFlight = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * Paths of files that changed since last ingestion; embeddings of their
+		 * previous version are released at the end of the ingestion
+		 */
+		private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+		private Run(File folder, FolderManifest manifest, Statistics stats) {
+			this.folder = folder;
+			this.manifest = manifest;
+			this.stats = stats;
+
+			ModelService modelService = (service.getEndpoint() == null) ? null
+					: service.getEndpoint().getModelService();
+			this.tokenizer = (modelService == null) ? FALLBACK_TOKENIZER
+					: modelService.getTokenizer(service.getModel(), FALLBACK_TOKENIZER);
+		}
+
+		private void execute() throws EndpointException {
+			// Pools are created upfront, so a failure can stop all of them
+			ExecutorService walker = pool("walk", 1);
+			ExecutorService extraction = pool("extract", extractionThreads);
+			ExecutorService chunking = pool("chunk", chunkingThreads);
+			ExecutorService embedding = pool("embed", embeddingThreads);
+
+			try {
+				start(walker, extraction, chunking, embedding);
+			} catch (RejectedExecutionException e) {
+				// A failure stopped the pools already
+			}
+
+			try {
+				for (ExecutorService p : pools) {
+					p.shutdown();
+					while (!p.awaitTermination(1, TimeUnit.MINUTES))
+						;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(e);
+			}
+
+			if (manifest != null)
+				updateManifest();
+
+			if (error.get() != null)
+				throw EndpointException.fromException(error.get(), "Error ingesting folder " + folder);
+		}
+
+		/**
+		 * Removes files removed from the folder from the manifest, marks files not
+		 * fully ingested, so they are ingested again next time, then releases
+		 * embeddings of removed and changed files.
+		 */
+		private void updateManifest() {
+			Set<String> released = new HashSet<>(changed);
+			if (error.get() == null) {
+				for (String path : manifest.paths()) {
+					if (!seen.contains(path)) {
+						manifest.remove(path);
+						released.add(path);
+						stats.removedFiles.incrementAndGet();
+					}
+				}
+			}
+
+			for (Source s : inFlight) {
+				List<String> hashes = new ArrayList<>(s.chunkHashes);
+				manifest.put(s.file.getPath(), new FolderManifest.Entry(-1, -1, "", hashes.size(), hashes));
+			}
+
+			if (!released.isEmpty())
+				release(released);
+		}
+
+		/**
+		 * Deletes embeddings tagged with given files, unless their text is a chunk of
+		 * a file in the manifest; those are tagged with that file instead.
+		 * 
+		 * A chunk found in several files is stored only once, so it must stay in the
+		 * knowledge base until no file in the manifest has it.
+		 */
+		private void release(Set<String> paths) {
+			Map<String, String> owners = new HashMap<>(); // chunk hash => file
+			for (String path : manifest.paths()) {
+				FolderManifest.Entry e = manifest.get(path);
+				if (e != null)
+					for (String h : e.getChunkHashes())
+						owners.putIfAbsent(h, path);
+			}
+
+			for (String path : paths) {
+				FolderManifest.Entry current = manifest.get(path); // New version of the file, if any
+				Set<String> own = (current == null) ? Set.of() : new HashSet<>(current.getChunkHashes());
+
+				PropertyMatcher m = PropertyMatcher.equalTo(FILE_PROPERTY, path);
+				List<String> dropped = new ArrayList<>();
+				List<EmbeddedText> moved = new ArrayList<>();
+				boolean retained = false;
+				for (EmbeddedText e : knowledgeBase.query(domain, m)) {
+					String hash = FolderManifest.hash(e.getText());
+					if (own.contains(hash)) {
+						retained = true;
+						continue;
+					}
+
+					String owner = owners.get(hash);
+					dropped.add(e.getText());
+					if (owner != null) { // Stored embeddings cannot be changed, re-insert a copy
+						EmbeddedText copy = new EmbeddedText(e.getText(), e.getVector().clone(), e.getModel());
+						for (String p : e.listProperties())
+							copy.set(p, e.get(p));
+						copy.set(FILE_PROPERTY, owner);
+						moved.add(copy);
+					}
+				}
+
+				if (!retained) {
+					knowledgeBase.delete(domain, m);
+				} else {
+					for (String t : dropped)
+						knowledgeBase.delete(domain, t);
+				}
+				if (!moved.isEmpty())
+					knowledgeBase.insert(domain, moved);
+			}
+		}
+
+		private void start(ExecutorService walker, ExecutorService extraction, ExecutorService chunking,
+				ExecutorService embedding) {
+			walker.execute(() -> {
+				try {
+					walk(folder);
+					files.put(END_OF_FILES);
+				} catch (InterruptedException e) {
+					// Ingestion stopped
+				} catch (Exception e) {
+					fail(e);
+				}
+			});
+
+			AtomicInteger extractors = new AtomicInteger(extractionThreads);
+			for (int i = 0; i < extractionThreads; ++i) {
+				extraction.execute(() -> {
+					try {
+						for (File f = files.take(); f != END_OF_FILES; f = files.take())
+							extract(f);
+						files.put(END_OF_FILES); // Let other threads see it
+						if (extractors.decrementAndGet() == 0)
+							texts.put(END_OF_TEXT);
+					} catch (InterruptedException e) {
+						// Ingestion stopped
+					} catch (Exception e) {
+						fail(e);
+					}
+				});
+			}
+
+			AtomicInteger chunkers = new AtomicInteger(chunkingThreads);
+			for (int i = 0; i < chunkingThreads; ++i) {
+				chunking.execute(() -> {
+					try {
+						for (Text t = texts.take(); t != END_OF_TEXT; t = texts.take())
+							chunk(t);
+						texts.put(END_OF_TEXT);
+						if (chunkers.decrementAndGet() == 0)
+							chunks.put(END_OF_TEXT);
+					} catch (InterruptedException e) {
+						// Ingestion stopped
+					} catch (Exception e) {
+						fail(e);
+					}
+				});
+			}
+
+			for (int i = 0; i < embeddingThreads; ++i) {
+				embedding.execute(() -> {
+					try {
+						embedAll();
+						chunks.put(END_OF_TEXT);
+					} catch (InterruptedException e) {
+						// Ingestion stopped
+					} catch (Exception e) {
+						fail(e);
+					}
+				});
+			}
+		}
+
+		private ExecutorService pool(String stage, int threads) {
+			AtomicInteger count = new AtomicInteger();
+			ExecutorService result = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "ingestion-" + stage + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+			pools.add(result);
+			return result;
+		}
+
+		/**
+		 * Stops the ingestion because of given error.
+		 */
+		private void fail(Exception e) {
+			if (error.compareAndSet(null, e)) {
+				for (ExecutorService p : pools)
+					p.shutdownNow();
+			}
+		}
+
+		private void walk(File dir) throws IOException, InterruptedException {
+			File[] content = dir.listFiles();
+			if (content == null)
+				throw new IOException("Cannot read folder: " + dir.getCanonicalPath());
+			for (File f : content) {
+				if (f.isDirectory())
+					walk(f);
+				else if (f.isFile() && !unchanged(f))
+					files.put(f);
+			}
+		}
+
+		/**
+		 * @return True if the ingestion is incremental and given file has same size
+		 *         and modification time it had when last ingested.
+		 */
+		private boolean unchanged(File f) {
+			if (manifest == null)
+				return false;
+
+			String path = f.getPath();
+			seen.add(path);
+			FolderManifest.Entry e = manifest.get(path);
+			if ((e != null) && (e.getSize() == f.length()) && (e.getLastModified() == f.lastModified())) {
+				stats.unchangedFiles.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		private void extract(File f) throws InterruptedException {
+			long start = System.nanoTime();
+			String path = f.getPath();
+			FolderManifest.Entry entry = null;
+			String text;
+			try {
+				if (manifest != null) {
+					long size = f.length(), lastModified = f.lastModified();
+					String hash = FolderManifest.hash(f);
+					FolderManifest.Entry old = manifest.get(path);
+					if ((old != null) && old.getHash().equals(hash)) {
+						// Only modification time changed
+						manifest.put(path, new FolderManifest.Entry(size, lastModified, hash, old.getChunks(),
+								old.getChunkHashes()));
+						stats.unchangedFiles.incrementAndGet();
+						return;
+					}
+					entry = new FolderManifest.Entry(size, lastModified, hash, 0, new ArrayList<>());
+				}
+				text = ExtractionUtil.fromFile(f);
+			} catch (Exception e) {
+				LOG.warn("Cannot extract text from " + f + ", file skipped", e);
+				stats.extraction.failures.incrementAndGet();
+				return;
+			}
+
+			Source source = new Source(f, entry);
+			if (manifest != null) {
+				inFlight.add(source);
+				// Embeddings of previous version are released at the end, as other files might
+				// still need some of them
+				if (manifest.remove(path) != null)
+					changed.add(path);
+			}
+			stats.extraction.add(1, start);
+			texts.put(new Text(source, text));
+		}
+
+		/**
+		 * Called once all chunks of given file are in the knowledge base.
+		 */
+		private void completed(Source source) {
+			if (manifest == null)
+				return;
+			List<String> hashes = new ArrayList<>(source.chunkHashes);
+			source.entry.setChunks(hashes.size());
+			source.entry.setChunkHashes(hashes);
+			manifest.put(source.file.getPath(), source.entry);
+			inFlight.remove(source);
+		}
+
+		private void chunk(Text t) throws InterruptedException {
+			long start = System.nanoTime();
+			List<String> pieces = ChunkUtil.split(t.text, chunkSize, windowSize, stride, tokenizer);
+			stats.chunking.add(pieces.size(), start);
+			t.source.pending.set(pieces.size());
+			if (pieces.isEmpty())
+				completed(t.source);
+			for (String p : pieces)
+				chunks.put(new Text(t.source, p));
+		}
+
+		/**
+		 * Embeds chunks in batches, until there are no more chunks.
+		 */
+		private void embedAll() throws InterruptedException {
+			List<Text> batch = new ArrayList<>(batchSize);
+			for (boolean done = false; !done;) {
+				Text t = chunks.take();
+				if (t == END_OF_TEXT)
+					break;
+
+				// Add whatever else is ready, up to batch size
+				batch.add(t);
+				while (batch.size() < batchSize) {
+					t = chunks.poll();
+					if (t == null)
+						break;
+					if (t == END_OF_TEXT) {
+						done = true;
+						break;
+					}
+					batch.add(t);
+				}
+
+				embed(batch);
+				batch.clear();
+			}
+		}
+
+		private void embed(List<Text> batch) {
+			long start = System.nanoTime();
+			List<String> input = new ArrayList<>(batch.size());
+			for (Text t : batch)
+				input.add(t.text);
+
+			// Chunks are already of the right size, so the service should not split them
+			List<EmbeddedText> result = service.embed(input, Integer.MAX_VALUE, 1, 1);
+			if (result.size() == batch.size()) {
+				for (int i = 0; i < batch.size(); ++i)
+					tag(result.get(i), batch.get(i).source);
+			} else {
+				// The service split some chunk, find which embeddings come from each
+				// chunk; those that cannot be told are embedded again one by one
+				List<List<EmbeddedText>> pieces = ChunkUtil.align(input, result);
+				result = new ArrayList<>();
+				for (int i = 0; i < batch.size(); ++i) {
+					Text t = batch.get(i);
+					List<EmbeddedText> embedded = pieces.get(i);
+					if (embedded == null)
+						embedded = service.embed(List.of(t.text), Integer.MAX_VALUE, 1, 1);
+					for (EmbeddedText e : embedded) {
+						tag(e, t.source);
+						result.add(e);
+					}
+				}
+			}
+			stats.embedding.add(result.size(), start);
+
+			start = System.nanoTime();
+			knowledgeBase.insert(domain, result);
+			stats.insertion.add(result.size(), start);
+
+			for (Text t : batch) {
+				if (t.source.pending.decrementAndGet() == 0)
+					completed(t.source);
+			}
+		}
+
+		/**
+		 * Marks given embedding as coming from given file. If the knowledge base has
+		 * the same text already, the embedding is not inserted, but the file is still
+		 * recorded as needing it.
+		 */
+		private void tag(EmbeddedText e, Source source) {
+			e.set(FILE_PROPERTY, source.file.getPath());
+			if (manifest != null)
+				source.chunkHashes.add(FolderManifest.hash(e.getText()));
+		}
+	}
+}
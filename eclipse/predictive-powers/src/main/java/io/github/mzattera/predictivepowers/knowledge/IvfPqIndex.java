@@ -0,0 +1,861 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.util.VectorUtil;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A {@link VectorIndex} implementing an inverted file with product
+ * quantization (IVF-PQ, see Jégou et al., "Product quantization for nearest
+ * neighbor search").
+ * 
+ * Embeddings are normalized and assigned to the closest of a set of coarse
+ * centroids, found with k-means; each centroid has a list of the embeddings
+ * assigned to it. The difference between each embedding and its centroid is
+ * split in sub-vectors, each encoded as the index (one byte) of the closest
+ * entry in a codebook, also found with k-means. Therefore, each embedding
+ * takes as many bytes as the number of sub-vectors.
+ * 
+ * When searching, only the lists of the centroids closest to the query are
+ * scanned. For each query, a table with the dot product of each of its
+ * sub-vectors with each codebook entry is computed once; the approximated
+ * similarity of each embedding is then the sum of a few table lookups. The
+ * best candidates are finally re-scored using the full-precision embeddings.
+ * Searches are approximated; their recall is controlled by the below
+ * parameters:
+ * 
+ * <ul>
+ * <li><b>lists</b> - the number of coarse centroids. More lists make each of
+ * them shorter, making searches faster.</li>
+ * <li><b>subQuantizers</b> - the number of sub-vectors in which each embedding
+ * is split. More sub-vectors make codes more precise, at the expense of memory
+ * and search time.</li>
+ * <li><b>probes</b> - the number of lists scanned by each search. Higher values
+ * improve recall, at the expense of search time. This can be changed at any
+ * time.</li>
+ * <li><b>rescoreFactor</b> - number of candidates re-scored at full precision
+ * is the number of requested results times this factor. This can be changed at
+ * any time.</li>
+ * </ul>
+ * 
+ * Centroids and codebooks must be trained on a sample of the embeddings being
+ * indexed. When the index contains {@link #getTrainingSize()} embeddings, it
+ * starts training itself in a background thread; until training completes,
+ * embeddings are searched exhaustively. This means an index attached to an
+ * existing domain is trained on the domain content, while an index attached to
+ * an empty domain is trained on the first embeddings inserted.
+ * 
+ * Training, and quantizing the embeddings in the index, run on a copy of the
+ * index content, without blocking inserts, deletions or searches; only
+ * swapping the trained centroids and codebooks in, and quantizing embeddings
+ * that were inserted while training, locks the index. Use
+ * {@link #awaitTraining()} to wait for a training in progress to complete.
+ * The index can be trained again at any time, with current content, by
+ * calling {@link #train()}.
+ * 
+ * Filtered searches return only embeddings matching the filter within the
+ * scanned lists; the more selective the filter, the more probes are needed.
+ * 
+ * As similarity is defined only between embeddings created with same model
+ * and with same size, the index keeps separate lists for each of them.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public class IvfPqIndex implements VectorIndex {
+
+	private final static Logger LOG = LoggerFactory.getLogger(IvfPqIndex.class);
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_LISTS = 256;
+	public static final int DEFAULT_SUB_QUANTIZERS = 16;
+	public static final int DEFAULT_PROBES = 16;
+	public static final int DEFAULT_RESCORE_FACTOR = 10;
+	public static final int DEFAULT_TRAINING_SIZE = 10_000;
+
+	/** Maximum number of entries in each codebook, so codes fit in one byte */
+	private static final int CODEBOOK_SIZE = 256;
+
+	/** Number of k-means iterations when training */
+	private static final int ITERATIONS = 10;
+
+	/**
+	 * Maximum number of embeddings copied at once to be quantized after
+	 * training.
+	 */
+	private static final int ENCODE_BATCH = 10_000;
+
+	/**
+	 * When no more than this number of embeddings are left to be quantized after
+	 * training, they are quantized while the trained block is swapped in.
+	 */
+	private static final int INSTALL_BATCH = 1_000;
+
+	private static final Comparator<Candidate> ASCENDING = Comparator.comparingDouble(c -> c.similarity);
+
+	@Getter
+	private final int lists;
+
+	@Getter
+	private final int subQuantizers;
+
+	/** Number of lists scanned by each search. */
+	@Getter
+	private int probes;
+
+	/**
+	 * Number of candidates re-scored at full precision is the number of requested
+	 * results times this factor.
+	 */
+	@Getter
+	private int rescoreFactor;
+
+	/** Number of embeddings needed to train the index. */
+	@Getter
+	private final int trainingSize;
+
+	/** Lists for each (model, embedding size) pair. */
+	private final Map<String, Block> blocks = new HashMap<>();
+
+	/**
+	 * Guards {@link #blocks} and their content against trainings running in
+	 * background; searches take the read lock, changes the write lock.
+	 */
+	private transient ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public IvfPqIndex() {
+		this(DEFAULT_LISTS, DEFAULT_SUB_QUANTIZERS, DEFAULT_PROBES);
+	}
+
+	public IvfPqIndex(int lists, int subQuantizers, int probes) {
+		this(lists, subQuantizers, probes, DEFAULT_RESCORE_FACTOR, DEFAULT_TRAINING_SIZE);
+	}
+
+	public IvfPqIndex(int lists, int subQuantizers, int probes, int rescoreFactor, int trainingSize) {
+		if (lists < 1)
+			throw new IllegalArgumentException("Number of lists must be positive: " + lists);
+		if (subQuantizers < 1)
+			throw new IllegalArgumentException("Number of sub-quantizers must be positive: " + subQuantizers);
+		if (trainingSize < lists)
+			throw new IllegalArgumentException("Training size must be at least the number of lists: " + trainingSize);
+		this.lists = lists;
+		this.subQuantizers = subQuantizers;
+		this.trainingSize = trainingSize;
+		setProbes(probes);
+		setRescoreFactor(rescoreFactor);
+	}
+
+	public void setProbes(int probes) {
+		if (probes < 1)
+			throw new IllegalArgumentException("Number of probes must be positive: " + probes);
+		this.probes = probes;
+	}
+
+	public void setRescoreFactor(int rescoreFactor) {
+		if (rescoreFactor < 1)
+			throw new IllegalArgumentException("Rescore factor must be positive: " + rescoreFactor);
+		this.rescoreFactor = rescoreFactor;
+	}
+
+	/**
+	 * @return True if all embeddings in the index are quantized; false if some
+	 *         are still waiting for the index to be trained.
+	 */
+	public boolean isTrained() {
+		lock.readLock().lock();
+		try {
+			for (Block b : blocks.values())
+				if ((b.quantizer == null) || !b.pending.isEmpty())
+					return false;
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Trains the index again, using its current content, and quantizes all of the
+	 * embeddings it contains. Training runs in the calling thread, but it does not
+	 * block other operations on the index.
+	 */
+	public void train() {
+		List<Block> bs;
+		lock.readLock().lock();
+		try {
+			bs = new ArrayList<>(blocks.values());
+		} finally {
+			lock.readLock().unlock();
+		}
+		for (Block b : bs)
+			train(b);
+	}
+
+	/**
+	 * Waits for trainings running in background to complete.
+	 */
+	public void awaitTraining() throws InterruptedException {
+		List<Thread> running = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			for (Block b : blocks.values()) {
+				Thread t = b.training;
+				if (t != null)
+					running.add(t);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		for (Thread t : running)
+			t.join();
+	}
+
+	@Override
+	public void add(@NonNull EmbeddedText e) {
+		lock.writeLock().lock();
+		try {
+			Block b = blocks.computeIfAbsent(key(e), k -> new Block(e.getVector().length, subQuantizers));
+			b.add(e);
+			if ((b.quantizer == null) && (b.training == null) && (b.pending.size() >= trainingSize))
+				startTraining(b);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void remove(@NonNull EmbeddedText e) {
+		lock.writeLock().lock();
+		try {
+			// e might be just a placeholder with the text to delete; look in all blocks
+			Iterator<Block> it = blocks.values().iterator();
+			while (it.hasNext()) {
+				Block b = it.next();
+				if (b.remove(e) && (b.size() == 0))
+					it.remove();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			blocks.clear(); // Trainings still running will update blocks no longer in use
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			int size = 0;
+			for (Block b : blocks.values())
+				size += b.size();
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<Pair<EmbeddedText, Double>> search(@NonNull EmbeddedText query, int limit,
+			EmbeddedTextMatcher filter) {
+		lock.readLock().lock();
+		try {
+			Block b = blocks.get(key(query));
+			if ((b == null) || (limit < 1))
+				return new ArrayList<>();
+
+			List<Pair<EmbeddedText, Double>> result = new ArrayList<>();
+			for (EmbeddedText e : b.pending.values()) { // Not quantized yet
+				if ((filter == null) || filter.match(e))
+					result.add(new ImmutablePair<>(e, EmbeddedText.similarity(e, query)));
+			}
+
+			Quantizer qz = b.quantizer;
+			if (qz != null) {
+				// Scan lists for candidates
+				int candidates = (int) Math.min((long) limit * rescoreFactor, Integer.MAX_VALUE);
+				PriorityQueue<Candidate> queue = new PriorityQueue<>(candidates + 1, ASCENDING);
+				float[] q = normalize(query.getVector());
+				float[] table = qz.table(q);
+				for (int list : qz.probe(q, probes)) {
+					double base = VectorUtil.dot(q, qz.centroids[list]);
+					Posting p = b.postings[list];
+					for (int i = 0; i < p.size; ++i) {
+						if ((filter != null) && !filter.match(p.items[i]))
+							continue;
+						double s = base + qz.approximateDot(table, p.codes, i);
+						if (queue.size() < candidates) {
+							queue.add(new Candidate(p.items[i], s));
+						} else if (s > queue.peek().similarity) {
+							queue.poll();
+							queue.add(new Candidate(p.items[i], s));
+						}
+					}
+				}
+
+				// Re-score candidates at full precision
+				for (Candidate c : queue)
+					result.add(new ImmutablePair<>(c.item, EmbeddedText.similarity(c.item, query)));
+			}
+			result.sort((p1, p2) -> Double.compare(p2.getRight(), p1.getRight()));
+
+			return (result.size() > limit) ? new ArrayList<>(result.subList(0, limit)) : result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Starts training given block in a background thread. Caller must hold the
+	 * write lock.
+	 */
+	private void startTraining(Block b) {
+		Thread t = new Thread(() -> {
+			try {
+				train(b);
+			} catch (Exception e) {
+				LOG.error("Error training IVF-PQ index", e);
+			} finally {
+				b.training = null;
+			}
+		}, "IvfPqIndex training");
+		t.setDaemon(true);
+		b.training = t;
+		t.start();
+	}
+
+	/**
+	 * Trains centroids and codebooks of given block on a sample of its content,
+	 * then quantizes all of its embeddings.
+	 * 
+	 * Vectors are copied while holding the read lock, then training and
+	 * quantization run without holding any lock; the write lock is taken only to
+	 * swap the new lists in, quantizing embeddings inserted in the meantime.
+	 */
+	private void train(Block b) {
+		float[][] data;
+		List<EmbeddedText> todo; // Embeddings still to be quantized
+		lock.readLock().lock();
+		try {
+			todo = b.content();
+			if (todo.size() < lists)
+				return; // Not enough embeddings yet
+
+			List<EmbeddedText> sample = todo;
+			if (sample.size() > trainingSize) {
+				Collections.shuffle(sample, b.random);
+				sample = sample.subList(0, trainingSize);
+			}
+			data = new float[sample.size()][];
+			for (int i = 0; i < data.length; ++i)
+				data[i] = normalize(sample.get(i).getVector());
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		Quantizer qz = new Quantizer(b.bounds, data, lists, b.random);
+		Posting[] postings = qz.postings();
+		Map<EmbeddedText, Integer> quantized = new HashMap<>();
+
+		// Quantize the content taken above, without locking as long as there is much
+		// of it; then do the same for embeddings inserted in the meantime
+		while (todo.size() > INSTALL_BATCH) {
+			for (int start = 0; start < todo.size(); start += ENCODE_BATCH) {
+				List<EmbeddedText> batch = todo.subList(start, Math.min(start + ENCODE_BATCH, todo.size()));
+				List<EmbeddedText> items = new ArrayList<>(batch.size());
+				List<float[]> vectors = new ArrayList<>(batch.size());
+				lock.readLock().lock();
+				try {
+					for (EmbeddedText e : batch) {
+						if (b.get(e) == e) { // Skip embeddings deleted or replaced in the meantime
+							items.add(e);
+							vectors.add(normalize(e.getVector()));
+						}
+					}
+				} finally {
+					lock.readLock().unlock();
+				}
+
+				for (int i = 0; i < items.size(); ++i) {
+					EmbeddedText e = items.get(i);
+					Integer old = quantized.remove(e); // Replaced with e in the meantime
+					if (old != null)
+						postings[old].remove(e);
+					quantized.put(e, qz.encode(vectors.get(i), e, postings));
+				}
+			}
+
+			lock.readLock().lock();
+			try {
+				todo = new ArrayList<>();
+				for (EmbeddedText e : b.content()) {
+					Integer list = quantized.get(e);
+					if ((list == null) || (postings[list].get(e) != e))
+						todo.add(e);
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		lock.writeLock().lock();
+		try {
+			b.install(qz, postings, quantized);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		lock.readLock().lock();
+		try {
+			out.defaultWriteObject();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		lock = new ReentrantReadWriteLock();
+	}
+
+	private static String key(EmbeddedText e) {
+		return e.getModel() + "/" + e.getVector().length;
+	}
+
+	/**
+	 * @return A copy of given vector, with unit length.
+	 */
+	private static float[] normalize(float[] v) {
+		float[] result = new float[v.length];
+		double norm = VectorUtil.norm(v);
+		if (norm > 0.0) {
+			for (int i = 0; i < v.length; ++i)
+				result[i] = (float) (v[i] / norm);
+		}
+		return result;
+	}
+
+	/**
+	 * @return Squared Euclidean distance between given vector and a section of
+	 *         another one.
+	 */
+	private static double distance(float[] v, int from, float[] w) {
+		double d = 0.0;
+		for (int i = 0; i < w.length; ++i) {
+			double x = v[from + i] - w[i];
+			d += x * x;
+		}
+		return d;
+	}
+
+	/**
+	 * @return Index of the centroid closest to given section of a vector.
+	 */
+	private static int closest(float[][] centroids, float[] v, int from) {
+		int best = 0;
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < centroids.length; ++i) {
+			double d = distance(v, from, centroids[i]);
+			if (d < min) {
+				min = d;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Clusters given sections of vectors with Lloyd's k-means.
+	 * 
+	 * @param k      Number of clusters; must not exceed number of vectors.
+	 * @param from   Start of the section of each vector to cluster.
+	 * @param length Length of the section of each vector to cluster.
+	 * @return The centroids.
+	 */
+	private static float[][] kMeans(float[][] data, int k, int from, int length, Random random) {
+		float[][] centroids = new float[k][];
+		int[] sample = random.ints(0, data.length).distinct().limit(k).toArray();
+		for (int i = 0; i < k; ++i)
+			centroids[i] = Arrays.copyOfRange(data[sample[i]], from, from + length);
+
+		int[] assignment = new int[data.length];
+		for (int it = 0; it < ITERATIONS; ++it) {
+			for (int i = 0; i < data.length; ++i)
+				assignment[i] = closest(centroids, data[i], from);
+
+			double[][] sums = new double[k][length];
+			int[] counts = new int[k];
+			for (int i = 0; i < data.length; ++i) {
+				double[] sum = sums[assignment[i]];
+				for (int j = 0; j < length; ++j)
+					sum[j] += data[i][from + j];
+				++counts[assignment[i]];
+			}
+			for (int c = 0; c < k; ++c) {
+				if (counts[c] == 0) { // Empty cluster, restart it from a random vector
+					centroids[c] = Arrays.copyOfRange(data[random.nextInt(data.length)], from, from + length);
+					continue;
+				}
+				for (int j = 0; j < length; ++j)
+					centroids[c][j] = (float) (sums[c][j] / counts[c]);
+			}
+		}
+
+		return centroids;
+	}
+
+	/**
+	 * Embeddings of same model and size, with their centroids and codebooks.
+	 */
+	private static final class Block implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		/** Start of each sub-vector, plus the end of the last one */
+		private final int[] bounds;
+
+		/** Embeddings waiting for the index to be trained, each mapped into itself */
+		private final Map<EmbeddedText, EmbeddedText> pending = new LinkedHashMap<>();
+
+		/** Centroids and codebooks, or null if the block was not trained yet */
+		private Quantizer quantizer;
+
+		/** Embeddings assigned to each centroid */
+		private Posting[] postings;
+
+		/** Maps each quantized embedding into its list */
+		private Map<EmbeddedText, Integer> quantized = new HashMap<>();
+
+		private final Random random = new Random();
+
+		/** Thread training this block in background, if any */
+		private transient volatile Thread training;
+
+		private Block(int dimensions, int subQuantizers) {
+			int m = Math.min(subQuantizers, dimensions);
+			bounds = new int[m + 1];
+			for (int i = 0; i <= m; ++i)
+				bounds[i] = i * dimensions / m;
+		}
+
+		private int size() {
+			return pending.size() + quantized.size();
+		}
+
+		/**
+		 * @return All embeddings in the block.
+		 */
+		private List<EmbeddedText> content() {
+			List<EmbeddedText> all = new ArrayList<>(size());
+			all.addAll(pending.values());
+			all.addAll(quantized.keySet());
+			return all;
+		}
+
+		/**
+		 * @return The embedding in this block with same text as given one, or null
+		 *         if there is none.
+		 */
+		private EmbeddedText get(EmbeddedText e) {
+			EmbeddedText p = pending.get(e);
+			if (p != null)
+				return p;
+			Integer list = quantized.get(e);
+			return (list == null) ? null : postings[list].get(e);
+		}
+
+		private void add(EmbeddedText e) {
+			if (get(e) != null)
+				return;
+			if (quantizer == null)
+				pending.put(e, e);
+			else
+				quantized.put(e, quantizer.encode(normalize(e.getVector()), e, postings));
+		}
+
+		private boolean remove(EmbeddedText e) {
+			if (pending.remove(e) != null)
+				return true;
+			Integer list = quantized.remove(e);
+			if (list == null)
+				return false;
+			postings[list].remove(e);
+			return true;
+		}
+
+		/**
+		 * Replaces centroids, codebooks and lists of this block with newly trained
+		 * ones. Embeddings deleted while training are removed from the new lists,
+		 * embeddings inserted while training are quantized.
+		 * 
+		 * As embeddings are equal when their text is, an embedding replaced while
+		 * training is recognized by comparing instances.
+		 * 
+		 * @param quantized Maps embeddings already in postings into their list.
+		 */
+		private void install(Quantizer qz, Posting[] postings, Map<EmbeddedText, Integer> quantized) {
+			Iterator<Map.Entry<EmbeddedText, Integer>> it = quantized.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<EmbeddedText, Integer> e = it.next();
+				EmbeddedText item = postings[e.getValue()].get(e.getKey());
+				if (get(item) != item) {
+					postings[e.getValue()].remove(item);
+					it.remove();
+				}
+			}
+			for (EmbeddedText e : content()) {
+				if (!quantized.containsKey(e))
+					quantized.put(e, qz.encode(normalize(e.getVector()), e, postings));
+			}
+
+			this.quantizer = qz;
+			this.postings = postings;
+			this.quantized = quantized;
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Trained coarse centroids and codebooks for a block. Instances are not
+	 * changed after creation.
+	 */
+	private static final class Quantizer implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int dimensions;
+
+		/** Start of each sub-vector, plus the end of the last one */
+		private final int[] bounds;
+
+		/** Coarse centroids */
+		private final float[][] centroids;
+
+		/** For each sub-vector, its codebook */
+		private final float[][][] codebooks;
+
+		/** Number of entries in each codebook */
+		private final int codebookSize;
+
+		/**
+		 * Trains centroids and codebooks on given (normalized) vectors, which are
+		 * modified.
+		 */
+		private Quantizer(int[] bounds, float[][] data, int lists, Random random) {
+			this.bounds = bounds;
+			this.dimensions = bounds[bounds.length - 1];
+
+			// Coarse centroids
+			centroids = kMeans(data, lists, 0, dimensions, random);
+
+			// Codebooks, trained on residuals
+			for (int i = 0; i < data.length; ++i) {
+				float[] c = centroids[closest(centroids, data[i], 0)];
+				for (int j = 0; j < dimensions; ++j)
+					data[i][j] -= c[j];
+			}
+			codebookSize = Math.min(CODEBOOK_SIZE, data.length);
+			codebooks = new float[bounds.length - 1][][];
+			for (int m = 0; m < codebooks.length; ++m)
+				codebooks[m] = kMeans(data, codebookSize, bounds[m], bounds[m + 1] - bounds[m], random);
+		}
+
+		/**
+		 * @return Empty lists, one for each centroid.
+		 */
+		private Posting[] postings() {
+			Posting[] postings = new Posting[centroids.length];
+			for (int i = 0; i < postings.length; ++i)
+				postings[i] = new Posting(codebooks.length);
+			return postings;
+		}
+
+		/**
+		 * Quantizes given embedding and adds it to the list of its centroid.
+		 * 
+		 * @param v Normalized vector of the embedding; it is modified.
+		 * @return The list where the embedding was added.
+		 */
+		private int encode(float[] v, EmbeddedText e, Posting[] postings) {
+			int list = closest(centroids, v, 0);
+			float[] c = centroids[list];
+			for (int j = 0; j < dimensions; ++j)
+				v[j] -= c[j];
+
+			byte[] code = new byte[codebooks.length];
+			for (int m = 0; m < code.length; ++m)
+				code[m] = (byte) closest(codebooks[m], v, bounds[m]);
+
+			postings[list].add(e, code);
+			return list;
+		}
+
+		/**
+		 * @return Indexes of the lists whose centroids are closest to given
+		 *         (normalized) query, as embeddings are assigned to lists.
+		 */
+		private int[] probe(float[] q, int n) {
+			Integer[] order = new Integer[centroids.length];
+			double[] distances = new double[centroids.length];
+			for (int i = 0; i < order.length; ++i) {
+				order[i] = i;
+				distances[i] = distance(q, 0, centroids[i]);
+			}
+			Arrays.sort(order, (a, b) -> Double.compare(distances[a], distances[b]));
+
+			int[] result = new int[Math.min(n, order.length)];
+			for (int i = 0; i < result.length; ++i)
+				result[i] = order[i];
+			return result;
+		}
+
+		/**
+		 * @return For each sub-vector m and codebook entry k, the dot product between
+		 *         the sub-vector of q and the entry, at position m * codebookSize + k.
+		 */
+		private float[] table(float[] q) {
+			float[] table = new float[codebooks.length * codebookSize];
+			for (int m = 0; m < codebooks.length; ++m) {
+				for (int k = 0; k < codebookSize; ++k) {
+					float[] entry = codebooks[m][k];
+					float dot = 0f;
+					for (int j = 0; j < entry.length; ++j)
+						dot += q[bounds[m] + j] * entry[j];
+					table[m * codebookSize + k] = dot;
+				}
+			}
+			return table;
+		}
+
+		/**
+		 * @return Approximated dot product between the query used to create given
+		 *         table and the residual encoded at given position in codes.
+		 */
+		private double approximateDot(float[] table, byte[] codes, int i) {
+			int base = i * codebooks.length;
+			float dot = 0f;
+			for (int m = 0; m < codebooks.length; ++m)
+				dot += table[m * codebookSize + (codes[base + m] & 0xFF)];
+			return dot;
+		}
+	}
+
+	/**
+	 * Codes of the embeddings assigned to a centroid, stored contiguously.
+	 * Deleting an embedding moves the last one in its place.
+	 */
+	private static final class Posting implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		/** Length of each code */
+		private final int length;
+
+		private int size = 0;
+
+		private byte[] codes = new byte[0];
+
+		private EmbeddedText[] items = new EmbeddedText[0];
+
+		/** Maps each embedding into its position in the list */
+		private final Map<EmbeddedText, Integer> positions = new HashMap<>();
+
+		private Posting(int length) {
+			this.length = length;
+		}
+
+		private void add(EmbeddedText e, byte[] code) {
+			if (size == items.length) {
+				int capacity = Math.max(16, items.length + (items.length >> 1));
+				codes = Arrays.copyOf(codes, capacity * length);
+				items = Arrays.copyOf(items, capacity);
+			}
+			System.arraycopy(code, 0, codes, size * length, length);
+			items[size] = e;
+			positions.put(e, size);
+			++size;
+		}
+
+		/**
+		 * @return The embedding in this list with same text as given one, or null if
+		 *         there is none.
+		 */
+		private EmbeddedText get(EmbeddedText e) {
+			Integer i = positions.get(e);
+			return (i == null) ? null : items[i];
+		}
+
+		private void remove(EmbeddedText e) {
+			int i = positions.remove(e);
+			int last = size - 1;
+			if (i != last) {
+				System.arraycopy(codes, last * length, codes, i * length, length);
+				items[i] = items[last];
+				positions.put(items[i], i);
+			}
+			items[last] = null;
+			--size;
+		}
+	}
+
+	private static final class Candidate {
+
+		private final EmbeddedText item;
+
+		private final double similarity;
+
+		private Candidate(EmbeddedText item, double similarity) {
+			this.item = item;
+			this.similarity = similarity;
+		}
+	}
+}
@@ -24,21 +24,29 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.services.EmbeddingService;
 import lombok.NonNull;
 
 /**
@@ -53,7 +61,26 @@ import lombok.NonNull;
  * That is same piece of embedded text (even if with different properties) can
  * exist only once in the knowledge base.
  * 
- * This class is thread safe.
+ * By default, searches scan all of the embeddings in a domain; for large
+ * domains, a {@link VectorIndex} (e.g. {@link HnswIndex}) can be attached to
+ * the domain, to provide faster (but possibly approximated) searches.
+ * Exhaustive searches over many embeddings are split in segments which are
+ * searched in parallel (see {@link #setParallelismThreshold(int)}).
+ * 
+ * Similarly, indexes on embedding properties can be created, to speed up
+ * queries and deletions using {@link PropertyMatcher}s, and a text index can
+ * be created on a domain, to support lexical and hybrid searches (see
+ * {@link #createTextIndex(String)}). Domains can also reject or replace
+ * near-duplicates of existing text on insertion (see
+ * {@link #createNearDuplicateIndex(String, double, NearDuplicatePolicy)}).
+ * 
+ * A knowledge base opened with {@link #openBinary(File, File, boolean)}
+ * records each change in a log, so changes are persisted without saving the
+ * whole knowledge base.
+ * 
+ * This class is thread safe. Exhaustive searches run on immutable snapshots of
+ * domain content, so they never wait for changes to complete; changes to one
+ * domain do not block changes to other domains.
  * 
  * @author Massimiliano "Maxi" Zattera.
  *
@@ -64,17 +91,108 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 
 	public static final String DEFAULT_DOMAIN = "_default";
 
-	/** Locks used for thread safety */
-	private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock(true);
-	private final Lock readLock = rwLock.readLock();
-	private final Lock writeLock = rwLock.writeLock();
+	/**
+	 * Default value for {@link #getParallelismThreshold()}.
+	 */
+	public static final int DEFAULT_PARALLELISM_THRESHOLD = 50_000;
+
+	/**
+	 * Default value for {@link #getCompactionThreshold()} (64MB).
+	 */
+	public static final long DEFAULT_COMPACTION_THRESHOLD = 64L * 1024 * 1024;
+
+	/**
+	 * Constant used in Reciprocal Rank Fusion by
+	 * {@link #hybridSearch(String, EmbeddedText, int, int)}; results are scored
+	 * 1/(RRF_K + rank) in each ranking.
+	 */
+	public static final int RRF_K = 60;
+
+	/**
+	 * Minimum number of results retrieved from each ranking in
+	 * {@link #hybridSearch(String, EmbeddedText, int, int)}.
+	 */
+	public static final int HYBRID_SEARCH_DEPTH = 100;
+
+	private final static Logger LOG = LoggerFactory.getLogger(KnowledgeBase.class);
+
+	/**
+	 * Lock guarding the set of domains, held in write mode by operations that add
+	 * or remove domains. Each domain has its own lock (see
+	 * {@link Domain#getLock()}), held in write mode by operations that change the
+	 * domain and in read mode by searches; therefore, changes to a domain never
+	 * block searches or changes in other domains.
+	 * 
+	 * Searches find domains using an optimistic read, which does not wait for
+	 * writers. Operations that need a consistent view of the whole knowledge base
+	 * (e.g. saving it) hold this lock in read mode and lock all domains. Domain
+	 * locks are always acquired in the order domains appear in {@link #domains}.
+	 */
+	private transient StampedLock lock = new StampedLock();
+
+	/** Domains, sorted by name; domain locks are always acquired in this order */
+	private Map<String, Domain> domains = new ConcurrentSkipListMap<>();
 
-	private final Map<String, Set<EmbeddedText>> domains = new HashMap<>();
+	private transient volatile int parallelismThreshold = DEFAULT_PARALLELISM_THRESHOLD;
+
+	private transient volatile ForkJoinPool pool;
+
+	/** If not null, changes are recorded in this log */
+	private transient volatile WriteAheadLog log;
+
+	/** File where this knowledge base is saved when the log is compacted */
+	private transient File snapshot;
+
+	private transient volatile long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	/** Thread running a background compaction, if any */
+	private transient volatile Thread compaction;
 
 	public KnowledgeBase() {
 		createDomain(DEFAULT_DOMAIN);
 	}
 
+	/**
+	 * Exhaustive searches that need to scan more than this number of embeddings
+	 * are split in segments of at most this size, which are searched in parallel
+	 * using {@link #getPool()}; smaller searches run in the calling thread.
+	 */
+	public int getParallelismThreshold() {
+		return parallelismThreshold;
+	}
+
+	/**
+	 * Exhaustive searches that need to scan more than this number of embeddings
+	 * are split in segments of at most this size, which are searched in parallel
+	 * using {@link #getPool()}; smaller searches run in the calling thread.
+	 * 
+	 * Use {@link Integer#MAX_VALUE} to disable parallel searches.
+	 */
+	public void setParallelismThreshold(int parallelismThreshold) {
+		if (parallelismThreshold < 1)
+			throw new IllegalArgumentException("Threshold must be positive: " + parallelismThreshold);
+		this.parallelismThreshold = parallelismThreshold;
+	}
+
+	/**
+	 * @return The pool used for parallel searches; by default, this is
+	 *         {@link ForkJoinPool#commonPool()}.
+	 */
+	public ForkJoinPool getPool() {
+		ForkJoinPool p = pool;
+		return (p == null) ? ForkJoinPool.commonPool() : p;
+	}
+
+	/**
+	 * Sets the pool used for parallel searches.
+	 * 
+	 * @param pool The pool to use, or null to use
+	 *             {@link ForkJoinPool#commonPool()}.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
 	/**
 	 * Stores this knowledge base in a file.
 	 * 
@@ -94,14 +212,102 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 * @throws IOException
 	 */
 	public void save(File file) throws FileNotFoundException, IOException {
-		writeLock.lock();
+		long stamp = lock.readLock();
+		long[] stamps = readLock(domains.values());
 		try {
 			try (FileOutputStream fos = new FileOutputStream(file);
 					ObjectOutputStream oos = new ObjectOutputStream(fos)) {
 				oos.writeObject(this);
 			}
 		} finally {
-			writeLock.unlock();
+			unlockRead(domains.values(), stamps);
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Stores this knowledge base in a file, using a binary format that can be
+	 * later opened with {@link #openBinary(File)}.
+	 * 
+	 * Notice that vector and property indexes attached to domains are not saved.
+	 * 
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void saveBinary(String fileName) throws IOException {
+		saveBinary(new File(fileName));
+	}
+
+	/**
+	 * Stores this knowledge base in a file, using a binary format that can be
+	 * later opened with {@link #openBinary(File)}.
+	 * 
+	 * Notice that vector and property indexes attached to domains are not saved.
+	 * 
+	 * The knowledge base is saved as it was when this method was called; it can
+	 * be searched and changed while it is being saved.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void saveBinary(File file) throws IOException {
+		writeBinary(file, null);
+	}
+
+	/**
+	 * @return Current snapshot of each domain. Caller must lock all domains, so
+	 *         the snapshots are consistent with each other.
+	 */
+	private Map<String, DomainSnapshot> snapshots() {
+		Map<String, DomainSnapshot> result = new LinkedHashMap<>();
+		for (Map.Entry<String, Domain> e : domains.entrySet())
+			result.put(e.getKey(), e.getValue().getSnapshot());
+		return result;
+	}
+
+	/**
+	 * Writes current snapshot of each domain in given file, in
+	 * {@link BinaryFormat}. Domains are locked only while snapshots are taken,
+	 * apart from off-heap domains, whose vectors cannot be read without holding
+	 * their lock; these stay locked until the file is written.
+	 * 
+	 * @param locked If not null, this is run while all domains are locked.
+	 */
+	private void writeBinary(File file, Runnable locked) throws IOException {
+		Map<String, DomainSnapshot> snapshots;
+		List<Domain> offHeap = new ArrayList<>();
+		long[] offHeapStamps;
+		long stamp = lock.readLock();
+		try {
+			List<Domain> ds = new ArrayList<>(domains.values());
+			long[] stamps = readLock(ds);
+			try {
+				snapshots = snapshots();
+				if (locked != null)
+					locked.run();
+			} catch (RuntimeException | Error e) {
+				unlockRead(ds, stamps);
+				throw e;
+			}
+
+			offHeapStamps = new long[ds.size()];
+			for (int i = 0; i < ds.size(); ++i) {
+				Domain d = ds.get(i);
+				if (d.isOffHeap()) {
+					offHeapStamps[offHeap.size()] = stamps[i];
+					offHeap.add(d);
+				} else {
+					d.getLock().unlockRead(stamps[i]);
+				}
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+
+		try {
+			BinaryFormat.write(snapshots, file);
+		} finally {
+			unlockRead(offHeap, offHeapStamps);
 		}
 	}
 
@@ -131,6 +337,283 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 		}
 	}
 
+	/**
+	 * Opens a knowledge base previously saved with {@link #saveBinary(File)}.
+	 * 
+	 * @see #openBinary(File)
+	 * 
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	public static KnowledgeBase openBinary(String fileName) throws IOException {
+		return openBinary(new File(fileName));
+	}
+
+	/**
+	 * Opens a knowledge base previously saved with {@link #saveBinary(File)}.
+	 * 
+	 * The file is memory mapped and searches run directly on mapped embeddings,
+	 * without reading the whole knowledge base in memory; embeddings are returned
+	 * as copies of the mapped data. The knowledge base can be modified, changes
+	 * are kept in memory and written only when the knowledge base is saved
+	 * again.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static KnowledgeBase openBinary(File file) throws IOException {
+		KnowledgeBase kb = new KnowledgeBase();
+		for (Map.Entry<String, MappedSegment> e : BinaryFormat.open(file).entrySet())
+			kb.domains.put(e.getKey(), new Domain(e.getValue()));
+		return kb;
+	}
+
+	/**
+	 * Opens a knowledge base saved with {@link #saveBinary(File)} and applies to
+	 * it the changes recorded in given log. From then on, any change to the
+	 * knowledge base is recorded in the log, so it persists without having to
+	 * save the whole knowledge base.
+	 * 
+	 * When the log grows beyond {@link #getCompactionThreshold()}, it is
+	 * compacted in background (see {@link #compact()}).
+	 * 
+	 * Notice that changes to indexes are not recorded.
+	 * 
+	 * @param snapshot File where the knowledge base is stored; if it does not
+	 *                 exist, a new knowledge base is created.
+	 * @param log      File with the log; if it does not exist, it is created.
+	 * @param sync     If true, the log is forced to disk after each change; this
+	 *                 guarantees changes survive a system crash, but it is much
+	 *                 slower.
+	 * @return
+	 * @throws IOException
+	 */
+	public static KnowledgeBase openBinary(@NonNull File snapshot, @NonNull File log, boolean sync)
+			throws IOException {
+		KnowledgeBase kb = snapshot.exists() ? openBinary(snapshot) : new KnowledgeBase();
+		WriteAheadLog.replay(log, kb);
+		kb.snapshot = snapshot;
+		kb.log = new WriteAheadLog(log, sync);
+		return kb;
+	}
+
+	/**
+	 * Same as {@link #openBinary(File, File, boolean)} but the log is not forced
+	 * to disk after each change; changes survive a crash of the application, but
+	 * not necessarily a crash of the operating system.
+	 */
+	public static KnowledgeBase openBinary(@NonNull File snapshot, @NonNull File log) throws IOException {
+		return openBinary(snapshot, log, false);
+	}
+
+	/**
+	 * Saves this knowledge base in its snapshot file and empties its log. This
+	 * is done automatically in background when the log grows too big, but it can
+	 * also be invoked explicitly.
+	 * 
+	 * The knowledge base can be searched and changed while it is being saved;
+	 * changes made meanwhile are kept in the log.
+	 * 
+	 * @throws IllegalStateException if this knowledge base was not opened with
+	 *                               {@link #openBinary(File, File, boolean)}.
+	 */
+	public synchronized void compact() throws IOException {
+		WriteAheadLog log = this.log;
+		if (log == null)
+			throw new IllegalStateException("Knowledge base has no log");
+
+		// No changes are in progress while domains are locked, so all of the changes
+		// before this position in the log are in the snapshots, and none after it
+		long[] position = new long[1];
+		writeBinary(snapshot, () -> {
+			synchronized (log) {
+				try {
+					position[0] = log.size();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+
+		synchronized (log) {
+			log.discard(position[0]);
+		}
+	}
+
+	/**
+	 * For knowledge bases opened with {@link #openBinary(File, File, boolean)},
+	 * the log is compacted in background when its size exceeds this number of
+	 * bytes.
+	 */
+	public long getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * For knowledge bases opened with {@link #openBinary(File, File, boolean)},
+	 * the log is compacted in background when its size exceeds this number of
+	 * bytes.
+	 * 
+	 * Use {@link Long#MAX_VALUE} to disable automatic compaction.
+	 */
+	public void setCompactionThreshold(long compactionThreshold) {
+		if (compactionThreshold < 1)
+			throw new IllegalArgumentException("Threshold must be positive: " + compactionThreshold);
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * @return Given domain; this is checked before changes are logged, so the log
+	 *         never contains operations that failed.
+	 * @throws IllegalArgumentException if the domain does not exist.
+	 */
+	private Domain existing(String domain) {
+		Domain d = domains.get(domain);
+		if (d == null)
+			throw new IllegalArgumentException("Domain does not exist: " + domain);
+		return d;
+	}
+
+	/**
+	 * @return Current domains, in lock order. This uses an optimistic read, which
+	 *         does not block nor wait for writers, falling back to a read lock
+	 *         only if domains were added or removed meanwhile.
+	 */
+	private List<Domain> domains() {
+		long stamp = lock.tryOptimisticRead();
+		List<Domain> result = new ArrayList<>(domains.values());
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				result = new ArrayList<>(domains.values());
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return A list with given domain only.
+	 * @throws IllegalArgumentException if the domain does not exist.
+	 */
+	private List<Domain> domain(String domain) {
+		return Collections.singletonList(existing(domain));
+	}
+
+	/**
+	 * Locks given domains for reading, in given order.
+	 * 
+	 * @return Stamps to use to unlock the domains.
+	 */
+	private static long[] readLock(Collection<Domain> ds) {
+		long[] stamps = new long[ds.size()];
+		int i = 0;
+		for (Domain d : ds)
+			stamps[i++] = d.getLock().readLock();
+		return stamps;
+	}
+
+	private static void unlockRead(Collection<Domain> ds, long[] stamps) {
+		int i = 0;
+		for (Domain d : ds)
+			d.getLock().unlockRead(stamps[i++]);
+	}
+
+	/**
+	 * Performs given action holding a read lock on each of given domains.
+	 * Changes to other domains are not blocked.
+	 */
+	private static <T> T read(List<Domain> ds, Function<List<Domain>, T> action) {
+		long[] stamps = readLock(ds);
+		try {
+			return action.apply(ds);
+		} finally {
+			unlockRead(ds, stamps);
+		}
+	}
+
+	/**
+	 * Performs given action on given domain, holding a write lock on it. Readers
+	 * and writers of other domains are not blocked.
+	 */
+	private void write(String domain, Consumer<Domain> action) {
+		while (true) {
+			Domain d = existing(domain);
+			long stamp = d.getLock().writeLock();
+			try {
+				if (!d.isDropped()) {
+					action.accept(d);
+					return;
+				}
+			} finally {
+				d.getLock().unlockWrite(stamp);
+			}
+			// Domain was dropped (and possibly created again) while we waited
+		}
+	}
+
+	/**
+	 * Locks given domains for writing, in given order.
+	 * 
+	 * @return Stamps to use to unlock the domains.
+	 */
+	private static long[] writeLock(Collection<Domain> ds) {
+		long[] stamps = new long[ds.size()];
+		int i = 0;
+		for (Domain d : ds)
+			stamps[i++] = d.getLock().writeLock();
+		return stamps;
+	}
+
+	private static void unlockWrite(Collection<Domain> ds, long[] stamps) {
+		int i = 0;
+		for (Domain d : ds)
+			d.getLock().unlockWrite(stamps[i++]);
+	}
+
+	/**
+	 * An operation on the log.
+	 */
+	@FunctionalInterface
+	private interface LogOperation {
+		void apply(WriteAheadLog log) throws IOException;
+	}
+
+	/**
+	 * Records a change in the log, if any, starting a background compaction if
+	 * the log grew too much. Caller must hold a write lock on the changed
+	 * domains.
+	 */
+	private void log(LogOperation op) {
+		WriteAheadLog log = this.log;
+		if (log == null)
+			return;
+
+		synchronized (log) {
+			try {
+				op.apply(log);
+				if ((compaction == null) && (log.size() > compactionThreshold)) {
+					compaction = new Thread(() -> {
+						try {
+							compact();
+						} catch (Exception e) {
+							LOG.error("Error compacting knowledge base log", e);
+						} finally {
+							compaction = null;
+						}
+					}, "KnowledgeBase compaction");
+					compaction.setDaemon(true);
+					compaction.start();
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
 	/**
 	 * 
 	 * Adds a domain to the KnowledgeBase (or does nothing if it already exists).
@@ -138,55 +621,397 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 * @param domain Name of the domain (case sensitive).
 	 */
 	public void createDomain(@NonNull String domain) {
-		writeLock.lock();
+		long stamp = lock.writeLock();
 		try {
-			if (!domains.containsKey(domain))
-				domains.put(domain, new HashSet<>());
+			create(domain);
 		} finally {
-			writeLock.unlock();
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Creates given domain, if it does not exist. Caller must hold {@link #lock}
+	 * in write mode.
+	 */
+	private Domain create(String domain) {
+		Domain d = domains.get(domain);
+		if (d == null) {
+			log(l -> l.createDomain(domain));
+			d = new Domain();
+			domains.put(domain, d);
+		}
+		return d;
+	}
+
+	/**
+	 * Adds an off-heap domain to the KnowledgeBase, where vectors are stored in
+	 * direct memory (see {@link #createOffHeapDomain(String, File)}).
+	 * 
+	 * @param domain Name of the domain (case sensitive).
+	 * @throws IllegalArgumentException if the domain already exists.
+	 */
+	public void createOffHeapDomain(@NonNull String domain) throws IOException {
+		createOffHeapDomain(domain, null);
+	}
+
+	/**
+	 * Adds an off-heap domain to the KnowledgeBase. Vectors of embeddings
+	 * inserted in an off-heap domain are stored outside of the Java heap, either
+	 * in direct memory or in a memory mapped file, while their text and
+	 * properties are kept on the heap; this avoids long garbage collection pauses
+	 * when domains contain many embeddings. Off-heap memory is freed when the
+	 * domain is dropped or the knowledge base is closed; space used by deleted
+	 * embeddings is reclaimed when it exceeds the space used by the remaining
+	 * ones.
+	 * 
+	 * Searches and queries on off-heap domains return copies of the embeddings
+	 * they find, with their vector on the heap; therefore, off-heap domains are
+	 * locked for reading during the whole search, and pages read from a
+	 * {@link SearchCursor} are copied as they are returned.
+	 * 
+	 * Off-heap domains are saved, and logged, as normal domains; they are
+	 * re-opened as normal domains.
+	 * 
+	 * @param domain Name of the domain (case sensitive).
+	 * @param file   If not null, vectors are stored in this file, which is
+	 *               overwritten and then deleted when memory is released.
+	 *               Otherwise, vectors are stored in direct memory, which is
+	 *               limited by the <code>-XX:MaxDirectMemorySize</code> JVM
+	 *               option.
+	 * @throws IllegalArgumentException if the domain already exists.
+	 */
+	public void createOffHeapDomain(@NonNull String domain, File file) throws IOException {
+		long stamp = lock.writeLock();
+		try {
+			if (domains.containsKey(domain))
+				throw new IllegalArgumentException("Domain " + domain + " already exists");
+
+			VectorArena arena = new VectorArena(file);
+			try {
+				log(l -> l.createDomain(domain));
+			} catch (RuntimeException e) {
+				arena.release();
+				throw e;
+			}
+			domains.put(domain, new Domain(null, arena));
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * 
+	 * Adds a domain to the KnowledgeBase, using given index to speed up searches.
+	 * If the domain already exists, this is the same as calling
+	 * {@link #setIndex(String, VectorIndex)}.
+	 * 
+	 * @param domain Name of the domain (case sensitive).
+	 * @param index  Index used for searches in the domain (can be null).
+	 */
+	public void createDomain(@NonNull String domain, VectorIndex index) {
+		long stamp = lock.writeLock();
+		try {
+			Domain d = create(domain);
+			long ds = d.getLock().writeLock();
+			try {
+				d.setIndex(index);
+			} finally {
+				d.getLock().unlockWrite(ds);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Sets the index used to speed up searches in given domain. The index is
+	 * cleared and filled with current content of the domain, then kept up to date
+	 * as embeddings are inserted or deleted.
+	 * 
+	 * @param domain Name of the domain (case sensitive). The domain must exist
+	 *               already.
+	 * @param index  Index to use, or null to remove the index from the domain
+	 *               (searches will then scan all embeddings in the domain).
+	 */
+	public void setIndex(@NonNull String domain, VectorIndex index) {
+		write(domain, d -> d.setIndex(index));
+	}
+
+	/**
+	 * 
+	 * @param domain Name of the domain (case sensitive). The domain must exist
+	 *               already.
+	 * @return The index used to speed up searches in given domain, or null if
+	 *         the domain is searched exhaustively.
+	 */
+	public VectorIndex getIndex(@NonNull String domain) {
+		Domain d = existing(domain);
+		StampedLock l = d.getLock();
+		long stamp = l.tryOptimisticRead();
+		VectorIndex index = d.getIndex();
+		if (!l.validate(stamp)) {
+			stamp = l.readLock();
+			try {
+				index = d.getIndex();
+			} finally {
+				l.unlockRead(stamp);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Creates an index on given property for embeddings in given domain (replacing
+	 * any existing index on the same property). Queries and deletions using a
+	 * {@link PropertyMatcher} on an indexed property, as well as searches filtered
+	 * by such matchers, use the index instead of scanning the whole domain.
+	 * 
+	 * Notice property values of embeddings must not be changed after they have
+	 * been inserted in an indexed domain; to change them, delete the embedding
+	 * and insert it again.
+	 * 
+	 * @param domain
+	 * @param key    Name of the property to index.
+	 * @param sorted If true, the index also supports range and prefix lookups,
+	 *               otherwise only equality lookups are supported.
+	 */
+	public void createPropertyIndex(@NonNull String domain, @NonNull String key, boolean sorted) {
+		write(domain, d -> d.createPropertyIndex(key, sorted));
+	}
+
+	/**
+	 * Drops the index on given property for embeddings in given domain, if any.
+	 * 
+	 * @param domain
+	 * @param key    Name of the indexed property.
+	 */
+	public void dropPropertyIndex(@NonNull String domain, @NonNull String key) {
+		write(domain, d -> d.dropPropertyIndex(key));
+	}
+
+	/**
+	 * Creates an inverted index over the text of embeddings in given domain,
+	 * using {@link SimpleTermTokenizer}; this enables
+	 * {@link #textSearch(String, String, int, int)} and
+	 * {@link #hybridSearch(String, EmbeddedText, int, int)} on the domain.
+	 * 
+	 * @param domain
+	 */
+	public void createTextIndex(@NonNull String domain) {
+		createTextIndex(domain, SimpleTermTokenizer.getInstance());
+	}
+
+	/**
+	 * Creates an inverted index over the text of embeddings in given domain,
+	 * replacing any existing one; this enables
+	 * {@link #textSearch(String, String, int, int)} and
+	 * {@link #hybridSearch(String, EmbeddedText, int, int)} on the domain. The
+	 * index is kept up to date as embeddings are inserted and deleted.
+	 * 
+	 * Notice text indexes are stored when the knowledge base is saved with
+	 * {@link #save(File)}, but not by {@link #saveBinary(File)} and not in the
+	 * change log; in these cases, they must be created again after the knowledge
+	 * base is opened.
+	 * 
+	 * @param domain
+	 * @param tokenizer Tokenizer used to split indexed texts and queries in terms.
+	 */
+	public void createTextIndex(@NonNull String domain, @NonNull TermTokenizer tokenizer) {
+		write(domain, d -> d.createTextIndex(tokenizer));
+	}
+
+	/**
+	 * Drops the text index of given domain, if any.
+	 * 
+	 * @param domain
+	 */
+	public void dropTextIndex(@NonNull String domain) {
+		write(domain, d -> d.dropTextIndex());
+	}
+
+	/**
+	 * Creates an index to detect near-duplicates of embeddings inserted in given
+	 * domain (replacing any existing one). Texts are near-duplicates when the
+	 * Jaccard similarity of their shingles (sequences of consecutive words) is at
+	 * least given threshold; this catches, for example, pages downloaded twice
+	 * with minor differences in their boilerplate. Near-duplicates are found
+	 * using MinHash locality-sensitive hashing, without comparing each new
+	 * embedding with the whole domain.
+	 * 
+	 * Near-duplicates already in the domain when the index is created are not
+	 * removed.
+	 * 
+	 * Notice near-duplicate indexes are stored when the knowledge base is saved
+	 * with {@link #save(File)}, but not by {@link #saveBinary(File)}; in this case
+	 * they must be created again after the knowledge base is opened.
+	 * 
+	 * @param domain
+	 * @param threshold Minimum similarity, in (0, 1], for texts to be considered
+	 *                  near-duplicates; 0.8 is a reasonable start.
+	 * @param policy    What to do when a near-duplicate is inserted.
+	 */
+	public void createNearDuplicateIndex(@NonNull String domain, double threshold,
+			@NonNull NearDuplicatePolicy policy) {
+		write(domain, d -> d.createNearDuplicateIndex(threshold, policy));
+	}
+
+	/**
+	 * Drops the near-duplicate index of given domain, if any.
+	 * 
+	 * @param domain
+	 */
+	public void dropNearDuplicateIndex(@NonNull String domain) {
+		write(domain, d -> d.dropNearDuplicateIndex());
+	}
+
+	/**
+	 * DELETES THE ENTIRE KNOWLEDGE BASE.
+	 */
+	public void drop() {
+		long stamp = lock.writeLock();
+		try {
+			List<Domain> ds = new ArrayList<>(domains.values());
+			long[] stamps = writeLock(ds);
+			try {
+				log(l -> l.drop());
+				for (Domain d : ds) {
+					d.setDropped(true);
+					d.release();
+				}
+				domains.clear();
+				domains.put(DEFAULT_DOMAIN, new Domain());
+			} finally {
+				unlockWrite(ds, stamps);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Deletes a domain and all of its data from the KnowledgeBase (or does nothing
+	 * if it does not exists).
+	 * 
+	 * @param domain Name of the domain (case sensitive).
+	 */
+	public void dropDomain(@NonNull String domain) {
+		long stamp = lock.writeLock();
+		try {
+			Domain d = domains.get(domain);
+			if (d != null) {
+				long ds = d.getLock().writeLock();
+				try {
+					log(l -> l.dropDomain(domain));
+					d.setDropped(true);
+					d.release();
+					domains.remove(domain);
+				} finally {
+					d.getLock().unlockWrite(ds);
+				}
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * 
+	 * @return The list of domains in this KnowledgeBase.
+	 */
+	public List<String> listDomains() {
+		long stamp = lock.tryOptimisticRead();
+		List<String> result = new ArrayList<>(domains.keySet());
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				result = new ArrayList<>(domains.keySet());
+			} finally {
+				lock.unlockRead(stamp);
+			}
 		}
+		return result;
 	}
 
 	/**
-	 * DELETES THE ENTIRE KNOWLEDGE BASE.
+	 * Embeddings in each domain are partitioned by the model used to create them
+	 * and the length of their vectors; searches only scan the partition
+	 * compatible with the query.
+	 * 
+	 * @param domain
+	 * @return Statistics about each partition in given domain.
 	 */
-	public void drop() {
-		writeLock.lock();
-		try {
-			for (String domain : domains.keySet())
-				dropDomain(domain);
-			createDomain(DEFAULT_DOMAIN);
-		} finally {
-			writeLock.unlock();
-		}
+	public List<PartitionInfo> getPartitions(@NonNull String domain) {
+		return existing(domain).getSnapshot().partitions();
 	}
 
 	/**
-	 * Deletes a domain and all of its data from the KnowledgeBase (or does nothing
-	 * if it does not exists).
+	 * Migrates the embeddings in a partition of given domain, replacing them in
+	 * place; this can be used, for example, to move embeddings to a new model.
 	 * 
-	 * @param domain Name of the domain (case sensitive).
+	 * Embeddings in the partition are passed to given converter in batches; the
+	 * converter runs without locking the domain, so it can take time (e.g. call
+	 * an embedding service) without blocking other users. Each of the returned
+	 * embeddings replaces the one with same text, provided that one is still in
+	 * the partition; returned embeddings with other texts are ignored. Each batch
+	 * is applied atomically.
+	 * 
+	 * @param domain
+	 * @param model      Model of the embeddings to migrate.
+	 * @param dimensions Vector length of the embeddings to migrate.
+	 * @param converter  Function returning the new version of embeddings passed
+	 *                   to it. The embeddings passed to the converter must not be
+	 *                   changed.
+	 * @param batchSize  Number of embeddings passed to the converter at once.
+	 * @return Number of embeddings that were replaced.
 	 */
-	public void dropDomain(@NonNull String domain) {
-		writeLock.lock();
-		try {
-			domains.remove(domain);
-		} finally {
-			writeLock.unlock();
+	public int migrate(@NonNull String domain, @NonNull String model, int dimensions,
+			@NonNull Function<List<EmbeddedText>, List<? extends EmbeddedText>> converter, int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be positive");
+
+		List<EmbeddedText> content = read(domain(domain), ds -> ds.get(0).partition(model, dimensions));
+		int[] replaced = new int[1];
+		for (int i = 0; i < content.size(); i += batchSize) {
+			List<? extends EmbeddedText> batch = converter
+					.apply(Collections.unmodifiableList(content.subList(i, Math.min(i + batchSize, content.size()))));
+			write(domain, d -> replaced[0] += d.replace(batch, model, dimensions, logger(domain)));
 		}
+		return replaced[0];
 	}
 
 	/**
+	 * Embeds again the text of embeddings in a partition of given domain, using
+	 * given service, and replaces them in place (see
+	 * {@link #migrate(String, String, int, Function, int)}). Properties of the
+	 * embeddings are preserved.
 	 * 
-	 * @return The list of domains in this KnowledgeBase.
+	 * Notice the service might split long texts in several chunks; embeddings
+	 * whose text was split are not replaced.
+	 * 
+	 * @param domain
+	 * @param model      Model of the embeddings to migrate.
+	 * @param dimensions Vector length of the embeddings to migrate.
+	 * @param service    Service used to embed text.
+	 * @param batchSize  Number of texts embedded at once.
+	 * @return Number of embeddings that were replaced.
 	 */
-	public List<String> listDomains() {
-		readLock.lock();
-		try {
-			return new ArrayList<String>(domains.keySet());
-		} finally {
-			readLock.unlock();
-		}
+	public int reembed(@NonNull String domain, @NonNull String model, int dimensions,
+			@NonNull EmbeddingService service, int batchSize) {
+		return migrate(domain, model, dimensions, batch -> {
+			Map<String, EmbeddedText> old = new HashMap<>();
+			for (EmbeddedText e : batch)
+				old.put(e.getText(), e);
+
+			List<EmbeddedText> result = new ArrayList<>(batch.size());
+			for (EmbeddedText e : service.embed(old.keySet())) {
+				EmbeddedText o = old.get(e.getText());
+				if (o != null) {
+					e.getProperties().putAll(o.getProperties());
+					result.add(e);
+				}
+			}
+			return result;
+		}, batchSize);
 	}
 
 	/**
@@ -205,12 +1030,7 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 * @param e
 	 */
 	public void insert(String domain, EmbeddedText e) {
-		writeLock.lock();
-		try {
-			insert(domains.get(domain), e);
-		} finally {
-			writeLock.unlock();
-		}
+		insert(domain, List.of(e));
 	}
 
 	/**
@@ -225,31 +1045,44 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	/**
 	 * Adds embedded text to given domain. The domain must exist already.
 	 * 
+	 * Embedded text already in the domain is ignored; if the domain has a
+	 * near-duplicate index, near-duplicates of text in the domain are handled
+	 * according to the index policy.
+	 * 
 	 * @param domain Domain name.
 	 * @param e
 	 */
 	public void insert(String domain, Collection<? extends EmbeddedText> e) {
-		writeLock.lock();
-		try {
-			Set<EmbeddedText> set = domains.get(domain);
-			for (EmbeddedText t : e)
-				insert(set, t);
-		} finally {
-			writeLock.unlock();
-		}
+		write(domain, d -> d.insert(e, logger(domain)));
 	}
 
-	private static void insert(@NonNull Set<EmbeddedText> set, @NonNull EmbeddedText e) {
-		// We do not synch as this is private so, if you end up here, you should have a
-		// write lock already
-		set.add(e);
+	/**
+	 * @return A listener recording in the log changes made to given domain while
+	 *         inserting embeddings, or null if there is no log.
+	 */
+	private Domain.Listener logger(String domain) {
+		if (log == null)
+			return null;
+
+		return new Domain.Listener() {
+
+			@Override
+			public void inserted(EmbeddedText e) {
+				log(l -> l.insert(domain, e));
+			}
+
+			@Override
+			public void deleted(EmbeddedText e) {
+				log(l -> l.delete(domain, e.getText()));
+			}
+		};
 	}
 
 	/**
 	 * Removes given text from all domains.
 	 */
 	public void delete(String txt) {
-		delete(EmbeddedText.builder().text(txt).model("").embedding(new ArrayList<>()).build());
+		delete(EmbeddedText.builder().text(txt).model("").vector(new float[0]).build());
 	}
 
 	/**
@@ -258,7 +1091,7 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 * @param domain Removes only from this domain.
 	 */
 	public void delete(String domain, String txt) {
-		delete(domain, EmbeddedText.builder().text(txt).model("").embedding(new ArrayList<>()).build());
+		delete(domain, EmbeddedText.builder().text(txt).model("").vector(new float[0]).build());
 	}
 
 	/**
@@ -267,12 +1100,19 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 * @param e
 	 */
 	public void delete(EmbeddedText e) {
-		writeLock.lock();
+		long stamp = lock.readLock();
 		try {
-			for (Set<EmbeddedText> s : domains.values())
-				delete(s, e);
+			Collection<Domain> ds = domains.values();
+			long[] stamps = writeLock(ds);
+			try {
+				for (Domain d : ds)
+					d.delete(e);
+				log(l -> l.delete(null, e.getText()));
+			} finally {
+				unlockWrite(ds, stamps);
+			}
 		} finally {
-			writeLock.unlock();
+			lock.unlockRead(stamp);
 		}
 	}
 
@@ -283,12 +1123,10 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 * @param e
 	 */
 	public void delete(String domain, EmbeddedText e) {
-		writeLock.lock();
-		try {
-			delete(domains.get(domain), e);
-		} finally {
-			writeLock.unlock();
-		}
+		write(domain, d -> {
+			d.delete(e);
+			log(l -> l.delete(domain, e.getText()));
+		});
 	}
 
 	/**
@@ -298,12 +1136,19 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 *          be removed.
 	 */
 	public void delete(EmbeddedTextMatcher m) {
-		writeLock.lock();
+		long stamp = lock.readLock();
 		try {
-			for (Set<EmbeddedText> s : domains.values())
-				delete(s, m);
+			for (Map.Entry<String, Domain> e : domains.entrySet()) {
+				Domain d = e.getValue();
+				long ds = d.getLock().writeLock();
+				try {
+					delete(e.getKey(), d, m);
+				} finally {
+					d.getLock().unlockWrite(ds);
+				}
+			}
 		} finally {
-			writeLock.unlock();
+			lock.unlockRead(stamp);
 		}
 	}
 
@@ -315,28 +1160,21 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 *               will be removed.
 	 */
 	public void delete(String domain, EmbeddedTextMatcher m) {
-		writeLock.lock();
-		try {
-			delete(domains.get(domain), m);
-		} finally {
-			writeLock.unlock();
-		}
-	}
-
-	private static void delete(@NonNull Set<EmbeddedText> s, @NonNull EmbeddedText e) {
-		// We do not synch as this is private so, if you end up here, you should have a
-		// write lock already
-		s.remove(e);
+		write(domain, d -> delete(domain, d, m));
 	}
 
-	private static void delete(@NonNull Set<EmbeddedText> s, @NonNull EmbeddedTextMatcher m) {
-		// We do not synch as this is private so, if you end up here, you should have a
-		// write lock already
-		Iterator<EmbeddedText> it = s.iterator();
-		while (it.hasNext()) {
-			EmbeddedText e = it.next();
-			if (m.match(e))
-				it.remove();
+	/**
+	 * Removes matching embeddings from given domain. Caller must hold a write
+	 * lock on the domain.
+	 */
+	private void delete(String domain, Domain d, EmbeddedTextMatcher m) {
+		if (log == null) {
+			d.delete(m);
+		} else { // Log each deleted embedding, as matchers cannot be stored
+			for (EmbeddedText e : d.query(m)) {
+				d.delete(e);
+				log(l -> l.delete(domain, e.getText()));
+			}
 		}
 	}
 
@@ -346,17 +1184,13 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 * @return All embeddings matching given rule.
 	 */
 	public List<EmbeddedText> query(EmbeddedTextMatcher m) {
-		List<EmbeddedText> result = new ArrayList<>();
-
-		readLock.lock();
-		try {
-			for (Set<EmbeddedText> s : domains.values())
-				result.addAll(query(s, m));
-
+		return read(domains(), ds -> {
+			List<EmbeddedText> result = new ArrayList<>();
+			for (Domain d : ds)
+				for (EmbeddedText e : d.query(m))
+					result.add(Domain.detach(e));
 			return result;
-		} finally {
-			readLock.unlock();
-		}
+		});
 	}
 
 	/**
@@ -366,117 +1200,457 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 * @return All embeddings matching given rule.
 	 */
 	public List<EmbeddedText> query(String domain, EmbeddedTextMatcher m) {
-		readLock.lock();
-		try {
-			return query(domains.get(domain), m);
-		} finally {
-			readLock.unlock();
-		}
+		return read(domain(domain), ds -> {
+			List<EmbeddedText> result = ds.get(0).query(m);
+			result.replaceAll(Domain::detach);
+			return result;
+		});
 	}
 
-	private static List<EmbeddedText> query(Set<EmbeddedText> s, EmbeddedTextMatcher m) {
-		// We do not synch as this is private so, if you end up here, you should have a
-		// read lock already
-		List<EmbeddedText> result = new ArrayList<>();
-
-		for (EmbeddedText e : s)
-			if (m.match(e))
-				result.add(e);
-
-		return result;
+	/**
+	 * Searches in the knowledge base, returning the list of embeddings most similar
+	 * to given query. Domains with an index are searched using the index.
+	 * 
+	 * Each call repeats the search; to page through many results, use
+	 * {@link #searchCursor(EmbeddedText)}.
+	 * 
+	 * @param query  Embedded text representing the search target.
+	 * @param limit  Maximum number of results to return.
+	 * @param offset How many results to skip (for pagination).
+	 */
+	public List<Pair<EmbeddedText, Double>> search(EmbeddedText query, int limit, int offset) {
+		return search(domains(), query, null, limit, offset, false);
 	}
 
-	// TODO: add a search filtered by a matcher -> Check if Milvus supports it
+	/**
+	 * Searches in given domain, returning the list of embeddings most similar to
+	 * given query. If the domain has an index, it is used for the search.
+	 * 
+	 * @param domain
+	 * @param query  Embedded text representing the search target.
+	 * @param limit  Maximum number of results to return.
+	 * @param offset How many results to skip (for pagination).
+	 */
+	public List<Pair<EmbeddedText, Double>> search(String domain, EmbeddedText query, int limit, int offset) {
+		return search(domain(domain), query, null, limit, offset, false);
+	}
 
 	/**
 	 * Searches in the knowledge base, returning the list of embeddings most similar
-	 * to given query.
+	 * to given query, among those matching given filter. The filter is applied
+	 * while searching, including when searching indexes.
 	 * 
 	 * @param query  Embedded text representing the search target.
+	 * @param filter Only embeddings matching this filter are returned.
 	 * @param limit  Maximum number of results to return.
 	 * @param offset How many results to skip (for pagination).
 	 */
-	public List<Pair<EmbeddedText, Double>> search(EmbeddedText query, int limit, int offset) {
-		List<Pair<EmbeddedText, Double>> result = new ArrayList<>();
+	public List<Pair<EmbeddedText, Double>> search(EmbeddedText query, @NonNull EmbeddedTextMatcher filter,
+			int limit, int offset) {
+		return search(domains(), query, filter, limit, offset, false);
+	}
 
-		readLock.lock();
-		try {
-			for (Set<EmbeddedText> s : domains.values())
-				search(s, query, result, limit + offset);
+	/**
+	 * Searches in given domain, returning the list of embeddings most similar to
+	 * given query, among those matching given filter. The filter is applied while
+	 * searching, including when searching the domain index.
+	 * 
+	 * @param domain
+	 * @param query  Embedded text representing the search target.
+	 * @param filter Only embeddings matching this filter are returned.
+	 * @param limit  Maximum number of results to return.
+	 * @param offset How many results to skip (for pagination).
+	 */
+	public List<Pair<EmbeddedText, Double>> search(String domain, EmbeddedText query,
+			@NonNull EmbeddedTextMatcher filter, int limit, int offset) {
+		return search(domain(domain), query, filter, limit, offset, false);
+	}
 
-			return skip(result, offset);
-		} finally {
-			readLock.unlock();
-		}
+	/**
+	 * Same as {@link #search(EmbeddedText, int, int)} but always performs an
+	 * exhaustive search, ignoring any index. This returns exact results, which is
+	 * useful to test recall of indexes.
+	 * 
+	 * @param query  Embedded text representing the search target.
+	 * @param limit  Maximum number of results to return.
+	 * @param offset How many results to skip (for pagination).
+	 */
+	public List<Pair<EmbeddedText, Double>> exactSearch(EmbeddedText query, int limit, int offset) {
+		return search(domains(), query, null, limit, offset, true);
 	}
 
 	/**
-	 * Searches in given domain, returning the list of embeddings most similar to
-	 * given query.
+	 * Same as {@link #search(String, EmbeddedText, int, int)} but always performs
+	 * an exhaustive search, ignoring any index. This returns exact results, which
+	 * is useful to test recall of indexes.
 	 * 
 	 * @param domain
 	 * @param query  Embedded text representing the search target.
 	 * @param limit  Maximum number of results to return.
 	 * @param offset How many results to skip (for pagination).
 	 */
-	public List<Pair<EmbeddedText, Double>> search(String domain, EmbeddedText query, int limit, int offset) {
-		List<Pair<EmbeddedText, Double>> result = new ArrayList<>();
+	public List<Pair<EmbeddedText, Double>> exactSearch(String domain, EmbeddedText query, int limit, int offset) {
+		return search(domain(domain), query, null, limit, offset, true);
+	}
 
-		readLock.lock();
-		try {
-			search(domains.get(domain), query, result, limit + offset);
-			return skip(result, offset);
-		} finally {
-			readLock.unlock();
-		}
+	/**
+	 * Returns a cursor over all embeddings in the knowledge base, by decreasing
+	 * similarity with given query. Unlike {@link #search(EmbeddedText, int, int)},
+	 * which searches again for each page of results, the cursor computes
+	 * similarity only once, so it should be used to page through many results.
+	 * 
+	 * The cursor sees the content of the knowledge base at the time it was
+	 * created; domain indexes are not used and results are exact.
+	 * 
+	 * @param query Embedded text representing the search target.
+	 */
+	public SearchCursor searchCursor(@NonNull EmbeddedText query) {
+		return searchCursor(domains(), query, null);
+	}
+
+	/**
+	 * Returns a cursor over all embeddings in the knowledge base matching given
+	 * filter, by decreasing similarity with given query (see
+	 * {@link #searchCursor(EmbeddedText)}).
+	 * 
+	 * @param query  Embedded text representing the search target.
+	 * @param filter Only embeddings matching this filter are returned.
+	 */
+	public SearchCursor searchCursor(@NonNull EmbeddedText query, @NonNull EmbeddedTextMatcher filter) {
+		return searchCursor(domains(), query, filter);
+	}
+
+	/**
+	 * Returns a cursor over all embeddings in given domain, by decreasing
+	 * similarity with given query (see {@link #searchCursor(EmbeddedText)}).
+	 * 
+	 * @param domain
+	 * @param query  Embedded text representing the search target.
+	 */
+	public SearchCursor searchCursor(String domain, @NonNull EmbeddedText query) {
+		return searchCursor(domain(domain), query, null);
 	}
 
 	/**
-	 * Searches in a set of embeddings, returning the list of those most similar to
-	 * query.
+	 * Returns a cursor over all embeddings in given domain matching given filter,
+	 * by decreasing similarity with given query (see
+	 * {@link #searchCursor(EmbeddedText)}).
 	 * 
-	 * @param set    The embeddings used for the search.
+	 * @param domain
 	 * @param query  Embedded text representing the search target.
-	 * @param result List of results, sorted by decreasing similarity. If this is
-	 *               not empty, result from the search will be merged with those
-	 *               already already in the list.
+	 * @param filter Only embeddings matching this filter are returned.
+	 */
+	public SearchCursor searchCursor(String domain, @NonNull EmbeddedText query,
+			@NonNull EmbeddedTextMatcher filter) {
+		return searchCursor(domain(domain), query, filter);
+	}
+
+	/**
+	 * Creates a cursor over current snapshots of given domains; this locks only
+	 * off-heap domains.
+	 */
+	private static SearchCursor searchCursor(Collection<Domain> ds, EmbeddedText query,
+			EmbeddedTextMatcher filter) {
+		return new SearchCursor(ds, query, filter);
+	}
+
+	/**
+	 * Returns all embeddings in the knowledge base whose similarity with given
+	 * query is at least given threshold. Unlike
+	 * {@link #search(EmbeddedText, int, int)}, there is no limit to the number of
+	 * results; embeddings are not ranked while searching, only the matches are
+	 * sorted at the end.
+	 * 
+	 * Domain indexes are not used and results are exact (within rounding
+	 * errors). While computing the similarity of each embedding, computation stops
+	 * as soon as the embedding cannot reach the threshold anymore; therefore,
+	 * higher thresholds make searches faster.
+	 * 
+	 * @param query     Embedded text representing the search target.
+	 * @param threshold Minimum similarity for an embedding to be returned.
+	 * @return Matching embeddings, with their similarity to the query, sorted by
+	 *         decreasing similarity.
+	 */
+	public List<Pair<EmbeddedText, Double>> searchAbove(@NonNull EmbeddedText query, double threshold) {
+		return searchAbove(domains(), query, null, threshold);
+	}
+
+	/**
+	 * Returns all embeddings in the knowledge base matching given filter whose
+	 * similarity with given query is at least given threshold (see
+	 * {@link #searchAbove(EmbeddedText, double)}).
+	 * 
+	 * @param query     Embedded text representing the search target.
+	 * @param filter    Only embeddings matching this filter are returned.
+	 * @param threshold Minimum similarity for an embedding to be returned.
+	 */
+	public List<Pair<EmbeddedText, Double>> searchAbove(@NonNull EmbeddedText query,
+			@NonNull EmbeddedTextMatcher filter, double threshold) {
+		return searchAbove(domains(), query, filter, threshold);
+	}
+
+	/**
+	 * Returns all embeddings in given domain whose similarity with given query is
+	 * at least given threshold (see {@link #searchAbove(EmbeddedText, double)}).
+	 * 
+	 * @param domain
+	 * @param query     Embedded text representing the search target.
+	 * @param threshold Minimum similarity for an embedding to be returned.
+	 */
+	public List<Pair<EmbeddedText, Double>> searchAbove(String domain, @NonNull EmbeddedText query,
+			double threshold) {
+		return searchAbove(domain(domain), query, null, threshold);
+	}
+
+	/**
+	 * Returns all embeddings in given domain matching given filter whose
+	 * similarity with given query is at least given threshold (see
+	 * {@link #searchAbove(EmbeddedText, double)}).
+	 * 
+	 * @param domain
+	 * @param query     Embedded text representing the search target.
+	 * @param filter    Only embeddings matching this filter are returned.
+	 * @param threshold Minimum similarity for an embedding to be returned.
+	 */
+	public List<Pair<EmbeddedText, Double>> searchAbove(String domain, @NonNull EmbeddedText query,
+			@NonNull EmbeddedTextMatcher filter, double threshold) {
+		return searchAbove(domain(domain), query, filter, threshold);
+	}
+
+	/**
+	 * Range search over given domains; domains are locked for reading only when
+	 * needed (see {@link Domain#needsLock(EmbeddedTextMatcher, boolean)}).
+	 */
+	private static List<Pair<EmbeddedText, Double>> searchAbove(Collection<Domain> ds, EmbeddedText query,
+			EmbeddedTextMatcher filter, double threshold) {
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>();
+		for (Domain d : ds) {
+			List<Domain> locked = d.needsLock(filter, true) ? Collections.singletonList(d) : Collections.emptyList();
+			long[] stamps = readLock(locked);
+			try {
+				if (!locked.isEmpty() && d.isDropped()) // Dropped while we waited for the lock
+					continue;
+				d.searchAbove(query, filter, threshold, (e, s) -> result.add(new ImmutablePair<>(Domain.detach(e), s)));
+			} finally {
+				unlockRead(locked, stamps);
+			}
+		}
+		result.sort((p1, p2) -> Double.compare(p2.getRight(), p1.getRight()));
+		return result;
+	}
+
+	/**
+	 * Lexical search in given domain, which must have a text index (see
+	 * {@link #createTextIndex(String, TermTokenizer)}). Embeddings are scored
+	 * against terms in the query using Okapi BM25; embeddings not containing any
+	 * of the terms are not returned.
+	 * 
+	 * This finds exact matches (e.g. product codes, identifiers, or rare names)
+	 * that similarity searches might miss.
+	 * 
+	 * @param domain
+	 * @param query  Text to search.
+	 * @param limit  Maximum number of results to return.
+	 * @param offset How many results to skip (for pagination).
+	 * @return Best matching embeddings, with their BM25 score.
+	 * @throws IllegalArgumentException if the domain has no text index.
+	 */
+	public List<Pair<EmbeddedText, Double>> textSearch(String domain, @NonNull String query, int limit,
+			int offset) {
+		return textSearch(domain, query, null, limit, offset);
+	}
+
+	/**
+	 * Lexical search in given domain, as
+	 * {@link #textSearch(String, String, int, int)}, returning only embeddings
+	 * matching given filter.
+	 * 
+	 * @param domain
+	 * @param query  Text to search.
+	 * @param filter Only embeddings matching this filter are returned.
+	 * @param limit  Maximum number of results to return.
+	 * @param offset How many results to skip (for pagination).
+	 * @return Best matching embeddings, with their BM25 score.
+	 * @throws IllegalArgumentException if the domain has no text index.
+	 */
+	public List<Pair<EmbeddedText, Double>> textSearch(String domain, @NonNull String query,
+			EmbeddedTextMatcher filter, int limit, int offset) {
+		return read(domain(domain), ds -> {
+			Domain d = ds.get(0);
+			if (!d.hasTextIndex())
+				throw new IllegalArgumentException("Domain " + domain + " has no text index");
+			return skip(d.textSearch(query, filter, limit + offset), offset);
+		});
+	}
+
+	/**
+	 * Hybrid search in given domain, which must have a text index (see
+	 * {@link #createTextIndex(String, TermTokenizer)}). Results of a lexical
+	 * search for the text of the query and of a similarity search for its
+	 * embedding are combined using Reciprocal Rank Fusion: each embedding is
+	 * scored summing 1/({@link #RRF_K} + rank) for each of the two rankings it
+	 * appears in.
+	 * 
+	 * This combines the ability of similarity searches to find semantically
+	 * related content with the ability of lexical searches to find exact matches.
+	 * 
+	 * @param domain
+	 * @param query  Embedded text representing the search target; its text is
+	 *               used for the lexical search.
 	 * @param limit  Maximum number of results to return.
+	 * @param offset How many results to skip (for pagination).
+	 * @return Best matching embeddings, with their fused score.
+	 * @throws IllegalArgumentException if the domain has no text index.
+	 */
+	public List<Pair<EmbeddedText, Double>> hybridSearch(String domain, @NonNull EmbeddedText query, int limit,
+			int offset) {
+		return hybridSearch(domain, query, null, limit, offset);
+	}
+
+	/**
+	 * Hybrid search in given domain, as
+	 * {@link #hybridSearch(String, EmbeddedText, int, int)}, returning only
+	 * embeddings matching given filter.
+	 * 
+	 * @param domain
+	 * @param query  Embedded text representing the search target; its text is
+	 *               used for the lexical search.
+	 * @param filter Only embeddings matching this filter are returned.
+	 * @param limit  Maximum number of results to return.
+	 * @param offset How many results to skip (for pagination).
+	 * @return Best matching embeddings, with their fused score.
+	 * @throws IllegalArgumentException if the domain has no text index.
+	 */
+	public List<Pair<EmbeddedText, Double>> hybridSearch(String domain, @NonNull EmbeddedText query,
+			EmbeddedTextMatcher filter, int limit, int offset) {
+		int depth = Math.max(limit + offset, HYBRID_SEARCH_DEPTH);
+		List<Pair<EmbeddedText, Double>> lexical = textSearch(domain, query.getText(), filter, depth, 0);
+		List<Pair<EmbeddedText, Double>> semantic = search(domain(domain), new EmbeddedText[] { query }, filter,
+				depth, false).get(0);
+
+		Map<EmbeddedText, Double> scores = new HashMap<>();
+		for (int i = 0; i < lexical.size(); ++i)
+			scores.merge(lexical.get(i).getLeft(), 1.0 / (RRF_K + i + 1), Double::sum);
+		for (int i = 0; i < semantic.size(); ++i)
+			scores.merge(semantic.get(i).getLeft(), 1.0 / (RRF_K + i + 1), Double::sum);
+
+		TopK result = new TopK(limit + offset);
+		for (Map.Entry<EmbeddedText, Double> e : scores.entrySet())
+			result.offer(e.getKey(), e.getValue());
+		return skip(result.toList(), offset);
+	}
+
+	/**
+	 * Searches in the knowledge base, returning the list of embeddings most similar
+	 * to each of given queries. Domains with an index are searched using the
+	 * index.
+	 * 
+	 * This is faster than searching for each query separately, as embeddings are
+	 * read only once and compared with all queries.
+	 * 
+	 * @param queries Embedded texts representing the search targets.
+	 * @param limit   Maximum number of results to return for each query.
+	 * @return For each query, in same order, the list of results.
+	 */
+	public List<List<Pair<EmbeddedText, Double>>> search(@NonNull List<? extends EmbeddedText> queries, int limit) {
+		return search(domains(), queries.toArray(new EmbeddedText[queries.size()]), null, limit, false);
+	}
+
+	/**
+	 * Searches in given domain, returning the list of embeddings most similar to
+	 * each of given queries. If the domain has an index, it is used for the
+	 * search.
+	 * 
+	 * This is faster than searching for each query separately, as embeddings are
+	 * read only once and compared with all queries.
+	 * 
+	 * @param domain
+	 * @param queries Embedded texts representing the search targets.
+	 * @param limit   Maximum number of results to return for each query.
+	 * @return For each query, in same order, the list of results.
 	 */
-	private static void search(@NonNull Set<EmbeddedText> set, @NonNull EmbeddedText query,
-			List<Pair<EmbeddedText, Double>> result, int limit) {
-		// We do not synch as this is private so, if you end up here, you should have a
-		// read lock already
+	public List<List<Pair<EmbeddedText, Double>>> search(String domain,
+			@NonNull List<? extends EmbeddedText> queries, int limit) {
+		return search(domain(domain), queries.toArray(new EmbeddedText[queries.size()]), null, limit, false);
+	}
 
-		// Shortens results, if needed
-		while (result.size() > limit)
-			result.remove(result.size() - 1);
+	/**
+	 * Searches given domains for a single query, skipping first offset results.
+	 */
+	private List<Pair<EmbeddedText, Double>> search(Collection<Domain> ds, EmbeddedText query,
+			EmbeddedTextMatcher filter, int limit, int offset, boolean exact) {
+		return skip(search(ds, new EmbeddedText[] { query }, filter, limit + offset, exact).get(0), offset);
+	}
 
-		for (EmbeddedText e : set) {
+	/**
+	 * Searches given domains, for each of given queries. Domains with an index
+	 * are searched using the index (unless exact is true), the others are
+	 * searched exhaustively. Exhaustive searches run in the calling thread, unless
+	 * they must scan more than {@link #getParallelismThreshold()} embeddings; in
+	 * that case they are split in segments that are searched in parallel using
+	 * {@link #getPool()}.
+	 * 
+	 * Exhaustive searches run on domain snapshots, without locking; domains are
+	 * locked for reading only when a vector or property index is used, or when
+	 * they are off-heap. In the latter case, the search completes before the
+	 * domain is unlocked.
+	 * 
+	 * @param filter If not null, only embeddings matching this are returned.
+	 * @return For each query, the list of results.
+	 */
+	private List<List<Pair<EmbeddedText, Double>>> search(Collection<Domain> ds, EmbeddedText[] queries,
+			EmbeddedTextMatcher filter, int limit, boolean exact) {
 
-			double similarity = 0.0;
-			try { // takes care of the embedding not being created using same model
-				similarity = e.similarity(query);
-			} catch (IllegalArgumentException ex) {
-				continue;
+		TopK[] result = TopK.create(queries.length, limit);
+		List<RecursiveTask<TopK[]>> tasks = new ArrayList<>();
+		List<Domain> locked = new ArrayList<>();
+		long size = 0;
+		int threshold = parallelismThreshold;
+		for (Domain d : ds) {
+			if (d.needsLock(filter, exact)) {
+				locked.add(d);
+			} else {
+				tasks.add(d.getSnapshot().search(queries, filter, limit, threshold));
+				size += d.size();
 			}
+		}
 
-			int i = 0;
-			for (; i < result.size(); ++i) {
-				Pair<EmbeddedText, Double> p = result.get(i);
-				if (p.getRight() < similarity) {
-					// Insert here
-					result.add(i, new ImmutablePair<EmbeddedText, Double>(e, similarity));
-					if (result.size() > limit)
-						result.remove(result.size() - 1);
-					break;
+		long[] stamps = readLock(locked);
+		try {
+			for (Domain d : locked) {
+				if (d.isDropped()) // Dropped while we waited for the lock
+					continue;
+				if (!exact && (d.getIndex() != null)) {
+					d.indexSearch(queries, filter, result);
+				} else if (d.isOffHeap()) { // Vectors must be read while the domain is locked
+					TopK[] r = invoke(d.exactSearch(queries, filter, limit, threshold), d.size());
+					for (TopK t : r)
+						t.detach();
+					TopK.merge(result, r);
+				} else {
+					tasks.add(d.exactSearch(queries, filter, limit, threshold));
+					size += d.size();
 				}
 			}
+		} finally {
+			unlockRead(locked, stamps);
+		}
 
-			if ((result.size() < limit) && (i >= result.size())) {
-				// add to the end
-				result.add(new ImmutablePair<EmbeddedText, Double>(e, similarity));
-			}
-		} // for each embedding
+		if (tasks.size() > 0)
+			TopK.merge(result, invoke(TopK.merge(tasks, queries.length, limit), size));
+
+		List<List<Pair<EmbeddedText, Double>>> lists = new ArrayList<>(queries.length);
+		for (TopK t : result)
+			lists.add(t.toList());
+		return lists;
+	}
+
+	/**
+	 * Runs given search task, in {@link #getPool()} if it must scan more than
+	 * {@link #getParallelismThreshold()} embeddings.
+	 */
+	private TopK[] invoke(RecursiveTask<TopK[]> task, long size) {
+		return (size > parallelismThreshold) ? getPool().invoke(task) : task.invoke();
 	}
 
 	/**
@@ -488,17 +1662,69 @@ public class KnowledgeBase implements Serializable, AutoCloseable {
 	 */
 	private static List<Pair<EmbeddedText, Double>> skip(List<Pair<EmbeddedText, Double>> result, int offset) {
 
-		if (result.size() <= offset) {
-			result.clear();
-		} else {
-			for (int i = 0; i < offset; ++i)
-				result.remove(0);
-		}
-
+		result.subList(0, Math.min(offset, result.size())).clear();
 		return result;
 	}
 
+	/**
+	 * Reads knowledge bases that were saved before domains could have an index,
+	 * when each domain was stored as a set of embeddings.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		parallelismThreshold = DEFAULT_PARALLELISM_THRESHOLD;
+		compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+		lock = new StampedLock();
+
+		Map<String, ?> stored = domains;
+		domains = new ConcurrentSkipListMap<>();
+		for (Map.Entry<String, ?> e : stored.entrySet()) {
+			if (e.getValue() instanceof Set)
+				domains.put(e.getKey(), new Domain((Set<EmbeddedText>) e.getValue()));
+			else
+				domains.put(e.getKey(), (Domain) e.getValue());
+		}
+	}
+
 	@Override
 	public void close() {
+		Thread t = compaction;
+		if (t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Release off-heap memory
+		long stamp = lock.writeLock();
+		try {
+			List<Domain> ds = new ArrayList<>(domains.values());
+			long[] stamps = writeLock(ds);
+			try {
+				for (Domain d : ds)
+					d.release();
+			} finally {
+				unlockWrite(ds, stamps);
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+
+		WriteAheadLog l = log;
+		if (l != null) {
+			synchronized (l) {
+				try {
+					l.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					log = null;
+				}
+			}
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only file in {@link BinaryFormat}, memory mapped in windows of
+ * {@link BinaryFormat#WINDOW_SIZE} bytes.
+ * 
+ * All methods use absolute positions, so this class is thread safe.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+final class MappedFile {
+
+	private static final int WINDOW_MASK = (int) (BinaryFormat.WINDOW_SIZE - 1);
+
+	private final ByteBuffer[] windows;
+
+	MappedFile(File file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size();
+			windows = new ByteBuffer[(int) ((size + BinaryFormat.WINDOW_SIZE - 1) >>> BinaryFormat.WINDOW_BITS)];
+			for (int i = 0; i < windows.length; ++i) {
+				long start = ((long) i) << BinaryFormat.WINDOW_BITS;
+				windows[i] = ch.map(MapMode.READ_ONLY, start, Math.min(BinaryFormat.WINDOW_SIZE, size - start))
+						.order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+	}
+
+	/**
+	 * @return The window containing given position.
+	 */
+	ByteBuffer window(long pos) {
+		return windows[(int) (pos >>> BinaryFormat.WINDOW_BITS)];
+	}
+
+	/**
+	 * @return Given position, relative to the start of its window.
+	 */
+	static int offset(long pos) {
+		return ((int) pos) & WINDOW_MASK;
+	}
+
+	int getInt(long pos) {
+		return window(pos).getInt(offset(pos));
+	}
+
+	long getLong(long pos) {
+		return window(pos).getLong(offset(pos));
+	}
+
+	double getDouble(long pos) {
+		return window(pos).getDouble(offset(pos));
+	}
+
+	float getFloat(long pos) {
+		return window(pos).getFloat(offset(pos));
+	}
+
+	/**
+	 * @return The bytes written by {@link BinaryFormat} at given position,
+	 *         preceded by their length.
+	 */
+	byte[] getBytes(long pos) {
+		byte[] result = new byte[getInt(pos)];
+		ByteBuffer b = window(pos).duplicate();
+		b.position(offset(pos) + Integer.BYTES);
+		b.get(result);
+		return result;
+	}
+
+	String getString(long pos) {
+		return new String(getBytes(pos), StandardCharsets.UTF_8);
+	}
+}
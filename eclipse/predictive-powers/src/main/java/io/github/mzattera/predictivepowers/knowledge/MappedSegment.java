@@ -0,0 +1,192 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Read-only content of a domain, memory mapped from a file in
+ * {@link BinaryFormat}. Embeddings are identified by their row in the domain
+ * table; similarity is computed directly on the mapped data, while
+ * {@link EmbeddedText} instances are created only when needed.
+ * 
+ * This class is thread safe.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+final class MappedSegment {
+
+	private final MappedFile file;
+
+	private final int size;
+
+	private final String[] models;
+
+	private final long tableOffset;
+
+	private final long normsOffset;
+
+	private final long hashOffset;
+
+	MappedSegment(MappedFile file, int size, String[] models, long tableOffset, long normsOffset,
+			long hashOffset) {
+		this.file = file;
+		this.size = size;
+		this.models = models;
+		this.tableOffset = tableOffset;
+		this.normsOffset = normsOffset;
+		this.hashOffset = hashOffset;
+	}
+
+	/**
+	 * @return Number of rows in this segment.
+	 */
+	int size() {
+		return size;
+	}
+
+	private long row(int row) {
+		return tableOffset + ((long) row) * BinaryFormat.ROW_SIZE;
+	}
+
+	int dimensions(int row) {
+		return file.getInt(row(row) + 24);
+	}
+
+	/**
+	 * @return Index of the model for embedding in given row.
+	 */
+	int modelIndex(int row) {
+		return file.getInt(row(row) + 28);
+	}
+
+	/**
+	 * @return Model for embedding in given row.
+	 */
+	String model(int row) {
+		return models[modelIndex(row)];
+	}
+
+	/**
+	 * @return Index of given model in this segment, or -1 if no embedding was
+	 *         created with it.
+	 */
+	int modelIndex(String model) {
+		for (int i = 0; i < models.length; ++i)
+			if (models[i].equals(model))
+				return i;
+		return -1;
+	}
+
+	double norm(int row) {
+		return file.getDouble(normsOffset + ((long) row) * Double.BYTES);
+	}
+
+	float[] vector(int row) {
+		float[] result = new float[dimensions(row)];
+		vector(row, result);
+		return result;
+	}
+
+	/**
+	 * Reads embedding in given row into given array, which is assumed to be of
+	 * the correct size.
+	 */
+	void vector(int row, float[] dst) {
+		long pos = file.getLong(row(row));
+		ByteBuffer b = file.window(pos).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		b.position(MappedFile.offset(pos));
+		b.asFloatBuffer().get(dst); // Bulk copy
+	}
+
+	String text(int row) {
+		return file.getString(file.getLong(row(row) + 8));
+	}
+
+	/**
+	 * @return The row containing given text, or -1 if the text is not in this
+	 *         segment.
+	 */
+	int find(String text) {
+		int hash = text.hashCode();
+
+		// Binary search first entry with given hash
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (hash(mid) < hash)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		for (; (lo < size) && (hash(lo) == hash); ++lo) {
+			int row = (int) file.getLong(hashOffset + ((long) lo) * Long.BYTES);
+			if (text(row).equals(text))
+				return row;
+		}
+
+		return -1;
+	}
+
+	private int hash(int i) {
+		return (int) (file.getLong(hashOffset + ((long) i) * Long.BYTES) >> 32);
+	}
+
+	/**
+	 * @return Serialized properties of embedding in given row, or null if it has
+	 *         none.
+	 */
+	byte[] properties(int row) {
+		long pos = file.getLong(row(row) + 16);
+		return (pos < 0) ? null : file.getBytes(pos);
+	}
+
+	/**
+	 * @return A new {@link EmbeddedText} with the content of given row.
+	 */
+	@SuppressWarnings("unchecked")
+	EmbeddedText get(int row) {
+		EmbeddedText result = EmbeddedText.builder() //
+				.text(text(row)) //
+				.model(models[modelIndex(row)]) //
+				.vector(vector(row)).build();
+
+		byte[] properties = properties(row);
+		if (properties != null) {
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(properties))) {
+				for (Map.Entry<String, Object> e : ((Map<String, Object>) in.readObject()).entrySet())
+					result.set(e.getKey(), e.getValue());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		return result;
+	}
+}
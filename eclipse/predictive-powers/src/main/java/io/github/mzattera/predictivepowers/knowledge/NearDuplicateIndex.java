@@ -0,0 +1,216 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Index used to find near-duplicate texts in a domain, using MinHash
+ * locality-sensitive hashing.
+ * 
+ * Texts are split in shingles (sequences of {@link #SHINGLE_SIZE} consecutive
+ * terms) and their similarity is the Jaccard similarity of their shingle sets.
+ * The MinHash signature of each text is split in bands, which are hashed into
+ * buckets; texts sharing at least one bucket are candidate duplicates, whose
+ * similarity is then computed exactly. Number of bands is chosen so that texts
+ * with a similarity equal to the threshold become candidates with a
+ * probability of at least 95%; more similar texts are found with higher
+ * probability.
+ * 
+ * This finds near-duplicates by looking at few candidates, instead of comparing
+ * a text with the whole domain.
+ * 
+ * This class is not thread safe; {@link KnowledgeBase} takes care of
+ * synchronization.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+class NearDuplicateIndex implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of terms in each shingle */
+	static final int SHINGLE_SIZE = 3;
+
+	/** Length of MinHash signatures */
+	static final int SIGNATURE_LENGTH = 128;
+
+	/** Seeds of the hash functions used for MinHash signatures */
+	private static final long[] SEEDS = new SplittableRandom(42).longs(SIGNATURE_LENGTH).toArray();
+
+	/** Minimum similarity for two texts to be considered near-duplicates */
+	@Getter
+	private final double threshold;
+
+	@Getter
+	private final NearDuplicatePolicy policy;
+
+	/** Signature values in each band */
+	@Getter
+	private final int rows;
+
+	/** Embeddings by hash of their band values (each band hashes differently) */
+	private final Map<Long, List<EmbeddedText>> buckets = new HashMap<>();
+
+	NearDuplicateIndex(double threshold, @NonNull NearDuplicatePolicy policy) {
+		if ((threshold <= 0.0) || (threshold > 1.0))
+			throw new IllegalArgumentException("Threshold must be in (0, 1]");
+		this.threshold = threshold;
+		this.policy = policy;
+		this.rows = rows(threshold);
+	}
+
+	/**
+	 * @return Largest number of rows per band that finds texts with given
+	 *         similarity with a probability of at least 95%.
+	 */
+	private static int rows(double threshold) {
+		for (int r = SIGNATURE_LENGTH; r > 1; --r) {
+			int b = SIGNATURE_LENGTH / r;
+			if (1.0 - Math.pow(1.0 - Math.pow(threshold, r), b) >= 0.95)
+				return r;
+		}
+		return 1;
+	}
+
+	void add(EmbeddedText e) {
+		for (long key : keys(shingles(e.getText())))
+			buckets.computeIfAbsent(key, k -> new ArrayList<>(1)).add(e);
+	}
+
+	void remove(EmbeddedText e) {
+		for (long key : keys(shingles(e.getText()))) {
+			List<EmbeddedText> bucket = buckets.get(key);
+			if ((bucket != null) && bucket.remove(e) && bucket.isEmpty())
+				buckets.remove(key);
+		}
+	}
+
+	void clear() {
+		buckets.clear();
+	}
+
+	/**
+	 * @return The indexed embedding most similar to given one, if their similarity
+	 *         is at least {@link #getThreshold()}, otherwise null.
+	 */
+	EmbeddedText find(@NonNull EmbeddedText e) {
+		long[] shingles = shingles(e.getText());
+		if (shingles.length == 0)
+			return null;
+
+		Set<EmbeddedText> candidates = new LinkedHashSet<>();
+		for (long key : keys(shingles)) {
+			List<EmbeddedText> bucket = buckets.get(key);
+			if (bucket != null)
+				candidates.addAll(bucket);
+		}
+
+		EmbeddedText result = null;
+		double best = threshold;
+		for (EmbeddedText c : candidates) {
+			double s = similarity(shingles, shingles(c.getText()));
+			if (s >= best) {
+				result = c;
+				best = s;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return Sorted, distinct, hashes of the shingles in given text.
+	 */
+	static long[] shingles(String text) {
+		List<String> terms = SimpleTermTokenizer.getInstance().tokenize(text);
+		int n = Math.max(Math.min(terms.size(), 1), terms.size() - SHINGLE_SIZE + 1);
+		long[] result = new long[n];
+		for (int i = 0; i < n; ++i) {
+			long h = 0;
+			for (int j = i; j < Math.min(i + SHINGLE_SIZE, terms.size()); ++j)
+				h = 31 * h + terms.get(j).hashCode();
+			result[i] = mix(h);
+		}
+		return Arrays.stream(result).sorted().distinct().toArray();
+	}
+
+	/**
+	 * @return Jaccard similarity of two shingle sets, as returned by
+	 *         {@link #shingles(String)}.
+	 */
+	static double similarity(long[] a, long[] b) {
+		int common = 0;
+		for (int i = 0, j = 0; (i < a.length) && (j < b.length);) {
+			if (a[i] < b[j]) {
+				++i;
+			} else if (a[i] > b[j]) {
+				++j;
+			} else {
+				++common;
+				++i;
+				++j;
+			}
+		}
+		int union = a.length + b.length - common;
+		return (union == 0) ? 0.0 : (double) common / union;
+	}
+
+	/**
+	 * @return Keys of the buckets for given shingles, one for each band.
+	 */
+	private long[] keys(long[] shingles) {
+		if (shingles.length == 0)
+			return new long[0];
+
+		long[] signature = new long[SIGNATURE_LENGTH];
+		Arrays.fill(signature, Long.MAX_VALUE);
+		for (long s : shingles) {
+			for (int i = 0; i < SIGNATURE_LENGTH; ++i)
+				signature[i] = Math.min(signature[i], mix(s ^ SEEDS[i]));
+		}
+
+		long[] result = new long[SIGNATURE_LENGTH / rows];
+		for (int band = 0; band < result.length; ++band) {
+			long h = band;
+			for (int i = band * rows; i < (band + 1) * rows; ++i)
+				h = 31 * h + signature[i];
+			result[band] = mix(h);
+		}
+		return result;
+	}
+
+	/**
+	 * SplitMix64 finalizer, used to spread hash values.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
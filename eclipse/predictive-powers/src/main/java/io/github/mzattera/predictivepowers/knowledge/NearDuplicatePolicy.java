@@ -0,0 +1,33 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+/**
+ * What to do when an embedding being inserted in a domain is a near-duplicate
+ * of one already there (see
+ * {@link KnowledgeBase#createNearDuplicateIndex(String, double, NearDuplicatePolicy)}).
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public enum NearDuplicatePolicy {
+
+	/** The new embedding is not inserted. */
+	REJECT,
+
+	/** The existing embedding is deleted and the new one inserted. */
+	REPLACE
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import lombok.NonNull;
+
+/**
+ * An embedding whose vector is stored in a {@link VectorArena}; this is how
+ * embeddings are stored in off-heap domains.
+ * 
+ * {@link #getVector()} returns a copy of the vector, which cannot be changed;
+ * searches read vectors into reusable arrays with {@link #vector(float[])}
+ * instead, while holding the lock of the domain. Once the domain is dropped, or
+ * its knowledge base closed, the vector cannot be read any longer; this is why
+ * searches return copies of these embeddings (see {@link #onHeap()}).
+ * 
+ * Instances are serialized as plain {@link EmbeddedText}s.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+final class OffHeapEmbeddedText extends EmbeddedText {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient VectorArena arena;
+
+	/** Position of the vector in the arena; changed when the arena is compacted */
+	private transient long position;
+
+	/** Arena generation the position refers to */
+	private transient int generation;
+
+	private final transient int dimensions;
+
+	private final transient double norm;
+
+	OffHeapEmbeddedText(@NonNull EmbeddedText e, @NonNull VectorArena arena, long position, int generation,
+			int dimensions) {
+		setText(e.getText());
+		setModel(e.getModel());
+		getProperties().putAll(e.getProperties());
+		this.arena = arena;
+		this.position = position;
+		this.generation = generation;
+		this.dimensions = dimensions;
+		this.norm = e.getNorm();
+	}
+
+	int dimensions() {
+		return dimensions;
+	}
+
+	long position() {
+		return position;
+	}
+
+	int generation() {
+		return generation;
+	}
+
+	/**
+	 * Called by the arena when the vector is moved by a compaction.
+	 */
+	void move(long position, int generation) {
+		this.position = position;
+		this.generation = generation;
+	}
+
+	/**
+	 * Reads the vector into given array, if it has the right length, otherwise
+	 * into a new array. The caller must hold a lock on the domain containing
+	 * the embedding.
+	 * 
+	 * @return The array containing the vector.
+	 */
+	float[] vector(float[] dst) {
+		return arena.read(this, ((dst == null) || (dst.length != dimensions)) ? new float[dimensions] : dst);
+	}
+
+	/**
+	 * @return Dot product between the vector of this embedding and given one,
+	 *         computed without copying the vector. The caller must hold a lock on
+	 *         the domain containing the embedding.
+	 */
+	double dot(float[] v) {
+		return arena.dot(this, v);
+	}
+
+	/**
+	 * @throws IllegalStateException If the domain containing this embedding was
+	 *                               dropped, or the embedding was removed from it
+	 *                               and its memory reclaimed.
+	 */
+	@Override
+	public float[] getVector() {
+		return arena.copy(this);
+	}
+
+	@Override
+	public void setVector(@NonNull float[] vector) {
+		throw new UnsupportedOperationException("Vectors stored off-heap cannot be changed");
+	}
+
+	@Override
+	public double getNorm() {
+		return norm;
+	}
+
+	@Override
+	public List<Double> getEmbedding() {
+		float[] v = getVector();
+		List<Double> result = new ArrayList<>(v.length);
+		for (float f : v)
+			result.add((double) f);
+		return Collections.unmodifiableList(result);
+	}
+
+	@Override
+	public void setEmbedding(@NonNull List<? extends Number> embedding) {
+		throw new UnsupportedOperationException("Vectors stored off-heap cannot be changed");
+	}
+
+	/**
+	 * @return A copy of this embedding, with its vector on the heap.
+	 */
+	EmbeddedText onHeap() {
+		EmbeddedText result = EmbeddedText.builder().text(getText()).model(getModel()).vector(getVector()).build();
+		result.getProperties().putAll(getProperties());
+		return result;
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return onHeap();
+	}
+}
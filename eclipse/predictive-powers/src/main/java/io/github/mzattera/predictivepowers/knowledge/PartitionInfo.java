@@ -0,0 +1,47 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Statistics about a partition of a domain in a {@link KnowledgeBase}. Each
+ * partition contains the embeddings created with the same model and having the
+ * same vector length (see {@link KnowledgeBase#getPartitions(String)}).
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+@Getter
+@ToString
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+public final class PartitionInfo {
+
+	/** Model used to create embeddings in the partition */
+	private final String model;
+
+	/** Length of the vectors in the partition */
+	private final int dimensions;
+
+	/** Number of embeddings in the partition */
+	private final int size;
+
+	/** Number of embeddings in the partition that are memory mapped */
+	private final int mappedSize;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Index of the embeddings in a domain by the value of one of their properties,
+ * used to resolve {@link PropertyMatcher}s without scanning the domain.
+ * 
+ * All indexes support equality lookups; sorted indexes also support range and
+ * prefix lookups on values implementing {@link Comparable}.
+ * Embeddings without the property are not indexed.
+ * 
+ * This class is not thread safe; {@link KnowledgeBase} takes care of
+ * synchronization.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+class PropertyIndex implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Getter
+	private final String key;
+
+	@Getter
+	private final boolean sorted;
+
+	/** Embeddings by property value; embeddings without the property are not indexed */
+	private final Map<Object, Set<EmbeddedText>> values = new HashMap<>();
+
+	/**
+	 * For sorted indexes, same content as values, split by class of the value and
+	 * sorted by value. The sets are shared with values.
+	 */
+	private final Map<Class<?>, TreeMap<Comparable<?>, Set<EmbeddedText>>> trees;
+
+	PropertyIndex(@NonNull String key, boolean sorted) {
+		this.key = key;
+		this.sorted = sorted;
+		this.trees = sorted ? new HashMap<>() : null;
+	}
+
+	void add(EmbeddedText e) {
+		Object v = e.get(key);
+		if (v == null)
+			return;
+
+		Set<EmbeddedText> s = values.get(v);
+		if (s == null) {
+			s = new HashSet<>();
+			values.put(v, s);
+			if (sorted && (v instanceof Comparable))
+				trees.computeIfAbsent(v.getClass(), k -> new TreeMap<>()).put((Comparable<?>) v, s);
+		}
+		s.add(e);
+	}
+
+	void remove(EmbeddedText e) {
+		Object v = e.get(key);
+		if (v == null)
+			return;
+
+		Set<EmbeddedText> s = values.get(v);
+		if ((s == null) || !s.remove(e) || !s.isEmpty())
+			return;
+
+		values.remove(v);
+		if (sorted && (v instanceof Comparable)) {
+			TreeMap<Comparable<?>, Set<EmbeddedText>> tree = trees.get(v.getClass());
+			tree.remove(v);
+			if (tree.isEmpty())
+				trees.remove(v.getClass());
+		}
+	}
+
+	void clear() {
+		values.clear();
+		if (sorted)
+			trees.clear();
+	}
+
+	/**
+	 * @return Embeddings with given property value.
+	 */
+	Set<EmbeddedText> get(Object value) {
+		Set<EmbeddedText> s = values.get(value);
+		return (s == null) ? Collections.emptySet() : s;
+	}
+
+	/**
+	 * @param type Class of the values to return.
+	 * @param from Lower bound (inclusive), or null for no lower bound.
+	 * @param to   Upper bound (exclusive), or null for no upper bound.
+	 * @return Embeddings with property value in given range, grouped by value and
+	 *         sorted by value, or null if this index is not sorted.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	NavigableMap<Comparable<?>, Set<EmbeddedText>> range(Class<?> type, Comparable<?> from, Comparable<?> to) {
+		if (!sorted)
+			return null;
+
+		TreeMap<Comparable<?>, Set<EmbeddedText>> tree = trees.get(type);
+		if (tree == null)
+			return Collections.emptyNavigableMap();
+		if (from == null)
+			return tree.headMap(to, false);
+		if (to == null)
+			return tree.tailMap(from, true);
+		if (((Comparable) from).compareTo(to) >= 0)
+			return Collections.emptyNavigableMap();
+		return tree.subMap(from, true, to, false);
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * An {@link EmbeddedTextMatcher} that matches embeddings based on the value of
+ * one of their properties.
+ * 
+ * Unlike generic matchers, these can be resolved using a property index (see
+ * {@link KnowledgeBase#createPropertyIndex(String, String, boolean)}), avoiding
+ * a scan of the whole knowledge base.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public abstract class PropertyMatcher implements EmbeddedTextMatcher {
+
+	/** Name of the property to check */
+	@Getter
+	private final String key;
+
+	private PropertyMatcher(@NonNull String key) {
+		this.key = key;
+	}
+
+	/**
+	 * @return A matcher for embeddings having given property set to given value;
+	 *         if the value is null, embeddings without the property match.
+	 */
+	public static PropertyMatcher equalTo(@NonNull String key, Object value) {
+		return new PropertyMatcher(key) {
+
+			@Override
+			public boolean match(EmbeddedText e) {
+				return Objects.equals(value, e.get(key));
+			}
+
+			@Override
+			Collection<EmbeddedText> lookup(PropertyIndex index) {
+				return (value == null) ? null : index.get(value); // Indexes do not contain null values
+			}
+		};
+	}
+
+	/**
+	 * @return A matcher for embeddings having given property set to any of given
+	 *         values; if values contain null, embeddings without the property
+	 *         match too.
+	 */
+	public static PropertyMatcher in(@NonNull String key, @NonNull Collection<?> values) {
+		Set<Object> set = new HashSet<>(values);
+		return new PropertyMatcher(key) {
+
+			@Override
+			public boolean match(EmbeddedText e) {
+				return set.contains(e.get(key));
+			}
+
+			@Override
+			Collection<EmbeddedText> lookup(PropertyIndex index) {
+				if (set.contains(null))
+					return null;
+
+				List<EmbeddedText> result = new ArrayList<>();
+				for (Object v : set)
+					result.addAll(index.get(v));
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Returns a matcher for embeddings having given property in given range.
+	 * 
+	 * Notice values are matched only if they are of the same class of the range
+	 * bounds; for example, a property with a <code>Long</code> value never
+	 * matches a range with <code>Integer</code> bounds.
+	 * 
+	 * @param from Lower bound of the range (inclusive), or null for no lower
+	 *             bound.
+	 * @param to   Upper bound of the range (exclusive), or null for no upper
+	 *             bound.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T extends Comparable<? super T>> PropertyMatcher range(@NonNull String key, T from, T to) {
+		if ((from == null) && (to == null))
+			throw new IllegalArgumentException("At least one bound must be provided");
+		if ((from != null) && (to != null) && (from.getClass() != to.getClass()))
+			throw new IllegalArgumentException("Bounds must be of same class");
+		Class<?> type = (from == null) ? to.getClass() : from.getClass();
+
+		return new PropertyMatcher(key) {
+
+			@Override
+			public boolean match(EmbeddedText e) {
+				Object v = e.get(key);
+				if ((v == null) || (v.getClass() != type))
+					return false;
+				return ((from == null) || (((Comparable) v).compareTo(from) >= 0))
+						&& ((to == null) || (((Comparable) v).compareTo(to) < 0));
+			}
+
+			@Override
+			Collection<EmbeddedText> lookup(PropertyIndex index) {
+				return flatten(index.range(type, from, to));
+			}
+		};
+	}
+
+	/**
+	 * @return A matcher for embeddings having given property set to a String
+	 *         starting with given prefix.
+	 */
+	public static PropertyMatcher prefix(@NonNull String key, @NonNull String prefix) {
+		return new PropertyMatcher(key) {
+
+			@Override
+			public boolean match(EmbeddedText e) {
+				Object v = e.get(key);
+				return (v instanceof String) && ((String) v).startsWith(prefix);
+			}
+
+			@Override
+			Collection<EmbeddedText> lookup(PropertyIndex index) {
+				Map<Comparable<?>, Set<EmbeddedText>> values = index.range(String.class, prefix, null);
+				if (values == null)
+					return null;
+
+				List<EmbeddedText> result = new ArrayList<>();
+				for (Map.Entry<Comparable<?>, Set<EmbeddedText>> e : values.entrySet()) {
+					if (!((String) e.getKey()).startsWith(prefix))
+						break;
+					result.addAll(e.getValue());
+				}
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Uses given index to find matching embeddings.
+	 * 
+	 * @return Embeddings matching this, or null if given index does not support
+	 *         this kind of matcher, or the matcher matches embeddings that are not
+	 *         in the index (for example, those without the property).
+	 */
+	abstract Collection<EmbeddedText> lookup(PropertyIndex index);
+
+	private static Collection<EmbeddedText> flatten(Map<?, Set<EmbeddedText>> values) {
+		if (values == null)
+			return null;
+
+		List<EmbeddedText> result = new ArrayList<>();
+		for (Set<EmbeddedText> s : values.values())
+			result.addAll(s);
+		return result;
+	}
+}
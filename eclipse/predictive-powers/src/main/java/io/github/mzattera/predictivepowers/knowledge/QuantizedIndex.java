@@ -0,0 +1,277 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.util.VectorUtil;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A {@link VectorIndex} that stores a scalar quantized (int8) copy of each
+ * embedding, which is used to quickly scan the domain for candidates; the best
+ * candidates are then re-scored using the full-precision embeddings.
+ * 
+ * Each embedding is quantized with its own offset and scale, mapping its
+ * minimum and maximum value into [-128, 127]. This reduces the memory scanned
+ * at each search by a factor of 4 compared with <code>float</code> embeddings.
+ * 
+ * The index keeps only the codes and a reference to each embedding, as stored
+ * in the domain; candidates are re-scored using the vectors held by the domain,
+ * which are never copied. To keep full-precision vectors out of the heap too,
+ * use the index on an off-heap domain (see
+ * {@link KnowledgeBase#createOffHeapDomain(String, File)}); its vectors are
+ * then read only when the best candidates are re-scored.
+ * 
+ * The number of candidates that are re-scored is <code>limit</code> times the
+ * rescore factor; higher factors make results closer to an exhaustive search,
+ * at the expense of speed.
+ * 
+ * As similarity is defined only between embeddings created with same model
+ * and with same size, the index keeps a separate block of codes for each of
+ * them.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public class QuantizedIndex implements VectorIndex {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_RESCORE_FACTOR = 4;
+
+	private static final Comparator<Candidate> ASCENDING = Comparator.comparingDouble(c -> c.similarity);
+
+	/**
+	 * Number of candidates re-scored at full precision is the number of requested
+	 * results times this factor.
+	 */
+	@Getter
+	private int rescoreFactor;
+
+	/** One block of codes for each (model, embedding size) pair. */
+	private final Map<String, Block> blocks = new HashMap<>();
+
+	public QuantizedIndex() {
+		this(DEFAULT_RESCORE_FACTOR);
+	}
+
+	public QuantizedIndex(int rescoreFactor) {
+		setRescoreFactor(rescoreFactor);
+	}
+
+	public void setRescoreFactor(int rescoreFactor) {
+		if (rescoreFactor < 1)
+			throw new IllegalArgumentException("Rescore factor must be positive: " + rescoreFactor);
+		this.rescoreFactor = rescoreFactor;
+	}
+
+	@Override
+	public void add(@NonNull EmbeddedText e) {
+		blocks.computeIfAbsent(key(e), k -> new Block(DomainSnapshot.dimensions(e))).add(e);
+	}
+
+	@Override
+	public void remove(@NonNull EmbeddedText e) {
+		// e might be just a placeholder with the text to delete; look in all blocks
+		Iterator<Block> it = blocks.values().iterator();
+		while (it.hasNext()) {
+			Block b = it.next();
+			if (b.remove(e) && (b.size == 0))
+				it.remove();
+		}
+	}
+
+	@Override
+	public void clear() {
+		blocks.clear();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Block b : blocks.values())
+			size += b.size;
+		return size;
+	}
+
+	@Override
+	public List<Pair<EmbeddedText, Double>> search(@NonNull EmbeddedText query, int limit,
+			EmbeddedTextMatcher filter) {
+		Block b = blocks.get(key(query));
+		if ((b == null) || (limit < 1))
+			return new ArrayList<>();
+
+		float[] q = query.getVector();
+		double qSum = 0.0;
+		for (float f : q)
+			qSum += f;
+
+		// Scan codes for candidates
+		int candidates = (int) Math.min((long) limit * rescoreFactor, b.size);
+		PriorityQueue<Candidate> queue = new PriorityQueue<>(candidates + 1, ASCENDING);
+		for (int row = 0; row < b.size; ++row) {
+			if ((filter != null) && !filter.match(b.items[row]))
+				continue;
+			double s = b.approximateDot(row, q, qSum) / b.norms[row];
+			if (queue.size() < candidates) {
+				queue.add(new Candidate(row, s));
+			} else if (s > queue.peek().similarity) {
+				queue.poll();
+				queue.add(new Candidate(row, s));
+			}
+		}
+
+		// Re-score candidates at full precision
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>(queue.size());
+		float[] v = null;
+		for (Candidate c : queue) {
+			EmbeddedText e = b.items[c.row];
+			float[] w = (e instanceof OffHeapEmbeddedText) ? (v = ((OffHeapEmbeddedText) e).vector(v)) : e.getVector();
+			double s = VectorUtil.cosine(VectorUtil.dot(w, q), b.norms[c.row], query.getNorm());
+			result.add(new ImmutablePair<>(e, s));
+		}
+		result.sort((p1, p2) -> Double.compare(p2.getRight(), p1.getRight()));
+
+		return (result.size() > limit) ? new ArrayList<>(result.subList(0, limit)) : result;
+	}
+
+	private static String key(EmbeddedText e) {
+		return e.getModel() + "/" + DomainSnapshot.dimensions(e);
+	}
+
+	/**
+	 * Quantized embeddings, all of same size, stored contiguously. Deleting an
+	 * embedding moves the last one in its place.
+	 */
+	private static final class Block implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int dimensions;
+
+		private int size = 0;
+
+		/** Codes for each embedding, one row after the other */
+		private byte[] codes = new byte[0];
+
+		private float[] offsets = new float[0];
+
+		private float[] scales = new float[0];
+
+		/** Full precision norm of each embedding */
+		private double[] norms = new double[0];
+
+		private EmbeddedText[] items = new EmbeddedText[0];
+
+		/** Maps each embedding into its row in the block */
+		private final Map<EmbeddedText, Integer> rows = new HashMap<>();
+
+		private Block(int dimensions) {
+			this.dimensions = dimensions;
+		}
+
+		private void add(EmbeddedText e) {
+			if (rows.containsKey(e))
+				return;
+
+			if (size == items.length) {
+				int capacity = Math.max(16, items.length + (items.length >> 1));
+				codes = Arrays.copyOf(codes, capacity * dimensions);
+				offsets = Arrays.copyOf(offsets, capacity);
+				scales = Arrays.copyOf(scales, capacity);
+				norms = Arrays.copyOf(norms, capacity);
+				items = Arrays.copyOf(items, capacity);
+			}
+
+			float[] v = e.getVector();
+			float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+			for (float f : v) {
+				min = Math.min(min, f);
+				max = Math.max(max, f);
+			}
+			float scale = (max > min) ? (max - min) / 255f : 1f;
+
+			int base = size * dimensions;
+			for (int i = 0; i < dimensions; ++i)
+				codes[base + i] = (byte) (Math.round((v[i] - min) / scale) - 128);
+			offsets[size] = min + 128 * scale; // So that value = offset + scale * code
+			scales[size] = scale;
+			norms[size] = e.getNorm();
+			items[size] = e;
+			rows.put(e, size);
+			++size;
+		}
+
+		private boolean remove(EmbeddedText e) {
+			Integer row = rows.remove(e);
+			if (row == null)
+				return false;
+
+			int last = size - 1;
+			if (row != last) {
+				System.arraycopy(codes, last * dimensions, codes, row * dimensions, dimensions);
+				offsets[row] = offsets[last];
+				scales[row] = scales[last];
+				norms[row] = norms[last];
+				items[row] = items[last];
+				rows.put(items[row], row);
+			}
+			items[last] = null;
+			--size;
+
+			return true;
+		}
+
+		/**
+		 * @return Approximated dot product between the embedding in given row and q.
+		 */
+		private double approximateDot(int row, float[] q, double qSum) {
+			int base = row * dimensions;
+			float dot = 0f;
+			for (int i = 0; i < dimensions; ++i)
+				dot += q[i] * codes[base + i];
+			return offsets[row] * qSum + scales[row] * dot;
+		}
+	}
+
+	private static final class Candidate {
+
+		private final int row;
+
+		private final double similarity;
+
+		private Candidate(int row, double similarity) {
+			this.row = row;
+			this.similarity = similarity;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Returns results of a search in a {@link KnowledgeBase} incrementally, by
+ * decreasing similarity, without repeating the search for each page of
+ * results (see {@link KnowledgeBase#searchCursor(EmbeddedText)}).
+ * 
+ * When the cursor is created, similarity with the query is computed once for
+ * each embedding and stored, together with a reference to the embedding, in a
+ * heap; each result is then extracted from the heap in logarithmic time.
+ * Therefore, reading n results out of N embeddings costs O(N + n log N),
+ * instead of the O(N * n / pageSize) needed to search again for each page.
+ * Memory used by the cursor is proportional to N, but embeddings in memory
+ * mapped domains are read only when returned.
+ * 
+ * Results are exact, as the ones returned by
+ * {@link KnowledgeBase#exactSearch(EmbeddedText, int, int)}, and reflect the
+ * content of the knowledge base when the cursor was created; changes made
+ * afterwards are not visible. Cursors on memory mapped domains must be used
+ * before the knowledge base is closed.
+ * 
+ * Embeddings in off-heap domains are scored, and later returned, while holding
+ * a read lock on their domain; they are returned as copies with their vector on
+ * the heap. Once an off-heap domain is dropped, or its knowledge base closed,
+ * its results cannot be returned; the same happens to results deleted from the
+ * domain, once the space they used is reclaimed.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public final class SearchCursor implements Iterator<Pair<EmbeddedText, Double>> {
+
+	/** Searched domains */
+	private final Domain[] domains;
+
+	/** Snapshots of searched domains */
+	private final DomainSnapshot[] snapshots;
+
+	/** Index in snapshots of the snapshot containing each embedding in refs */
+	private int[] owners;
+
+	/** References to scored embeddings, inside their snapshot */
+	private long[] refs;
+
+	/** Score of each embedding in refs */
+	private double[] scores;
+
+	/** Number of results still in the heap */
+	private int size;
+
+	SearchCursor(Collection<Domain> domains, EmbeddedText query, EmbeddedTextMatcher filter) {
+		this.domains = domains.toArray(new Domain[domains.size()]);
+		this.snapshots = new DomainSnapshot[this.domains.length];
+		owners = new int[0];
+		refs = new long[0];
+		scores = new double[0];
+
+		for (int i = 0; i < this.domains.length; ++i) {
+			Domain d = this.domains[i];
+			long stamp = d.isOffHeap() ? d.getLock().readLock() : 0;
+			try {
+				if (d.isOffHeap() && d.isDropped()) { // Dropped while we waited for the lock
+					snapshots[i] = new DomainSnapshot(null);
+					continue;
+				}
+
+				snapshots[i] = d.getSnapshot();
+				int capacity = size + snapshots[i].getSize();
+				owners = Arrays.copyOf(owners, capacity);
+				refs = Arrays.copyOf(refs, capacity);
+				scores = Arrays.copyOf(scores, capacity);
+
+				int owner = i;
+				snapshots[i].score(query, filter, (ref, score) -> {
+					owners[size] = owner;
+					refs[size] = ref;
+					scores[size++] = score;
+				});
+			} finally {
+				if (d.isOffHeap())
+					d.getLock().unlockRead(stamp);
+			}
+		}
+
+		for (int i = (size >>> 1) - 1; i >= 0; --i)
+			down(i);
+	}
+
+	/**
+	 * @return Number of results not yet returned.
+	 */
+	public int remaining() {
+		return size;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return (size > 0);
+	}
+
+	/**
+	 * @return The next result, with its similarity to the query.
+	 * @throws IllegalStateException If the result is in an off-heap domain and it
+	 *                               cannot be read anymore.
+	 */
+	@Override
+	public Pair<EmbeddedText, Double> next() {
+		if (size == 0)
+			throw new NoSuchElementException();
+
+		int owner = owners[0];
+		long ref = refs[0];
+		double score = scores[0];
+		--size;
+		owners[0] = owners[size];
+		refs[0] = refs[size];
+		scores[0] = scores[size];
+		down(0);
+
+		return new ImmutablePair<>(resolve(owner, ref), score);
+	}
+
+	/**
+	 * @return The embedding with given reference in given snapshot.
+	 */
+	private EmbeddedText resolve(int owner, long ref) {
+		Domain d = domains[owner];
+		if (!d.isOffHeap())
+			return snapshots[owner].resolve(ref);
+
+		long stamp = d.getLock().readLock();
+		try {
+			if (d.isDropped())
+				throw new IllegalStateException("Domain was dropped");
+			return Domain.detach(snapshots[owner].resolve(ref));
+		} finally {
+			d.getLock().unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @param n Maximum number of results to return.
+	 * @return Next page of results, with at most n results; an empty list is
+	 *         returned when there are no more results.
+	 */
+	public List<Pair<EmbeddedText, Double>> next(int n) {
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>(Math.max(0, Math.min(n, size)));
+		while ((result.size() < n) && hasNext())
+			result.add(next());
+		return result;
+	}
+
+	/**
+	 * Skips given number of results.
+	 */
+	public void skip(int n) {
+		for (int i = 0; (i < n) && (size > 0); ++i) {
+			--size;
+			owners[0] = owners[size];
+			refs[0] = refs[size];
+			scores[0] = scores[size];
+			down(0);
+		}
+	}
+
+	/**
+	 * Moves element i down the (max) heap, until heap order is restored.
+	 */
+	private void down(int i) {
+		int owner = owners[i];
+		long ref = refs[i];
+		double score = scores[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if ((child + 1 < size) && (scores[child + 1] > scores[child]))
+				++child;
+			if (scores[child] <= score)
+				break;
+			owners[i] = owners[child];
+			refs[i] = refs[child];
+			scores[i] = scores[child];
+			i = child;
+		}
+		owners[i] = owner;
+		refs[i] = ref;
+		scores[i] = score;
+	}
+}
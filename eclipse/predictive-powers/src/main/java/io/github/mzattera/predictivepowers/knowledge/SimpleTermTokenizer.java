@@ -0,0 +1,73 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import lombok.NonNull;
+
+/**
+ * A {@link TermTokenizer} that splits text at any character that is not a
+ * letter or a digit, converting terms to lower case.
+ * 
+ * Identifiers like "ERR-404" or "AB.123" are split in their parts, which are
+ * then matched separately; this works well in practice, as BM25 scoring
+ * rewards texts containing all of them.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public class SimpleTermTokenizer implements TermTokenizer {
+
+	private static final long serialVersionUID = 1L;
+
+	private SimpleTermTokenizer() {
+	}
+
+	private final static SimpleTermTokenizer instance = new SimpleTermTokenizer();
+
+	/**
+	 * 
+	 * @return Singleton for this class.
+	 */
+	public static SimpleTermTokenizer getInstance() {
+		return instance;
+	}
+
+	@Override
+	public List<String> tokenize(@NonNull String text) {
+		List<String> result = new ArrayList<>();
+		int start = -1;
+		for (int i = 0; i < text.length(); ++i) {
+			if (Character.isLetterOrDigit(text.charAt(i))) {
+				if (start < 0)
+					start = i;
+			} else if (start >= 0) {
+				result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		if (start >= 0)
+			result.add(text.substring(start).toLowerCase(Locale.ROOT));
+		return result;
+	}
+
+	private Object readResolve() {
+		return instance;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Splits text into terms, for lexical searches (see
+ * {@link KnowledgeBase#createTextIndex(String, TermTokenizer)}).
+ * 
+ * The same tokenizer is applied to indexed text and to queries, so terms match
+ * only if the tokenizer returns them identically for both; for example, a
+ * tokenizer can convert terms to lower case to make searches case insensitive.
+ * 
+ * Tokenizers are serialized together with the index using them.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+@FunctionalInterface
+public interface TermTokenizer extends Serializable {
+
+	/**
+	 * @return The terms in given text, in order; repeated terms must be returned
+	 *         each time they appear.
+	 */
+	List<String> tokenize(String text);
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Inverted index over the text of the embeddings in a domain, used for lexical
+ * searches scored with Okapi BM25.
+ * 
+ * The index is updated as embeddings are inserted or removed; document
+ * frequencies and average text length are always those of current domain
+ * content.
+ * 
+ * This class is not thread safe; {@link KnowledgeBase} takes care of
+ * synchronization.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+class TextIndex implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** BM25 term frequency saturation parameter */
+	static final double K1 = 1.2;
+
+	/** BM25 length normalization parameter */
+	static final double B = 0.75;
+
+	@Getter
+	private final TermTokenizer tokenizer;
+
+	/** For each term, embeddings containing it and number of occurrences */
+	private final Map<String, Map<EmbeddedText, Integer>> postings = new HashMap<>();
+
+	/** Length (in terms) of each indexed text */
+	private final Map<EmbeddedText, Integer> lengths = new HashMap<>();
+
+	/** Sum of all lengths */
+	private long totalLength = 0;
+
+	TextIndex(@NonNull TermTokenizer tokenizer) {
+		this.tokenizer = tokenizer;
+	}
+
+	int size() {
+		return lengths.size();
+	}
+
+	void add(EmbeddedText e) {
+		if (lengths.containsKey(e))
+			return;
+
+		List<String> terms = tokenizer.tokenize(e.getText());
+		for (String t : terms)
+			postings.computeIfAbsent(t, k -> new HashMap<>()).merge(e, 1, Integer::sum);
+		lengths.put(e, terms.size());
+		totalLength += terms.size();
+	}
+
+	void remove(EmbeddedText e) {
+		Integer length = lengths.remove(e);
+		if (length == null)
+			return;
+
+		for (String t : tokenizer.tokenize(e.getText())) {
+			Map<EmbeddedText, Integer> p = postings.get(t);
+			if ((p != null) && (p.remove(e) != null) && p.isEmpty())
+				postings.remove(t);
+		}
+		totalLength -= length;
+	}
+
+	void clear() {
+		postings.clear();
+		lengths.clear();
+		totalLength = 0;
+	}
+
+	/**
+	 * Scores indexed embeddings against given query, using BM25.
+	 * 
+	 * @param filter If not null, only embeddings matching this are returned.
+	 * @param limit  Maximum number of results to return.
+	 * @return Best matching embeddings, with their score, sorted by decreasing
+	 *         score. Embeddings not containing any query term are not returned.
+	 */
+	List<Pair<EmbeddedText, Double>> search(@NonNull String query, EmbeddedTextMatcher filter, int limit) {
+		int n = lengths.size();
+		double avgLength = (n == 0) ? 0.0 : (double) totalLength / n;
+
+		Map<EmbeddedText, Double> scores = new HashMap<>();
+		for (String t : tokenizer.tokenize(query)) {
+			Map<EmbeddedText, Integer> p = postings.get(t);
+			if (p == null)
+				continue;
+
+			// Repeated query terms contribute once for each occurrence
+			double idf = Math.log(1.0 + (n - p.size() + 0.5) / (p.size() + 0.5));
+			for (Map.Entry<EmbeddedText, Integer> e : p.entrySet()) {
+				double tf = e.getValue();
+				double norm = K1 * (1.0 - B + B * lengths.get(e.getKey()) / avgLength);
+				scores.merge(e.getKey(), idf * tf * (K1 + 1.0) / (tf + norm), Double::sum);
+			}
+		}
+
+		TopK result = new TopK(limit);
+		for (Map.Entry<EmbeddedText, Double> e : scores.entrySet()) {
+			if (result.accepts(e.getValue()) && ((filter == null) || filter.match(e.getKey())))
+				result.offer(e.getKey(), e.getValue());
+		}
+		return result.toList();
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Bounded min-heap keeping the embeddings with highest similarity found during
+ * a search. Adding a result costs O(log limit) and results with similarity
+ * below the worst one kept are discarded in constant time.
+ * 
+ * This class is not thread safe; parallel searches use one instance per task
+ * and merge them at the end.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+final class TopK {
+
+	private final int limit;
+
+	private final EmbeddedText[] items;
+
+	private final double[] scores;
+
+	private int size = 0;
+
+	TopK(int limit) {
+		this.limit = Math.max(limit, 0);
+		this.items = new EmbeddedText[this.limit];
+		this.scores = new double[this.limit];
+	}
+
+	int limit() {
+		return limit;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return True if a result with given similarity would be kept.
+	 */
+	boolean accepts(double similarity) {
+		return (size < limit) || ((limit > 0) && (similarity > scores[0]));
+	}
+
+	/**
+	 * Adds a result, if its similarity is high enough.
+	 */
+	void offer(EmbeddedText e, double similarity) {
+		if (size < limit) {
+			int i = size++;
+			items[i] = e;
+			scores[i] = similarity;
+			up(i);
+		} else if ((limit > 0) && (similarity > scores[0])) {
+			items[0] = e;
+			scores[0] = similarity;
+			down(0);
+		}
+	}
+
+	/**
+	 * Adds all results in given list.
+	 */
+	void offer(List<Pair<EmbeddedText, Double>> results) {
+		for (Pair<EmbeddedText, Double> p : results)
+			offer(p.getLeft(), p.getRight());
+	}
+
+	/**
+	 * Adds all results kept by another instance.
+	 */
+	void offer(TopK other) {
+		for (int i = 0; i < other.size; ++i)
+			offer(other.items[i], other.scores[i]);
+	}
+
+	/**
+	 * Replaces embeddings stored off-heap with copies of them (see
+	 * {@link Domain#detach(EmbeddedText)}).
+	 */
+	void detach() {
+		for (int i = 0; i < size; ++i)
+			items[i] = Domain.detach(items[i]);
+	}
+
+	/**
+	 * @return Results, sorted by decreasing similarity.
+	 */
+	List<Pair<EmbeddedText, Double>> toList() {
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i)
+			result.add(new ImmutablePair<>(items[i], scores[i]));
+		result.sort(Collections.reverseOrder((a, b) -> Double.compare(a.getRight(), b.getRight())));
+		return result;
+	}
+
+	private void up(int i) {
+		EmbeddedText e = items[i];
+		double s = scores[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (scores[parent] <= s)
+				break;
+			items[i] = items[parent];
+			scores[i] = scores[parent];
+			i = parent;
+		}
+		items[i] = e;
+		scores[i] = s;
+	}
+
+	private void down(int i) {
+		EmbeddedText e = items[i];
+		double s = scores[i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			if ((child + 1 < size) && (scores[child + 1] < scores[child]))
+				++child;
+			if (s <= scores[child])
+				break;
+			items[i] = items[child];
+			scores[i] = scores[child];
+			i = child;
+		}
+		items[i] = e;
+		scores[i] = s;
+	}
+
+	/**
+	 * @return An array of n empty instances.
+	 */
+	static TopK[] create(int n, int limit) {
+		TopK[] result = new TopK[n];
+		for (int i = 0; i < n; ++i)
+			result[i] = new TopK(limit);
+		return result;
+	}
+
+	/**
+	 * Merges results of two searches for the same queries.
+	 * 
+	 * @return a, after results in b have been added to it.
+	 */
+	static TopK[] merge(TopK[] a, TopK[] b) {
+		for (int i = 0; i < a.length; ++i)
+			a[i].offer(b[i]);
+		return a;
+	}
+
+	/**
+	 * @return A task that runs given searches, for given number of queries, and
+	 *         merges their results.
+	 */
+	static RecursiveTask<TopK[]> merge(List<? extends RecursiveTask<TopK[]>> tasks, int queries, int limit) {
+		return new RecursiveTask<TopK[]>() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected TopK[] compute() {
+				if (inForkJoinPool() && (tasks.size() > 1))
+					ForkJoinTask.invokeAll(tasks);
+				else
+					tasks.forEach(ForkJoinTask::invoke);
+
+				TopK[] result = create(queries, limit);
+				for (RecursiveTask<TopK[]> t : tasks)
+					merge(result, t.join());
+				return result;
+			}
+		};
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.util.VectorUtil;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Stores embedding vectors outside of the Java heap, so that domains with many
+ * embeddings do not slow down garbage collection (see
+ * {@link KnowledgeBase#createOffHeapDomain(String, File)}).
+ * 
+ * Vectors are appended to blocks of {@link #BLOCK_SIZE} bytes, allocated as
+ * direct buffers or, if a file is provided, memory mapped from that file; the
+ * latter allows the operating system to page vectors out of memory. Space used
+ * by removed vectors is reclaimed by {@link #compact(Collection)}, which moves
+ * the remaining vectors into new blocks.
+ * 
+ * Memory is freed explicitly, when the arena is compacted or released; reading
+ * a vector afterwards throws an exception instead of accessing freed memory.
+ * Embeddings stored in the arena should therefore not leave the domain using
+ * it: {@link KnowledgeBase} returns on-heap copies of them.
+ * 
+ * Only one thread at a time can store vectors, and storing vectors must
+ * happen-before reading them (domains take care of this when they publish a
+ * new snapshot). The owner of the arena must also make sure that
+ * {@link #read(OffHeapEmbeddedText, float[])} is never called concurrently
+ * with {@link #compact(Collection)} or {@link #release()}; domains do this
+ * with their lock. {@link #copy(OffHeapEmbeddedText)} can instead be called at
+ * any time, by any thread.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+final class VectorArena implements AutoCloseable {
+
+	private final static Logger LOG = LoggerFactory.getLogger(VectorArena.class);
+
+	/** Size of each block of memory (64MB) */
+	static final int BLOCK_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * Backing file, or null if blocks are direct buffers; compaction can move it
+	 * to a new file if it cannot be renamed while mapped.
+	 */
+	@Getter
+	private volatile File file;
+
+	private FileChannel channel;
+
+	/** Blocks of memory, as buffers of floats; grown by the writer only */
+	private volatile FloatBuffer[] blocks = new FloatBuffer[0];
+
+	/** The buffers backing {@link #blocks}, as allocated, so they can be freed */
+	private List<ByteBuffer> buffers = new ArrayList<>();
+
+	/** Position of next vector in last block, in floats */
+	private int position = BLOCK_SIZE / Float.BYTES;
+
+	/** Floats used by removed vectors */
+	@Getter
+	private long garbage = 0;
+
+	/** Floats used by all vectors */
+	@Getter
+	private long used = 0;
+
+	/**
+	 * Incremented at each compaction; vectors stored in an earlier generation and
+	 * not moved by the compaction are lost.
+	 */
+	private int generation = 0;
+
+	@Getter
+	private volatile boolean released = false;
+
+	/** Taken by {@link #copy(OffHeapEmbeddedText)}, to exclude memory being freed */
+	private final StampedLock guard = new StampedLock();
+
+	/**
+	 * @param file If not null, vectors are stored in this file, which is
+	 *             overwritten and then deleted when the arena is released.
+	 */
+	VectorArena(File file) throws IOException {
+		this.file = file;
+		this.channel = (file == null) ? null : open(file);
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * @return An embedding with same content as given one, whose vector is stored
+	 *         in this arena.
+	 */
+	OffHeapEmbeddedText store(@NonNull EmbeddedText e) {
+		float[] v = e.getVector();
+		if (v.length > BLOCK_SIZE / Float.BYTES)
+			throw new IllegalArgumentException("Vector too long: " + v.length);
+		if (released)
+			throw new IllegalStateException("Off-heap memory was released");
+
+		return new OffHeapEmbeddedText(e, this, append(v), generation, v.length);
+	}
+
+	/**
+	 * Appends given vector to the last block, growing the arena if needed.
+	 * 
+	 * @return Position of the vector.
+	 */
+	private long append(float[] v) {
+		if (position + v.length > BLOCK_SIZE / Float.BYTES)
+			grow();
+		int block = blocks.length - 1;
+		FloatBuffer b = blocks[block].duplicate();
+		b.position(position);
+		b.put(v);
+
+		long pos = (((long) block) << 32) | position;
+		position += v.length;
+		used += v.length;
+		return pos;
+	}
+
+	private void grow() {
+		ByteBuffer buffer;
+		try {
+			if (channel == null) {
+				buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+			} else {
+				buffer = channel.map(MapMode.READ_WRITE, ((long) blocks.length) * BLOCK_SIZE, BLOCK_SIZE);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffers.add(buffer);
+		FloatBuffer[] b = new FloatBuffer[blocks.length + 1];
+		System.arraycopy(blocks, 0, b, 0, blocks.length);
+		b[blocks.length] = buffer.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		blocks = b;
+		position = 0;
+	}
+
+	/**
+	 * Marks given vector as removed.
+	 */
+	void remove(OffHeapEmbeddedText e) {
+		garbage += e.dimensions();
+	}
+
+	/**
+	 * @return True if removed vectors use more than half of the arena, which is
+	 *         then worth compacting.
+	 */
+	boolean needsCompaction() {
+		return (used >= BLOCK_SIZE / Float.BYTES) && (garbage * 2 > used);
+	}
+
+	/**
+	 * Copies the vector of given embedding into given array; the caller must
+	 * make sure the arena is not compacted or released meanwhile.
+	 * 
+	 * @return The array.
+	 * @throws IllegalStateException If the arena was released, or the embedding
+	 *                               was removed and the arena compacted since.
+	 */
+	float[] read(OffHeapEmbeddedText e, float[] dst) {
+		check(e);
+		long pos = e.position();
+		FloatBuffer b = blocks[(int) (pos >>> 32)].duplicate();
+		b.position((int) pos);
+		b.get(dst);
+		return dst;
+	}
+
+	/**
+	 * Computes the dot product between the vector of given embedding and v in
+	 * place, with the same result as {@link VectorUtil#dot(float[], float[])};
+	 * as for {@link #read(OffHeapEmbeddedText, float[])}, the caller must make
+	 * sure the arena is not compacted or released meanwhile.
+	 * 
+	 * @throws IllegalArgumentException if the vectors have different length.
+	 * @throws IllegalStateException    If the arena was released, or the
+	 *                                  embedding was removed and the arena
+	 *                                  compacted since.
+	 */
+	double dot(OffHeapEmbeddedText e, float[] v) {
+		check(e);
+		if (e.dimensions() != v.length)
+			throw new IllegalArgumentException(
+					"Vectors with different size [" + e.dimensions() + ", " + v.length + "]");
+
+		long pos = e.position();
+		FloatBuffer b = blocks[(int) (pos >>> 32)];
+		int base = (int) pos;
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0, s5 = 0.0, s6 = 0.0, s7 = 0.0;
+		int i = 0;
+		for (; i + 7 < v.length; i += 8) {
+			s0 += (double) b.get(base + i) * v[i];
+			s1 += (double) b.get(base + i + 1) * v[i + 1];
+			s2 += (double) b.get(base + i + 2) * v[i + 2];
+			s3 += (double) b.get(base + i + 3) * v[i + 3];
+			s4 += (double) b.get(base + i + 4) * v[i + 4];
+			s5 += (double) b.get(base + i + 5) * v[i + 5];
+			s6 += (double) b.get(base + i + 6) * v[i + 6];
+			s7 += (double) b.get(base + i + 7) * v[i + 7];
+		}
+		for (; i < v.length; ++i)
+			s0 += (double) b.get(base + i) * v[i];
+
+		return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+	}
+
+	private void check(OffHeapEmbeddedText e) {
+		if (released)
+			throw new IllegalStateException("Off-heap memory was released");
+		if (e.generation() != generation)
+			throw new IllegalStateException("Embedding was removed from its domain: " + e.getText());
+	}
+
+	/**
+	 * Same as {@link #read(OffHeapEmbeddedText, float[])}, but safe to call
+	 * concurrently with {@link #compact(Collection)} and {@link #release()}.
+	 * 
+	 * @return A new array with the vector of given embedding.
+	 */
+	float[] copy(OffHeapEmbeddedText e) {
+		long stamp = guard.readLock();
+		try {
+			return read(e, new float[e.dimensions()]);
+		} finally {
+			guard.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Moves vectors of given embeddings, which must be all the embeddings still
+	 * in use, into new blocks, then frees the old ones.
+	 */
+	void compact(@NonNull Collection<OffHeapEmbeddedText> live) {
+		long stamp = guard.writeLock();
+		try {
+			if (released)
+				return;
+
+			File oldFile = file;
+			FileChannel oldChannel = channel;
+			FloatBuffer[] oldBlocks = blocks;
+			List<ByteBuffer> oldBuffers = buffers;
+			int oldPosition = position;
+			long oldUsed = used;
+
+			// Copy live vectors; positions are changed only if this succeeds
+			File newFile = null;
+			FileChannel newChannel = null;
+			long[] positions = new long[live.size()];
+			blocks = new FloatBuffer[0];
+			buffers = new ArrayList<>();
+			position = BLOCK_SIZE / Float.BYTES;
+			used = 0;
+			try {
+				if (oldFile != null) {
+					newFile = File.createTempFile(oldFile.getName(), ".tmp",
+							oldFile.getAbsoluteFile().getParentFile());
+					channel = newChannel = open(newFile);
+				}
+
+				int i = 0;
+				float[] v = null;
+				for (OffHeapEmbeddedText e : live) {
+					if ((v == null) || (v.length != e.dimensions()))
+						v = new float[e.dimensions()];
+					FloatBuffer b = oldBlocks[(int) (e.position() >>> 32)].duplicate();
+					b.position((int) e.position());
+					b.get(v);
+					positions[i++] = append(v);
+				}
+			} catch (IOException | RuntimeException e) {
+				free(buffers, newChannel, newFile);
+				channel = oldChannel;
+				blocks = oldBlocks;
+				buffers = oldBuffers;
+				position = oldPosition;
+				used = oldUsed;
+				LOG.warn("Cannot compact off-heap store", e);
+				return;
+			}
+
+			++generation;
+			int i = 0;
+			for (OffHeapEmbeddedText e : live)
+				e.move(positions[i++], generation);
+			garbage = 0;
+
+			free(oldBuffers, oldChannel, oldFile);
+			if (newFile != null) {
+				try {
+					Files.move(newFile.toPath(), oldFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) { // Some systems cannot rename mapped files
+					LOG.debug("Off-heap store moved to " + newFile.getName(), e);
+					file = newFile;
+				}
+			}
+		} finally {
+			guard.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Releases this arena, freeing its memory and deleting its backing file, if
+	 * any; vectors cannot be stored or read afterwards.
+	 */
+	void release() {
+		long stamp = guard.writeLock();
+		try {
+			if (released)
+				return;
+			released = true;
+
+			blocks = new FloatBuffer[0];
+			free(buffers, channel, file);
+			buffers = new ArrayList<>();
+		} finally {
+			guard.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public void close() {
+		release();
+	}
+
+	/**
+	 * Frees given buffers, then closes given channel and deletes given file, if
+	 * not null.
+	 */
+	private static void free(List<ByteBuffer> buffers, FileChannel channel, File file) {
+		for (ByteBuffer b : buffers)
+			free(b);
+		buffers.clear();
+
+		try {
+			if (channel != null)
+				channel.close();
+			if (file != null)
+				Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			if (file == null) {
+				LOG.warn("Error closing off-heap store", e);
+			} else {
+				LOG.warn("Error deleting off-heap store " + file.getName(), e);
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/** Unsafe.invokeCleaner(), if available */
+	private static final Method INVOKE_CLEANER;
+
+	/** The Unsafe instance */
+	private static final Object UNSAFE;
+
+	static {
+		Method m = null;
+		Object u = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			u = f.get(null);
+			m = c.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			LOG.debug("Direct buffers will be freed by the garbage collector", e);
+		}
+		INVOKE_CLEANER = m;
+		UNSAFE = u;
+	}
+
+	/**
+	 * Frees memory of given direct (or memory mapped) buffer immediately, if the
+	 * JVM allows it; otherwise, it is freed by the garbage collector.
+	 */
+	private static void free(ByteBuffer b) {
+		if (INVOKE_CLEANER == null)
+			return;
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, b);
+		} catch (Exception e) {
+			LOG.debug("Cannot free direct buffer", e);
+		}
+	}
+}
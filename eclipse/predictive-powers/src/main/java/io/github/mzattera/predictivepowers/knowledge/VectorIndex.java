@@ -0,0 +1,92 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * An index that can be attached to a domain of a {@link KnowledgeBase} to
+ * speed up similarity searches.
+ * 
+ * The knowledge base keeps the index aligned with domain contents, calling
+ * {@link #add(EmbeddedText)} and {@link #remove(EmbeddedText)} as embeddings
+ * are inserted or deleted; therefore, an index should not be shared across
+ * domains or knowledge bases.
+ * 
+ * Implementations do not need to be thread safe, as the knowledge base takes
+ * care of synchronization; however, concurrent calls to
+ * {@link #search(EmbeddedText, int, EmbeddedTextMatcher)} must be supported.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public interface VectorIndex extends Serializable {
+
+	/**
+	 * Adds given embedding to the index.
+	 */
+	void add(EmbeddedText e);
+
+	/**
+	 * Removes given embedding from the index (if present).
+	 */
+	void remove(EmbeddedText e);
+
+	/**
+	 * Removes all embeddings from the index.
+	 */
+	void clear();
+
+	/**
+	 * @return Number of embeddings in the index.
+	 */
+	int size();
+
+	/**
+	 * Searches the index, returning the embeddings most similar to given query.
+	 * Notice that results might be approximated, depending on the index
+	 * implementation.
+	 * 
+	 * @param query Embedded text representing the search target.
+	 * @param limit Maximum number of results to return.
+	 * @return Matching embeddings, with their similarity to the query, sorted by
+	 *         decreasing similarity.
+	 */
+	default List<Pair<EmbeddedText, Double>> search(EmbeddedText query, int limit) {
+		return search(query, limit, null);
+	}
+
+	/**
+	 * Searches the index, returning the embeddings most similar to given query
+	 * among those matching given filter. Implementations should apply the filter
+	 * while searching, so that filtered searches still return up to limit
+	 * results.
+	 * 
+	 * @param query  Embedded text representing the search target.
+	 * @param limit  Maximum number of results to return.
+	 * @param filter Only embeddings matching this filter are returned; if null,
+	 *               all embeddings are considered.
+	 * @return Matching embeddings, with their similarity to the query, sorted by
+	 *         decreasing similarity.
+	 */
+	List<Pair<EmbeddedText, Double>> search(EmbeddedText query, int limit, EmbeddedTextMatcher filter);
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import lombok.Getter;
+
+/**
+ * Append-only log of the changes made to a {@link KnowledgeBase}, used to
+ * persist changes incrementally, without re-writing the whole knowledge base.
+ * 
+ * The log starts with a header (magic number and format version) followed by
+ * one record for each operation; each record is made of its length, a CRC32
+ * checksum and the operation data. When the log is replayed, a truncated or
+ * corrupted record at its end (e.g. because the process crashed while writing
+ * it) is discarded, together with anything following it.
+ * 
+ * This class is not thread safe; {@link KnowledgeBase} takes care of
+ * synchronization.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+final class WriteAheadLog implements Closeable {
+
+	/** "PPWL" */
+	static final int MAGIC = 0x4C575050;
+
+	static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+	private static final byte CREATE_DOMAIN = 1;
+	private static final byte DROP_DOMAIN = 2;
+	private static final byte INSERT = 3;
+	private static final byte DELETE = 4;
+	private static final byte DROP = 5;
+
+	@Getter
+	private final File file;
+
+	/** If true, changes are forced to disk after each operation */
+	@Getter
+	private final boolean sync;
+
+	private FileChannel channel;
+
+	/** Buffer used to build records */
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	/**
+	 * Opens a log for writing; new records are appended at the end of the file,
+	 * which is created if it does not exist. The log must have been replayed
+	 * already (see {@link #replay(File, KnowledgeBase)}), so any invalid record
+	 * at its end has been removed.
+	 */
+	WriteAheadLog(File file, boolean sync) throws IOException {
+		this.file = file;
+		this.sync = sync;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (channel.size() == 0) {
+			writeHeader(channel);
+		} else {
+			channel.position(channel.size());
+		}
+	}
+
+	/**
+	 * @return Current size of the log, in bytes.
+	 */
+	long size() throws IOException {
+		return channel.size();
+	}
+
+	void createDomain(String domain) throws IOException {
+		DataOutputStream out = record(CREATE_DOMAIN);
+		writeString(out, domain);
+		append(out);
+	}
+
+	void dropDomain(String domain) throws IOException {
+		DataOutputStream out = record(DROP_DOMAIN);
+		writeString(out, domain);
+		append(out);
+	}
+
+	void insert(String domain, EmbeddedText e) throws IOException {
+		DataOutputStream out = record(INSERT);
+		writeString(out, domain);
+		writeString(out, e.getText());
+		writeString(out, e.getModel());
+		float[] v = e.getVector();
+		out.writeInt(v.length);
+		for (float f : v)
+			out.writeFloat(f);
+		if (e.getProperties().isEmpty()) {
+			out.writeInt(-1);
+		} else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+				oos.writeObject(new HashMap<>(e.getProperties()));
+			}
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+		}
+		append(out);
+	}
+
+	/**
+	 * @param domain Domain from which to delete the text, or null to delete it
+	 *               from all domains.
+	 */
+	void delete(String domain, String text) throws IOException {
+		DataOutputStream out = record(DELETE);
+		out.writeBoolean(domain != null);
+		if (domain != null)
+			writeString(out, domain);
+		writeString(out, text);
+		append(out);
+	}
+
+	void drop() throws IOException {
+		append(record(DROP));
+	}
+
+	/**
+	 * Empties the log; this is done after the knowledge base has been saved.
+	 */
+	void reset() throws IOException {
+		channel.truncate(0);
+		channel.position(0);
+		writeHeader(channel);
+		channel.force(false);
+	}
+
+	/**
+	 * Removes from the log all records before given position; this is done after
+	 * the knowledge base has been saved, while changes after the save must be
+	 * kept.
+	 * 
+	 * Remaining records are copied into a new file, which then replaces the log.
+	 */
+	void discard(long position) throws IOException {
+		long size = channel.size();
+		if (position >= size) {
+			reset();
+			return;
+		}
+
+		Path target = file.toPath().toAbsolutePath();
+		Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				writeHeader(out);
+				for (long pos = position; pos < size;)
+					pos += channel.transferTo(pos, size - pos, out);
+				out.force(false);
+			}
+
+			channel.close();
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+			if (!channel.isOpen()) {
+				channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				channel.position(channel.size());
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private DataOutputStream record(byte type) throws IOException {
+		buffer.reset();
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeByte(type);
+		return out;
+	}
+
+	private void append(DataOutputStream out) throws IOException {
+		out.flush();
+		byte[] data = buffer.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ByteBuffer b = ByteBuffer.allocate(2 * Integer.BYTES + data.length);
+		b.putInt(data.length);
+		b.putInt((int) crc.getValue());
+		b.put(data);
+		b.flip();
+		while (b.hasRemaining())
+			channel.write(b);
+		if (sync)
+			channel.force(false);
+	}
+
+	private static void writeHeader(FileChannel ch) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+		b.putInt(MAGIC);
+		b.putInt(VERSION);
+		b.flip();
+		while (b.hasRemaining())
+			ch.write(b);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Applies operations in given log to a knowledge base, which must not be
+	 * writing to a log itself. Invalid records at the end of the log are removed
+	 * from the file.
+	 * 
+	 * Notice that replaying a log on a knowledge base that already contains all
+	 * of the changes in the log leaves the knowledge base unchanged; this makes it
+	 * safe to replay a log whose changes were already saved.
+	 * 
+	 * @return Number of operations that were replayed.
+	 */
+	@SuppressWarnings("unchecked")
+	static int replay(File file, KnowledgeBase kb) throws IOException {
+		if (!file.exists())
+			return 0;
+
+		int count = 0;
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = ch.size();
+			if (size == 0)
+				return 0;
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if ((read(ch, header, 0) < HEADER_SIZE) || (header.getInt(0) != MAGIC))
+				throw new IOException("Not a knowledge base log: " + file.getCanonicalPath());
+			int version = header.getInt(Integer.BYTES);
+			if (version != VERSION)
+				throw new IOException("Unsupported knowledge base log version: " + version);
+
+			long pos = HEADER_SIZE;
+			ByteBuffer head = ByteBuffer.allocate(2 * Integer.BYTES);
+			while (pos < size) {
+				head.clear();
+				if (read(ch, head, pos) < head.capacity())
+					break;
+				int length = head.getInt(0);
+				if ((length <= 0) || (length > size - pos - head.capacity()))
+					break;
+				ByteBuffer data = ByteBuffer.allocate(length);
+				read(ch, data, pos + head.capacity());
+				CRC32 crc = new CRC32();
+				crc.update(data.array());
+				if ((int) crc.getValue() != head.getInt(Integer.BYTES))
+					break;
+
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array()));
+				switch (in.readByte()) {
+				case CREATE_DOMAIN:
+					kb.createDomain(readString(in));
+					break;
+				case DROP_DOMAIN:
+					kb.dropDomain(readString(in));
+					break;
+				case INSERT:
+					String domain = readString(in);
+					String text = readString(in);
+					String model = readString(in);
+					float[] v = new float[in.readInt()];
+					for (int i = 0; i < v.length; ++i)
+						v[i] = in.readFloat();
+					EmbeddedText e = new EmbeddedText(text, v, model);
+					int len = in.readInt();
+					if (len >= 0) {
+						byte[] bytes = new byte[len];
+						in.readFully(bytes);
+						try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+							for (Map.Entry<String, Object> p : ((Map<String, Object>) ois.readObject()).entrySet())
+								e.set(p.getKey(), p.getValue());
+						} catch (ClassNotFoundException ex) {
+							throw new IOException(ex);
+						}
+					}
+					kb.insert(domain, e);
+					break;
+				case DELETE:
+					if (in.readBoolean())
+						kb.delete(readString(in), readString(in));
+					else
+						kb.delete(readString(in));
+					break;
+				case DROP:
+					kb.drop();
+					break;
+				default:
+					throw new IOException("Invalid record in knowledge base log at position " + pos);
+				}
+
+				++count;
+				pos += head.capacity() + length;
+			}
+
+			if (pos < size) // Discard invalid tail
+				ch.truncate(pos);
+		}
+
+		return count;
+	}
+
+	private static int read(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+		int total = 0;
+		while (b.hasRemaining()) {
+			int n = ch.read(b, pos + total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+}
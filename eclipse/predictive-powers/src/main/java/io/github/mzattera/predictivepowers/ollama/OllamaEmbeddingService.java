@@ -18,7 +18,8 @@ package io.github.mzattera.predictivepowers.ollama;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.github.mzattera.ollama.client.model.EmbedRequest;
 import io.github.mzattera.ollama.client.model.EmbedResponse;
@@ -27,6 +28,7 @@ import io.github.mzattera.predictivepowers.services.AbstractEmbeddingService;
 import io.github.mzattera.predictivepowers.services.EmbeddedText;
 import io.github.mzattera.predictivepowers.services.ModelService;
 import io.github.mzattera.predictivepowers.services.ModelService.Tokenizer;
+import io.github.mzattera.predictivepowers.services.messages.JsonSchema;
 import io.github.mzattera.predictivepowers.util.ChunkUtil;
 import lombok.Getter;
 import lombok.NonNull;
@@ -75,6 +77,18 @@ public class OllamaEmbeddingService extends AbstractEmbeddingService {
 		defaultRequest.setModel(model);
 	}
 
+	/**
+	 * @return Parameters in {@link #getDefaultRequest()}, except model and input,
+	 *         as JSON; any of them might affect the returned embeddings.
+	 */
+	@Override
+	public String getEmbeddingSettings() {
+		ObjectNode json = JsonSchema.JSON_MAPPER.valueToTree(defaultRequest);
+		json.remove("model");
+		json.remove("input");
+		return json.toString();
+	}
+
 	protected OllamaEmbeddingService(OllamaEndpoint ep) {
 		this(ep, DEFAULT_MODEL);
 	}
@@ -107,47 +121,40 @@ public class OllamaEmbeddingService extends AbstractEmbeddingService {
 				chunks = tmp;
 			}
 
-			// Embed as many pieces you can in a single call
-			List<String> input = new ArrayList<>();
-			List<EmbeddedText> result = new ArrayList<>();
-			while (chunks.size() > 0) {
-				input.add(chunks.remove(0));
-				if (input.size() == MAX_INPUTS_PER_CALL) {
-					// too many tokens, embed what you have
-					result.addAll(embed(input));
-					input.clear();
-				}
-			}
-
-			// last bit
-			if (input.size() > 0) {
-				result.addAll(embed(input));
-			}
+			// Put as many pieces as you can in a single call
+			List<List<String>> batches = new ArrayList<>();
+			for (int i = 0; i < chunks.size(); i += MAX_INPUTS_PER_CALL)
+				batches.add(chunks.subList(i, Math.min(chunks.size(), i + MAX_INPUTS_PER_CALL)));
 
-			return result;
+			return embedBatches(batches, this::embed);
 		} catch (Exception e) {
 			throw OllamaUtil.toEndpointException(e);
 		}
 	}
 
-	private List<EmbeddedText> embed(List<String> input) {
-
-		defaultRequest.setInput(input);
-		EmbedResponse resp = endpoint.getClient().embed(defaultRequest);
+	private List<EmbeddedText> embed(List<String> input) throws EndpointException {
 
-		if (resp.getEmbeddings().size() != input.size())
-			throw new EndpointException("Number of embeddings does not match number of input strings");
+		try {
+			// Batches can be embedded concurrently, so each needs its own request
+			EmbedRequest req = JsonSchema.JSON_MAPPER.convertValue(defaultRequest, EmbedRequest.class);
+			req.setInput(input);
+			EmbedResponse resp = endpoint.getClient().embed(req);
+
+			if (resp.getEmbeddings().size() != input.size())
+				throw new EndpointException("Number of embeddings does not match number of input strings");
+
+			List<EmbeddedText> result = new ArrayList<>(input.size());
+			for (int i = 0; i < input.size(); ++i) {
+				EmbeddedText emb = EmbeddedText.builder() //
+						.vector(EmbeddedText.toVector(resp.getEmbeddings().get(i))) //
+						.model(req.getModel()) //
+						.text(input.get(i)).build();
+				result.add(emb);
+			}
 
-		List<EmbeddedText> result = new ArrayList<>(input.size());
-		for (int i = 0; i < input.size(); ++i) {
-			EmbeddedText emb = EmbeddedText.builder() //
-					.embedding(resp.getEmbeddings().get(i).stream().map(f -> Double.valueOf(f))
-							.collect(Collectors.toList())) //
-					.model(defaultRequest.getModel()) //
-					.text(input.get(i)).build();
-			result.add(emb);
+			return result;
+		} catch (Exception e) {
+			throw OllamaUtil.toEndpointException(e);
 		}
-
-		return result;
 	}
 }
@@ -18,7 +18,6 @@ package io.github.mzattera.predictivepowers.openai;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +50,21 @@ public class OpenAiEmbeddingService extends AbstractEmbeddingService {
 
 	public static final String DEFAULT_MODEL = "text-embedding-3-small";
 
+	/** How many strings we can embed at once */
+	public static final int MAX_INPUTS_PER_CALL = 2048;
+
+	/**
+	 * How many tokens we embed at once. The API allows 300K tokens, but somehow
+	 * the prompt token calculation counts even more tokens; 128K seems to provide
+	 * a very safe limit.
+	 * 
+	 * https://platform.openai.com/docs/api-reference/embeddings/create
+	 */
+	public static final int MAX_TOKENS_PER_CALL = 128_000;
+
+	/** Tokens added to each input when computing its size */
+	public static final int TOKENS_OVERHEAD_PER_INPUT = 20;
+
 	@NonNull
 	@Getter
 	protected final OpenAiEndpoint endpoint;
@@ -79,6 +93,14 @@ public class OpenAiEmbeddingService extends AbstractEmbeddingService {
 		defaultRequest = defaultRequest.toBuilder().model(model).build();
 	}
 
+	/**
+	 * @return The vector size requested in {@link #getDefaultRequest()}, if any.
+	 */
+	@Override
+	public String getEmbeddingSettings() {
+		return defaultRequest.dimensions().map(d -> "dimensions=" + d).orElse("");
+	}
+
 	protected OpenAiEmbeddingService(OpenAiEndpoint ep) {
 		this(ep, DEFAULT_MODEL);
 	}
@@ -114,58 +136,70 @@ public class OpenAiEmbeddingService extends AbstractEmbeddingService {
 
 			// Notice ChunkUtil removes empty strings already
 
-			// Embed as many pieces you can in a single call
-			List<String> input = new ArrayList<>();
-			List<EmbeddedText> result = new ArrayList<>();
-			StringBuilder sb = new StringBuilder();
-			while (chunks.size() > 0) {
-				String s = chunks.remove(0);
-
-				sb.append(s);
-				// We have at most 2048 inputs or 300K tokens (with a 20tk overhead per input)
-				// ..somehow the prompt token calculation counts even more tokens; 128K seems to
-				// provide a very safe limit
-				// https://platform.openai.com/docs/api-reference/embeddings/create
-				if ((input.size() == 2048) || ((tokenizer.count(sb.toString()) + 20 * input.size()) > 128_000)) {
-					// too many tokens, embed what you have
-					result.addAll(embed(input));
-					input.clear();
-					sb.setLength(0);
-					sb.append(s);
-				}
-
-				// add to next request
-				input.add(s);
-			}
-
-			// last bit
-			if (input.size() > 0) {
-				result.addAll(embed(input));
-			}
+			// Put as many pieces as you can in a single call
+			List<List<String>> batches = pack(chunks, tokenizer);
 
-			return result;
+			return embedBatches(batches, this::embed);
 		} catch (Exception e) {
 			throw OpenAiUtil.toEndpointException(e);
 		}
 	}
 
-	private List<EmbeddedText> embed(List<String> input) {
+	/**
+	 * Packs given chunks in batches, each to be embedded with a single call, in
+	 * the same order. Each chunk is tokenized only once; a new batch is started
+	 * when adding the next chunk would exceed {@link #MAX_INPUTS_PER_CALL} inputs
+	 * or {@link #MAX_TOKENS_PER_CALL} tokens.
+	 */
+	static List<List<String>> pack(List<String> chunks, Tokenizer tokenizer) {
+		List<List<String>> batches = new ArrayList<>();
+		List<String> input = new ArrayList<>();
+		long tokens = 0, total = 0;
+		for (String s : chunks) {
+			int n = tokenizer.count(s);
+			if (!input.isEmpty() && ((input.size() == MAX_INPUTS_PER_CALL)
+					|| ((tokens + n + TOKENS_OVERHEAD_PER_INPUT * input.size()) > MAX_TOKENS_PER_CALL))) {
+				// too many tokens, next call
+				batches.add(input);
+				input = new ArrayList<>();
+				tokens = 0;
+			}
+			input.add(s);
+			tokens += n;
+			total += n;
+		}
+		if (!input.isEmpty())
+			batches.add(input);
 
-		List<EmbeddedText> result = new ArrayList<>();
+		if (LOG.isDebugEnabled() && !batches.isEmpty())
+			LOG.debug(String.format("Packed %d chunks in %d batches: %.1f inputs and %.1f%% of token limit per batch",
+					chunks.size(), batches.size(), ((double) chunks.size()) / batches.size(),
+					100.0 * total / (batches.size() * (double) MAX_TOKENS_PER_CALL)));
 
-		EmbeddingCreateParams req = defaultRequest.toBuilder().inputOfArrayOfStrings(input).build();
-		CreateEmbeddingResponse res = endpoint.getClient().embeddings().create(req);
-		LOG.info("Called OpenAI Embedding Service: " + res.usage());
+		return batches;
+	}
 
-		for (Embedding e : res.data()) {
-			int index = (int) e.index();
-			EmbeddedText et = EmbeddedText.builder() //
-					.text(input.get(index)) //
-					.embedding(e.embedding().stream().map(f -> f.doubleValue()).collect(Collectors.toList())) //
-					.model(res.model()).build();
-			result.add(et);
-		}
+	private List<EmbeddedText> embed(List<String> input) throws EndpointException {
 
-		return result;
+		try {
+			List<EmbeddedText> result = new ArrayList<>();
+
+			EmbeddingCreateParams req = defaultRequest.toBuilder().inputOfArrayOfStrings(input).build();
+			CreateEmbeddingResponse res = endpoint.getClient().embeddings().create(req);
+			LOG.info("Called OpenAI Embedding Service: " + res.usage());
+
+			for (Embedding e : res.data()) {
+				int index = (int) e.index();
+				EmbeddedText et = EmbeddedText.builder() //
+						.text(input.get(index)) //
+						.vector(EmbeddedText.toVector(e.embedding())) //
+						.model(res.model()).build();
+				result.add(et);
+			}
+
+			return result;
+		} catch (Exception e) {
+			throw OpenAiUtil.toEndpointException(e);
+		}
 	}
 }
@@ -19,12 +19,25 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.github.mzattera.predictivepowers.EndpointException;
+import io.github.mzattera.predictivepowers.RestException;
 import io.github.mzattera.predictivepowers.util.ExtractionUtil;
 import lombok.AccessLevel;
 import lombok.Getter;
@@ -44,6 +57,13 @@ import lombok.Setter;
 @RequiredArgsConstructor(access = AccessLevel.PROTECTED)
 public abstract class AbstractEmbeddingService implements EmbeddingService {
 
+	private final static Logger LOG = LoggerFactory.getLogger(AbstractEmbeddingService.class);
+
+	/** Delay before a failed batch is retried the first time; it doubles at each retry */
+	public static final long RETRY_DELAY_MILLIS = 1000;
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
 	@NonNull
 	@Getter
 	@Setter
@@ -61,6 +81,153 @@ public abstract class AbstractEmbeddingService implements EmbeddingService {
 		this.defaultChunkTokens = defaultTokens;
 	}
 
+	/**
+	 * Maximum number of calls to the embedding endpoint that can be in flight at
+	 * the same time, when the text to embed must be sent in several batches. If
+	 * this is 1 (the default), batches are sent one after the other.
+	 */
+	@Getter
+	private int maxConcurrentRequests = 1;
+
+	/**
+	 * Maximum number of calls to the embedding endpoint that can be in flight at
+	 * the same time, when the text to embed must be sent in several batches. If
+	 * this is 1 (the default), batches are sent one after the other.
+	 */
+	public synchronized void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1)
+			throw new IllegalArgumentException(
+					"At least one request must be allowed in flight: " + maxConcurrentRequests);
+
+		if (executor != null) {
+			if (maxConcurrentRequests > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(maxConcurrentRequests);
+				executor.setCorePoolSize(maxConcurrentRequests);
+			} else {
+				executor.setCorePoolSize(maxConcurrentRequests);
+				executor.setMaximumPoolSize(maxConcurrentRequests);
+			}
+		}
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+
+	/**
+	 * Threads sending batches concurrently, shared by all calls to this service;
+	 * created when first needed and shut down by {@link #close()}.
+	 */
+	private ThreadPoolExecutor executor;
+
+	private synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), r -> {
+						Thread t = new Thread(r, "embedding-batch-" + THREAD_COUNT.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * How many times a batch of text is sent again to the embedding endpoint, if
+	 * embedding it failed because of a transient error (see
+	 * {@link #isTransient(Throwable)}). Default is 0 (failures are not retried).
+	 */
+	@Getter
+	private int maxRetries = 0;
+
+	/**
+	 * How many times a batch of text is sent again to the embedding endpoint, if
+	 * embedding it failed because of a transient error (see
+	 * {@link #isTransient(Throwable)}). Default is 0 (failures are not retried).
+	 */
+	public void setMaxRetries(int maxRetries) {
+		if (maxRetries < 0)
+			throw new IllegalArgumentException("Number of retries cannot be negative: " + maxRetries);
+
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Embeds given batches of text, sending up to
+	 * {@link #getMaxConcurrentRequests()} of them at the same time. Each batch
+	 * failing with a transient error is retried up to {@link #getMaxRetries()}
+	 * times; if it still fails, or it fails with any other error, batches not yet
+	 * sent are cancelled and its error is thrown.
+	 * 
+	 * @param batches Batches of text, each to be embedded with a single call.
+	 * @param embed   Function embedding a single batch; it will be called
+	 *                concurrently, so it must be thread safe.
+	 * @return Embeddings for all batches, in the same order as the batches.
+	 */
+	protected List<EmbeddedText> embedBatches(List<List<String>> batches,
+			Function<List<String>, List<EmbeddedText>> embed) throws Exception {
+
+		List<EmbeddedText> result = new ArrayList<>();
+		if ((maxConcurrentRequests == 1) || (batches.size() < 2)) {
+			for (List<String> batch : batches)
+				result.addAll(embedWithRetries(batch, embed));
+			return result;
+		}
+
+		ThreadPoolExecutor executor = getExecutor();
+		List<Future<List<EmbeddedText>>> futures = new ArrayList<>(batches.size());
+		try {
+			for (List<String> batch : batches)
+				futures.add(executor.submit(() -> embedWithRetries(batch, embed)));
+
+			// Results are collected in batch order
+			for (Future<List<EmbeddedText>> f : futures)
+				result.addAll(f.get());
+			return result;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		} finally {
+			for (Future<List<EmbeddedText>> f : futures) // No-op if all batches completed
+				f.cancel(true);
+		}
+	}
+
+	private List<EmbeddedText> embedWithRetries(List<String> batch, Function<List<String>, List<EmbeddedText>> embed)
+			throws InterruptedException {
+		for (int retry = 0;; ++retry) {
+			try {
+				return embed.apply(batch);
+			} catch (RuntimeException e) {
+				if ((retry >= maxRetries) || !isTransient(e))
+					throw e;
+				LOG.warn("Error embedding batch of " + batch.size() + " texts, retrying", e);
+				Thread.sleep(RETRY_DELAY_MILLIS << Math.min(retry, 10));
+			}
+		}
+	}
+
+	/**
+	 * Decides whether a failed call to the embedding endpoint is worth retrying.
+	 * 
+	 * @return True if given error, or any of its causes, shows the endpoint was
+	 *         rate limited (HTTP 429) or failed (HTTP 5xx), or the call failed
+	 *         because of an I/O error or a timeout. Other HTTP errors (e.g. 400
+	 *         or 401) are not transient, as sending the same request again would
+	 *         fail again.
+	 */
+	protected static boolean isTransient(Throwable t) {
+		for (Throwable c = t; c != null; c = (c.getCause() == c) ? null : c.getCause()) {
+			if (c instanceof RestException) {
+				int code = ((RestException) c).getStatusCode();
+				if (code > 0) // -1 or 0 if no response was received; look at the cause
+					return (code == 429) || (code >= 500);
+			}
+			if ((c instanceof IOException) || (c instanceof TimeoutException))
+				return true;
+		}
+		return false;
+	}
+
 	@Override
 	public List<EmbeddedText> embed(@NonNull String text) throws EndpointException {
 		return embed(text, defaultChunkTokens, 1, 1);
@@ -149,6 +316,10 @@ public abstract class AbstractEmbeddingService implements EmbeddingService {
 	}
 
 	@Override
-	public void close() {
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
 	}
 }
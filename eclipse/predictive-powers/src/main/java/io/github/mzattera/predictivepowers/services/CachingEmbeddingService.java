@@ -0,0 +1,634 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mzattera.predictivepowers.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.mzattera.predictivepowers.AiEndpoint;
+import io.github.mzattera.predictivepowers.EndpointException;
+import io.github.mzattera.predictivepowers.services.ModelService.Tokenizer;
+import io.github.mzattera.predictivepowers.util.ChunkUtil;
+import io.github.mzattera.predictivepowers.util.SimpleTokenizer;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * An {@link EmbeddingService} that caches embeddings created by another
+ * service, so that the same text is never embedded twice.
+ *
+ * Text is chunked as the wrapped service would do; each chunk is then looked up
+ * in the cache, using as key a hash of the model, of the other settings of the
+ * wrapped service affecting embeddings (see
+ * {@link EmbeddingService#getEmbeddingSettings()}), and of the chunk text, after
+ * normalizing its white spaces. Only chunks not in the cache are sent to the
+ * wrapped service; embeddings are returned in the same order the wrapped
+ * service would return them.
+ *
+ * Recently used embeddings are kept in memory, up to a maximum number, least
+ * recently used ones being evicted first. Optionally, embeddings can also be
+ * stored in a folder, one file per embedding, so that they survive between
+ * runs. The folder is bounded in size too: when it grows bigger than its
+ * maximum size, least recently used embeddings are deleted from it, using the
+ * last modification time of their files, which is updated each time they are
+ * read. The folder can be emptied with {@link #clear()}.
+ *
+ * This class is thread safe, provided the wrapped service is.
+ *
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class CachingEmbeddingService extends AbstractEmbeddingService {
+
+	private final static Logger LOG = LoggerFactory.getLogger(CachingEmbeddingService.class);
+
+	/**
+	 * Tokenizer used to chunk text when the model service of the wrapped service
+	 * does not provide one.
+	 */
+	public static final Tokenizer FALLBACK_TOKENIZER = new SimpleTokenizer(2.5);
+
+	/** "PPEC" */
+	private static final int MAGIC = 0x43455050;
+
+	private static final int VERSION = 1;
+
+	/** Default maximum size of the cache folder, in bytes (1 GiB) */
+	public static final long DEFAULT_MAX_FOLDER_BYTES = 1L << 30;
+
+	/**
+	 * When the cache folder is full, embeddings are deleted until its size is
+	 * this share of its maximum size, so that it is not pruned at each write.
+	 */
+	private static final double PRUNE_RATIO = 0.9;
+
+	private static final Pattern WHITE_SPACES = Pattern.compile("\\s+");
+
+	/** The service creating embeddings missing from the cache */
+	@Getter
+	@NonNull
+	private final EmbeddingService service;
+
+	/** Maximum number of embeddings kept in memory */
+	@Getter
+	private final int maxEntries;
+
+	/** Folder where embeddings are stored, or null if they are kept only in memory */
+	@Getter
+	private final File folder;
+
+	/** Maximum size of the embeddings stored in {@link #folder}, in bytes */
+	@Getter
+	private final long maxFolderBytes;
+
+	/** Approximate size of the embeddings stored in {@link #folder}, in bytes */
+	private final AtomicLong folderBytes = new AtomicLong();
+
+	/** Embeddings in memory, by key, in access order */
+	private final LinkedHashMap<String, EmbeddedText> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a cache that keeps embeddings only in memory.
+	 *
+	 * @param service    The service creating embeddings missing from the cache.
+	 * @param maxEntries Maximum number of embeddings kept in memory.
+	 */
+	public CachingEmbeddingService(@NonNull EmbeddingService service, int maxEntries) {
+		this(service, maxEntries, null);
+	}
+
+	/**
+	 * Creates a cache that keeps recently used embeddings in memory and stores
+	 * them in given folder, up to {@link #DEFAULT_MAX_FOLDER_BYTES}.
+	 *
+	 * @param service    The service creating embeddings missing from the cache.
+	 * @param maxEntries Maximum number of embeddings kept in memory.
+	 * @param folder     Folder where embeddings are stored; it is created if it
+	 *                   does not exist. If null, embeddings are kept only in
+	 *                   memory.
+	 */
+	public CachingEmbeddingService(@NonNull EmbeddingService service, int maxEntries, File folder) {
+		this(service, maxEntries, folder, DEFAULT_MAX_FOLDER_BYTES);
+	}
+
+	/**
+	 * Creates a cache that keeps recently used embeddings in memory and stores
+	 * them in given folder, up to given size.
+	 *
+	 * @param service        The service creating embeddings missing from the
+	 *                       cache.
+	 * @param maxEntries     Maximum number of embeddings kept in memory.
+	 * @param folder         Folder where embeddings are stored; it is created if
+	 *                       it does not exist. If null, embeddings are kept only
+	 *                       in memory.
+	 * @param maxFolderBytes Maximum size of the embeddings stored in the folder,
+	 *                       in bytes.
+	 */
+	public CachingEmbeddingService(@NonNull EmbeddingService service, int maxEntries, File folder,
+			long maxFolderBytes) {
+		if (maxEntries < 0)
+			throw new IllegalArgumentException("Cache size cannot be negative: " + maxEntries);
+		if (maxFolderBytes < 1)
+			throw new IllegalArgumentException("Cache folder size must be positive: " + maxFolderBytes);
+		if ((folder != null) && !folder.isDirectory() && !folder.mkdirs())
+			throw new IllegalArgumentException("Cannot create cache folder: " + folder);
+
+		this.service = service;
+		this.maxEntries = maxEntries;
+		this.folder = folder;
+		this.maxFolderBytes = maxFolderBytes;
+		if (folder != null) {
+			try {
+				for (File f : stored())
+					folderBytes.addAndGet(f.length());
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Cannot read cache folder: " + folder, e);
+			}
+		}
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, EmbeddedText> eldest) {
+				if (size() <= CachingEmbeddingService.this.maxEntries)
+					return false;
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+		super.setDefaultChunkTokens(service.getDefaultChunkTokens());
+		if (service instanceof AbstractEmbeddingService) {
+			super.setMaxConcurrentRequests(((AbstractEmbeddingService) service).getMaxConcurrentRequests());
+			super.setMaxRetries(((AbstractEmbeddingService) service).getMaxRetries());
+		}
+	}
+
+	@Override
+	public AiEndpoint getEndpoint() {
+		return service.getEndpoint();
+	}
+
+	@Override
+	public String getModel() {
+		return service.getModel();
+	}
+
+	@Override
+	public void setModel(@NonNull String model) {
+		service.setModel(model);
+	}
+
+	@Override
+	public String getEmbeddingSettings() {
+		return service.getEmbeddingSettings();
+	}
+
+	@Override
+	public void setDefaultChunkTokens(int defaultTokens) {
+		super.setDefaultChunkTokens(defaultTokens);
+		service.setDefaultChunkTokens(defaultTokens);
+	}
+
+	/**
+	 * Also sets the value for the wrapped service, if it supports concurrent
+	 * requests.
+	 */
+	@Override
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		super.setMaxConcurrentRequests(maxConcurrentRequests);
+		if (service instanceof AbstractEmbeddingService)
+			((AbstractEmbeddingService) service).setMaxConcurrentRequests(maxConcurrentRequests);
+	}
+
+	/**
+	 * Also sets the value for the wrapped service, if it supports retries.
+	 */
+	@Override
+	public void setMaxRetries(int maxRetries) {
+		super.setMaxRetries(maxRetries);
+		if (service instanceof AbstractEmbeddingService)
+			((AbstractEmbeddingService) service).setMaxRetries(maxRetries);
+	}
+
+	/**
+	 * @return Number of chunks whose embedding was found in the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of chunks that had to be embedded by the wrapped service.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of embeddings evicted from memory, because the cache was
+	 *         full.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return Number of embeddings currently in memory.
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Sets hit, miss and eviction counters to 0.
+	 */
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	/**
+	 * Removes all embeddings from the cache, including those stored on disk.
+	 */
+	public void clear() throws IOException {
+		synchronized (entries) {
+			entries.clear();
+		}
+		if (folder == null)
+			return;
+		for (File dir : list(folder)) {
+			if (!dir.isDirectory())
+				continue;
+			for (File f : list(dir))
+				Files.deleteIfExists(f.toPath());
+			Files.deleteIfExists(dir.toPath());
+		}
+		folderBytes.set(0);
+	}
+
+	@Override
+	public List<EmbeddedText> embed(@NonNull Collection<String> text, int chunkSize, int windowSize, int stride)
+			throws EndpointException {
+
+		String model = service.getModel();
+		String settings = service.getEmbeddingSettings();
+		ModelService modelService = (service.getEndpoint() == null) ? null
+				: service.getEndpoint().getModelService();
+		Tokenizer tokenizer = (modelService == null) ? FALLBACK_TOKENIZER
+				: modelService.getTokenizer(model, FALLBACK_TOKENIZER);
+
+		// Chunk accordingly to user's instructions
+		List<String> chunks = new ArrayList<>();
+		for (String t : text)
+			chunks.addAll(ChunkUtil.split(t, chunkSize, windowSize, stride, tokenizer));
+
+		// Make sure no chunk is bigger than model's supported size
+		int modelSize = (modelService == null) ? -1 : modelService.getContextSize(model, -1);
+		if (modelSize > 0) {
+			List<String> tmp = new ArrayList<>(chunks.size() * 2);
+			for (String c : chunks)
+				tmp.addAll(ChunkUtil.split(c, modelSize, tokenizer));
+			chunks = tmp;
+		}
+
+		// Serve what we can from the cache; positions of missing chunks are grouped
+		// by key, so chunks repeated in the input are embedded only once
+		EmbeddedText[] result = new EmbeddedText[chunks.size()];
+		Map<String, List<Integer>> missing = new LinkedHashMap<>();
+		for (int i = 0; i < result.length; ++i) {
+			String key = key(model, settings, chunks.get(i));
+			EmbeddedText e = get(key);
+			if (e == null) {
+				missing.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+			} else {
+				hits.incrementAndGet();
+				result[i] = copy(e, chunks.get(i));
+			}
+		}
+		if (missing.isEmpty())
+			return Arrays.asList(result);
+
+		// Chunks are already of the right size, so the service should not split them
+		List<String> input = new ArrayList<>(missing.size());
+		for (List<Integer> positions : missing.values())
+			input.add(chunks.get(positions.get(0)));
+		List<EmbeddedText> embedded = service.embed(input, Integer.MAX_VALUE, 1, 1);
+		List<List<EmbeddedText>> pieces;
+		if (embedded.size() == input.size()) {
+			pieces = new ArrayList<>(input.size());
+			for (EmbeddedText e : embedded)
+				pieces.add(List.of(e));
+		} else if (input.size() == 1) {
+			pieces = List.of(embedded);
+		} else {
+			// The service split some chunk, find which embeddings come from each chunk
+			pieces = ChunkUtil.align(input, embedded);
+			int unaligned = Collections.frequency(pieces, null);
+			if (unaligned > 0)
+				LOG.warn("Embedding service returned " + embedded.size() + " embeddings for " + input.size()
+						+ " chunks; embedding " + unaligned + " of them one at a time.");
+		}
+
+		// Positions of chunks that the service split, with their embeddings
+		Map<Integer, List<EmbeddedText>> split = new HashMap<>();
+		int n = 0;
+		for (Map.Entry<String, List<Integer>> m : missing.entrySet()) {
+			List<EmbeddedText> e = pieces.get(n);
+			if (e == null) // Cannot tell which embeddings come from this chunk
+				e = service.embed(List.of(input.get(n)), Integer.MAX_VALUE, 1, 1);
+			++n;
+			misses.incrementAndGet();
+			hits.addAndGet(m.getValue().size() - 1);
+			if (e.size() == 1) {
+				put(m.getKey(), e.get(0));
+				for (int i : m.getValue())
+					result[i] = copy(e.get(0), chunks.get(i));
+			} else { // Not cached, as it would not be returned in one piece
+				for (int i : m.getValue())
+					split.put(i, e);
+			}
+		}
+		if (split.isEmpty())
+			return Arrays.asList(result);
+
+		List<EmbeddedText> all = new ArrayList<>(result.length + split.size());
+		for (int i = 0; i < result.length; ++i) {
+			if (split.containsKey(i)) {
+				for (EmbeddedText e : split.get(i))
+					all.add(copy(e, e.getText()));
+			} else {
+				all.add(result[i]);
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Closes the wrapped service.
+	 */
+	@Override
+	public void close() throws EndpointException {
+		try {
+			service.close();
+		} finally {
+			super.close();
+		}
+	}
+
+	private static File[] list(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list folder: " + dir);
+		return files;
+	}
+
+	/**
+	 * @return Files of the embeddings stored in {@link #folder}.
+	 */
+	private List<File> stored() throws IOException {
+		List<File> result = new ArrayList<>();
+		for (File dir : list(folder)) {
+			if (!dir.isDirectory())
+				continue;
+			for (File f : list(dir)) {
+				if (f.getName().endsWith(".bin"))
+					result.add(f);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Deletes least recently used embeddings from {@link #folder} until its size
+	 * is {@link #PRUNE_RATIO} of its maximum size.
+	 */
+	private void prune() {
+		synchronized (folderBytes) {
+			if (folderBytes.get() <= maxFolderBytes)
+				return; // Pruned by another thread in the meantime
+
+			try {
+				List<File> files = stored();
+				Map<File, Long> used = new HashMap<>(files.size() * 2);
+				long size = 0;
+				for (File f : files) {
+					used.put(f, f.lastModified());
+					size += f.length();
+				}
+				files.sort((f1, f2) -> Long.compare(used.get(f1), used.get(f2)));
+
+				long target = (long) (maxFolderBytes * PRUNE_RATIO);
+				int deleted = 0;
+				for (File f : files) {
+					if (size <= target)
+						break;
+					long length = f.length();
+					if (Files.deleteIfExists(f.toPath())) {
+						size -= length;
+						++deleted;
+					}
+				}
+				folderBytes.set(size);
+				LOG.info("Deleted " + deleted + " least recently used embeddings from cache folder " + folder);
+			} catch (IOException x) {
+				LOG.warn("Error pruning cache folder " + folder, x);
+			}
+		}
+	}
+
+	/**
+	 * @return The embedding with given key, looking first in memory then on disk,
+	 *         or null if it is not in the cache. Embeddings must not be changed.
+	 */
+	private EmbeddedText get(String key) {
+		synchronized (entries) {
+			EmbeddedText e = entries.get(key);
+			if (e != null)
+				return e;
+		}
+
+		if (folder == null)
+			return null;
+		File f = file(key);
+		if (!f.isFile())
+			return null;
+		EmbeddedText e;
+		try {
+			e = read(f);
+			f.setLastModified(System.currentTimeMillis()); // Marks it as recently used
+		} catch (IOException x) {
+			LOG.warn("Error reading cached embedding " + f, x);
+			return null;
+		}
+		synchronized (entries) {
+			entries.put(key, e);
+		}
+		return e;
+	}
+
+	/**
+	 * Adds given embedding to the cache. The embedding must not be changed
+	 * afterwards.
+	 */
+	private void put(String key, EmbeddedText e) {
+		synchronized (entries) {
+			entries.put(key, e);
+		}
+		if (folder != null) {
+			File f = file(key);
+			try {
+				write(f, e);
+			} catch (IOException x) {
+				LOG.warn("Error storing embedding in cache", x);
+				return;
+			}
+			if (folderBytes.addAndGet(f.length()) > maxFolderBytes)
+				prune();
+		}
+	}
+
+	/**
+	 * @return Key for given text, when embedded with given model and settings
+	 *         (see {@link EmbeddingService#getEmbeddingSettings()}).
+	 */
+	static String key(String model, String settings, String text) {
+		String normalized = WHITE_SPACES.matcher(Normalizer.normalize(text, Normalizer.Form.NFC)).replaceAll(" ")
+				.trim();
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(model.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			if (!settings.isEmpty()) { // So that keys created with default settings do not change
+				md.update(settings.getBytes(StandardCharsets.UTF_8));
+				md.update((byte) 0);
+			}
+			md.update(normalized.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(64);
+			for (byte b : md.digest())
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) { // Never happens, every JVM supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return File storing the embedding with given key; files are spread over
+	 *         sub-folders, so that no folder becomes too big.
+	 */
+	private File file(String key) {
+		return new File(new File(folder, key.substring(0, 2)), key + ".bin");
+	}
+
+	/**
+	 * @return A copy of given embedding, with given text.
+	 */
+	private static EmbeddedText copy(EmbeddedText e, String text) {
+		return new EmbeddedText(text, e.getVector().clone(), e.getModel());
+	}
+
+	private static EmbeddedText read(File f) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(f.toPath())))) {
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+				throw new IOException("Not a cached embedding: " + f);
+			String text = readString(in);
+			String model = readString(in);
+			float[] v = new float[in.readInt()];
+			for (int i = 0; i < v.length; ++i)
+				v[i] = in.readFloat();
+			return new EmbeddedText(text, v, model);
+		}
+	}
+
+	/**
+	 * Writes given embedding into given file. The embedding is written to a
+	 * temporary file first, which is then moved in place, so that other threads or
+	 * processes never see partially written files.
+	 */
+	private static void write(File f, EmbeddedText e) throws IOException {
+		Path target = f.toPath();
+		Files.createDirectories(target.getParent());
+		Path tmp = Files.createTempFile(target.getParent(), "embedding", ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, e.getText());
+				writeString(out, e.getModel());
+				float[] v = e.getVector();
+				out.writeInt(v.length);
+				for (float x : v)
+					out.writeFloat(x);
+			}
+
+			try {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException x) {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2023 Massimiliano "Maxi" Zattera
+ * Copyright 2023-2025 Massimiliano "Maxi" Zattera
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,13 +15,20 @@
  */
 package io.github.mzattera.predictivepowers.services;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
 
-import lombok.AllArgsConstructor;
+import io.github.mzattera.predictivepowers.util.VectorUtil;
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -37,18 +44,32 @@ import lombok.Setter;
  * Notice that two instances with same text are equal, regardless of their
  * properties, embeddings, or the model used to embed the text.
  * 
+ * The embedding is stored as a primitive <code>float[]</code>; its norm is
+ * computed once, when the embedding is set, so that similarity calculations
+ * do not need to recompute it.
+ * 
  * @author Massimiliano "Maxi" Zattera
  *
  */
 @Getter
 @Setter
 @NoArgsConstructor
-@AllArgsConstructor
-@Builder
 public class EmbeddedText implements Serializable {
 
 	private static final long serialVersionUID = -12432423425341702L;
 
+	/**
+	 * Serialized form. "embedding" is kept so that instances serialized before the
+	 * embedding was stored as primitive array can still be read.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = { //
+			new ObjectStreamField("text", String.class), //
+			new ObjectStreamField("embedding", List.class), //
+			new ObjectStreamField("model", String.class), //
+			new ObjectStreamField("properties", Map.class), //
+			new ObjectStreamField("vector", float[].class) //
+	};
+
 	/**
 	 * The piece of text that was embedded.
 	 */
@@ -58,8 +79,22 @@ public class EmbeddedText implements Serializable {
 	/**
 	 * The actual embedding of the text.
 	 */
-	@NonNull
-	private List<Double> embedding;
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	private float[] vector;
+
+	/**
+	 * Euclidean norm of the embedding.
+	 */
+	@Setter(AccessLevel.NONE)
+	private transient double norm;
+
+	/**
+	 * Lazily created {@link List} view over {@link #vector}.
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	private transient List<Double> embeddingView;
 
 	/**
 	 * Model used to embed the text.
@@ -67,7 +102,63 @@ public class EmbeddedText implements Serializable {
 	@NonNull
 	private String model;
 
-	private final Map<String, Object> properties = new HashMap<>();
+	@Setter(AccessLevel.NONE)
+	private Map<String, Object> properties = new HashMap<>();
+
+	public EmbeddedText(@NonNull String text, @NonNull List<? extends Number> embedding, @NonNull String model) {
+		this(text, null, toVector(embedding), model);
+	}
+
+	public EmbeddedText(@NonNull String text, @NonNull float[] vector, @NonNull String model) {
+		this(text, null, vector, model);
+	}
+
+	@Builder
+	private EmbeddedText(@NonNull String text, List<? extends Number> embedding, float[] vector,
+			@NonNull String model) {
+		if ((embedding == null) == (vector == null))
+			throw new IllegalArgumentException("Exactly one between embedding and vector must be provided");
+
+		this.text = text;
+		this.model = model;
+		setVector(vector == null ? toVector(embedding) : vector);
+	}
+
+	/**
+	 * @return The actual embedding of the text, as a {@link List} view over the
+	 *         underlying primitive array. The view is created lazily and allows
+	 *         changing single values but not adding or removing them.
+	 */
+	public List<Double> getEmbedding() {
+		if (embeddingView == null)
+			embeddingView = new EmbeddingView();
+		return embeddingView;
+	}
+
+	/**
+	 * Sets the embedding of the text.
+	 */
+	public void setEmbedding(@NonNull List<? extends Number> embedding) {
+		setVector(toVector(embedding));
+	}
+
+	/**
+	 * @return The actual embedding of the text. Notice this is the array used
+	 *         internally to store the embedding, for performance reasons; it must
+	 *         be treated as read-only.
+	 */
+	public float[] getVector() {
+		return vector;
+	}
+
+	/**
+	 * Sets the embedding of the text. Notice the array is used directly to store
+	 * the embedding, without copying it; it must not be changed after this call.
+	 */
+	public void setVector(@NonNull float[] vector) {
+		this.vector = vector;
+		this.norm = VectorUtil.norm(vector);
+	}
 
 	/**
 	 * 
@@ -119,23 +210,25 @@ public class EmbeddedText implements Serializable {
 		if (!a.model.equals(b.model))
 			throw new IllegalArgumentException(
 					"Embedding from two different models [" + a.model + ", " + b.model + "]");
-		if (a.embedding.size() != b.embedding.size())
+		float[] av = a.getVector();
+		float[] bv = b.getVector();
+		if (av.length != bv.length)
 			throw new IllegalArgumentException(
-					"Embedding with different size [" + a.embedding.size() + ", " + b.embedding.size() + "]");
-
-		double a2 = 0.0, b2 = 0.0, ab = 0.0;
-		for (int i = 0; i < a.embedding.size(); ++i) {
-			a2 += a.embedding.get(i) * a.embedding.get(i);
-			b2 += b.embedding.get(i) * b.embedding.get(i);
-			ab += a.embedding.get(i) * b.embedding.get(i);
-		}
+					"Embedding with different size [" + av.length + ", " + bv.length + "]");
 
-		double similarity = ab / Math.sqrt(a2 * b2);
-		if (!Double.isFinite(similarity))
-			return -1.0d; // Sometimes vectors are too small
+		return VectorUtil.cosine(VectorUtil.dot(av, bv), a.getNorm(), b.getNorm());
+	}
 
-		// Fix rounding errors, eventually
-		return Math.max(Math.min(similarity, 1.0d), -1.0d);
+	/**
+	 * Converts a list of numbers (e.g. as returned by an embedding API) into the
+	 * primitive array used to store embeddings.
+	 */
+	public static float[] toVector(@NonNull List<? extends Number> embedding) {
+		float[] result = new float[embedding.size()];
+		int i = 0;
+		for (Number n : embedding)
+			result[i++] = n.floatValue();
+		return result;
 	}
 
 	@Override
@@ -165,4 +258,54 @@ public class EmbeddedText implements Serializable {
 		builder.append("]");
 		return builder.toString();
 	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("text", text);
+		fields.put("model", model);
+		fields.put("properties", properties);
+		fields.put("vector", vector);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		text = (String) fields.get("text", null);
+		model = (String) fields.get("model", null);
+		Map<String, Object> p = (Map<String, Object>) fields.get("properties", null);
+		properties = (p == null) ? new HashMap<>() : p;
+
+		float[] v = (float[]) fields.get("vector", null);
+		if (v == null) {
+			// Older serialized form
+			List<? extends Number> l = (List<? extends Number>) fields.get("embedding", null);
+			v = (l == null) ? new float[0] : toVector(l);
+		}
+		setVector(v);
+	}
+
+	/**
+	 * {@link List} view over the primitive array storing the embedding.
+	 */
+	private final class EmbeddingView extends AbstractList<Double> implements RandomAccess {
+
+		@Override
+		public Double get(int index) {
+			return (double) vector[index];
+		}
+
+		@Override
+		public Double set(int index, Double element) {
+			Double old = get(index);
+			vector[index] = element.floatValue();
+			norm = VectorUtil.norm(vector);
+			return old;
+		}
+
+		@Override
+		public int size() {
+			return vector.length;
+		}
+	}
 }
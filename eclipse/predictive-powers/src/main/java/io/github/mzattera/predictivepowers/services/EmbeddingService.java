@@ -46,6 +46,19 @@ public interface EmbeddingService extends AiService {
 	 */
 	void setDefaultChunkTokens(int defaultTokens);
 
+	/**
+	 * Embeddings of the same text, created with the same model, can still differ
+	 * if the service is configured differently (e.g. when a smaller vector size
+	 * is requested).
+	 * 
+	 * @return A description of current settings of this service, other than the
+	 *         model, that affect the embeddings it returns; the empty string (the
+	 *         default) if there are none.
+	 */
+	default String getEmbeddingSettings() {
+		return "";
+	}
+
 	/**
 	 * Create embeddings for given text. Text is split in chunks of
 	 * {@link #getDefaultChunkTokens()} before it is embedded.
@@ -17,10 +17,12 @@
 package io.github.mzattera.predictivepowers.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
 import io.github.mzattera.predictivepowers.services.ModelService.Tokenizer;
 
 /**
@@ -37,6 +39,8 @@ public final class ChunkUtil {
 			Pattern.compile(";[\\s]+"), Pattern.compile(":[\\s]+"), Pattern.compile("\\,[\\s]+"),
 			Pattern.compile("[\\s]+") };
 
+	private static final Pattern WHITE_SPACES = Pattern.compile("\\s+");
+
 	private ChunkUtil() {
 	}
 
@@ -169,6 +173,78 @@ public final class ChunkUtil {
 		return trimmed;
 	}
 
+	/**
+	 * Finds which of the embeddings returned by an embedding service for given
+	 * chunks come from each chunk, for when the service split some of the chunks
+	 * further. This assumes the service returns pieces of each chunk in order,
+	 * without overlaps; pieces are recognized by their text, ignoring white spaces.
+	 * 
+	 * Chunks are matched from the start of the list, then from its end, so that
+	 * only chunks between the first and the last one that cannot be matched are
+	 * left without embeddings.
+	 * 
+	 * @return For each chunk, the embeddings for its pieces, in the order they
+	 *         were returned, or null if it cannot be told which embeddings come
+	 *         from the chunk.
+	 */
+	public static List<List<EmbeddedText>> align(List<String> chunks, List<EmbeddedText> embeddings) {
+		List<List<EmbeddedText>> result = new ArrayList<>(Collections.nCopies(chunks.size(), null));
+
+		// Match chunks from the start, consuming embeddings up to next
+		int first = 0, next = 0;
+		for (; first < chunks.size(); ++first) {
+			String text = strip(chunks.get(first));
+			List<EmbeddedText> pieces = new ArrayList<>();
+			int i = next, matched = 0;
+			do {
+				if (i == embeddings.size())
+					break;
+				String piece = strip(embeddings.get(i).getText());
+				if (!text.startsWith(piece, matched))
+					break;
+				matched += piece.length();
+				pieces.add(embeddings.get(i++));
+			} while (matched < text.length());
+			if (pieces.isEmpty() || (matched < text.length()))
+				break;
+			result.set(first, pieces);
+			next = i;
+		}
+		if (first == chunks.size()) {
+			if ((next < embeddings.size()) && (first > 0)) // Extra embeddings at the end
+				result.set(first - 1, null);
+			return result;
+		}
+
+		// Match remaining chunks from the end, consuming embeddings back to next
+		int end = embeddings.size();
+		for (int last = chunks.size() - 1; last > first; --last) {
+			String text = strip(chunks.get(last));
+			List<EmbeddedText> pieces = new ArrayList<>();
+			int i = end, matched = 0;
+			do {
+				if (i == next)
+					break;
+				String piece = strip(embeddings.get(i - 1).getText());
+				if (!text.startsWith(piece, text.length() - matched - piece.length()))
+					break;
+				matched += piece.length();
+				pieces.add(embeddings.get(--i));
+			} while (matched < text.length());
+			if (pieces.isEmpty() || (matched < text.length()))
+				break;
+			Collections.reverse(pieces);
+			result.set(last, pieces);
+			end = i;
+		}
+
+		return result;
+	}
+
+	private static String strip(String text) {
+		return WHITE_SPACES.matcher(text).replaceAll("");
+	}
+
 	/**
 	 * Re-merge adjacent tiny pieces without exceeding {@code maxTokens}. If a
 	 * single piece already exceeds {@code maxTokens}, it is kept as-is.
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.util;
+
+import lombok.NonNull;
+
+/**
+ * Kernels to compute similarity between embedding vectors.
+ * 
+ * Loops are unrolled and use several independent accumulators, which lets the
+ * JIT compiler keep multiple floating point operations in flight (and use SIMD
+ * instructions where it can) instead of waiting for each addition to complete
+ * before starting the next one. Products and sums are computed in double
+ * precision, so that rounding errors do not build up over thousands of
+ * dimensions.
+ * 
+ * Notice that, as partial sums are accumulated separately, results might
+ * differ from a naive loop in the least significant digits. Dot products
+ * computed for one or several vectors at once sum elements in the same order,
+ * so they return exactly the same result for the same pair of vectors.
+ * 
+ * @author Massimiliano "Maxi" Zattera.
+ *
+ */
+public final class VectorUtil {
+
+	/**
+	 * Length of the blocks after which {@link #boundedDot(float[], double, float[], double[], double)}
+	 * checks whether the dot product can still reach its minimum.
+	 */
+	public static final int BOUND_BLOCK = 64;
+
+	/**
+	 * Relative slack added to the bound computed by
+	 * {@link #boundedDot(float[], double, float[], double[], double)}, so that
+	 * rounding errors never cause a dot product to be abandoned when it should
+	 * not.
+	 */
+	private static final double BOUND_SLACK = 1e-5;
+
+	private VectorUtil() {
+	}
+
+	/**
+	 * @return Dot product of two vectors.
+	 * @throws IllegalArgumentException if the vectors have different length.
+	 */
+	public static double dot(@NonNull float[] a, @NonNull float[] b) {
+		if (a.length != b.length)
+			throw new IllegalArgumentException("Vectors with different size [" + a.length + ", " + b.length + "]");
+
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0, s5 = 0.0, s6 = 0.0, s7 = 0.0;
+		int i = 0;
+		for (; i + 7 < a.length; i += 8) {
+			s0 += (double) a[i] * b[i];
+			s1 += (double) a[i + 1] * b[i + 1];
+			s2 += (double) a[i + 2] * b[i + 2];
+			s3 += (double) a[i + 3] * b[i + 3];
+			s4 += (double) a[i + 4] * b[i + 4];
+			s5 += (double) a[i + 5] * b[i + 5];
+			s6 += (double) a[i + 6] * b[i + 6];
+			s7 += (double) a[i + 7] * b[i + 7];
+		}
+		for (; i < a.length; ++i)
+			s0 += (double) a[i] * b[i];
+
+		return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+	}
+
+	/**
+	 * Computes dot products between v and n vectors, whose indexes in vectors are
+	 * the first n elements of idx, storing results in the first n elements of
+	 * dots.
+	 * 
+	 * Vectors are processed two at a time, so that each element of v is read once
+	 * for both of them; this makes searching for several queries at once faster
+	 * than computing each dot product separately (processing more vectors at
+	 * once needs more accumulators than there are CPU registers). Results are
+	 * exactly the same returned by {@link #dot(float[], float[])}.
+	 * 
+	 * @throws IllegalArgumentException if the vectors have different length.
+	 */
+	public static void dot(@NonNull float[] v, @NonNull float[][] vectors, @NonNull int[] idx, int n,
+			@NonNull double[] dots) {
+		int k = 0;
+		for (; k + 1 < n; k += 2) {
+			float[] a = vectors[idx[k]];
+			float[] b = vectors[idx[k + 1]];
+			if ((a.length != v.length) || (b.length != v.length))
+				throw new IllegalArgumentException("Vectors with different size [" + v.length + ", "
+						+ ((a.length != v.length) ? a.length : b.length) + "]");
+
+			double a0 = 0.0, a1 = 0.0, a2 = 0.0, a3 = 0.0, a4 = 0.0, a5 = 0.0, a6 = 0.0, a7 = 0.0;
+			double b0 = 0.0, b1 = 0.0, b2 = 0.0, b3 = 0.0, b4 = 0.0, b5 = 0.0, b6 = 0.0, b7 = 0.0;
+			int i = 0;
+			for (; i + 7 < v.length; i += 8) {
+				double x0 = v[i], x1 = v[i + 1], x2 = v[i + 2], x3 = v[i + 3];
+				double x4 = v[i + 4], x5 = v[i + 5], x6 = v[i + 6], x7 = v[i + 7];
+				a0 += x0 * a[i];
+				a1 += x1 * a[i + 1];
+				a2 += x2 * a[i + 2];
+				a3 += x3 * a[i + 3];
+				a4 += x4 * a[i + 4];
+				a5 += x5 * a[i + 5];
+				a6 += x6 * a[i + 6];
+				a7 += x7 * a[i + 7];
+				b0 += x0 * b[i];
+				b1 += x1 * b[i + 1];
+				b2 += x2 * b[i + 2];
+				b3 += x3 * b[i + 3];
+				b4 += x4 * b[i + 4];
+				b5 += x5 * b[i + 5];
+				b6 += x6 * b[i + 6];
+				b7 += x7 * b[i + 7];
+			}
+			for (; i < v.length; ++i) {
+				double x = v[i];
+				a0 += x * a[i];
+				b0 += x * b[i];
+			}
+
+			dots[k] = ((a0 + a1) + (a2 + a3)) + ((a4 + a5) + (a6 + a7));
+			dots[k + 1] = ((b0 + b1) + (b2 + b3)) + ((b4 + b5) + (b6 + b7));
+		}
+		for (; k < n; ++k)
+			dots[k] = dot(v, vectors[idx[k]]);
+	}
+
+	/**
+	 * @return Norms of the tails of given vector, for use in
+	 *         {@link #boundedDot(float[], double, float[], double[], double)};
+	 *         element k is the norm of the elements of v starting from position
+	 *         k * {@link #BOUND_BLOCK}.
+	 */
+	public static double[] tailNorms(@NonNull float[] v) {
+		int blocks = (v.length + BOUND_BLOCK - 1) / BOUND_BLOCK;
+		double[] result = new double[blocks + 1];
+		double sq = 0.0;
+		for (int k = blocks - 1; k >= 0; --k) {
+			for (int i = k * BOUND_BLOCK; i < Math.min(v.length, (k + 1) * BOUND_BLOCK); ++i)
+				sq += (double) v[i] * v[i];
+			result[k] = Math.sqrt(sq);
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the dot product of two vectors, giving up as soon as it cannot
+	 * reach given minimum.
+	 * 
+	 * The product is computed in blocks of {@link #BOUND_BLOCK} elements; after
+	 * each block, by the Cauchy-Schwarz inequality, the remaining elements cannot
+	 * add more than the product of the norms of the tails of the two vectors. The
+	 * norm of the tail of a is derived from its norm, the one of b is
+	 * precomputed; if even this bound is below the minimum, computation stops.
+	 * 
+	 * @param aNorm  Norm of a.
+	 * @param bTails Norms of the tails of b, as returned by
+	 *               {@link #tailNorms(float[])}.
+	 * @param min    Minimum value of the dot product.
+	 * @return Dot product of the two vectors, or NaN if it is certainly below
+	 *         given minimum.
+	 * @throws IllegalArgumentException if the vectors have different length.
+	 */
+	public static double boundedDot(@NonNull float[] a, double aNorm, @NonNull float[] b, @NonNull double[] bTails,
+			double min) {
+		if (a.length != b.length)
+			throw new IllegalArgumentException("Vectors with different size [" + a.length + ", " + b.length + "]");
+
+		double aSq = aNorm * aNorm;
+		double dot = 0.0, sq = 0.0;
+		for (int from = 0; from < a.length; from += BOUND_BLOCK) {
+			int to = Math.min(a.length, from + BOUND_BLOCK);
+			double d0 = 0.0, d1 = 0.0, d2 = 0.0, d3 = 0.0, q0 = 0.0, q1 = 0.0, q2 = 0.0, q3 = 0.0;
+			int i = from;
+			for (; i + 3 < to; i += 4) {
+				d0 += (double) a[i] * b[i];
+				d1 += (double) a[i + 1] * b[i + 1];
+				d2 += (double) a[i + 2] * b[i + 2];
+				d3 += (double) a[i + 3] * b[i + 3];
+				q0 += (double) a[i] * a[i];
+				q1 += (double) a[i + 1] * a[i + 1];
+				q2 += (double) a[i + 2] * a[i + 2];
+				q3 += (double) a[i + 3] * a[i + 3];
+			}
+			for (; i < to; ++i) {
+				d0 += (double) a[i] * b[i];
+				q0 += (double) a[i] * a[i];
+			}
+			dot += (d0 + d1) + (d2 + d3);
+			sq += (q0 + q1) + (q2 + q3);
+
+			if (to < a.length) {
+				double tail = Math.sqrt(Math.max(0.0, aSq - sq) + BOUND_SLACK * aSq);
+				if (dot + tail * bTails[to / BOUND_BLOCK] < min)
+					return Double.NaN;
+			}
+		}
+
+		return dot;
+	}
+
+	/**
+	 * @return Euclidean norm of given vector.
+	 */
+	public static double norm(@NonNull float[] v) {
+		return Math.sqrt(dot(v, v));
+	}
+
+	/**
+	 * @return Cosine similarity between two vectors, in range [-1, 1], or -1 if it
+	 *         cannot be computed (e.g. for vectors that are too small).
+	 * @throws IllegalArgumentException if the vectors have different length.
+	 */
+	public static double cosine(@NonNull float[] a, @NonNull float[] b) {
+		return cosine(dot(a, b), norm(a), norm(b));
+	}
+
+	/**
+	 * @param dot   Dot product of two vectors.
+	 * @param aNorm Norm of first vector.
+	 * @param bNorm Norm of second vector.
+	 * @return Cosine similarity between the vectors, in range [-1, 1], or -1 if
+	 *         it cannot be computed (e.g. for vectors that are too small).
+	 */
+	public static double cosine(double dot, double aNorm, double bNorm) {
+		double similarity = dot / (aNorm * bNorm);
+		if (!Double.isFinite(similarity))
+			return -1.0d;
+
+		// Fix rounding errors, eventually
+		return Math.max(Math.min(similarity, 1.0d), -1.0d);
+	}
+
+	/**
+	 * @return Euclidean (L2) distance between two vectors.
+	 * @throws IllegalArgumentException if the vectors have different length.
+	 */
+	public static double l2(@NonNull float[] a, @NonNull float[] b) {
+		if (a.length != b.length)
+			throw new IllegalArgumentException("Vectors with different size [" + a.length + ", " + b.length + "]");
+
+		double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0, s5 = 0.0, s6 = 0.0, s7 = 0.0;
+		int i = 0;
+		for (; i + 7 < a.length; i += 8) {
+			double d0 = (double) a[i] - b[i];
+			double d1 = (double) a[i + 1] - b[i + 1];
+			double d2 = (double) a[i + 2] - b[i + 2];
+			double d3 = (double) a[i + 3] - b[i + 3];
+			double d4 = (double) a[i + 4] - b[i + 4];
+			double d5 = (double) a[i + 5] - b[i + 5];
+			double d6 = (double) a[i + 6] - b[i + 6];
+			double d7 = (double) a[i + 7] - b[i + 7];
+			s0 += d0 * d0;
+			s1 += d1 * d1;
+			s2 += d2 * d2;
+			s3 += d3 * d3;
+			s4 += d4 * d4;
+			s5 += d5 * d5;
+			s6 += d6 * d6;
+			s7 += d7 * d7;
+		}
+		for (; i < a.length; ++i) {
+			double d = (double) a[i] - b[i];
+			s0 += d * d;
+		}
+
+		return Math.sqrt(((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7)));
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests searching for multiple queries at once.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class BatchSearchTest {
+
+	private static final int SIZE = 5_000;
+	private static final int QUERIES = 16;
+	private static final int K = 10;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Batched searches return same results as single searches.")
+	public void testBatch() throws IOException {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("hnsw", new HnswIndex());
+			for (int i = 0; i < SIZE; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				kb.insert(((i % 5) == 0) ? "hnsw" : KnowledgeBase.DEFAULT_DOMAIN, e);
+			}
+
+			List<EmbeddedText> queries = new ArrayList<>();
+			for (int q = 0; q < QUERIES; ++q)
+				queries.add(HnswIndexTest.randomEmbedding("Query " + q, rnd));
+
+			check(kb, queries);
+			kb.setParallelismThreshold(500);
+			check(kb, queries);
+
+			File file = new File(tmp, "kb.bin");
+			kb.saveBinary(file);
+			try (KnowledgeBase mapped = KnowledgeBase.openBinary(file)) {
+				check(mapped, queries);
+			}
+		}
+	}
+
+	private static void check(KnowledgeBase kb, List<EmbeddedText> queries) {
+		List<List<Pair<EmbeddedText, Double>>> all = kb.search(queries, K);
+		List<List<Pair<EmbeddedText, Double>>> domain = kb.search(KnowledgeBase.DEFAULT_DOMAIN, queries, K);
+		assertEquals(queries.size(), all.size());
+		assertEquals(queries.size(), domain.size());
+		for (int q = 0; q < queries.size(); ++q) {
+			assertEquals(kb.search(queries.get(q), K, 0), all.get(q));
+			assertEquals(kb.search(KnowledgeBase.DEFAULT_DOMAIN, queries.get(q), K, 0), domain.get(q));
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests saving and opening knowledge bases in {@link BinaryFormat}.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class BinaryFormatTest {
+
+	private static final int SIZE = 1_000;
+	private static final int QUERIES = 20;
+	private static final int K = 10;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Searching a memory mapped knowledge base returns same results as the original one.")
+	public void testRoundTrip() throws IOException {
+		Random rnd = new Random(42);
+		File file = new File(tmp, "kb.bin");
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("other");
+			for (int i = 0; i < SIZE; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				e.set("id", i);
+				e.set("even", (i % 2) == 0);
+				kb.insert(((i % 3) == 0) ? "other" : KnowledgeBase.DEFAULT_DOMAIN, e);
+			}
+			kb.saveBinary(file);
+
+			try (KnowledgeBase mapped = KnowledgeBase.openBinary(file)) {
+				assertEquals(new HashSet<>(kb.listDomains()), new HashSet<>(mapped.listDomains()));
+				assertEquals(kb.query(e -> true).size(), mapped.query(e -> true).size());
+
+				for (int q = 0; q < QUERIES; ++q) {
+					EmbeddedText query = HnswIndexTest.randomEmbedding("Query " + q, rnd);
+					List<Pair<EmbeddedText, Double>> expected = kb.search(query, K, 0);
+					List<Pair<EmbeddedText, Double>> actual = mapped.search(query, K, 0);
+					assertEquals(expected.size(), actual.size());
+					for (int i = 0; i < expected.size(); ++i) {
+						EmbeddedText e = expected.get(i).getLeft();
+						EmbeddedText a = actual.get(i).getLeft();
+						assertEquals(e.getText(), a.getText());
+						assertEquals(e.getModel(), a.getModel());
+						assertArrayEquals(e.getVector(), a.getVector());
+						assertEquals(e.get("id"), a.get("id"));
+						assertEquals(expected.get(i).getRight(), actual.get(i).getRight(), 1e-9);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Memory mapped knowledge bases can be modified and saved again.")
+	public void testUpdate() throws IOException, ClassNotFoundException {
+		Random rnd = new Random(4242);
+		File file = new File(tmp, "kb.bin");
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			for (int i = 0; i < 100; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			kb.saveBinary(file);
+		}
+
+		try (KnowledgeBase mapped = KnowledgeBase.openBinary(file)) {
+			EmbeddedText probe = mapped.query(e -> e.getText().equals("Text 7")).get(0);
+			assertEquals("Text 7", mapped.search(probe, 1, 0).get(0).getLeft().getText());
+
+			// Duplicates of mapped embeddings are ignored
+			mapped.insert(probe);
+			assertEquals(100, mapped.query(e -> true).size());
+
+			mapped.delete("Text 7");
+			mapped.delete(e -> e.getText().endsWith("0"));
+			for (int i = 0; i < 10; ++i)
+				mapped.insert(HnswIndexTest.randomEmbedding("New " + i, rnd));
+			assertEquals(99 - 10 + 10, mapped.query(e -> true).size());
+			assertEquals(0, mapped.query(e -> e.getText().equals("Text 7")).size());
+
+			// Index is filled with mapped content too
+			mapped.setIndex(KnowledgeBase.DEFAULT_DOMAIN, new HnswIndex());
+			assertEquals(99, mapped.getIndex(KnowledgeBase.DEFAULT_DOMAIN).size());
+
+			// Save both in binary and with Java serialization
+			File other = new File(tmp, "kb2.bin");
+			mapped.saveBinary(other);
+			try (KnowledgeBase reopened = KnowledgeBase.openBinary(other)) {
+				assertEquals(99, reopened.query(e -> true).size());
+			}
+			File ser = new File(tmp, "kb.object");
+			mapped.save(ser);
+			try (KnowledgeBase loaded = KnowledgeBase.load(ser)) {
+				assertEquals(99, loaded.query(e -> true).size());
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Compares recall and latency of searches using a {@link BinaryQuantizedIndex}
+ * and a {@link QuantizedIndex} against exhaustive search.
+ * 
+ * This is not a unit test; run it as a Java application on the target
+ * hardware (with at least 1GB of heap).
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class BinaryQuantizedIndexBenchmark {
+
+	private static final int SIZE = 100_000;
+
+	private static final int QUERIES = 200;
+
+	private static final int K = 10;
+
+	public static void main(String[] args) throws Exception {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.setParallelismThreshold(Integer.MAX_VALUE); // Compare single-threaded scans
+			kb.createDomain("exhaustive");
+			kb.createDomain("int8", new QuantizedIndex());
+			kb.createDomain("binary", new BinaryQuantizedIndex());
+			kb.createDomain("binary-1000", new BinaryQuantizedIndex(1000));
+
+			List<EmbeddedText> data = new ArrayList<>(SIZE);
+			for (int i = 0; i < SIZE; ++i)
+				data.add(BinaryQuantizedIndexTest.randomEmbedding("Text " + i, rnd));
+			for (String domain : kb.listDomains())
+				kb.insert(domain, data);
+
+			List<EmbeddedText> queries = new ArrayList<>(QUERIES);
+			for (int i = 0; i < QUERIES; ++i)
+				queries.add(BinaryQuantizedIndexTest.randomEmbedding("Query " + i, rnd));
+
+			List<Set<String>> expected = new ArrayList<>(QUERIES);
+			for (EmbeddedText q : queries) {
+				Set<String> texts = new HashSet<>();
+				for (Pair<EmbeddedText, Double> p : kb.exactSearch("exhaustive", q, K, 0))
+					texts.add(p.getLeft().getText());
+				expected.add(texts);
+			}
+
+			for (String domain : List.of("exhaustive", "int8", "binary", "binary-1000"))
+				run(kb, domain, queries, expected); // Warm up
+
+			System.out.println("domain\trecall@" + K + "\tp50 (ms)\tp99 (ms)");
+			for (String domain : List.of("exhaustive", "int8", "binary", "binary-1000"))
+				run(kb, domain, queries, expected);
+		}
+	}
+
+	/**
+	 * Runs all queries against given domain, printing recall and latency.
+	 */
+	private static void run(KnowledgeBase kb, String domain, List<EmbeddedText> queries,
+			List<Set<String>> expected) {
+		long[] latencies = new long[queries.size()];
+		int found = 0;
+		for (int i = 0; i < queries.size(); ++i) {
+			long start = System.nanoTime();
+			List<Pair<EmbeddedText, Double>> result = kb.search(domain, queries.get(i), K, 0);
+			latencies[i] = System.nanoTime() - start;
+			for (Pair<EmbeddedText, Double> p : result) {
+				if (expected.get(i).contains(p.getLeft().getText()))
+					++found;
+			}
+		}
+
+		Arrays.sort(latencies);
+		System.out.printf("%s\t%.3f\t%.2f\t%.2f%n", domain, ((double) found) / (queries.size() * K),
+				percentile(latencies, 0.50), percentile(latencies, 0.99));
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))] / 1e6;
+	}
+}
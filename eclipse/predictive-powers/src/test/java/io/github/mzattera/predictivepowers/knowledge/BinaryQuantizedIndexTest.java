@@ -0,0 +1,149 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests {@link BinaryQuantizedIndex} against exhaustive search.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class BinaryQuantizedIndexTest {
+
+	private static final int SIZE = 3_000;
+	private static final int QUERIES = 50;
+	private static final int K = 10;
+
+	/** Binary codes need many dimensions to work well, as real embeddings have */
+	private static final int DIMENSIONS = 768;
+
+	@Test
+	@DisplayName("Recall@10 and scores of binary quantized index against exhaustive search.")
+	public void testRecall() {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("binary", new BinaryQuantizedIndex());
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert("binary", randomEmbedding("Text " + i, rnd));
+
+			int found = 0;
+			for (int q = 0; q < QUERIES; ++q) {
+				EmbeddedText query = randomEmbedding("Query " + q, rnd);
+				List<Pair<EmbeddedText, Double>> exact = kb.exactSearch("binary", query, K, 0);
+				List<Pair<EmbeddedText, Double>> approx = kb.search("binary", query, K, 0);
+				assertEquals(K, approx.size());
+
+				Set<String> texts = new HashSet<>();
+				for (Pair<EmbeddedText, Double> p : exact)
+					texts.add(p.getLeft().getText());
+				for (Pair<EmbeddedText, Double> p : approx) {
+					if (texts.contains(p.getLeft().getText()))
+						++found;
+					// Returned scores are exact
+					assertEquals(EmbeddedText.similarity(query, p.getLeft()), p.getRight(), 1e-9);
+				}
+			}
+
+			double recall = ((double) found) / (QUERIES * K);
+			System.out.println("binary recall@" + K + ": " + recall);
+			assertTrue(recall >= 0.9, "Recall too low: " + recall);
+		}
+	}
+
+	@Test
+	@DisplayName("Number of candidates grows with requested results, and with domain size only if asked.")
+	public void testCandidates() {
+		BinaryQuantizedIndex idx = new BinaryQuantizedIndex();
+		assertEquals(BinaryQuantizedIndex.DEFAULT_CANDIDATES, idx.candidates(1, 1000));
+		assertEquals(10 * BinaryQuantizedIndex.DEFAULT_OVERSAMPLING, idx.candidates(10, 1000));
+		assertEquals(10 * BinaryQuantizedIndex.DEFAULT_OVERSAMPLING, idx.candidates(10, 100_000));
+
+		idx.setCandidateFraction(0.05);
+		assertEquals(5_000, idx.candidates(10, 100_000));
+
+		idx = new BinaryQuantizedIndex(1000);
+		assertEquals(1000, idx.candidates(10, 100_000));
+		assertEquals(2000, idx.candidates(2000, 100_000));
+
+		assertThrows(IllegalArgumentException.class, () -> new BinaryQuantizedIndex(10, 0, 0.1));
+		assertThrows(IllegalArgumentException.class, () -> new BinaryQuantizedIndex(10, 1, 1.1));
+	}
+
+	@Test
+	@DisplayName("Deleted embeddings are not returned, until inserted again.")
+	public void testDelete() {
+		Random rnd = new Random(4242);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			BinaryQuantizedIndex idx = new BinaryQuantizedIndex(1);
+			kb.setIndex(KnowledgeBase.DEFAULT_DOMAIN, idx);
+
+			List<EmbeddedText> inserted = new ArrayList<>();
+			for (int i = 0; i < 100; ++i) {
+				EmbeddedText e = randomEmbedding("Text " + i, rnd);
+				inserted.add(e);
+				kb.insert(e);
+			}
+			for (int i = 0; i < inserted.size(); i += 2)
+				kb.delete(inserted.get(i).getText());
+			assertEquals(50, idx.size());
+
+			for (int i = 0; i < inserted.size(); ++i) {
+				List<Pair<EmbeddedText, Double>> result = kb.search(inserted.get(i), 1, 0);
+				if (i % 2 == 0)
+					assertFalse(inserted.get(i).getText().equals(result.get(0).getLeft().getText()));
+				else
+					assertEquals(inserted.get(i).getText(), result.get(0).getLeft().getText());
+			}
+
+			for (int i = 0; i < inserted.size(); i += 2)
+				kb.insert(inserted.get(i));
+			assertEquals(100, idx.size());
+			for (EmbeddedText e : inserted)
+				assertEquals(e.getText(), kb.search(e, 1, 0).get(0).getLeft().getText());
+		}
+	}
+
+	/**
+	 * @return An embedding with Gaussian noise around one of few random centers.
+	 */
+	static EmbeddedText randomEmbedding(String text, Random rnd) {
+		Random centers = new Random(rnd.nextInt(5));
+		float[] v = new float[DIMENSIONS];
+		for (int i = 0; i < v.length; ++i)
+			v[i] = (float) (0.5 * centers.nextGaussian() + rnd.nextGaussian());
+		return EmbeddedText.builder().text(text).model("test-model").vector(v).build();
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Measures search latency in one domain of a {@link KnowledgeBase} while
+ * embeddings are being inserted, in bulk, in another domain.
+ * 
+ * This is not a unit test; run it as a Java application on the target
+ * hardware.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class ContentionBenchmark {
+
+	/** Size of the domain being searched */
+	private static final int SIZE = 20_000;
+
+	/** Number of embeddings inserted with each call to insert() */
+	private static final int BATCH = 20_000;
+
+	/** Number of batches inserted before the domain is dropped and re-created */
+	private static final int BATCHES = 10;
+
+	private static final int READERS = 4;
+
+	private static final long DURATION_MS = 5_000;
+
+	public static void main(String[] args) throws Exception {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.setParallelismThreshold(Integer.MAX_VALUE); // Measure locking, not the pool
+			kb.createDomain("search");
+			kb.createDomain("ingest");
+			List<EmbeddedText> data = new ArrayList<>(SIZE);
+			for (int i = 0; i < SIZE; ++i)
+				data.add(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			kb.insert("search", data);
+
+			List<EmbeddedText> queries = new ArrayList<>();
+			for (int i = 0; i < 100; ++i)
+				queries.add(HnswIndexTest.randomEmbedding("Query " + i, rnd));
+
+			// Embeddings to insert are created in advance, so the writer spends its time
+			// inserting them
+			List<List<EmbeddedText>> batches = new ArrayList<>();
+			for (int b = 0; b < BATCHES; ++b) {
+				List<EmbeddedText> batch = new ArrayList<>(BATCH);
+				for (int i = 0; i < BATCH; ++i)
+					batch.add(HnswIndexTest.randomEmbedding("Ingested " + b + "-" + i, rnd));
+				batches.add(batch);
+			}
+
+			run(kb, queries, batches, false); // Warm up
+
+			System.out.println("scenario\tsearches\tp50 (ms)\tp99 (ms)\tmax (ms)");
+			print("idle", run(kb, queries, batches, false));
+			print("ingest", run(kb, queries, batches, true));
+		}
+	}
+
+	/**
+	 * Runs searches for {@link #DURATION_MS}, optionally while inserting
+	 * embeddings in another domain.
+	 * 
+	 * @return Latency of each search, in nanoseconds.
+	 */
+	private static long[] run(KnowledgeBase kb, List<EmbeddedText> queries, List<List<EmbeddedText>> batches,
+			boolean ingest) throws Exception {
+		AtomicBoolean stop = new AtomicBoolean(false);
+		ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+
+		try {
+			Future<?> writer = executor.submit(() -> {
+				while (ingest && !stop.get()) {
+					for (List<EmbeddedText> batch : batches) {
+						if (stop.get())
+							break;
+						kb.insert("ingest", batch);
+					}
+					kb.dropDomain("ingest");
+					kb.createDomain("ingest");
+				}
+			});
+
+			List<Future<long[]>> readers = new ArrayList<>();
+			for (int r = 0; r < READERS; ++r) {
+				int seed = r;
+				readers.add(executor.submit(() -> {
+					long[] latencies = new long[1024];
+					int n = 0;
+					Random rnd = new Random(seed);
+					while (!stop.get()) {
+						EmbeddedText q = queries.get(rnd.nextInt(queries.size()));
+						long start = System.nanoTime();
+						kb.search("search", q, 10, 0);
+						if (n == latencies.length)
+							latencies = Arrays.copyOf(latencies, 2 * n);
+						latencies[n++] = System.nanoTime() - start;
+					}
+					return Arrays.copyOf(latencies, n);
+				}));
+			}
+
+			Thread.sleep(DURATION_MS);
+			stop.set(true);
+			writer.get();
+
+			long[] all = new long[0];
+			for (Future<long[]> f : readers) {
+				long[] l = f.get();
+				int n = all.length;
+				all = Arrays.copyOf(all, n + l.length);
+				System.arraycopy(l, 0, all, n, l.length);
+			}
+			Arrays.sort(all);
+			return all;
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+			kb.dropDomain("ingest");
+			kb.createDomain("ingest");
+		}
+	}
+
+	private static void print(String scenario, long[] latencies) {
+		System.out.printf("%s\t%d\t%.2f\t%.2f\t%.2f%n", scenario, latencies.length, percentile(latencies, 0.50),
+				percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6);
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))] / 1e6;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import lombok.Setter;
+
+/**
+ * Tests that changes to a domain of a {@link KnowledgeBase} do not block
+ * operations on other domains.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class DomainLockingTest {
+
+	/**
+	 * An index which, when blocking, blocks when embeddings are added, until
+	 * released.
+	 */
+	static class BlockingIndex implements VectorIndex {
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+		private final List<EmbeddedText> items = new ArrayList<>();
+
+		@Setter
+		private volatile boolean blocking = false;
+
+		@Override
+		public void add(EmbeddedText e) {
+			if (blocking) {
+				entered.countDown();
+				try {
+					released.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			items.add(e);
+		}
+
+		@Override
+		public void remove(EmbeddedText e) {
+			items.remove(e);
+		}
+
+		@Override
+		public void clear() {
+			items.clear();
+		}
+
+		@Override
+		public int size() {
+			return items.size();
+		}
+
+		@Override
+		public List<Pair<EmbeddedText, Double>> search(EmbeddedText query, int limit, EmbeddedTextMatcher filter) {
+			return new ArrayList<>();
+		}
+	}
+
+	@Test
+	@DisplayName("A writer on one domain does not block readers and writers on other domains.")
+	public void testIndependentDomains() throws Exception {
+		Random rnd = new Random(42);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			for (int i = 0; i < 100; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			BlockingIndex index = new BlockingIndex();
+			kb.createDomain("slow", index);
+			index.setBlocking(true);
+
+			// Hold write lock on "slow" domain
+			Future<?> writer = executor.submit(() -> kb.insert("slow", HnswIndexTest.randomEmbedding("Slow", rnd)));
+			assertTrue(index.entered.await(10, TimeUnit.SECONDS));
+
+			try {
+				EmbeddedText query = HnswIndexTest.randomEmbedding("Query", rnd);
+				assertEquals(10, kb.search(KnowledgeBase.DEFAULT_DOMAIN, query, 10, 0).size());
+				kb.insert(HnswIndexTest.randomEmbedding("Other", rnd));
+				assertEquals(101, kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> true).size());
+				kb.createDomain("new");
+				assertTrue(kb.listDomains().contains("new"));
+				assertFalse(writer.isDone());
+			} finally {
+				index.released.countDown();
+			}
+
+			writer.get(10, TimeUnit.SECONDS);
+			assertEquals(1, kb.query("slow", e -> true).size());
+			assertEquals(1, index.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests {@link DomainSnapshot}s.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class DomainSnapshotTest {
+
+	@Test
+	@DisplayName("Snapshots do not change when the domain changes.")
+	public void testIsolation() {
+		Random rnd = new Random(42);
+		Domain d = new Domain();
+		for (int i = 0; i < 3000; ++i)
+			d.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+
+		DomainSnapshot before = d.getSnapshot();
+		Set<String> expected = texts(before);
+		for (int i = 0; i < 3000; i += 2)
+			d.delete(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+		for (int i = 3000; i < 4000; ++i)
+			d.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+
+		assertEquals(3000, before.getSize());
+		assertEquals(expected, texts(before));
+
+		DomainSnapshot after = d.getSnapshot();
+		assertEquals(2500, after.getSize());
+		Set<String> actual = texts(after);
+		for (int i = 0; i < 4000; ++i)
+			assertEquals((i >= 3000) || ((i % 2) == 1), actual.contains("Text " + i));
+	}
+
+	@Test
+	@DisplayName("Empty slots are reclaimed and domain content is preserved.")
+	public void testCompaction() {
+		Random rnd = new Random(42);
+		Domain d = new Domain();
+		List<EmbeddedText> data = new ArrayList<>();
+		for (int i = 0; i < 10_000; ++i)
+			data.add(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+		d.insert(data);
+
+		List<EmbeddedText> deleted = new ArrayList<>();
+		for (int i = 0; i < data.size(); ++i)
+			if ((i % 4) != 0)
+				deleted.add(data.get(i));
+		for (EmbeddedText e : deleted)
+			d.delete(e);
+
+		DomainSnapshot s = d.getSnapshot();
+		assertEquals(2500, s.getSize());
+		assertTrue(s.garbage() <= s.getSlots() / 2);
+
+		// Searches return embeddings that were not deleted
+		EmbeddedText q = data.get(400);
+		TopK[] result = s.search(new EmbeddedText[] { q }, null, 1, Integer.MAX_VALUE).invoke();
+		assertEquals(q.getText(), result[0].toList().get(0).getLeft().getText());
+
+		// Slots are still consistent after compaction
+		for (int i = 0; i < data.size(); i += 4)
+			d.delete(data.get(i));
+		assertEquals(0, d.size());
+		d.insert(data);
+		assertEquals(10_000, d.size());
+	}
+
+	@Test
+	@DisplayName("Exhaustive searches do not wait for writers.")
+	public void testLockFreeSearch() throws Exception {
+		Random rnd = new Random(42);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			List<EmbeddedText> data = new ArrayList<>();
+			for (int i = 0; i < 100; ++i)
+				data.add(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			DomainLockingTest.BlockingIndex index = new DomainLockingTest.BlockingIndex();
+			kb.createDomain("slow", index);
+			kb.insert("slow", data.subList(0, 50));
+
+			// Hold write lock on "slow" domain
+			index.setBlocking(true);
+			Future<?> writer = executor.submit(() -> kb.insert("slow", data.subList(50, 100)));
+			assertTrue(index.entered.await(10, TimeUnit.SECONDS));
+
+			try {
+				List<Pair<EmbeddedText, Double>> result = kb.exactSearch("slow", data.get(99), 100, 0);
+				assertEquals(50, result.size());
+				assertFalse(writer.isDone());
+			} finally {
+				index.released.countDown();
+			}
+
+			writer.get(10, TimeUnit.SECONDS);
+			assertEquals(100, kb.exactSearch("slow", data.get(99), 100, 0).size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Set<String> texts(DomainSnapshot s) {
+		Set<String> result = new HashSet<>();
+		s.forEach(e -> result.add(e.getText()));
+		return result;
+	}
+}
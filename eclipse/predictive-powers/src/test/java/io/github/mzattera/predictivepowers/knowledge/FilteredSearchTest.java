@@ -0,0 +1,110 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests searches filtered by an {@link EmbeddedTextMatcher}.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class FilteredSearchTest {
+
+	private static final int SIZE = 3_000;
+	private static final int TENANTS = 10;
+	private static final int QUERIES = 30;
+	private static final int K = 10;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Filtered searches return only matching embeddings, with good recall.")
+	public void testFilter() throws IOException {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("hnsw", new HnswIndex());
+			kb.createDomain("int8", new QuantizedIndex());
+			for (int i = 0; i < SIZE; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				e.set("tenant", i % TENANTS);
+				kb.insert(e);
+				kb.insert("hnsw", e);
+				kb.insert("int8", e);
+			}
+
+			File file = new File(tmp, "kb.bin");
+			kb.saveBinary(file);
+			try (KnowledgeBase mapped = KnowledgeBase.openBinary(file)) {
+				for (String domain : new String[] { KnowledgeBase.DEFAULT_DOMAIN, "hnsw", "int8" }) {
+					double exact = check(kb, domain, rnd);
+					System.out.println("Filtered recall@" + K + " for " + domain + ": " + exact);
+					assertTrue(exact >= (domain.equals(KnowledgeBase.DEFAULT_DOMAIN) ? 1.0 : 0.95));
+				}
+				assertEquals(1.0, check(mapped, KnowledgeBase.DEFAULT_DOMAIN, rnd));
+			}
+		}
+	}
+
+	private static double check(KnowledgeBase kb, String domain, Random rnd) {
+		int found = 0;
+		for (int q = 0; q < QUERIES; ++q) {
+			EmbeddedText query = HnswIndexTest.randomEmbedding("Query " + q, rnd);
+			int tenant = rnd.nextInt(TENANTS);
+			EmbeddedTextMatcher filter = e -> e.get("tenant").equals(tenant);
+
+			// Exact results, computed by hand
+			List<EmbeddedText> matching = kb.query(domain, filter);
+			matching.sort((a, b) -> Double.compare(b.similarity(query), a.similarity(query)));
+			Set<String> expected = matching.subList(0, K).stream().map(EmbeddedText::getText)
+					.collect(Collectors.toCollection(HashSet::new));
+
+			List<Pair<EmbeddedText, Double>> result = kb.search(domain, query, filter, K, 0);
+			assertEquals(K, result.size());
+			for (Pair<EmbeddedText, Double> p : result) {
+				assertEquals(tenant, p.getLeft().get("tenant"));
+				if (expected.contains(p.getLeft().getText()))
+					++found;
+			}
+
+			// Cross-domain search
+			for (Pair<EmbeddedText, Double> p : kb.search(query, filter, K, 0))
+				assertEquals(tenant, p.getLeft().get("tenant"));
+		}
+
+		return ((double) found) / (QUERIES * K);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests {@link HnswIndex} recall against exhaustive search, using random
+ * embeddings (no embedding service needed).
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class HnswIndexTest {
+
+	private static final String MODEL = "test-model";
+	private static final int DIMENSIONS = 64;
+	private static final int SIZE = 3_000;
+	private static final int QUERIES = 50;
+	private static final int K = 10;
+
+	@Test
+	@DisplayName("Recall@10 of HNSW index against exhaustive search.")
+	public void testRecall() {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("hnsw", new HnswIndex(16, 100, 64));
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert("hnsw", randomEmbedding("Text " + i, rnd));
+
+			double recall = recall(kb, "hnsw", rnd);
+			System.out.println("HNSW recall@" + K + ": " + recall);
+			assertTrue(recall >= 0.9, "Recall too low: " + recall);
+		}
+	}
+
+	@Test
+	@DisplayName("Deleted embeddings are not returned and recall holds.")
+	public void testDelete() {
+		Random rnd = new Random(4242);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("hnsw", new HnswIndex());
+			List<EmbeddedText> inserted = new ArrayList<>();
+			for (int i = 0; i < SIZE; ++i) {
+				EmbeddedText e = randomEmbedding("Text " + i, rnd);
+				inserted.add(e);
+				kb.insert("hnsw", e);
+			}
+
+			// Delete 2/3 of the embeddings, forcing a re-build of the graph
+			Set<String> deleted = new HashSet<>();
+			for (int i = 0; i < inserted.size(); ++i) {
+				if (i % 3 != 0) {
+					kb.delete("hnsw", inserted.get(i).getText());
+					deleted.add(inserted.get(i).getText());
+				}
+			}
+			assertEquals(SIZE - deleted.size(), kb.getIndex("hnsw").size());
+
+			for (int i = 0; i < inserted.size(); ++i) {
+				List<Pair<EmbeddedText, Double>> result = kb.search("hnsw", inserted.get(i), K, 0);
+				for (Pair<EmbeddedText, Double> p : result)
+					assertFalse(deleted.contains(p.getLeft().getText()));
+				if (i % 3 == 0)
+					assertEquals(inserted.get(i).getText(), result.get(0).getLeft().getText());
+			}
+
+			double recall = recall(kb, "hnsw", rnd);
+			System.out.println("HNSW recall@" + K + " after deletion: " + recall);
+			assertTrue(recall >= 0.9, "Recall too low: " + recall);
+		}
+	}
+
+	@Test
+	@DisplayName("Embeddings from different models are kept apart.")
+	public void testModels() {
+		Random rnd = new Random(424242);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			HnswIndex idx = new HnswIndex();
+			kb.setIndex(KnowledgeBase.DEFAULT_DOMAIN, idx);
+
+			EmbeddedText a = randomEmbedding("a", rnd);
+			EmbeddedText b = randomEmbedding("b", rnd);
+			b.setModel("other-model");
+			kb.insert(a);
+			kb.insert(b);
+
+			assertEquals(2, idx.size());
+			List<Pair<EmbeddedText, Double>> result = kb.search(a, 10, 0);
+			assertEquals(1, result.size());
+			assertEquals("a", result.get(0).getLeft().getText());
+		}
+	}
+
+	/**
+	 * Computes average recall@K of given domain index over some random queries.
+	 */
+	private static double recall(KnowledgeBase kb, String domain, Random rnd) {
+		int found = 0, total = 0;
+		for (int q = 0; q < QUERIES; ++q) {
+			EmbeddedText query = randomEmbedding("Query " + q, rnd);
+
+			Set<String> exact = new HashSet<>();
+			for (Pair<EmbeddedText, Double> p : kb.exactSearch(domain, query, K, 0))
+				exact.add(p.getLeft().getText());
+			for (Pair<EmbeddedText, Double> p : kb.search(domain, query, K, 0))
+				if (exact.contains(p.getLeft().getText()))
+					++found;
+			total += exact.size();
+		}
+		return ((double) found) / total;
+	}
+
+	/**
+	 * Creates a random embedding, somehow clustered, as real embeddings are.
+	 */
+	static EmbeddedText randomEmbedding(String text, Random rnd) {
+		float[] v = new float[DIMENSIONS];
+		int cluster = rnd.nextInt(20);
+		for (int i = 0; i < v.length; ++i)
+			v[i] = (float) (rnd.nextGaussian() + ((i % 20) == cluster ? 3.0 : 0.0));
+		return EmbeddedText.builder().text(text).model(MODEL).vector(v).build();
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.AiEndpoint;
+import io.github.mzattera.predictivepowers.EndpointException;
+import io.github.mzattera.predictivepowers.services.AbstractEmbeddingService;
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.util.ChunkUtil;
+import io.github.mzattera.predictivepowers.util.FileUtil;
+import lombok.NonNull;
+
+/**
+ * Tests {@link IngestionPipeline} against
+ * {@link io.github.mzattera.predictivepowers.services.EmbeddingService#embedFolder(File, int, int, int)}.
+ *
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class IngestionPipelineTest {
+
+	private static final int FILES = 40;
+
+	/**
+	 * Creates random embeddings, derived from the text; it can be made to fail.
+	 */
+	private static class FakeEmbeddingService extends AbstractEmbeddingService {
+
+		boolean fail = false;
+
+		/** Maximum size of chunks, whatever the requested size is */
+		int maxChunkSize = Integer.MAX_VALUE;
+
+		/** Number of texts embedded */
+		final AtomicInteger embedded = new AtomicInteger();
+
+		FakeEmbeddingService() {
+			super("fake-model");
+		}
+
+		@Override
+		public AiEndpoint getEndpoint() {
+			return null;
+		}
+
+		@Override
+		public List<EmbeddedText> embed(@NonNull Collection<String> text, int chunkSize, int windowSize,
+				int stride) {
+			if (fail)
+				throw new EndpointException("Service failure");
+
+			embedded.addAndGet(text.size());
+			List<EmbeddedText> result = new ArrayList<>();
+			for (String t : text) {
+				for (String c : ChunkUtil.split(t, Math.min(chunkSize, maxChunkSize), windowSize, stride,
+						IngestionPipeline.FALLBACK_TOKENIZER)) {
+					Random rnd = new Random(c.hashCode());
+					float[] v = new float[8];
+					for (int i = 0; i < v.length; ++i)
+						v[i] = rnd.nextFloat();
+					result.add(new EmbeddedText(c, v, getModel()));
+				}
+			}
+			return result;
+		}
+	}
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Pipeline ingests the same embeddings as embedFolder().")
+	public void testIngest() throws Exception {
+		Random rnd = new Random(42);
+		for (int i = 0; i < FILES; ++i) {
+			File dir = new File(tmp, "dir" + (i % 4));
+			dir.mkdirs();
+			StringBuilder sb = new StringBuilder();
+			for (int p = 0; p < 20; ++p)
+				sb.append("File ").append(i).append(" paragraph ").append(p).append(" value ")
+						.append(rnd.nextInt()).append(".\n\n");
+			FileUtil.writeFile(new File(dir, "file" + i + ".txt"), sb.toString());
+		}
+
+		FakeEmbeddingService svc = new FakeEmbeddingService();
+		Map<String, String> expected = new HashMap<>(); // text => file
+		for (Map.Entry<File, List<EmbeddedText>> e : svc.embedFolder(tmp, 30, 2, 1).entrySet())
+			for (EmbeddedText t : e.getValue())
+				expected.put(t.getText(), e.getKey().getPath());
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			IngestionPipeline pipeline = new IngestionPipeline(svc, kb, KnowledgeBase.DEFAULT_DOMAIN);
+			pipeline.setChunking(30, 2, 1);
+			pipeline.setExtractionThreads(3);
+			pipeline.setChunkingThreads(2);
+			pipeline.setEmbeddingThreads(3);
+			pipeline.setBatchSize(7);
+			pipeline.setQueueCapacity(5);
+			IngestionPipeline.Statistics stats = pipeline.ingest(tmp);
+
+			List<EmbeddedText> content = kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> true);
+			assertEquals(expected.size(), content.size());
+			for (EmbeddedText e : content)
+				assertEquals(expected.get(e.getText()), e.get(IngestionPipeline.FILE_PROPERTY));
+
+			assertTrue(stats.isFinished());
+			assertEquals(FILES, stats.getExtraction().getItems());
+			assertEquals(0, stats.getExtraction().getFailures());
+			assertTrue(stats.getChunking().getItems() >= expected.size());
+			assertEquals(stats.getChunking().getItems(), stats.getEmbedding().getItems());
+			assertEquals(stats.getEmbedding().getItems(), stats.getInsertion().getItems());
+		}
+	}
+
+	@Test
+	@DisplayName("Incremental ingestion embeds only files that changed.")
+	public void testIncremental() throws Exception {
+		File folder = new File(tmp, "folder");
+		File manifest = new File(tmp, "manifest.json");
+		for (int i = 0; i < FILES; ++i)
+			write(new File(folder, "file" + i + ".txt"), "Content of file " + i, 1_000_000L);
+
+		FakeEmbeddingService svc = new FakeEmbeddingService();
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, IngestionPipeline.FILE_PROPERTY, false);
+			IngestionPipeline pipeline = new IngestionPipeline(svc, kb, KnowledgeBase.DEFAULT_DOMAIN);
+
+			IngestionPipeline.Statistics stats = pipeline.ingest(folder, manifest);
+			assertEquals(FILES, svc.embedded.get());
+			assertEquals(FILES, FolderManifest.load(manifest).size());
+
+			// Nothing changed
+			svc.embedded.set(0);
+			stats = pipeline.ingest(folder, manifest);
+			assertEquals(0, svc.embedded.get());
+			assertEquals(FILES, stats.getUnchangedFiles());
+
+			// Change content, modification time, remove and add files
+			write(new File(folder, "file0.txt"), "New content of file 0", 2_000_000L);
+			write(new File(folder, "file1.txt"), "Content of file 1", 2_000_000L);
+			new File(folder, "file2.txt").delete();
+			write(new File(folder, "new.txt"), "Content of a new file", 2_000_000L);
+
+			svc.embedded.set(0);
+			stats = pipeline.ingest(folder, manifest);
+			assertEquals(2, svc.embedded.get());
+			assertEquals(FILES - 2, stats.getUnchangedFiles());
+			assertEquals(1, stats.getRemovedFiles());
+
+			Map<String, String> expected = new HashMap<>(); // text => file
+			for (Map.Entry<File, List<EmbeddedText>> e : svc.embedFolder(folder).entrySet())
+				for (EmbeddedText t : e.getValue())
+					expected.put(t.getText(), e.getKey().getPath());
+			List<EmbeddedText> content = kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> true);
+			assertEquals(expected.size(), content.size());
+			for (EmbeddedText e : content)
+				assertEquals(expected.get(e.getText()), e.get(IngestionPipeline.FILE_PROPERTY));
+
+			// Failed ingestion leaves changed files to be ingested again
+			write(new File(folder, "file3.txt"), "New content of file 3", 3_000_000L);
+			svc.fail = true;
+			assertThrows(EndpointException.class, () -> pipeline.ingest(folder, manifest));
+			svc.fail = false;
+			svc.embedded.set(0);
+			pipeline.ingest(folder, manifest);
+			assertEquals(1, svc.embedded.get());
+			assertEquals(1, kb.query(KnowledgeBase.DEFAULT_DOMAIN,
+					PropertyMatcher.equalTo(IngestionPipeline.FILE_PROPERTY, new File(folder, "file3.txt").getPath()))
+					.size());
+		}
+	}
+
+	@Test
+	@DisplayName("Chunks shared by several files stay until no file has them.")
+	public void testSharedChunks() throws Exception {
+		File folder = new File(tmp, "folder");
+		File manifest = new File(tmp, "manifest.json");
+		File a = new File(folder, "a.txt"), b = new File(folder, "b.txt"), c = new File(folder, "c.txt");
+		write(a, "Shared content", 1_000_000L);
+		write(b, "Shared content", 1_000_000L);
+		write(c, "Content of c", 1_000_000L);
+
+		FakeEmbeddingService svc = new FakeEmbeddingService();
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			IngestionPipeline pipeline = new IngestionPipeline(svc, kb, KnowledgeBase.DEFAULT_DOMAIN);
+
+			pipeline.ingest(folder, manifest);
+			assertEquals(2, kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> true).size());
+			FolderManifest m = FolderManifest.load(manifest);
+			assertEquals(1, m.get(a.getPath()).getChunks());
+			assertEquals(1, m.get(b.getPath()).getChunks());
+			assertEquals(m.get(a.getPath()).getChunkHashes(), m.get(b.getPath()).getChunkHashes());
+
+			// Removing one file keeps the chunk for the other
+			a.delete();
+			assertEquals(1, pipeline.ingest(folder, manifest).getRemovedFiles());
+			assertEquals(2, kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> true).size());
+			assertEquals(b.getPath(), fileOf(kb, "Shared content"));
+
+			// Changing a file moves the chunk to a file that still has it
+			write(a, "Shared content", 2_000_000L);
+			write(b, "New content of b", 2_000_000L);
+			pipeline.ingest(folder, manifest);
+			assertEquals(3, kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> true).size());
+			assertEquals(a.getPath(), fileOf(kb, "Shared content"));
+			assertEquals(b.getPath(), fileOf(kb, "New content of b"));
+
+			// Chunk is deleted once no file has it
+			write(a, "New content of a", 3_000_000L);
+			pipeline.ingest(folder, manifest);
+			assertEquals(3, kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> true).size());
+			assertNull(fileOf(kb, "Shared content"));
+			assertEquals(a.getPath(), fileOf(kb, "New content of a"));
+		}
+	}
+
+	/**
+	 * @return The file given text is tagged with in the knowledge base, or null if
+	 *         the text is not there.
+	 */
+	private static String fileOf(KnowledgeBase kb, String text) {
+		List<EmbeddedText> l = kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> e.getText().equals(text));
+		return l.isEmpty() ? null : (String) l.get(0).get(IngestionPipeline.FILE_PROPERTY);
+	}
+
+	private static void write(File f, String text, long lastModified) throws Exception {
+		f.getParentFile().mkdirs();
+		FileUtil.writeFile(f, text);
+		f.setLastModified(lastModified);
+	}
+
+	@Test
+	@DisplayName("Chunks that the service splits are embedded once.")
+	public void testSplit() throws Exception {
+		Map<String, String> content = new HashMap<>(); // file => content
+		for (int i = 0; i < 10; ++i) {
+			StringBuilder sb = new StringBuilder();
+			for (int p = 0; p < 20; ++p)
+				sb.append("File ").append(i).append(" has paragraph ").append(p).append(".\n\n");
+			File f = new File(tmp, "file" + i + ".txt");
+			FileUtil.writeFile(f, sb.toString());
+			content.put(f.getPath(), sb.toString());
+		}
+
+		FakeEmbeddingService svc = new FakeEmbeddingService();
+		svc.maxChunkSize = 5;
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			IngestionPipeline pipeline = new IngestionPipeline(svc, kb, KnowledgeBase.DEFAULT_DOMAIN);
+			pipeline.setChunking(30, 1, 1);
+			pipeline.setBatchSize(4);
+			IngestionPipeline.Statistics stats = pipeline.ingest(tmp);
+
+			assertEquals(stats.getChunking().getItems(), svc.embedded.get());
+			assertTrue(stats.getEmbedding().getItems() > stats.getChunking().getItems());
+			for (EmbeddedText e : kb.query(KnowledgeBase.DEFAULT_DOMAIN, e -> true))
+				assertTrue(content.get(e.get(IngestionPipeline.FILE_PROPERTY)).contains(e.getText()));
+		}
+	}
+
+	@Test
+	@DisplayName("Errors while embedding stop the pipeline.")
+	public void testFailure() throws Exception {
+		for (int i = 0; i < FILES; ++i)
+			FileUtil.writeFile(new File(tmp, "file" + i + ".txt"), "Content of file " + i);
+
+		FakeEmbeddingService svc = new FakeEmbeddingService();
+		svc.fail = true;
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			IngestionPipeline pipeline = new IngestionPipeline(svc, kb, KnowledgeBase.DEFAULT_DOMAIN);
+			pipeline.setQueueCapacity(2);
+			assertThrows(EndpointException.class, () -> pipeline.ingest(tmp));
+			assertTrue(pipeline.getStatistics().isFinished());
+			assertThrows(EndpointException.class, () -> pipeline.ingest(new File(tmp, "missing")));
+
+			// An error saving the manifest does not hide the one that stopped ingestion
+			File manifest = new File(new File(tmp, "file0.txt"), "manifest.json");
+			EndpointException e = assertThrows(EndpointException.class, () -> pipeline.ingest(tmp, manifest));
+			assertEquals("Service failure", e.getMessage());
+			assertEquals(1, e.getSuppressed().length);
+
+			// It is thrown if ingestion succeeds
+			svc.fail = false;
+			e = assertThrows(EndpointException.class, () -> pipeline.ingest(tmp, manifest));
+			assertTrue(e.getMessage().startsWith("Cannot save manifest"));
+		}
+	}
+}
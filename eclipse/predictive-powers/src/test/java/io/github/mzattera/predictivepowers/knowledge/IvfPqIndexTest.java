@@ -0,0 +1,163 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests {@link IvfPqIndex} against exhaustive search.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class IvfPqIndexTest {
+
+	private static final int SIZE = 5_000;
+	private static final int QUERIES = 50;
+	private static final int K = 10;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Recall@10 and scores of IVF-PQ index against exhaustive search.")
+	public void testRecall() throws Exception {
+		Random rnd = new Random(42);
+		File file = new File(tmp, "kb.object");
+
+		List<EmbeddedText> queries = new ArrayList<>();
+		for (int q = 0; q < QUERIES; ++q)
+			queries.add(HnswIndexTest.randomEmbedding("Query " + q, rnd));
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+
+			// Index is trained on existing content
+			IvfPqIndex idx = new IvfPqIndex(32, 16, 8, IvfPqIndex.DEFAULT_RESCORE_FACTOR, 2_000);
+			kb.setIndex(KnowledgeBase.DEFAULT_DOMAIN, idx);
+			idx.awaitTraining();
+			assertTrue(idx.isTrained());
+			assertEquals(SIZE, idx.size());
+
+			double recall = recall(kb, queries);
+			System.out.println("IVF-PQ recall@" + K + ": " + recall);
+			assertTrue(recall >= 0.9, "Recall too low: " + recall);
+
+			// Scanning all lists
+			idx.setProbes(32);
+			assertTrue(recall(kb, queries) >= 0.9);
+			idx.setProbes(8);
+			kb.save(file);
+		}
+
+		// Index is saved with the knowledge base
+		try (KnowledgeBase kb = KnowledgeBase.load(file)) {
+			IvfPqIndex idx = (IvfPqIndex) kb.getIndex(KnowledgeBase.DEFAULT_DOMAIN);
+			assertTrue(idx.isTrained());
+			assertEquals(SIZE, idx.size());
+			assertTrue(recall(kb, queries) >= 0.9);
+		}
+	}
+
+	@Test
+	@DisplayName("Index is trained once enough embeddings are inserted.")
+	public void testTraining() throws Exception {
+		Random rnd = new Random(4242);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			IvfPqIndex idx = new IvfPqIndex(8, 8, 2, 4, 500);
+			kb.setIndex(KnowledgeBase.DEFAULT_DOMAIN, idx);
+
+			List<EmbeddedText> inserted = new ArrayList<>();
+			for (int i = 0; i < 1_000; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				inserted.add(e);
+				kb.insert(e);
+				if (i == 498) {
+					// Not trained yet, searches are exhaustive
+					assertFalse(idx.isTrained());
+					assertEquals(kb.exactSearch(e, K, 0), kb.search(e, K, 0));
+				}
+			}
+			idx.awaitTraining(); // Training runs in background
+			assertTrue(idx.isTrained());
+
+			for (int i = 0; i < inserted.size(); i += 2)
+				kb.delete(inserted.get(i).getText());
+			assertEquals(500, idx.size());
+			idx.train();
+			assertTrue(idx.isTrained());
+			assertEquals(500, idx.size());
+
+			for (int i = 0; i < inserted.size(); ++i) {
+				List<Pair<EmbeddedText, Double>> result = kb.search(inserted.get(i), 1, 0);
+				if (i % 2 == 0)
+					assertFalse(inserted.get(i).getText().equals(result.get(0).getLeft().getText()));
+				else
+					assertEquals(inserted.get(i).getText(), result.get(0).getLeft().getText());
+			}
+
+			// Embeddings replaced before training again are found with their new vector
+			EmbeddedText replaced = HnswIndexTest.randomEmbedding(inserted.get(1).getText(), rnd);
+			kb.delete(replaced.getText());
+			kb.insert(replaced);
+			idx.train();
+			assertEquals(500, idx.size());
+			EmbeddedText found = kb.search(replaced, 1, 0).get(0).getLeft();
+			assertEquals(replaced.getText(), found.getText());
+			assertArrayEquals(replaced.getVector(), found.getVector());
+		}
+	}
+
+	private static double recall(KnowledgeBase kb, List<EmbeddedText> queries) {
+		int found = 0;
+		for (EmbeddedText query : queries) {
+			List<Pair<EmbeddedText, Double>> exact = kb.exactSearch(query, K, 0);
+			List<Pair<EmbeddedText, Double>> approx = kb.search(query, K, 0);
+			assertEquals(K, approx.size());
+
+			Set<String> texts = new HashSet<>();
+			for (Pair<EmbeddedText, Double> p : exact)
+				texts.add(p.getLeft().getText());
+			for (Pair<EmbeddedText, Double> p : approx) {
+				if (texts.contains(p.getLeft().getText()))
+					++found;
+				// Returned scores are exact
+				assertEquals(EmbeddedText.similarity(query, p.getLeft()), p.getRight(), 1e-9);
+			}
+		}
+		return ((double) found) / (queries.size() * K);
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests near-duplicate detection on insertion.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class NearDuplicateIndexTest {
+
+	private static final int SIZE = 500;
+
+	@TempDir
+	File tmp;
+
+	/**
+	 * @return A random text of 50 words.
+	 */
+	private static String randomText(Random rnd) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; ++i)
+			sb.append("w").append(rnd.nextInt(100_000)).append(' ');
+		return sb.toString();
+	}
+
+	/**
+	 * @return Given text, with a different footer.
+	 */
+	private static String variant(String text, int version) {
+		return text + "Copyright " + version + " all rights reserved.";
+	}
+
+	private static Set<String> texts(KnowledgeBase kb) {
+		return kb.query(e -> true).stream().map(EmbeddedText::getText).collect(Collectors.toSet());
+	}
+
+	private static double similarity(long[] shingles, String text) {
+		return NearDuplicateIndex.similarity(shingles, NearDuplicateIndex.shingles(text));
+	}
+
+	@Test
+	@DisplayName("Similarity of shingle sets.")
+	public void testSimilarity() {
+		long[] a = NearDuplicateIndex.shingles("the quick brown fox jumps over the lazy dog");
+		assertEquals(7, a.length);
+		assertEquals(1.0, similarity(a, "The quick, brown fox jumps over the lazy dog!"));
+		assertEquals(0.0, similarity(a, "something else entirely"));
+		assertEquals(6.0 / 8.0, similarity(a, "the quick brown fox jumps over the lazy cat"), 1e-9);
+		assertEquals(1, NearDuplicateIndex.shingles("short").length);
+		assertEquals(0, NearDuplicateIndex.shingles("").length);
+
+		assertThrows(IllegalArgumentException.class, () -> new NearDuplicateIndex(0.0, NearDuplicatePolicy.REJECT));
+		assertThrows(IllegalArgumentException.class, () -> new NearDuplicateIndex(1.1, NearDuplicatePolicy.REJECT));
+		Random rnd = new Random(42);
+		NearDuplicateIndex idx = new NearDuplicateIndex(1.0, NearDuplicatePolicy.REJECT);
+		idx.add(HnswIndexTest.randomEmbedding("the quick brown fox jumps over the lazy dog", rnd));
+		assertNull(idx.find(HnswIndexTest.randomEmbedding("the quick brown fox jumps over the lazy cat", rnd)));
+		assertNull(idx.find(HnswIndexTest.randomEmbedding("", rnd)));
+	}
+
+	@Test
+	@DisplayName("Near-duplicates are rejected.")
+	public void testReject() throws Exception {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createNearDuplicateIndex(KnowledgeBase.DEFAULT_DOMAIN, 0.8, NearDuplicatePolicy.REJECT);
+			List<String> originals = new ArrayList<>();
+			for (int i = 0; i < SIZE; ++i) {
+				String text = variant(randomText(rnd), 2024);
+				originals.add(text);
+				kb.insert(HnswIndexTest.randomEmbedding(text, rnd));
+			}
+			assertEquals(Set.copyOf(originals), texts(kb));
+
+			List<EmbeddedText> variants = new ArrayList<>();
+			for (String text : originals) {
+				String body = text.substring(0, text.indexOf("Copyright"));
+				variants.add(HnswIndexTest.randomEmbedding(variant(body, 2025), rnd));
+			}
+			kb.insert(variants);
+			assertEquals(Set.copyOf(originals), texts(kb));
+
+			// Without the index, they are inserted
+			kb.dropNearDuplicateIndex(KnowledgeBase.DEFAULT_DOMAIN);
+			kb.insert(variants);
+			assertEquals(2 * SIZE, texts(kb).size());
+		}
+	}
+
+	@Test
+	@DisplayName("Near-duplicates replace existing embeddings, also in the log.")
+	public void testReplace() throws Exception {
+		Random rnd = new Random(42);
+		File snapshot = new File(tmp, "kb.bin");
+		File log = new File(tmp, "kb.log");
+
+		List<String> originals = new ArrayList<>();
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			for (int i = 0; i < SIZE; ++i) {
+				String text = randomText(rnd);
+				originals.add(text);
+				kb.insert(HnswIndexTest.randomEmbedding(variant(text, 2023), rnd));
+			}
+			kb.saveBinary(snapshot);
+		}
+
+		Set<String> expected;
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			kb.createNearDuplicateIndex(KnowledgeBase.DEFAULT_DOMAIN, 0.8,
+					NearDuplicatePolicy.REPLACE);
+
+			// Replaces embeddings in the memory mapped segment, then the ones just inserted
+			for (int version = 2024; version <= 2025; ++version) {
+				List<EmbeddedText> variants = new ArrayList<>();
+				for (String text : originals)
+					variants.add(HnswIndexTest.randomEmbedding(variant(text, version), rnd));
+				kb.insert(variants);
+			}
+
+			// Replaces an embedding inserted in the same batch
+			String text = randomText(rnd);
+			kb.insert(List.of(HnswIndexTest.randomEmbedding(variant(text, 1), rnd),
+					HnswIndexTest.randomEmbedding(variant(text, 2), rnd)));
+
+			expected = originals.stream().map(t -> variant(t, 2025)).collect(Collectors.toSet());
+			assertTrue(expected.add(variant(text, 2)));
+			assertEquals(expected, texts(kb));
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			assertEquals(expected, texts(kb));
+		}
+	}
+}
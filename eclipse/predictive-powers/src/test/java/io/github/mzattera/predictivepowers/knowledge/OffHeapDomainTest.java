@@ -0,0 +1,192 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+import io.github.mzattera.predictivepowers.util.VectorUtil;
+
+/**
+ * Tests off-heap domains.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class OffHeapDomainTest {
+
+	private static final int SIZE = 2_000;
+	private static final int QUERIES = 10;
+	private static final int K = 10;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Off-heap domains return same results as heap domains.")
+	public void testSearch() throws Exception {
+		Random rnd = new Random(42);
+		File file = new File(tmp, "vectors.bin");
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("heap");
+			kb.createOffHeapDomain("direct");
+			kb.createOffHeapDomain("mapped", file);
+			assertThrows(IllegalArgumentException.class, () -> kb.createOffHeapDomain("heap"));
+			assertTrue(file.exists());
+
+			List<EmbeddedText> data = new ArrayList<>();
+			for (int i = 0; i < SIZE; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				e.set("id", i);
+				data.add(e);
+			}
+			for (String domain : kb.listDomains())
+				kb.insert(domain, data);
+			for (String domain : kb.listDomains())
+				kb.delete(domain, e -> ((Integer) e.get("id")) % 7 == 0);
+			kb.setParallelismThreshold(SIZE / 8);
+
+			for (int q = 0; q < QUERIES; ++q) {
+				EmbeddedText query = HnswIndexTest.randomEmbedding("Query " + q, rnd);
+				List<Pair<EmbeddedText, Double>> expected = kb.search("heap", query, K, 0);
+				for (String domain : List.of("direct", "mapped")) {
+					check(expected, kb.search(domain, query, K, 0));
+					check(expected, kb.searchCursor(domain, query).next(K));
+				}
+			}
+
+			// Returned embeddings are copies, with their vector on the heap
+			EmbeddedText e = kb.query("direct", x -> x.get("id").equals(43)).get(0);
+			assertFalse(e instanceof OffHeapEmbeddedText);
+			assertFalse(kb.search("direct", data.get(43), 1, 0).get(0).getLeft() instanceof OffHeapEmbeddedText);
+			assertArrayEquals(data.get(43).getVector(), e.getVector());
+			assertEquals(data.get(43).getNorm(), e.getNorm());
+			assertEquals(data.get(43).getEmbedding(), e.getEmbedding());
+			assertEquals(1.0, e.similarity(data.get(43)), 1e-6);
+
+			// Indexes work on off-heap domains
+			kb.setIndex("mapped", new HnswIndex());
+			assertEquals(data.get(43).getText(), kb.search("mapped", data.get(43), 1, 0).get(0).getLeft().getText());
+
+			// Embeddings already returned can be read after their domain is dropped,
+			// while cursors cannot read the domain anymore
+			SearchCursor cursor = kb.searchCursor("direct", data.get(43));
+			kb.dropDomain("direct");
+			assertArrayEquals(data.get(43).getVector(), e.getVector());
+			assertThrows(IllegalArgumentException.class, () -> kb.search("direct", data.get(43), 1, 0));
+			assertThrows(IllegalStateException.class, () -> cursor.next());
+			kb.dropDomain("mapped");
+			assertFalse(file.exists());
+		}
+	}
+
+	@Test
+	@DisplayName("Off-heap domains are saved as normal domains.")
+	public void testSave() throws Exception {
+		Random rnd = new Random(42);
+		File object = new File(tmp, "kb.object");
+		File binary = new File(tmp, "kb.bin");
+
+		EmbeddedText probe;
+		List<Pair<EmbeddedText, Double>> expected;
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createOffHeapDomain("offheap", new File(tmp, "vectors.bin"));
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert("offheap", HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			probe = HnswIndexTest.randomEmbedding("Probe", rnd);
+			expected = kb.search("offheap", probe, K, 0);
+			kb.save(object);
+			kb.saveBinary(binary);
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.load(object)) {
+			check(expected, kb.search("offheap", probe, K, 0));
+		}
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(binary)) {
+			check(expected, kb.search("offheap", probe, K, 0));
+		}
+	}
+
+	@Test
+	@DisplayName("Arenas reclaim space of removed vectors, and free memory when released.")
+	public void testArena() throws Exception {
+		Random rnd = new Random(42);
+		File file = new File(tmp, "vectors.bin");
+
+		List<EmbeddedText> data = new ArrayList<>();
+		List<OffHeapEmbeddedText> stored = new ArrayList<>();
+		VectorArena arena = new VectorArena(file);
+		for (int i = 0; i < SIZE; ++i) {
+			data.add(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			stored.add(arena.store(data.get(i)));
+		}
+
+		List<OffHeapEmbeddedText> live = new ArrayList<>();
+		for (int i = 0; i < SIZE; ++i) {
+			if (i % 3 == 0)
+				arena.remove(stored.get(i));
+			else
+				live.add(stored.get(i));
+		}
+		long used = arena.getUsed() - arena.getGarbage();
+		arena.compact(live);
+		assertEquals(0, arena.getGarbage());
+		assertEquals(used, arena.getUsed());
+		assertTrue(file.exists());
+
+		for (int i = 0; i < SIZE; ++i) {
+			OffHeapEmbeddedText e = stored.get(i);
+			if (i % 3 == 0) {
+				assertThrows(IllegalStateException.class, () -> e.getVector());
+			} else {
+				assertArrayEquals(data.get(i).getVector(), e.getVector());
+				assertArrayEquals(data.get(i).getVector(), e.vector(null));
+				assertEquals(VectorUtil.dot(data.get(i).getVector(), data.get(0).getVector()),
+						e.dot(data.get(0).getVector()));
+			}
+		}
+
+		arena.release();
+		assertTrue(arena.isReleased());
+		assertFalse(file.exists());
+		assertThrows(IllegalStateException.class, () -> stored.get(1).getVector());
+		assertThrows(IllegalStateException.class, () -> arena.store(data.get(0)));
+	}
+
+	private static void check(List<Pair<EmbeddedText, Double>> expected, List<Pair<EmbeddedText, Double>> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).getLeft().getText(), actual.get(i).getLeft().getText());
+			assertEquals(expected.get(i).getRight(), actual.get(i).getRight(), 1e-6);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests parallel searches in {@link KnowledgeBase} return same results as
+ * sequential ones.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class ParallelSearchTest {
+
+	private static final int SIZE = 5_000;
+	private static final int QUERIES = 20;
+	private static final int K = 15;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Parallel and sequential searches return same results.")
+	public void testParallel() throws IOException {
+		Random rnd = new Random(42);
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("other");
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(((i % 3) == 0) ? "other" : KnowledgeBase.DEFAULT_DOMAIN,
+						HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			check(kb, pool, rnd);
+
+			// Memory mapped domains, with some in-memory changes
+			File file = new File(tmp, "kb.bin");
+			kb.saveBinary(file);
+			try (KnowledgeBase mapped = KnowledgeBase.openBinary(file)) {
+				mapped.delete(e -> e.getText().endsWith("7"));
+				for (int i = 0; i < 500; ++i)
+					mapped.insert(HnswIndexTest.randomEmbedding("New " + i, rnd));
+				check(mapped, pool, rnd);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void check(KnowledgeBase kb, ForkJoinPool pool, Random rnd) {
+		for (int q = 0; q < QUERIES; ++q) {
+			EmbeddedText query = HnswIndexTest.randomEmbedding("Query " + q, rnd);
+
+			kb.setParallelismThreshold(Integer.MAX_VALUE);
+			List<Pair<EmbeddedText, Double>> sequential = kb.search(query, K, 3);
+			List<Pair<EmbeddedText, Double>> sequentialDomain = kb.search("other", query, K, 0);
+
+			kb.setParallelismThreshold(100);
+			kb.setPool(pool);
+			assertSame(sequential, kb.search(query, K, 3));
+			assertSame(sequentialDomain, kb.search("other", query, K, 0));
+			kb.setPool(null);
+			assertSame(sequential, kb.search(query, K, 3));
+		}
+	}
+
+	private static void assertSame(List<Pair<EmbeddedText, Double>> expected,
+			List<Pair<EmbeddedText, Double>> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).getLeft().getText(), actual.get(i).getLeft().getText());
+			assertEquals(expected.get(i).getRight(), actual.get(i).getRight(), 1e-12);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests partitioning of domains by model and vector length.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class PartitionTest {
+
+	private static final int SIZE = 1_500;
+	private static final int K = 10;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Searches only return embeddings compatible with the query.")
+	public void testSearch() throws Exception {
+		Random rnd = new Random(42);
+		File file = new File(tmp, "kb.bin");
+
+		List<EmbeddedText> data = data(rnd);
+		EmbeddedText query = randomEmbedding("Query", "B", 32, rnd);
+		List<String> expected = bruteForce(data, query);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.insert(data);
+			kb.setParallelismThreshold(SIZE / 8);
+			checkPartitions(kb, 0);
+			assertEquals(expected, texts(kb.search(query, K, 0)));
+			assertEquals(expected, texts(kb.searchCursor(query).next(K)));
+			kb.saveBinary(file);
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(file)) {
+			kb.setParallelismThreshold(SIZE / 8);
+			checkPartitions(kb, SIZE / 3);
+			assertEquals(expected, texts(kb.search(query, K, 0)));
+			assertEquals(expected, texts(kb.searchCursor(query).next(K)));
+
+			// Mixed mapped and in-memory content
+			kb.delete(expected.get(0));
+			kb.insert(randomEmbedding("New", "B", 32, rnd));
+			List<PartitionInfo> partitions = kb.getPartitions(KnowledgeBase.DEFAULT_DOMAIN);
+			PartitionInfo b = partitions.stream().filter(p -> p.getModel().equals("B")).findFirst().get();
+			assertEquals(SIZE / 3, b.getSize());
+			assertEquals(SIZE / 3 - 1, b.getMappedSize());
+		}
+	}
+
+	@Test
+	@DisplayName("Partitions can be migrated in place.")
+	public void testMigrate() throws Exception {
+		Random rnd = new Random(42);
+		File file = new File(tmp, "kb.bin");
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.insert(data(rnd));
+			kb.saveBinary(file);
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(file)) {
+			kb.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "id", false);
+			List<Integer> batches = new ArrayList<>();
+			int n = kb.migrate(KnowledgeBase.DEFAULT_DOMAIN, "A", 64, batch -> {
+				batches.add(batch.size());
+				List<EmbeddedText> result = new ArrayList<>();
+				for (EmbeddedText e : batch) {
+					EmbeddedText m = randomEmbedding(e.getText(), "C", 16, rnd);
+					m.getProperties().putAll(e.getProperties());
+					result.add(m);
+				}
+				result.add(randomEmbedding("Not in domain", "C", 16, rnd));
+				return result;
+			}, 200);
+			assertEquals(SIZE / 3, n);
+			assertEquals(List.of(200, 200, 100), batches);
+
+			List<PartitionInfo> partitions = kb.getPartitions(KnowledgeBase.DEFAULT_DOMAIN);
+			assertEquals(3, partitions.size());
+			assertTrue(partitions.stream().noneMatch(p -> p.getModel().equals("A") && (p.getDimensions() == 64)));
+			PartitionInfo c = partitions.stream().filter(p -> p.getModel().equals("C")).findFirst().get();
+			assertEquals(16, c.getDimensions());
+			assertEquals(SIZE / 3, c.getSize());
+			assertEquals(0, c.getMappedSize());
+			assertEquals(SIZE, kb.query(e -> true).size());
+			assertEquals(0, kb.query(e -> e.getText().equals("Not in domain")).size());
+
+			// Indexes were updated
+			EmbeddedText e = kb.query(PropertyMatcher.equalTo("id", 0)).get(0);
+			assertEquals("C", e.getModel());
+			assertEquals(e.getText(), kb.search(e, 1, 0).get(0).getLeft().getText());
+
+			// Nothing left to migrate
+			assertEquals(0, kb.migrate(KnowledgeBase.DEFAULT_DOMAIN, "A", 64, batch -> batch, 200));
+		}
+	}
+
+	/**
+	 * @return SIZE embeddings, split in 3 partitions with same model or same
+	 *         length.
+	 */
+	private static List<EmbeddedText> data(Random rnd) {
+		List<EmbeddedText> result = new ArrayList<>();
+		for (int i = 0; i < SIZE; ++i) {
+			EmbeddedText e;
+			switch (i % 3) {
+			case 0:
+				e = randomEmbedding("Text " + i, "A", 64, rnd);
+				break;
+			case 1:
+				e = randomEmbedding("Text " + i, "A", 32, rnd);
+				break;
+			default:
+				e = randomEmbedding("Text " + i, "B", 32, rnd);
+				break;
+			}
+			e.set("id", i);
+			result.add(e);
+		}
+		return result;
+	}
+
+	private static void checkPartitions(KnowledgeBase kb, int mapped) {
+		List<PartitionInfo> partitions = kb.getPartitions(KnowledgeBase.DEFAULT_DOMAIN);
+		assertEquals(3, partitions.size());
+		for (PartitionInfo p : partitions) {
+			assertEquals(SIZE / 3, p.getSize());
+			assertEquals(mapped, p.getMappedSize());
+		}
+		assertEquals(List.of("A/32", "A/64", "B/32"), partitions.stream() //
+				.map(p -> p.getModel() + "/" + p.getDimensions()) //
+				.sorted() //
+				.collect(Collectors.toList()));
+	}
+
+	private static List<String> bruteForce(List<EmbeddedText> data, EmbeddedText query) {
+		return data.stream() //
+				.filter(e -> e.getModel().equals(query.getModel())
+						&& (e.getVector().length == query.getVector().length)) //
+				.sorted(Comparator.comparingDouble((EmbeddedText e) -> -e.similarity(query))) //
+				.limit(K) //
+				.map(EmbeddedText::getText) //
+				.collect(Collectors.toList());
+	}
+
+	private static List<String> texts(List<Pair<EmbeddedText, Double>> results) {
+		return results.stream().map(p -> p.getLeft().getText()).collect(Collectors.toList());
+	}
+
+	private static EmbeddedText randomEmbedding(String text, String model, int dimensions, Random rnd) {
+		float[] v = new float[dimensions];
+		for (int i = 0; i < v.length; ++i)
+			v[i] = (float) rnd.nextGaussian();
+		return new EmbeddedText(text, v, model);
+	}
+}
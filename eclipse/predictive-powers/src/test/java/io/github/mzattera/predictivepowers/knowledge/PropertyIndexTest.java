@@ -0,0 +1,148 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests property indexes and {@link PropertyMatcher}.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class PropertyIndexTest {
+
+	private static final int SIZE = 1_000;
+
+	@TempDir
+	File tmp;
+
+	private static final List<PropertyMatcher> MATCHERS = Arrays.asList( //
+			PropertyMatcher.equalTo("source", "doc_7.txt"), //
+			PropertyMatcher.in("source", Arrays.asList("doc_1.txt", "doc_42.txt", "missing")), //
+			PropertyMatcher.prefix("source", "doc_1"), //
+			PropertyMatcher.range("page", 3, 6), //
+			PropertyMatcher.range("page", null, 2), //
+			PropertyMatcher.range("page", 8, null), //
+			PropertyMatcher.equalTo("page", 3L), // Wrong type, matches nothing
+			PropertyMatcher.equalTo("tag", null), // Null values match embeddings without the property
+			PropertyMatcher.in("tag", Arrays.asList("even", null)) //
+	);
+
+	@Test
+	@DisplayName("Queries and deletions using property indexes return same results as scans.")
+	public void testIndexes() throws IOException {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase(); KnowledgeBase indexed = new KnowledgeBase()) {
+			indexed.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "source", true);
+			indexed.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "page", false);
+			indexed.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "tag", false);
+			for (int i = 0; i < SIZE; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				e.set("source", "doc_" + (i / 10) + ".txt");
+				e.set("page", i % 10);
+				if (i % 3 == 0)
+					e.set("tag", (i % 2 == 0) ? "even" : "odd");
+				kb.insert(e);
+				indexed.insert(e);
+			}
+			check(kb, indexed);
+
+			// Index created after insertion, sorted this time
+			indexed.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "page", true);
+			check(kb, indexed);
+
+			// Deletions
+			for (PropertyMatcher m : MATCHERS.subList(0, 4)) {
+				kb.delete(m);
+				indexed.delete(m);
+			}
+			assertEquals(kb.query(e -> true).size(), indexed.query(e -> true).size());
+			check(kb, indexed);
+
+			// Memory mapped domain
+			File file = new File(tmp, "kb.bin");
+			kb.saveBinary(file);
+			try (KnowledgeBase mapped = KnowledgeBase.openBinary(file)) {
+				mapped.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "source", false);
+				mapped.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "page", true);
+				mapped.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "tag", true);
+				check(kb, mapped);
+				kb.delete(PropertyMatcher.equalTo("source", "doc_2.txt"));
+				mapped.delete(PropertyMatcher.equalTo("source", "doc_2.txt"));
+				kb.delete("Text 55");
+				mapped.delete("Text 55");
+				check(kb, mapped);
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Searches filtered by indexed properties.")
+	public void testSearch() {
+		Random rnd = new Random(4242);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "tenant", false);
+			for (int i = 0; i < SIZE; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				e.set("tenant", "t" + (i % 20));
+				kb.insert(e);
+			}
+
+			PropertyMatcher m = PropertyMatcher.equalTo("tenant", "t3");
+			EmbeddedText query = HnswIndexTest.randomEmbedding("Query", rnd);
+			List<Pair<EmbeddedText, Double>> result = kb.search(KnowledgeBase.DEFAULT_DOMAIN, query, m, 10, 0);
+			List<Pair<EmbeddedText, Double>> expected = kb.search(KnowledgeBase.DEFAULT_DOMAIN, query,
+					e -> m.match(e), 10, 0);
+			assertEquals(expected, result);
+			for (Pair<EmbeddedText, Double> p : result)
+				assertTrue(m.match(p.getLeft()));
+		}
+	}
+
+	private static void check(KnowledgeBase expected, KnowledgeBase actual) {
+		EmbeddedText query = HnswIndexTest.randomEmbedding("Query", new Random(42));
+		for (PropertyMatcher m : MATCHERS) {
+			// Scan with a matcher that cannot use indexes
+			Set<String> scan = texts(expected.query(e -> m.match(e)));
+			assertEquals(scan, texts(actual.query(m)));
+			assertEquals(expected.search(query, e -> m.match(e), 10, 0), actual.search(query, m, 10, 0));
+		}
+	}
+
+	private static Set<String> texts(List<EmbeddedText> l) {
+		return l.stream().map(EmbeddedText::getText).collect(Collectors.toSet());
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests {@link QuantizedIndex} against exhaustive search.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class QuantizedIndexTest {
+
+	private static final int SIZE = 3_000;
+	private static final int QUERIES = 50;
+	private static final int K = 10;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Recall@10 and scores of quantized index against exhaustive search.")
+	public void testRecall() {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("int8", new QuantizedIndex());
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert("int8", HnswIndexTest.randomEmbedding("Text " + i, rnd));
+
+			int found = 0;
+			for (int q = 0; q < QUERIES; ++q) {
+				EmbeddedText query = HnswIndexTest.randomEmbedding("Query " + q, rnd);
+				List<Pair<EmbeddedText, Double>> exact = kb.exactSearch("int8", query, K, 0);
+				List<Pair<EmbeddedText, Double>> approx = kb.search("int8", query, K, 0);
+				assertEquals(K, approx.size());
+
+				Set<String> texts = new HashSet<>();
+				for (Pair<EmbeddedText, Double> p : exact)
+					texts.add(p.getLeft().getText());
+				for (Pair<EmbeddedText, Double> p : approx) {
+					if (texts.contains(p.getLeft().getText()))
+						++found;
+					// Returned scores are exact
+					assertEquals(EmbeddedText.similarity(query, p.getLeft()), p.getRight(), 1e-9);
+				}
+			}
+
+			double recall = ((double) found) / (QUERIES * K);
+			System.out.println("int8 recall@" + K + ": " + recall);
+			assertTrue(recall >= 0.95, "Recall too low: " + recall);
+		}
+	}
+
+	@Test
+	@DisplayName("Deleted embeddings are not returned.")
+	public void testDelete() {
+		Random rnd = new Random(4242);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			QuantizedIndex idx = new QuantizedIndex(1);
+			kb.setIndex(KnowledgeBase.DEFAULT_DOMAIN, idx);
+
+			List<EmbeddedText> inserted = new ArrayList<>();
+			for (int i = 0; i < 100; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				inserted.add(e);
+				kb.insert(e);
+			}
+			for (int i = 0; i < inserted.size(); i += 2)
+				kb.delete(inserted.get(i).getText());
+			assertEquals(50, idx.size());
+
+			for (int i = 0; i < inserted.size(); ++i) {
+				List<Pair<EmbeddedText, Double>> result = kb.search(inserted.get(i), 1, 0);
+				if (i % 2 == 0)
+					assertFalse(inserted.get(i).getText().equals(result.get(0).getLeft().getText()));
+				else
+					assertEquals(inserted.get(i).getText(), result.get(0).getLeft().getText());
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Candidates are re-scored with vectors stored in the domain, on or off the heap.")
+	public void testStorage() throws Exception {
+		Random rnd = new Random(424242);
+		File object = new File(tmp, "kb.object");
+
+		List<EmbeddedText> inserted = new ArrayList<>();
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			QuantizedIndex idx = new QuantizedIndex();
+			kb.setIndex(KnowledgeBase.DEFAULT_DOMAIN, idx);
+			kb.createOffHeapDomain("offheap");
+			kb.setIndex("offheap", new QuantizedIndex());
+			for (int i = 0; i < 100; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				inserted.add(e);
+				kb.insert(e);
+				kb.insert("offheap", e);
+			}
+
+			// The index returns the instances stored in the domain
+			EmbeddedText stored = kb.query(KnowledgeBase.DEFAULT_DOMAIN,
+					e -> e.getText().equals(inserted.get(42).getText())).get(0);
+			assertSame(stored, idx.search(inserted.get(42), 1).get(0).getLeft());
+
+			for (int i = 0; i < 10; ++i) {
+				EmbeddedText query = HnswIndexTest.randomEmbedding("Query " + i, rnd);
+				List<Pair<EmbeddedText, Double>> expected = kb.search(KnowledgeBase.DEFAULT_DOMAIN, query, K, 0);
+				List<Pair<EmbeddedText, Double>> actual = kb.search("offheap", query, K, 0);
+				assertEquals(expected.size(), actual.size());
+				for (int j = 0; j < expected.size(); ++j) {
+					assertEquals(expected.get(j).getLeft().getText(), actual.get(j).getLeft().getText());
+					assertEquals(expected.get(j).getRight(), actual.get(j).getRight(), 1e-9);
+				}
+			}
+			kb.save(object);
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.load(object)) {
+			assertEquals(100, kb.getIndex("offheap").size());
+			assertEquals(inserted.get(7).getText(),
+					kb.search("offheap", inserted.get(7), 1, 0).get(0).getLeft().getText());
+		}
+	}
+}
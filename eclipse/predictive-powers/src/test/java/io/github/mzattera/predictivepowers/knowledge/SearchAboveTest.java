@@ -0,0 +1,140 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests {@link KnowledgeBase#searchAbove(EmbeddedText, double)} against
+ * exhaustive search.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class SearchAboveTest {
+
+	private static final int SIZE = 2_000;
+	private static final int QUERIES = 10;
+	private static final double[] THRESHOLDS = { -1.0, 0.0, 0.1, 0.2, 0.3, 1.1 };
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Range searches return all embeddings above threshold.")
+	public void testSearchAbove() throws Exception {
+		Random rnd = new Random(42);
+		File file = new File(tmp, "kb.bin");
+
+		List<EmbeddedText> data = new ArrayList<>();
+		for (int i = 0; i < SIZE; ++i) {
+			EmbeddedText e = BinaryQuantizedIndexTest.randomEmbedding("Text " + i, rnd);
+			e.set("id", i);
+			data.add(e);
+		}
+		List<EmbeddedText> queries = new ArrayList<>();
+		for (int q = 0; q < QUERIES; ++q)
+			queries.add(BinaryQuantizedIndexTest.randomEmbedding("Query " + q, rnd));
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createOffHeapDomain("offheap");
+			kb.insert(data.subList(0, SIZE / 2));
+			kb.insert("offheap", data.subList(SIZE / 2, SIZE));
+			check(kb);
+			kb.saveBinary(file);
+		}
+
+		// Memory mapped content, with changes in memory
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(file)) {
+			kb.delete(e -> ((Integer) e.get("id")) % 7 == 0);
+			kb.insert(BinaryQuantizedIndexTest.randomEmbedding("New", rnd));
+			check(kb);
+
+			// Filters, with and without property index
+			EmbeddedTextMatcher even = PropertyMatcher.in("id", evenIds());
+			for (int i = 0; i < 2; ++i) {
+				for (EmbeddedText q : queries) {
+					List<Pair<EmbeddedText, Double>> expected = new ArrayList<>();
+					for (Pair<EmbeddedText, Double> p : expected(kb, q, 0.1))
+						if (even.match(p.getLeft()))
+							expected.add(p);
+					check(expected, kb.searchAbove(q, even, 0.1));
+				}
+				kb.createPropertyIndex(KnowledgeBase.DEFAULT_DOMAIN, "id", false);
+			}
+		}
+	}
+
+	private void check(KnowledgeBase kb) {
+		Random rnd = new Random(4242);
+		int found = 0;
+		for (int q = 0; q < QUERIES; ++q) {
+			EmbeddedText query = BinaryQuantizedIndexTest.randomEmbedding("Query " + q, rnd);
+			for (double threshold : THRESHOLDS) {
+				List<Pair<EmbeddedText, Double>> expected = expected(kb, query, threshold);
+				List<Pair<EmbeddedText, Double>> actual = kb.searchAbove(query, threshold);
+				check(expected, actual);
+				found += actual.size();
+
+				expected.removeIf(p -> !kb.query("offheap", e -> e.getText().equals(p.getLeft().getText()))
+						.contains(p.getLeft()));
+				check(expected, kb.searchAbove("offheap", query, threshold));
+			}
+		}
+		assertTrue(found > 0);
+	}
+
+	/**
+	 * @return Results of exhaustive search with similarity at least threshold.
+	 */
+	private static List<Pair<EmbeddedText, Double>> expected(KnowledgeBase kb, EmbeddedText query,
+			double threshold) {
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>();
+		for (Pair<EmbeddedText, Double> p : kb.exactSearch(query, 2 * SIZE, 0))
+			if (p.getRight() >= threshold)
+				result.add(p);
+		return result;
+	}
+
+	private static List<Integer> evenIds() {
+		List<Integer> result = new ArrayList<>();
+		for (int i = 0; i < SIZE; i += 2)
+			result.add(i);
+		return result;
+	}
+
+	private static void check(List<Pair<EmbeddedText, Double>> expected, List<Pair<EmbeddedText, Double>> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).getLeft().getText(), actual.get(i).getLeft().getText());
+			assertEquals(expected.get(i).getRight(), actual.get(i).getRight(), 1e-6);
+		}
+	}
+}
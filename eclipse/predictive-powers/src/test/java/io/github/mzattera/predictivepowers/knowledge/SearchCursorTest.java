@@ -0,0 +1,140 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests {@link SearchCursor}.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class SearchCursorTest {
+
+	private static final int SIZE = 1_000;
+	private static final int QUERIES = 10;
+	private static final int PAGE = 37;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Paging with a cursor returns same results as exact searches.")
+	public void testPaging() throws IOException {
+		Random rnd = new Random(42);
+		File file = new File(tmp, "kb.bin");
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			kb.createDomain("other");
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(((i % 3) == 0) ? "other" : KnowledgeBase.DEFAULT_DOMAIN,
+						HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			kb.saveBinary(file);
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(file)) {
+			// Mix memory mapped and in-memory embeddings
+			kb.delete(e -> e.getText().endsWith("7"));
+			for (int i = SIZE; i < SIZE + 100; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			kb.insert(EmbeddedText.builder().text("Other model").model("other").vector(new float[64]).build());
+			kb.setIndex(KnowledgeBase.DEFAULT_DOMAIN, new HnswIndex());
+
+			for (int q = 0; q < QUERIES; ++q) {
+				EmbeddedText query = HnswIndexTest.randomEmbedding("Query " + q, rnd);
+
+				SearchCursor cursor = kb.searchCursor(query);
+				List<Pair<EmbeddedText, Double>> all = new ArrayList<>();
+				for (List<Pair<EmbeddedText, Double>> page = cursor.next(PAGE); page.size() > 0; page = cursor
+						.next(PAGE))
+					all.addAll(page);
+				assertFalse(cursor.hasNext());
+				assertEquals(0, cursor.remaining());
+				assertThrows(NoSuchElementException.class, () -> cursor.next());
+				check(kb.exactSearch(query, 2 * SIZE, 0), all);
+				assertEquals(SIZE, all.size());
+
+				SearchCursor domain = kb.searchCursor("other", query);
+				domain.skip(PAGE);
+				check(kb.exactSearch("other", query, PAGE, PAGE), domain.next(PAGE));
+
+				EmbeddedTextMatcher filter = e -> e.getText().contains("5");
+				SearchCursor filtered = kb.searchCursor(query, filter);
+				check(exact(kb, query, filter), filtered.next(Integer.MAX_VALUE));
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Cursors do not see changes made after they were created.")
+	public void testIsolation() throws Exception {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+
+			EmbeddedText query = HnswIndexTest.randomEmbedding("Query", rnd);
+			List<Pair<EmbeddedText, Double>> expected = kb.exactSearch(query, SIZE, 0);
+			SearchCursor cursor = kb.searchCursor(query);
+			kb.delete(expected.get(0).getLeft());
+			kb.insert(query);
+
+			assertEquals(SIZE, cursor.remaining());
+			check(expected, cursor.next(SIZE));
+			assertTrue(kb.searchCursor(query).next().getRight() > 0.999);
+		}
+	}
+
+	/**
+	 * @return Exact results for given query and filter.
+	 */
+	private static List<Pair<EmbeddedText, Double>> exact(KnowledgeBase kb, EmbeddedText query,
+			EmbeddedTextMatcher filter) {
+		List<Pair<EmbeddedText, Double>> result = new ArrayList<>();
+		for (Pair<EmbeddedText, Double> p : kb.exactSearch(query, 2 * SIZE, 0))
+			if (filter.match(p.getLeft()))
+				result.add(p);
+		return result;
+	}
+
+	private static void check(List<Pair<EmbeddedText, Double>> expected, List<Pair<EmbeddedText, Double>> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).getLeft().getText(), actual.get(i).getLeft().getText());
+			assertEquals(expected.get(i).getRight(), actual.get(i).getRight(), 1e-9);
+		}
+	}
+}
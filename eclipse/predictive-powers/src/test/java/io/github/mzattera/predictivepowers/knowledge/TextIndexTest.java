@@ -0,0 +1,171 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests text indexes, lexical and hybrid searches.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class TextIndexTest {
+
+	private static final int SIZE = 1_000;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Tokenizer splits on non alphanumeric characters and converts to lower case.")
+	public void testTokenizer() {
+		assertEquals(List.of("error", "err", "404", "in", "módulo", "x"),
+				SimpleTermTokenizer.getInstance().tokenize("  Error ERR-404 in Módulo_X!"));
+		assertTrue(SimpleTermTokenizer.getInstance().tokenize(" -- ").isEmpty());
+	}
+
+	@Test
+	@DisplayName("Lexical search finds exact identifiers and is kept up to date.")
+	public void testTextSearch() throws Exception {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Part number PN" + i + " is in stock", rnd));
+			assertThrows(IllegalArgumentException.class, () -> kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn7", 10, 0));
+
+			kb.createTextIndex(KnowledgeBase.DEFAULT_DOMAIN);
+			List<Pair<EmbeddedText, Double>> result = kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "PN77", 10, 0);
+			assertEquals(1, result.size());
+			assertEquals("Part number PN77 is in stock", result.get(0).getLeft().getText());
+			assertTrue(kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "unknown", 10, 0).isEmpty());
+			assertTrue(kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "PN77", 0, 0).isEmpty());
+
+			// Rarer terms weigh more
+			kb.insert(HnswIndexTest.randomEmbedding("Part number PN77 is discontinued", rnd));
+			result = kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn77 discontinued", 10, 0);
+			assertEquals(2, result.size());
+			assertEquals("Part number PN77 is discontinued", result.get(0).getLeft().getText());
+			assertTrue(result.get(0).getRight() > result.get(1).getRight());
+
+			// Pagination
+			result = kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "stock", 20, 0);
+			assertEquals(20, result.size());
+			assertEquals(result.subList(10, 20), kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "stock", 10, 10));
+
+			// Filtered
+			EmbeddedTextMatcher filter = e -> e.getText().endsWith("discontinued");
+			result = kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn77", filter, 10, 0);
+			assertEquals(1, result.size());
+			assertEquals("Part number PN77 is discontinued", result.get(0).getLeft().getText());
+
+			// Deletions
+			kb.delete(result.get(0).getLeft());
+			kb.delete(e -> e.getText().contains("PN1"));
+			assertEquals(1, kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn77", 10, 0).size());
+			assertTrue(kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn1", 10, 0).isEmpty());
+			assertTrue(kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn123", 10, 0).isEmpty());
+
+			// Index survives serialization
+			File f = new File(tmp, "kb.object");
+			kb.save(f);
+			try (KnowledgeBase copy = KnowledgeBase.load(f)) {
+				assertEquals(kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn7 stock", 50, 0),
+						copy.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn7 stock", 50, 0));
+			}
+
+			kb.dropTextIndex(KnowledgeBase.DEFAULT_DOMAIN);
+			assertThrows(IllegalArgumentException.class, () -> kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn7", 10, 0));
+		}
+	}
+
+	@Test
+	@DisplayName("Lexical search works on memory mapped domains.")
+	public void testBinary() throws IOException {
+		Random rnd = new Random(42);
+		File f = new File(tmp, "kb.bin");
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Part number PN" + i + " is in stock", rnd));
+			kb.saveBinary(f);
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(f)) {
+			kb.createTextIndex(KnowledgeBase.DEFAULT_DOMAIN);
+			kb.delete(e -> e.getText().contains("PN5"));
+			kb.insert(HnswIndexTest.randomEmbedding("Part number PN5 is back in stock", rnd));
+			List<Pair<EmbeddedText, Double>> result = kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn5", 10, 0);
+			assertEquals(1, result.size());
+			assertEquals("Part number PN5 is back in stock", result.get(0).getLeft().getText());
+		}
+	}
+
+	@Test
+	@DisplayName("Hybrid search combines lexical and similarity rankings.")
+	public void testHybridSearch() throws Exception {
+		Random rnd = new Random(42);
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Part number PN" + i + " is in stock", rnd));
+			kb.createTextIndex(KnowledgeBase.DEFAULT_DOMAIN);
+
+			// Query vector is close to PN3 but text mentions PN9
+			EmbeddedText pn3 = kb.textSearch(KnowledgeBase.DEFAULT_DOMAIN, "pn3", 1, 0).get(0).getLeft();
+			EmbeddedText query = EmbeddedText.builder().text("PN9").model(pn3.getModel()).vector(pn3.getVector())
+					.build();
+
+			List<Pair<EmbeddedText, Double>> result = kb.hybridSearch(KnowledgeBase.DEFAULT_DOMAIN, query, 10, 0);
+			assertEquals(10, result.size());
+			List<String> texts = result.stream().map(p -> p.getLeft().getText()).collect(Collectors.toList());
+			assertTrue(texts.contains("Part number PN3 is in stock"));
+			assertTrue(texts.contains("Part number PN9 is in stock"));
+			for (int i = 1; i < result.size(); ++i)
+				assertTrue(result.get(i - 1).getRight() >= result.get(i).getRight());
+
+			// An embedding in both rankings beats those in only one
+			query = EmbeddedText.builder().text("PN3").model(pn3.getModel()).vector(pn3.getVector()).build();
+			result = kb.hybridSearch(KnowledgeBase.DEFAULT_DOMAIN, query, 10, 0);
+			assertEquals("Part number PN3 is in stock", result.get(0).getLeft().getText());
+			assertEquals(2.0 / (KnowledgeBase.RRF_K + 1), result.get(0).getRight(), 1e-9);
+			assertFalse(result.get(1).getRight() > 1.0 / (KnowledgeBase.RRF_K + 1));
+
+			// Pagination and filter
+			assertEquals(result.subList(5, 10), kb.hybridSearch(KnowledgeBase.DEFAULT_DOMAIN, query, 5, 5));
+			result = kb.hybridSearch(KnowledgeBase.DEFAULT_DOMAIN, query, e -> e.getText().contains("PN9"), 10, 0);
+			assertTrue(result.stream().allMatch(p -> p.getLeft().getText().contains("PN9")));
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.knowledge;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.services.EmbeddedText;
+
+/**
+ * Tests persisting knowledge bases through a {@link WriteAheadLog}.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class WriteAheadLogTest {
+
+	private static final int SIZE = 200;
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Changes are persisted in the log and replayed when the knowledge base is re-opened.")
+	public void testReplay() throws IOException {
+		Random rnd = new Random(42);
+		File snapshot = new File(tmp, "kb.bin");
+		File log = new File(tmp, "kb.log");
+
+		Set<String> expected;
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			kb.createDomain("other");
+			kb.createDomain("dropped");
+			for (int i = 0; i < SIZE; ++i) {
+				EmbeddedText e = HnswIndexTest.randomEmbedding("Text " + i, rnd);
+				e.set("id", i);
+				kb.insert(((i % 2) == 0) ? "other" : KnowledgeBase.DEFAULT_DOMAIN, e);
+			}
+			kb.insert("dropped", HnswIndexTest.randomEmbedding("Gone", rnd));
+			kb.dropDomain("dropped");
+			kb.delete("Text 1");
+			kb.delete("other", "Text 2");
+			kb.delete(e -> ((Integer) e.get("id")) >= SIZE - 10);
+			expected = texts(kb);
+			assertFalse(snapshot.exists());
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			assertEquals(Set.of(KnowledgeBase.DEFAULT_DOMAIN, "other"),
+					new HashSet<>(kb.listDomains()));
+			assertEquals(expected, texts(kb));
+			assertEquals(SIZE - 12, expected.size());
+			assertEquals(4, kb.query("other", e -> "Text 4".equals(e.getText())).get(0).get("id"));
+		}
+	}
+
+	@Test
+	@DisplayName("A truncated record at the end of the log is discarded.")
+	public void testTornTail() throws IOException {
+		Random rnd = new Random(42);
+		File snapshot = new File(tmp, "kb.bin");
+		File log = new File(tmp, "kb.log");
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+		}
+
+		// Simulates a crash while writing last record
+		try (RandomAccessFile f = new RandomAccessFile(log, "rw")) {
+			f.setLength(f.length() - 5);
+		}
+
+		long size;
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			assertEquals(SIZE - 1, kb.query(e -> true).size());
+			size = log.length();
+			kb.insert(HnswIndexTest.randomEmbedding("Text " + SIZE, rnd));
+			assertTrue(log.length() > size);
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			assertEquals(SIZE, kb.query(e -> true).size());
+			assertEquals(1, kb.query(e -> ("Text " + SIZE).equals(e.getText())).size());
+		}
+	}
+
+	@Test
+	@DisplayName("Compaction saves the knowledge base and empties the log.")
+	public void testCompaction() throws IOException {
+		Random rnd = new Random(42);
+		File snapshot = new File(tmp, "kb.bin");
+		File log = new File(tmp, "kb.log");
+
+		Set<String> expected;
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			long size = log.length();
+			kb.compact();
+			assertTrue(snapshot.exists());
+			assertTrue(log.length() < size);
+
+			kb.delete("Text 0");
+			kb.insert(HnswIndexTest.randomEmbedding("Text " + SIZE, rnd));
+			expected = texts(kb);
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			assertEquals(expected, texts(kb));
+		}
+
+		// Replaying a log whose changes are already saved is harmless
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot)) {
+			WriteAheadLog.replay(log, kb);
+			WriteAheadLog.replay(log, kb);
+			assertEquals(expected, texts(kb));
+		}
+	}
+
+	@Test
+	@DisplayName("Records after a given position are kept when the log is partially discarded.")
+	public void testDiscard() throws IOException {
+		Random rnd = new Random(42);
+		File log = new File(tmp, "kb.log");
+
+		try (WriteAheadLog wal = new WriteAheadLog(log, false)) {
+			for (int i = 0; i < SIZE; ++i)
+				wal.insert(KnowledgeBase.DEFAULT_DOMAIN, HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			long position = wal.size();
+			wal.insert(KnowledgeBase.DEFAULT_DOMAIN, HnswIndexTest.randomEmbedding("Kept", rnd));
+			wal.discard(position);
+			wal.insert(KnowledgeBase.DEFAULT_DOMAIN, HnswIndexTest.randomEmbedding("Appended", rnd));
+		}
+
+		try (KnowledgeBase kb = new KnowledgeBase()) {
+			assertEquals(2, WriteAheadLog.replay(log, kb));
+			assertEquals(Set.of("Kept", "Appended"), texts(kb));
+		}
+	}
+
+	@Test
+	@DisplayName("The log is compacted in background when it grows too big.")
+	public void testBackgroundCompaction() throws IOException {
+		Random rnd = new Random(42);
+		File snapshot = new File(tmp, "kb.bin");
+		File log = new File(tmp, "kb.log");
+
+		Set<String> expected;
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			kb.setCompactionThreshold(10_000);
+			for (int i = 0; i < SIZE; ++i)
+				kb.insert(HnswIndexTest.randomEmbedding("Text " + i, rnd));
+			expected = texts(kb);
+		}
+		assertTrue(snapshot.exists());
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			assertEquals(expected, texts(kb));
+		}
+	}
+
+	@Test
+	@DisplayName("Dropping a knowledge base is persisted.")
+	public void testDrop() throws IOException {
+		Random rnd = new Random(42);
+		File snapshot = new File(tmp, "kb.bin");
+		File log = new File(tmp, "kb.log");
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			kb.createDomain("other");
+			kb.insert("other", HnswIndexTest.randomEmbedding("Text", rnd));
+			kb.compact();
+			kb.drop();
+			kb.insert(HnswIndexTest.randomEmbedding("New", rnd));
+		}
+
+		try (KnowledgeBase kb = KnowledgeBase.openBinary(snapshot, log)) {
+			assertEquals(1, kb.listDomains().size());
+			assertEquals(Set.of("New"), texts(kb));
+		}
+	}
+
+	private static Set<String> texts(KnowledgeBase kb) {
+		return kb.query(e -> true).stream().map(EmbeddedText::getText).collect(Collectors.toSet());
+	}
+}
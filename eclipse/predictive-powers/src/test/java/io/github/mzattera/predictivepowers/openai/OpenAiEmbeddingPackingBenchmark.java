@@ -0,0 +1,116 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.openai;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.github.mzattera.predictivepowers.services.ModelService.Tokenizer;
+
+/**
+ * Compares the time needed to pack chunks into embedding calls by
+ * {@link OpenAiEmbeddingService#pack(List, Tokenizer)} against the previous
+ * implementation, which re-tokenized the whole batch for each chunk added, and
+ * prints how well batches are filled.
+ * 
+ * This is not a unit test; run it as a Java application on the target
+ * hardware. No API key is needed.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class OpenAiEmbeddingPackingBenchmark {
+
+	private static final int SIZE = 100_000;
+
+	/** The old implementation is too slow to run on all chunks */
+	private static final int OLD_SIZE = 2_000;
+
+	private static final String[] WORDS = { "the", "model", "embedding", "vector", "knowledge", "base", "search",
+			"token", "chunk", "document", "similarity", "query", "of", "and", "in", "a", "predictive", "powers" };
+
+	public static void main(String[] args) {
+		Random rnd = new Random(42);
+		Tokenizer tokenizer = OpenAiTokenizer.getTokenizer(OpenAiEmbeddingService.DEFAULT_MODEL);
+
+		List<String> chunks = new ArrayList<>(SIZE);
+		for (int i = 0; i < SIZE; ++i) {
+			StringBuilder sb = new StringBuilder();
+			int len = 20 + rnd.nextInt(400);
+			for (int w = 0; w < len; ++w)
+				sb.append(WORDS[rnd.nextInt(WORDS.length)]).append(' ');
+			chunks.add(sb.toString().trim());
+		}
+
+		OpenAiEmbeddingService.pack(chunks.subList(0, OLD_SIZE), tokenizer); // Warm up
+		oldPack(chunks.subList(0, OLD_SIZE), tokenizer);
+
+		System.out.println("implementation\tchunks\tbatches\ttime (ms)");
+		long start = System.currentTimeMillis();
+		List<List<String>> batches = oldPack(chunks.subList(0, OLD_SIZE), tokenizer);
+		System.out.println("old\t" + OLD_SIZE + "\t" + batches.size() + "\t" + (System.currentTimeMillis() - start));
+
+		start = System.currentTimeMillis();
+		batches = OpenAiEmbeddingService.pack(chunks.subList(0, OLD_SIZE), tokenizer);
+		System.out.println("new\t" + OLD_SIZE + "\t" + batches.size() + "\t" + (System.currentTimeMillis() - start));
+
+		start = System.currentTimeMillis();
+		batches = OpenAiEmbeddingService.pack(chunks, tokenizer);
+		System.out.println("new\t" + SIZE + "\t" + batches.size() + "\t" + (System.currentTimeMillis() - start));
+
+		long tokens = 0;
+		int inputs = 0;
+		for (List<String> b : batches) {
+			for (String c : b)
+				tokens += tokenizer.count(c) + OpenAiEmbeddingService.TOKENS_OVERHEAD_PER_INPUT;
+			inputs += b.size();
+		}
+		System.out.println();
+		System.out.printf("Average inputs per batch: %.1f (limit %d)%n", ((double) inputs) / batches.size(),
+				OpenAiEmbeddingService.MAX_INPUTS_PER_CALL);
+		System.out.printf("Average fill of token limit: %.1f%%%n",
+				100.0 * tokens / (batches.size() * (double) OpenAiEmbeddingService.MAX_TOKENS_PER_CALL));
+		System.out.printf("Lower bound for number of batches: %d%n",
+				(long) Math.ceil(((double) tokens) / OpenAiEmbeddingService.MAX_TOKENS_PER_CALL));
+	}
+
+	/**
+	 * Packing as it was done before, counting tokens for the whole batch each time
+	 * a chunk was added.
+	 */
+	private static List<List<String>> oldPack(List<String> c, Tokenizer tokenizer) {
+		List<String> chunks = new ArrayList<>(c);
+		List<List<String>> batches = new ArrayList<>();
+		List<String> input = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		while (chunks.size() > 0) {
+			String s = chunks.remove(0);
+			sb.append(s);
+			if ((input.size() == 2048) || ((tokenizer.count(sb.toString()) + 20 * input.size()) > 128_000)) {
+				batches.add(input);
+				input = new ArrayList<>();
+				sb.setLength(0);
+				sb.append(s);
+			}
+			input.add(s);
+		}
+		if (input.size() > 0)
+			batches.add(input);
+		return batches;
+	}
+}
@@ -17,7 +17,9 @@
 package io.github.mzattera.predictivepowers.openai;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -26,6 +28,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.EnabledIf;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -69,6 +72,33 @@ public class OpenAiEmbeddingServiceTest {
 		return services().findAny().isPresent();
 	}
 
+	@Test
+	@DisplayName("Chunks are packed within input and token limits, in order.")
+	public void testPack() {
+		Tokenizer tokenizer = OpenAiTokenizer.getTokenizer(OpenAiEmbeddingService.DEFAULT_MODEL);
+		assertEquals(0, OpenAiEmbeddingService.pack(new ArrayList<>(), tokenizer).size());
+
+		List<String> chunks = new ArrayList<>();
+		for (int i = 0; i < 5_000; ++i)
+			chunks.add("Chunk " + i + " " + "lorem ipsum ".repeat(i % 200));
+		chunks.add("Huge chunk " + "lorem ipsum ".repeat(100_000)); // Exceeds token limit alone
+
+		List<List<String>> batches = OpenAiEmbeddingService.pack(chunks, tokenizer);
+		List<String> packed = new ArrayList<>();
+		for (List<String> b : batches) {
+			assertTrue(b.size() > 0);
+			assertTrue(b.size() <= OpenAiEmbeddingService.MAX_INPUTS_PER_CALL);
+			int tokens = 0;
+			for (String c : b)
+				tokens += tokenizer.count(c);
+			assertTrue((b.size() == 1) || ((tokens + OpenAiEmbeddingService.TOKENS_OVERHEAD_PER_INPUT
+					* (b.size() - 1)) <= OpenAiEmbeddingService.MAX_TOKENS_PER_CALL));
+			packed.addAll(b);
+		}
+		assertEquals(chunks, packed);
+		assertEquals(1, batches.get(batches.size() - 1).size());
+	}
+
 	// TODO add tests using embedding windows, check length and size of the returned
 	// pieces too
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import io.github.mzattera.predictivepowers.AiEndpoint;
+import io.github.mzattera.predictivepowers.BadRequestException;
+import io.github.mzattera.predictivepowers.EndpointException;
+import io.github.mzattera.predictivepowers.RateLimitException;
+import lombok.NonNull;
+
+/**
+ * Tests batch dispatching in {@link AbstractEmbeddingService}.
+ *
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class AbstractEmbeddingServiceTest {
+
+	/**
+	 * Embeds text in batches of 10 strings, each taking a random time; it can be
+	 * configured to fail the first calls.
+	 */
+	private static class BatchingEmbeddingService extends AbstractEmbeddingService {
+
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+
+		/** How many calls, starting from the first one, fail */
+		int failures = 0;
+
+		/** Error thrown by failing calls */
+		EndpointException error = new RateLimitException("Failed call");
+
+		BatchingEmbeddingService() {
+			super("batch-model");
+		}
+
+		@Override
+		public AiEndpoint getEndpoint() {
+			return null;
+		}
+
+		@Override
+		public List<EmbeddedText> embed(@NonNull Collection<String> text, int chunkSize, int windowSize,
+				int stride) {
+			List<String> chunks = new ArrayList<>(text);
+			List<List<String>> batches = new ArrayList<>();
+			for (int i = 0; i < chunks.size(); i += 10)
+				batches.add(chunks.subList(i, Math.min(chunks.size(), i + 10)));
+			try {
+				return embedBatches(batches, this::embed);
+			} catch (Exception e) {
+				throw EndpointException.fromException(e, null);
+			}
+		}
+
+		private List<EmbeddedText> embed(List<String> input) {
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			try {
+				if (calls.incrementAndGet() <= failures)
+					throw error;
+				Thread.sleep(new Random().nextInt(20));
+				List<EmbeddedText> result = new ArrayList<>();
+				for (String s : input)
+					result.add(new EmbeddedText(s, new float[] { s.length() }, getModel()));
+				return result;
+			} catch (InterruptedException e) {
+				throw new EndpointException(e);
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	@Test
+	@DisplayName("Concurrent batches are returned in input order.")
+	public void testConcurrentBatches() {
+		List<String> text = new ArrayList<>();
+		for (int i = 0; i < 200; ++i)
+			text.add("Text " + i);
+
+		try (BatchingEmbeddingService svc = new BatchingEmbeddingService()) {
+			assertThrows(IllegalArgumentException.class, () -> svc.setMaxConcurrentRequests(0));
+			assertThrows(IllegalArgumentException.class, () -> svc.setMaxRetries(-1));
+
+			check(text, svc.embed(text));
+			assertEquals(1, svc.maxInFlight.get());
+
+			svc.setMaxConcurrentRequests(4);
+			check(text, svc.embed(text));
+			assertTrue(svc.maxInFlight.get() <= 4);
+		}
+	}
+
+	@Test
+	@DisplayName("Failed batches are retried, or their error is thrown.")
+	public void testRetries() {
+		List<String> text = new ArrayList<>();
+		for (int i = 0; i < 50; ++i)
+			text.add("Text " + i);
+
+		try (BatchingEmbeddingService svc = new BatchingEmbeddingService()) {
+			svc.setMaxConcurrentRequests(3);
+			svc.failures = Integer.MAX_VALUE;
+			assertThrows(EndpointException.class, () -> svc.embed(text));
+		}
+
+		try (BatchingEmbeddingService svc = new BatchingEmbeddingService()) {
+			svc.setMaxConcurrentRequests(3);
+			svc.failures = 1;
+			svc.setMaxRetries(1);
+			check(text, svc.embed(text));
+			assertEquals(6, svc.calls.get());
+		}
+
+		// Errors that are not transient are not retried
+		try (BatchingEmbeddingService svc = new BatchingEmbeddingService()) {
+			svc.failures = 1;
+			svc.error = new BadRequestException("Bad call");
+			svc.setMaxRetries(3);
+			assertThrows(BadRequestException.class, () -> svc.embed(text));
+			assertEquals(1, svc.calls.get());
+		}
+
+		assertTrue(AbstractEmbeddingService.isTransient(new EndpointException(new SocketTimeoutException())));
+		assertFalse(AbstractEmbeddingService.isTransient(new EndpointException("Invalid input")));
+	}
+
+	private static void check(List<String> text, List<EmbeddedText> result) {
+		assertEquals(text.size(), result.size());
+		for (int i = 0; i < text.size(); ++i)
+			assertEquals(text.get(i), result.get(i).getText());
+	}
+}
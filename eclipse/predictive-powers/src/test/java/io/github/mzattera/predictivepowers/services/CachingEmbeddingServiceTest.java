@@ -0,0 +1,285 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.github.mzattera.predictivepowers.AiEndpoint;
+import lombok.NonNull;
+
+/**
+ * Tests {@link CachingEmbeddingService}, wrapping a service that creates
+ * embeddings locally.
+ *
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class CachingEmbeddingServiceTest {
+
+	/**
+	 * Creates random embeddings, derived from the text, and counts texts it
+	 * embeds.
+	 */
+	private static class FakeEmbeddingService extends AbstractEmbeddingService {
+
+		int embedded = 0;
+
+		/** Calls to {@link #embed(Collection, int, int, int)} */
+		int calls = 0;
+
+		String settings = "";
+
+		/** If true, text is split into chunks after each '|' */
+		boolean split = false;
+
+		/** If true, '|' is removed from chunks, so they no longer match the text */
+		boolean dropSeparators = false;
+
+		FakeEmbeddingService() {
+			super("fake-model");
+		}
+
+		@Override
+		public String getEmbeddingSettings() {
+			return settings;
+		}
+
+		@Override
+		public AiEndpoint getEndpoint() {
+			return null;
+		}
+
+		@Override
+		public List<EmbeddedText> embed(@NonNull Collection<String> text, int chunkSize, int windowSize,
+				int stride) {
+			++calls;
+			List<EmbeddedText> result = new ArrayList<>();
+			for (String s : text) {
+				for (String t : (split ? s.split("(?<=\\|)") : new String[] { s })) {
+					if (dropSeparators)
+						t = t.replace("|", "");
+					Random rnd = new Random((settings + t.trim()).hashCode());
+					float[] v = new float[16];
+					for (int i = 0; i < v.length; ++i)
+						v[i] = rnd.nextFloat();
+					result.add(new EmbeddedText(t.trim(), v, getModel()));
+					++embedded;
+				}
+			}
+			return result;
+		}
+	}
+
+	@TempDir
+	File tmp;
+
+	@Test
+	@DisplayName("Only missing chunks are embedded, results are in input order.")
+	public void testCache() throws Exception {
+		FakeEmbeddingService fake = new FakeEmbeddingService();
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 100)) {
+
+			List<String> text = List.of("alpha", "beta", "alpha", "gamma");
+			List<EmbeddedText> expected = fake.embed(text);
+			fake.embedded = 0;
+
+			check(expected, svc.embed(text));
+			assertEquals(3, fake.embedded);
+			assertEquals(3, svc.getMisses());
+			assertEquals(1, svc.getHits());
+
+			// White spaces are normalized
+			check(fake.embed(List.of("delta", "beta  ")), svc.embed(List.of("delta", "beta  ")));
+			assertEquals(3 + 2 + 1, fake.embedded);
+			assertEquals(2, svc.getHits());
+
+			// Returned embeddings are copies
+			EmbeddedText e = svc.embed("alpha").get(0);
+			assertNotSame(e.getVector(), svc.embed("alpha").get(0).getVector());
+			e.getVector()[0] = -1;
+			assertEquals(expected.get(0).getVector()[0], svc.embed("alpha").get(0).getVector()[0]);
+
+			// Another model does not hit the cache
+			fake.setModel("other-model");
+			fake.embedded = 0;
+			svc.embed("alpha");
+			assertEquals(1, fake.embedded);
+		}
+	}
+
+	@Test
+	@DisplayName("Settings of the wrapped service are part of the key.")
+	public void testSettings() throws Exception {
+		FakeEmbeddingService fake = new FakeEmbeddingService();
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 100)) {
+			svc.embed("alpha");
+
+			fake.settings = "dimensions=8";
+			List<EmbeddedText> expected = fake.embed(List.of("alpha"));
+			fake.embedded = 0;
+			check(expected, svc.embed("alpha"));
+			assertEquals(1, fake.embedded);
+			assertEquals(0, svc.getHits());
+
+			svc.embed("alpha");
+			assertEquals(1, fake.embedded);
+			assertEquals(1, svc.getHits());
+		}
+	}
+
+	@Test
+	@DisplayName("Chunks that the wrapped service splits are recognized by their text.")
+	public void testSplit() throws Exception {
+		FakeEmbeddingService fake = new FakeEmbeddingService();
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 100)) {
+			svc.embed("alpha");
+
+			fake.split = true;
+			List<String> text = List.of("alpha", "beta", "gamma|delta", "epsilon");
+			List<EmbeddedText> expected = fake.embed(text);
+			fake.embedded = 0;
+			fake.calls = 0;
+
+			check(expected, svc.embed(text));
+			assertEquals(1, fake.calls);
+			assertEquals(4, fake.embedded);
+			assertEquals(1 + 3, svc.getMisses());
+
+			// Only chunks embedded in one piece were cached
+			fake.embedded = 0;
+			check(expected, svc.embed(text));
+			assertEquals(2, fake.embedded);
+		}
+
+		// Chunks that cannot be recognized are embedded one at a time
+		fake.dropSeparators = true;
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 100)) {
+			List<String> text = List.of("alpha", "beta|gamma", "delta|epsilon", "zeta");
+			List<EmbeddedText> expected = fake.embed(text);
+			fake.embedded = 0;
+			fake.calls = 0;
+
+			check(expected, svc.embed(text));
+			assertEquals(1 + 2, fake.calls);
+			assertEquals(6 + 4, fake.embedded);
+		}
+	}
+
+	@Test
+	@DisplayName("Least recently used embeddings are evicted, but survive on disk.")
+	public void testEviction() throws Exception {
+		FakeEmbeddingService fake = new FakeEmbeddingService();
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 2)) {
+			svc.embed(List.of("a", "b", "c"));
+			assertEquals(2, svc.size());
+			assertEquals(1, svc.getEvictions());
+
+			svc.embed("c");
+			assertEquals(3, fake.embedded);
+			svc.embed("a");
+			assertEquals(4, fake.embedded);
+		}
+
+		File folder = new File(tmp, "cache");
+		List<String> text = List.of("a", "b", "c", "d");
+		List<EmbeddedText> expected = fake.embed(text);
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 2, folder)) {
+			svc.embed(text);
+		}
+
+		fake.embedded = 0;
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 2, folder)) {
+			check(expected, svc.embed(text));
+			assertEquals(0, fake.embedded);
+			assertEquals(4, svc.getHits());
+
+			svc.clear();
+			assertEquals(0, svc.size());
+			svc.embed(text);
+			assertEquals(4, fake.embedded);
+		}
+	}
+
+	@Test
+	@DisplayName("Least recently used embeddings are deleted when the folder is full.")
+	public void testFolderSize() throws Exception {
+		FakeEmbeddingService fake = new FakeEmbeddingService();
+		File folder = new File(tmp, "cache");
+		List<String> old = List.of("a0", "a1", "a2", "a3", "a4");
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 0, folder)) {
+			svc.embed(old);
+		}
+
+		// All embeddings have texts of same length, so their files have same size
+		long size = 0, files = 0;
+		for (File dir : folder.listFiles()) {
+			for (File f : dir.listFiles()) {
+				size = f.length();
+				++files;
+				f.setLastModified(System.currentTimeMillis() - 3_600_000);
+			}
+		}
+		assertEquals(old.size(), files);
+
+		// Room for 13.5 embeddings: the 14th prunes the folder to 12 (90%)
+		long max = size * 27 / 2;
+		List<String> recent = List.of("b0", "b1", "b2", "b3", "b4", "b5", "b6", "b7", "b8", "b9");
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 0, folder, max)) {
+			assertEquals(max, svc.getMaxFolderBytes());
+			svc.embed("a0"); // Now recently used
+			svc.embed(recent);
+			assertEquals(1, svc.getHits());
+		}
+
+		long total = 0;
+		for (File dir : folder.listFiles()) {
+			for (File f : dir.listFiles())
+				total += f.length();
+		}
+		assertEquals(13 * size, total);
+
+		fake.embedded = 0;
+		try (CachingEmbeddingService svc = new CachingEmbeddingService(fake, 0, folder, max)) {
+			svc.embed("a0");
+			svc.embed(recent);
+			assertEquals(0, fake.embedded);
+			svc.embed(old);
+			assertEquals(2, fake.embedded);
+		}
+	}
+
+	private static void check(List<EmbeddedText> expected, List<EmbeddedText> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).getText(), actual.get(i).getText());
+			assertEquals(expected.get(i).getModel(), actual.get(i).getModel());
+			assertArrayEquals(expected.get(i).getVector(), actual.get(i).getVector());
+		}
+	}
+}
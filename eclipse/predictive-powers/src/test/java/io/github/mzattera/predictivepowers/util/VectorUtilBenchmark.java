@@ -0,0 +1,166 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.util;
+
+import java.util.Random;
+
+/**
+ * Compares {@link VectorUtil#dot(float[], float[])} with a naive loop, for
+ * common embedding sizes. It also compares computing dot products for 16
+ * queries with {@link VectorUtil#dot(float[], float[][], int[], int, double[])}
+ * against one {@link VectorUtil#dot(float[], float[])} for each query.
+ * 
+ * This is not a unit test; run it as a Java application on the target
+ * hardware.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class VectorUtilBenchmark {
+
+	private static final int[] DIMENSIONS = { 384, 768, 1024, 1536, 3072 };
+
+	/** Number of vectors; small enough to fit in cache, so we measure compute */
+	private static final int VECTORS = 256;
+
+	/** Number of queries searched at once */
+	private static final int QUERIES = 16;
+
+	private static final int WARMUP = 5;
+	private static final int ROUNDS = 10;
+
+	private static double blackhole = 0.0;
+
+	public static void main(String[] args) {
+		Random rnd = new Random(42);
+
+		System.out.println("dims\tnaive (ns/op)\tVectorUtil (ns/op)\tspeedup");
+		for (int dims : DIMENSIONS) {
+			float[][] vectors = new float[VECTORS][dims];
+			for (float[] v : vectors)
+				for (int i = 0; i < dims; ++i)
+					v[i] = (float) rnd.nextGaussian();
+			float[] q = vectors[0].clone();
+
+			// Enough iterations for each round to last some milliseconds
+			int iterations = Math.max(1, 50_000_000 / (VECTORS * dims));
+
+			for (int i = 0; i < WARMUP; ++i) {
+				naive(vectors, q, iterations);
+				kernel(vectors, q, iterations);
+			}
+
+			long naive = Long.MAX_VALUE, kernel = Long.MAX_VALUE;
+			for (int i = 0; i < ROUNDS; ++i) {
+				naive = Math.min(naive, naive(vectors, q, iterations));
+				kernel = Math.min(kernel, kernel(vectors, q, iterations));
+			}
+
+			double ops = (double) iterations * VECTORS;
+			System.out.printf("%d\t%.1f\t%.1f\t%.2fx%n", dims, naive / ops, kernel / ops, (double) naive / kernel);
+		}
+
+		System.out.println();
+		System.out.println("dims\tsingle (ns/op)\tmulti (ns/op)\tspeedup");
+		for (int dims : DIMENSIONS) {
+			float[][] vectors = new float[VECTORS][dims];
+			for (float[] v : vectors)
+				for (int i = 0; i < dims; ++i)
+					v[i] = (float) rnd.nextGaussian();
+			float[][] queries = new float[QUERIES][];
+			int[] idx = new int[QUERIES];
+			for (int i = 0; i < QUERIES; ++i) {
+				queries[i] = vectors[i].clone();
+				idx[i] = i;
+			}
+
+			int iterations = Math.max(1, 50_000_000 / (VECTORS * dims * QUERIES));
+
+			for (int i = 0; i < WARMUP; ++i) {
+				single(vectors, queries, idx, iterations);
+				multi(vectors, queries, idx, iterations);
+			}
+
+			long single = Long.MAX_VALUE, multi = Long.MAX_VALUE;
+			for (int i = 0; i < ROUNDS; ++i) {
+				single = Math.min(single, single(vectors, queries, idx, iterations));
+				multi = Math.min(multi, multi(vectors, queries, idx, iterations));
+			}
+
+			double ops = (double) iterations * VECTORS * QUERIES;
+			System.out.printf("%d\t%.1f\t%.1f\t%.2fx%n", dims, single / ops, multi / ops, (double) single / multi);
+		}
+
+		if (blackhole == 42.0) // Prevents dead code elimination
+			System.out.println();
+	}
+
+	private static long naive(float[][] vectors, float[] q, int iterations) {
+		long start = System.nanoTime();
+		double sum = 0.0;
+		for (int it = 0; it < iterations; ++it) {
+			for (float[] v : vectors) {
+				double ab = 0.0;
+				for (int i = 0; i < v.length; ++i)
+					ab += (double) v[i] * q[i];
+				sum += ab;
+			}
+		}
+		blackhole += sum;
+		return System.nanoTime() - start;
+	}
+
+	private static long kernel(float[][] vectors, float[] q, int iterations) {
+		long start = System.nanoTime();
+		double sum = 0.0;
+		for (int it = 0; it < iterations; ++it) {
+			for (float[] v : vectors)
+				sum += VectorUtil.dot(v, q);
+		}
+		blackhole += sum;
+		return System.nanoTime() - start;
+	}
+
+	private static long single(float[][] vectors, float[][] queries, int[] idx, int iterations) {
+		long start = System.nanoTime();
+		double sum = 0.0;
+		double[] dots = new double[queries.length];
+		for (int it = 0; it < iterations; ++it) {
+			for (float[] v : vectors) {
+				for (int i = 0; i < queries.length; ++i)
+					dots[i] = VectorUtil.dot(v, queries[i]);
+				sum += dots[0];
+			}
+		}
+		blackhole += sum;
+		return System.nanoTime() - start;
+	}
+
+	private static long multi(float[][] vectors, float[][] queries, int[] idx, int iterations) {
+		long start = System.nanoTime();
+		double sum = 0.0;
+		double[] dots = new double[queries.length];
+		for (int it = 0; it < iterations; ++it) {
+			for (float[] v : vectors) {
+				VectorUtil.dot(v, queries, idx, idx.length, dots);
+				sum += dots[0];
+			}
+		}
+		blackhole += sum;
+		return System.nanoTime() - start;
+	}
+}
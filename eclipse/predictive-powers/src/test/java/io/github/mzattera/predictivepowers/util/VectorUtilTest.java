@@ -0,0 +1,140 @@
+/*
+ * Copyright 2025 Massimiliano "Maxi" Zattera
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mzattera.predictivepowers.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests {@link VectorUtil} kernels against naive implementations.
+ * 
+ * @author Massimiliano "Maxi" Zattera
+ *
+ */
+public class VectorUtilTest {
+
+	@Test
+	@DisplayName("Kernels return same results as naive loops.")
+	public void testKernels() {
+		Random rnd = new Random(42);
+
+		// Include sizes that are not a multiple of the unrolling factor
+		for (int dims : new int[] { 0, 1, 3, 7, 8, 9, 15, 384, 1536, 3071 }) {
+			float[] a = random(dims, rnd);
+			float[] b = random(dims, rnd);
+
+			double dot = 0.0, aa = 0.0, bb = 0.0, l2 = 0.0;
+			for (int i = 0; i < dims; ++i) {
+				dot += (double) a[i] * b[i];
+				aa += (double) a[i] * a[i];
+				bb += (double) b[i] * b[i];
+				l2 += ((double) a[i] - b[i]) * ((double) a[i] - b[i]);
+			}
+
+			assertEquals(dot, VectorUtil.dot(a, b), 1e-4);
+			assertEquals(Math.sqrt(aa), VectorUtil.norm(a), 1e-4);
+			assertEquals(Math.sqrt(l2), VectorUtil.l2(a, b), 1e-4);
+			if (dims > 0) {
+				assertEquals(dot / Math.sqrt(aa * bb), VectorUtil.cosine(a, b), 1e-5);
+				assertEquals(1.0, VectorUtil.cosine(a, a), 1e-6);
+			} else {
+				assertEquals(-1.0, VectorUtil.cosine(a, b));
+			}
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> VectorUtil.dot(new float[3], new float[4]));
+		assertThrows(IllegalArgumentException.class, () -> VectorUtil.l2(new float[3], new float[4]));
+		assertThrows(IllegalArgumentException.class,
+				() -> VectorUtil.boundedDot(new float[3], 0.0, new float[4], new double[2], 0.0));
+	}
+
+	@Test
+	@DisplayName("Dot products for several vectors at once are the same as single ones.")
+	public void testMultiDot() {
+		Random rnd = new Random(42);
+
+		for (int dims : new int[] { 0, 1, 3, 5, 384, 1537 }) {
+			float[] v = random(dims, rnd);
+			float[][] vectors = new float[11][];
+			for (int i = 0; i < vectors.length; ++i)
+				vectors[i] = random(dims, rnd);
+
+			for (int n : new int[] { 0, 1, 4, 7, 9 }) {
+				int[] idx = new int[n];
+				for (int i = 0; i < n; ++i)
+					idx[i] = rnd.nextInt(vectors.length);
+				double[] dots = new double[n];
+				VectorUtil.dot(v, vectors, idx, n, dots);
+				for (int i = 0; i < n; ++i)
+					assertEquals(VectorUtil.dot(v, vectors[idx[i]]), dots[i]); // Exactly the same
+			}
+		}
+
+		assertThrows(IllegalArgumentException.class,
+				() -> VectorUtil.dot(new float[3], new float[][] { new float[3], new float[4] }, new int[] { 0, 1 }, 2,
+						new double[2]));
+	}
+
+	@Test
+	@DisplayName("Bounded dot products are abandoned only when below their minimum.")
+	public void testBoundedDot() {
+		Random rnd = new Random(42);
+
+		for (int dims : new int[] { 0, 1, 63, 64, 65, 384, 1536, 3071 }) {
+			float[] b = random(dims, rnd);
+			double[] tails = VectorUtil.tailNorms(b);
+			assertEquals(VectorUtil.norm(b), tails[0], 1e-4);
+			assertEquals(0.0, tails[tails.length - 1]);
+
+			int abandoned = 0;
+			for (int n = 0; n < 200; ++n) {
+				float[] a = random(dims, rnd);
+				if (n % 2 == 0) { // Make half of vectors close to b
+					for (int i = 0; i < dims; ++i)
+						a[i] = b[i] + 0.3f * a[i];
+				}
+				double norm = VectorUtil.norm(a);
+				double dot = VectorUtil.dot(a, b);
+				for (double threshold : new double[] { -1.0, 0.0, 0.5, 0.9 }) {
+					double min = threshold * norm * tails[0];
+					double bounded = VectorUtil.boundedDot(a, norm, b, tails, min);
+					if (Double.isNaN(bounded)) {
+						assertTrue(dot < min);
+						++abandoned;
+					} else {
+						assertEquals(dot, bounded, 1e-3);
+					}
+				}
+			}
+			if (dims > 2 * VectorUtil.BOUND_BLOCK)
+				assertTrue(abandoned > 0);
+		}
+	}
+
+	private static float[] random(int dims, Random rnd) {
+		float[] result = new float[dims];
+		for (int i = 0; i < dims; ++i)
+			result[i] = (float) rnd.nextGaussian();
+		return result;
+	}
+}